@@ -12,6 +12,39 @@ public class Constant {
         //优惠券码 key 的前缀
         public static final String COUPON_TEMPLATE = "imooc_coupon_template_code_";
 
+        //按需生成优惠券码的模板计数 key 前缀, 后面是 {<优惠券码列表 key>}
+        //hash: count 总数, issued 已发出的序号个数, prefix4 前四位, date 日期
+        public static final String COUPON_TEMPLATE_MINT = "imooc_coupon_template_mint_";
+
+        //优惠券码推送到 Redis 的进度 key 前缀
+        public static final String COUPON_TEMPLATE_PROGRESS = "imooc_coupon_template_progress_";
+
+        //可用模板目录的共享版本 hash, field: version 版本号, ids 可用模板 ids
+        public static final String COUPON_TEMPLATE_CATALOG = "imooc_coupon_template_catalog";
+
+        //可用模板目录最近的变化列表, 以目录 key 作为 hash tag, 和它位于同一个 slot
+        public static final String COUPON_TEMPLATE_CATALOG_CHANGES =
+                "imooc_coupon_template_catalog_changes_{imooc_coupon_template_catalog}";
+
+        //模板后台任务的 hash, 所有实例共享, field 是任务 id
+        public static final String COUPON_TEMPLATE_JOBS = "imooc_coupon_template_jobs";
+
+        //模板后台任务心跳的 zset, score 是持有任务的实例最后一次心跳的时间
+        //以下两个 key 以任务 hash 的 key 作为 hash tag, 和它位于同一个 slot
+        public static final String COUPON_TEMPLATE_JOB_HEARTBEATS =
+                "imooc_coupon_template_job_heartbeats_{imooc_coupon_template_jobs}";
+
+        //每种类型没有完成的模板后台任务个数的 hash, field 是任务类型
+        public static final String COUPON_TEMPLATE_JOB_COUNTS =
+                "imooc_coupon_template_job_counts_{imooc_coupon_template_jobs}";
+
+        //模板后台任务持有者的 hash, field 是任务 id, value 是持有任务的实例在提交或者认领时生成的 token
+        public static final String COUPON_TEMPLATE_JOB_OWNERS =
+                "imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}";
+
+        //以下用户相关的 key 都是 前缀 + {userId}, userId 是 Redis Cluster 的 hash tag
+        //之前没有大括号的 key 只在滚动发布窗口内检查, 其中空列表的 key 没有过期时间, 由 LegacyUserKeyCleaner 删除
+
         // 用户当前所有可用的优惠券 key 的前缀
         public static final String USER_COUPON_USABLE = "imooc_user_coupon_usable_";
 
@@ -20,5 +53,37 @@ public class Constant {
 
         //用户当前所有已过期的优惠券 key 前缀
         public static final String USER_COUPON_EXPIRED = "imooc_user_coupon_expired_";
+
+        //用户每个优惠券模板已领取(可用)的优惠券个数 key 前缀
+        public static final String USER_COUPON_ACQUIRED = "imooc_user_coupon_acquired_";
+
+        //从 db 加载用户优惠券的跨节点租约 key 前缀
+        public static final String USER_COUPON_LOAD_LEASE = "imooc_user_coupon_load_lease_";
+
+        //拥有优惠券的用户布隆过滤器的位图 key 前缀, 后面是 <generation>_<slice>
+        public static final String USER_COUPON_BLOOM = "imooc_user_coupon_bloom_";
+
+        //拥有优惠券的用户布隆过滤器的元信息
+        public static final String USER_COUPON_BLOOM_META = "imooc_user_coupon_bloom_meta";
+
+        //布隆过滤器最近的变化列表(每一项是 <版本号>;<用户 id>), 以元信息 key 作为 hash tag, 和它位于同一个 slot
+        public static final String USER_COUPON_BLOOM_CHANGES =
+                "imooc_user_coupon_bloom_changes_{imooc_user_coupon_bloom_meta}";
+
+        //重建布隆过滤器的锁
+        public static final String USER_COUPON_BLOOM_LOCK = "imooc_user_coupon_bloom_lock";
+
+        //清理没有大括号的旧用户 key 的锁
+        public static final String USER_COUPON_LEGACY_CLEANUP_LOCK =
+                "imooc_user_coupon_legacy_cleanup_lock";
+
+        //分发节点租借的优惠券码列表 key 前缀, 后面是 {<优惠券码列表 key>}_<leaseId>
+        public static final String COUPON_CODE_LEASE = "imooc_coupon_code_lease_";
+
+        //所有优惠券码租约的 zset, score 是租约的截止时间
+        public static final String COUPON_CODE_LEASES = "imooc_coupon_code_leases";
+
+        //已经回收、等待放回的优惠券码租约的 zset, score 是可以放回的时间
+        public static final String COUPON_CODE_LEASES_REAPED = "imooc_coupon_code_leases_reaped";
     }
 }
@@ -24,6 +24,17 @@ public enum GoodsType {
 
     private Integer code;
 
+    //编码不在 [0, 30] 范围内的商品类型在位掩码中共用的最高位
+    public static final int UNKNOWN_BIT = 1 << 31;
+
+    /**
+     * 商品类型编码在位掩码中对应的位
+     * 商品类型只有几个, 一组商品类型可以用一个 int 表示, 判断交集/子集只需要位运算
+     */
+    public static int bit(Integer code){
+        return null != code && code >= 0 && code < 31 ? 1 << code : UNKNOWN_BIT;
+    }
+
     public static GoodsType of(Integer code){
         Objects.requireNonNull(code);
 
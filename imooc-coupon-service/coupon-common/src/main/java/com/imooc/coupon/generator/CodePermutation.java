@@ -0,0 +1,90 @@
+package com.imooc.coupon.generator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <h1>优惠券码后八位的带密钥置换</h1>
+ * 把序号 [0, DOMAIN) 一一映射到 [0, DOMAIN), DOMAIN = 9 * 10^7 (第一位 1-9 的八位数)
+ * 28 位平衡 Feistel 网络 + cycle walking: 结果不在 DOMAIN 内时继续置换, 直到落入 DOMAIN
+ * 不同的序号一定得到不同的结果, 不需要去重; 不知道密钥时结果看起来是随机的
+ */
+public final class CodePermutation {
+
+    //置换的值域
+    public static final int DOMAIN = 90_000_000;
+
+    //Feistel 每一半的位数, 2^28 > DOMAIN
+    private static final int HALF_BITS = 14;
+    private static final int HALF_MASK = (1 << HALF_BITS) - 1;
+
+    private static final int ROUNDS = 6;
+
+    private final long[] roundKeys = new long[ROUNDS];
+
+    public CodePermutation(long key) {
+
+        long state = key;
+        for (int i = 0; i != ROUNDS; ++i) {
+            state += 0x9E3779B97F4A7C15L;
+            roundKeys[i] = mix64(state);
+        }
+    }
+
+    /**
+     * <h2>根据密钥和模板 id 构造置换</h2>
+     * 每个模板使用不同的密钥
+     * */
+    public static CodePermutation of(String secret, Integer templateId) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    (secret + ":" + templateId).getBytes(StandardCharsets.UTF_8));
+            long key = 0;
+            for (int i = 0; i != 8; ++i) {
+                key = (key << 8) | (digest[i] & 0xFF);
+            }
+            return new CodePermutation(key);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * <h2>置换一个序号</h2>
+     * @param seq [0, DOMAIN)
+     * @return [0, DOMAIN)
+     * */
+    public int permute(int seq) {
+
+        if (seq < 0 || seq >= DOMAIN) {
+            throw new IllegalArgumentException("Sequence Out Of Domain: " + seq);
+        }
+
+        int value = seq;
+        do {
+            value = feistel(value);
+        } while (value >= DOMAIN);
+        return value;
+    }
+
+    private int feistel(int value) {
+
+        int left = value >>> HALF_BITS;
+        int right = value & HALF_MASK;
+        for (int i = 0; i != ROUNDS; ++i) {
+            int next = left ^ (int) (mix64(right ^ roundKeys[i]) & HALF_MASK);
+            left = right;
+            right = next;
+        }
+        return (left << HALF_BITS) | right;
+    }
+
+    //splitmix64 的混淆函数
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
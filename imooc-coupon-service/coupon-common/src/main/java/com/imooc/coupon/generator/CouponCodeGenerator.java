@@ -0,0 +1,136 @@
+package com.imooc.coupon.generator;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <h1>优惠券码生成器</h1>
+ * 优惠券码（每一张18位)
+ * 前四位 : 产品线 + 类型
+ * 中间六位 ： 日期随机（190101）
+ * 后八位： 序号经过带密钥的置换 {@link CodePermutation} 得到, 第一位不为 0
+ *
+ * 序号不同的优惠券码后八位一定不同, 不需要去重;
+ * 每张优惠券码直接写入 char[], 日期洗牌使用 ThreadLocalRandom,
+ * 大批量生成时拆分到 ForkJoinPool 中并行生成
+ */
+public final class CouponCodeGenerator {
+
+    //优惠券码的长度
+    public static final int CODE_LENGTH = 18;
+
+    //一个 ForkJoin 任务最少生成的个数
+    private static final int MIN_SPLIT = 1 << 14;
+
+    //前四位
+    private final char[] prefix4;
+
+    //日期 yyMMdd
+    private final char[] date6;
+
+    //后八位的置换
+    private final CodePermutation permutation;
+
+    public CouponCodeGenerator(String prefix4, String date6,
+                               CodePermutation permutation) {
+
+        if (prefix4.length() != 4 || date6.length() != 6) {
+            throw new IllegalArgumentException(
+                    "Invalid Coupon Code Prefix Or Date: " + prefix4 + ", " + date6);
+        }
+        this.prefix4 = prefix4.toCharArray();
+        this.date6 = date6.toCharArray();
+        this.permutation = permutation;
+    }
+
+    /**
+     * <h2>生成序号为 [from, from + count) 的优惠券码</h2>
+     * */
+    public String[] generate(int from, int count) {
+
+        if (from < 0 || count < 0 || (long) from + count > CodePermutation.DOMAIN) {
+            throw new IllegalArgumentException(
+                    "Coupon Code Sequence Out Of Domain: " + from + ", " + count);
+        }
+
+        String[] codes = new String[count];
+        ForkJoinPool.commonPool().invoke(new GenerateTask(codes, from, 0, count));
+        return codes;
+    }
+
+    /**
+     * <h2>生成序号为 seq 的优惠券码</h2>
+     * */
+    public String code(int seq) {
+
+        char[] buf = newBuffer();
+        fillSuffix(buf, seq, ThreadLocalRandom.current());
+        return new String(buf);
+    }
+
+    //已经写好前四位的 buffer
+    private char[] newBuffer() {
+
+        char[] buf = new char[CODE_LENGTH];
+        System.arraycopy(prefix4, 0, buf, 0, 4);
+        return buf;
+    }
+
+    //写入后 14 位
+    private void fillSuffix(char[] buf, int seq, ThreadLocalRandom random) {
+
+        //中间六位: 日期的随机排列, 在 buf 上原地洗牌
+        System.arraycopy(date6, 0, buf, 4, 6);
+        for (int i = 5; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            char tmp = buf[4 + i];
+            buf[4 + i] = buf[4 + j];
+            buf[4 + j] = tmp;
+        }
+
+        //后八位: [10000000, 99999999], 第一位 1-9
+        int digits = 10_000_000 + permutation.permute(seq);
+        for (int i = CODE_LENGTH - 1; i >= 10; --i) {
+            buf[i] = (char) ('0' + digits % 10);
+            digits /= 10;
+        }
+    }
+
+    /**
+     * 生成 codes 中 [from, to) 范围内的优惠券码, 范围太大时一分为二
+     * codes[i] 的序号是 base + i
+     */
+    private class GenerateTask extends RecursiveAction {
+
+        private final String[] codes;
+        private final int base;
+        private final int from;
+        private final int to;
+
+        private GenerateTask(String[] codes, int base, int from, int to) {
+            this.codes = codes;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > MIN_SPLIT) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GenerateTask(codes, base, from, mid),
+                        new GenerateTask(codes, base, mid, to));
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            char[] buf = newBuffer();
+            for (int i = from; i < to; ++i) {
+                fillSuffix(buf, base + i, random);
+                codes[i] = new String(buf);
+            }
+        }
+    }
+}
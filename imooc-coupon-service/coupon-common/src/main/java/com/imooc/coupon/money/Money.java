@@ -0,0 +1,76 @@
+package com.imooc.coupon.money;
+
+import com.imooc.coupon.vo.GoodsInfo;
+
+import java.util.List;
+
+/**
+ * <h1>以分(long)为单位的金额计算</h1>
+ * 接口上的价格(GoodsInfo.price, SettlementInfo.cost)仍然是以元为单位的 Double
+ * 进入计算时转换为分, 计算过程只有整数运算, 没有浮点误差, 也不需要创建 BigDecimal
+ * 优惠券规则中的 quota/base 是整数元, 折扣的 quota 是百分比
+ */
+public final class Money {
+
+    //每元的分数
+    private static final long CENTS_PER_YUAN = 100;
+
+    //最小支付费用 0.1 元
+    public static final long MIN_COST = 10;
+
+    private Money() {
+    }
+
+    /**
+     * <h2>元转换为分, 四舍五入到分</h2>
+     * */
+    public static long toCents(Double yuan) {
+        return Math.round(yuan * CENTS_PER_YUAN);
+    }
+
+    /**
+     * <h2>整数元转换为分</h2>
+     * */
+    public static long toCents(Integer yuan) {
+        return yuan * CENTS_PER_YUAN;
+    }
+
+    /**
+     * <h2>分转换为元, 结果是最接近两位小数的 double</h2>
+     * */
+    public static double toYuan(long cents) {
+        return (double) cents / CENTS_PER_YUAN;
+    }
+
+    /**
+     * <h2>商品总价(分)</h2>
+     * 每件商品的单价先转换为分再乘以数量
+     * */
+    public static long goodsCostSum(List<GoodsInfo> goodsInfos) {
+
+        long sum = 0;
+        for (GoodsInfo goodsInfo : goodsInfos) {
+            sum += toCents(goodsInfo.getPrice()) * goodsInfo.getCount();
+        }
+        return sum;
+    }
+
+    /**
+     * <h2>打折, percent 是百分比(85 即八五折), 四舍五入到分</h2>
+     * */
+    public static long discount(long cents, int percent) {
+
+        long product = cents * percent;
+        //负数按绝对值四舍五入, 和 BigDecimal.ROUND_HALF_UP 一致
+        return product >= 0
+                ? (product + CENTS_PER_YUAN / 2) / CENTS_PER_YUAN
+                : -((-product + CENTS_PER_YUAN / 2) / CENTS_PER_YUAN);
+    }
+
+    /**
+     * <h2>不低于最小支付费用</h2>
+     * */
+    public static long atLeastMinCost(long cents) {
+        return Math.max(cents, MIN_COST);
+    }
+}
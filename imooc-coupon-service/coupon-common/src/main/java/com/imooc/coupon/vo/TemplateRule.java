@@ -1,16 +1,25 @@
 package com.imooc.coupon.vo;
 
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.GoodsType;
 import com.imooc.coupon.constant.PeriodType;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 
 //优惠券规则对象定义
+//weight 和 usage.goodsType 是 json 字符串, 第一次使用时解析并保存在对象中(不参与序列化)
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
 public class TemplateRule {
 
     //优惠券过期规则
@@ -29,6 +38,50 @@ public class TemplateRule {
     //的优惠券的唯一编码
     private String weight;
 
+    //weight 解析之后的可以叠加使用的优惠券编码
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile Set<String> shareKeys;
+
+    public TemplateRule(Expiration expiration, Discount discount,
+                        Integer limitation, Usage usage, String weight) {
+        this.expiration = expiration;
+        this.discount = discount;
+        this.limitation = limitation;
+        this.usage = usage;
+        this.weight = weight;
+    }
+
+    public void setWeight(String weight) {
+        this.weight = weight;
+        this.shareKeys = null;
+    }
+
+    //可以叠加使用的优惠券编码, 只解析一次
+    public Set<String> shareKeys(){
+        Set<String> keys = shareKeys;
+        if(null == keys){
+            keys = parseSet(weight, String.class);
+            shareKeys = keys;
+        }
+        return keys;
+    }
+
+    //复制一份规则, 解析好的 shareKeys 和商品类型是不可修改的, 直接共享
+    public TemplateRule copy(){
+        TemplateRule rule = new TemplateRule(
+                null == expiration ? null : new Expiration(
+                        expiration.getPeriod(), expiration.getGap(),
+                        expiration.getDeadline()),
+                null == discount ? null : new Discount(
+                        discount.getQuota(), discount.getBase()),
+                limitation,
+                null == usage ? null : usage.copy(),
+                weight);
+        rule.shareKeys = shareKeys;
+        return rule;
+    }
+
     //校验功能
     public boolean validate(){
         return expiration.validate() && discount.validate()
@@ -77,7 +130,6 @@ public class TemplateRule {
     //使用范围
     @Data
     @NoArgsConstructor
-    @AllArgsConstructor
     public static class Usage{
 
         //可用于哪个省份
@@ -89,10 +141,72 @@ public class TemplateRule {
         //商品类型，list[文娱，生鲜，家具，全品类]
         private String goodsType;
 
+        //goodsType 解析之后的商品类型
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private transient volatile Set<Integer> goodsTypes;
+
+        //goodsTypes 的位掩码, 见 GoodsType.bit
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private transient volatile Integer goodsTypeMask;
+
+        public Usage(String province, String city, String goodsType) {
+            this.province = province;
+            this.city = city;
+            this.goodsType = goodsType;
+        }
+
+        public void setGoodsType(String goodsType) {
+            this.goodsType = goodsType;
+            this.goodsTypes = null;
+            this.goodsTypeMask = null;
+        }
+
+        Usage copy(){
+            Usage copy = new Usage(province, city, goodsType);
+            copy.goodsTypes = goodsTypes;
+            copy.goodsTypeMask = goodsTypeMask;
+            return copy;
+        }
+
+        //可以使用的商品类型, 只解析一次
+        public Set<Integer> goodsTypes(){
+            Set<Integer> types = goodsTypes;
+            if(null == types){
+                types = parseSet(goodsType, Integer.class);
+                goodsTypes = types;
+            }
+            return types;
+        }
+
+        //可以使用的商品类型的位掩码, 只计算一次; 不认识的编码不会匹配任何商品
+        public int goodsTypeMask(){
+            Integer mask = goodsTypeMask;
+            if(null == mask){
+                int bits = 0;
+                for (Integer type : goodsTypes()) {
+                    bits |= GoodsType.bit(type);
+                }
+                mask = bits & ~GoodsType.UNKNOWN_BIT;
+                goodsTypeMask = mask;
+            }
+            return mask;
+        }
+
         boolean validate(){
             return StringUtils.isNotEmpty(province)
                     && StringUtils.isNotEmpty(city)
                     && StringUtils.isNotEmpty(goodsType);
         }
     }
+
+    //把 json 数组解析为不可修改的 Set
+    private static <T> Set<T> parseSet(String json, Class<T> clazz){
+        if(StringUtils.isEmpty(json)){
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(
+                new LinkedHashSet<>(JSON.parseArray(json, clazz)));
+    }
 }
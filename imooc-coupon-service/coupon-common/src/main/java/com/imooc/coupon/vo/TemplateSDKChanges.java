@@ -0,0 +1,26 @@
+package com.imooc.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+//可用优惠券模板目录从某个版本到当前版本的变化
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateSDKChanges {
+
+    //当前版本, 下一次同步时作为 since 传入
+    private Long version;
+
+    //是否是全量, 全量时 added 是所有可用的模板, 调用方丢弃本地的副本
+    private Boolean full;
+
+    //新增的可用模板
+    private List<CouponTemplateSDK> added;
+
+    //不再可用(过期)的模板 id
+    private List<Integer> removed;
+}
@@ -0,0 +1,59 @@
+package com.imooc.coupon.generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <h1>优惠券码生成器测试</h1>
+ */
+public class CouponCodeGeneratorTest {
+
+    @Test
+    public void testGenerateFormat() {
+
+        CouponCodeGenerator generator = new CouponCodeGenerator(
+                "1001", "190816", CodePermutation.of("test", 1));
+        char[] sortedDate = "190816".toCharArray();
+        Arrays.sort(sortedDate);
+
+        for (String code : generator.generate(0, 100000)) {
+            Assert.assertEquals(CouponCodeGenerator.CODE_LENGTH, code.length());
+            Assert.assertTrue(code.startsWith("1001"));
+
+            char[] mid6 = code.substring(4, 10).toCharArray();
+            Arrays.sort(mid6);
+            Assert.assertArrayEquals(sortedDate, mid6);
+
+            Assert.assertNotEquals('0', code.charAt(10));
+            Assert.assertTrue(code.substring(10).chars().allMatch(Character::isDigit));
+        }
+    }
+
+    @Test
+    public void testGenerateUnique() {
+
+        CouponCodeGenerator generator = new CouponCodeGenerator(
+                "1001", "190816", CodePermutation.of("test", 1));
+
+        Set<String> suffix8 = new HashSet<>();
+        for (String code : generator.generate(0, 1000000)) {
+            Assert.assertTrue(suffix8.add(code.substring(10)));
+        }
+
+        //同一个序号每次生成的后八位相同
+        Assert.assertEquals(generator.generate(12345, 1)[0].substring(10),
+                generator.code(12345).substring(10));
+    }
+
+    @Test
+    public void testPermutationBoundary() {
+
+        CodePermutation permutation = CodePermutation.of("test", 1);
+        int last = permutation.permute(CodePermutation.DOMAIN - 1);
+        Assert.assertTrue(last >= 0 && last < CodePermutation.DOMAIN);
+    }
+}
@@ -0,0 +1,67 @@
+package com.imooc.coupon.money;
+
+import com.imooc.coupon.vo.GoodsInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * <h1>以分为单位的金额计算测试</h1>
+ */
+public class MoneyTest {
+
+    @Test
+    public void testToCentsHalfUp() {
+
+        Assert.assertEquals(1234, Money.toCents(12.34));
+        //0.125, 0.375 可以精确表示, 正好在两个分之间
+        Assert.assertEquals(13, Money.toCents(0.125));
+        Assert.assertEquals(38, Money.toCents(0.375));
+        Assert.assertEquals(0, Money.toCents(0.004));
+        Assert.assertEquals(2000, Money.toCents(20));
+        Assert.assertEquals(12.34, Money.toYuan(1234), 0);
+    }
+
+    @Test
+    public void testDiscountHalfUp() {
+
+        //100 元打八五折
+        Assert.assertEquals(8500, Money.discount(10000, 85));
+        //15 分打五折是 7.5 分, 向上舍入
+        Assert.assertEquals(8, Money.discount(15, 50));
+        //负数按绝对值四舍五入
+        Assert.assertEquals(-8, Money.discount(-15, 50));
+        Assert.assertEquals(7, Money.discount(14, 50));
+    }
+
+    @Test
+    public void testDiscountBelowOneCent() {
+
+        //5 分打一折是 0.5 分, 舍入为 1 分
+        Assert.assertEquals(1, Money.discount(5, 10));
+        //4 分打一折是 0.4 分, 舍入为 0
+        Assert.assertEquals(0, Money.discount(4, 10));
+        Assert.assertEquals(0, Money.discount(1, 1));
+    }
+
+    @Test
+    public void testAtLeastMinCost() {
+
+        Assert.assertEquals(Money.MIN_COST, Money.atLeastMinCost(-500));
+        Assert.assertEquals(Money.MIN_COST, Money.atLeastMinCost(0));
+        Assert.assertEquals(Money.MIN_COST, Money.atLeastMinCost(Money.MIN_COST - 1));
+        Assert.assertEquals(Money.MIN_COST, Money.atLeastMinCost(Money.MIN_COST));
+        Assert.assertEquals(Money.MIN_COST + 1, Money.atLeastMinCost(Money.MIN_COST + 1));
+    }
+
+    @Test
+    public void testGoodsCostSum() {
+
+        //单价先转换为分再乘以数量, 0.1 * 3 不会产生浮点误差
+        Assert.assertEquals(30 + 2 * 1999, Money.goodsCostSum(Arrays.asList(
+                new GoodsInfo(1, 0.1, 3),
+                new GoodsInfo(2, 19.99, 2)
+        )));
+    }
+}
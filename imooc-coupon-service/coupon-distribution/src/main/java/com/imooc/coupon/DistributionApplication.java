@@ -10,8 +10,10 @@ import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.cloud.openfeign.EnableFeignClients;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.client.RestTemplate;
 
+@EnableScheduling   //定时任务(布隆过滤器的刷新和轮换)
 @EnableJpaAuditing   //jpa填充数据列
 @EnableFeignClients  //调用其他微服务
 @EnableCircuitBreaker  //融断降级
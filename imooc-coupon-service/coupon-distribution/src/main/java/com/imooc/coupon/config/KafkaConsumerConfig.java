@@ -0,0 +1,32 @@
+package com.imooc.coupon.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
+
+//Kafka 批量消费配置
+@Configuration
+public class KafkaConsumerConfig {
+
+    /**
+     * 批量消费的 listener 工厂
+     * 一次 poll 的所有记录(最多 max-poll-records 条)交给 listener 一起处理,
+     * 处理完之后由 listener 手动提交 offset; 处理失败时 seek 回这一批的开头重新消费
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<Object, Object>
+    batchKafkaListenerContainerFactory(ConsumerFactory<Object, Object> consumerFactory) {
+
+        ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+                new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(
+                ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+        factory.setBatchErrorHandler(new SeekToCurrentBatchErrorHandler());
+        return factory;
+    }
+}
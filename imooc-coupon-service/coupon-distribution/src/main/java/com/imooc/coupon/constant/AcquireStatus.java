@@ -0,0 +1,18 @@
+package com.imooc.coupon.constant;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//领取优惠券码的结果(与 lua/acquire_coupon_code.lua 的返回值对应)
+@Getter
+@AllArgsConstructor
+public enum AcquireStatus {
+
+    SUCCESS("领取成功"),
+    LIMIT_EXCEEDED("超过模板的领取限制"),
+    SOLD_OUT("优惠券码已经领完"),
+    NOT_CACHED("用户领取计数还没有初始化");
+
+    //描述信息
+    private String description;
+}
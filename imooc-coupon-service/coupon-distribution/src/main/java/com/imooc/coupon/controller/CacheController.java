@@ -0,0 +1,93 @@
+package com.imooc.coupon.controller;
+
+import com.imooc.coupon.schedule.LegacyUserKeyCleaner;
+import com.imooc.coupon.service.ICouponCodeLeaseService;
+import com.imooc.coupon.service.ITemplateCacheService;
+import com.imooc.coupon.service.IUserBloomService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 分发服务缓存的监控和维护 Controller
+ */
+@Slf4j
+@RestController
+public class CacheController {
+
+    //优惠券模板近端缓存
+    private final ITemplateCacheService templateCacheService;
+
+    //拥有优惠券的用户布隆过滤器
+    private final IUserBloomService userBloomService;
+
+    //优惠券码本地租约
+    private final ICouponCodeLeaseService codeLeaseService;
+
+    //没有 hash tag 的旧用户 key 清理
+    private final LegacyUserKeyCleaner legacyUserKeyCleaner;
+
+    @Autowired
+    public CacheController(ITemplateCacheService templateCacheService,
+                           IUserBloomService userBloomService,
+                           ICouponCodeLeaseService codeLeaseService,
+                           LegacyUserKeyCleaner legacyUserKeyCleaner) {
+        this.templateCacheService = templateCacheService;
+        this.userBloomService = userBloomService;
+        this.codeLeaseService = codeLeaseService;
+        this.legacyUserKeyCleaner = legacyUserKeyCleaner;
+    }
+
+    /**
+     * 优惠券模板近端缓存的统计信息
+     * @return
+     */
+    //127.0.0.1:7002/coupon-distribution/cache/template/stats
+    @GetMapping("/cache/template/stats")
+    public Map<String, Object> templateCacheStats(){
+
+        log.info("View Template Cache Stats.");
+        return templateCacheService.stats();
+    }
+
+    /**
+     * 拥有优惠券的用户布隆过滤器的状态
+     * @return
+     */
+    //127.0.0.1:7002/coupon-distribution/cache/user-bloom/stats
+    @GetMapping("/cache/user-bloom/stats")
+    public Map<String, Object> userBloomStats(){
+
+        log.info("View User Bloom Stats.");
+        return userBloomService.stats();
+    }
+
+    /**
+     * 优惠券码本地租约的状态
+     * @return
+     */
+    //127.0.0.1:7002/coupon-distribution/cache/code-lease/stats
+    @GetMapping("/cache/code-lease/stats")
+    public Map<String, Object> codeLeaseStats(){
+
+        log.info("View Code Lease Stats.");
+        return codeLeaseService.stats();
+    }
+
+    /**
+     * 在后台清理没有 hash tag 的旧用户 key, 可以重复触发
+     * @return started 是否开始清理
+     */
+    //127.0.0.1:7002/coupon-distribution/cache/legacy-keys/cleanup
+    @PostMapping("/cache/legacy-keys/cleanup")
+    public Map<String, Object> cleanupLegacyKeys(){
+
+        log.info("Trigger Legacy User Key Cleanup.");
+        return Collections.singletonMap("started", legacyUserKeyCleaner.trigger());
+    }
+}
@@ -0,0 +1,37 @@
+package com.imooc.coupon.controller;
+
+import com.imooc.coupon.service.ICouponStatusPublisher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 优惠券状态 Kafka 消息发送的监控 Controller
+ */
+@Slf4j
+@RestController
+public class KafkaController {
+
+    //优惠券状态变化的 Kafka 消息发送
+    private final ICouponStatusPublisher statusPublisher;
+
+    @Autowired
+    public KafkaController(ICouponStatusPublisher statusPublisher) {
+        this.statusPublisher = statusPublisher;
+    }
+
+    /**
+     * 优惠券状态消息发送的统计信息
+     * @return
+     */
+    //127.0.0.1:7002/coupon-distribution/kafka/producer/stats
+    @GetMapping("/kafka/producer/stats")
+    public Map<String, Object> producerStats(){
+
+        log.info("View Kafka Producer Stats.");
+        return statusPublisher.stats();
+    }
+}
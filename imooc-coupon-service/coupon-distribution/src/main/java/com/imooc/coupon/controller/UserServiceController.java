@@ -1,18 +1,30 @@
 package com.imooc.coupon.controller;
 
 import com.alibaba.fastjson.JSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.imooc.coupon.annotation.IgnoreResponseAdvice;
+import com.imooc.coupon.constant.CouponStatus;
 import com.imooc.coupon.entity.Coupon;
 import com.imooc.coupon.exception.CouponException;
 import com.imooc.coupon.serialization.CouponSerialize;
 import com.imooc.coupon.service.IUserService;
 import com.imooc.coupon.vo.AcquiredTemplateRequest;
+import com.imooc.coupon.vo.BatchCouponRequest;
 import com.imooc.coupon.vo.CouponTemplateSDK;
 import com.imooc.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @RestController
@@ -21,10 +33,19 @@ public class UserServiceController {
     //用户服务接口
     private final IUserService userService;
 
+    //和普通接口使用同一个 ObjectMapper, 保证优惠券的序列化格式一致
+    private final ObjectMapper objectMapper;
+
+    //批量查询一次最多的用户数
+    @Value("${coupon.batch.max-users:500}")
+    private int batchMaxUsers;
+
 
     @Autowired
-    public UserServiceController(IUserService userService) {
+    public UserServiceController(IUserService userService,
+                                 ObjectMapper objectMapper) {
         this.userService = userService;
+        this.objectMapper = objectMapper;
     }
 
     /**
@@ -44,6 +65,52 @@ public class UserServiceController {
         return userService.findCouponByStatus(userId,status);
     }
 
+    /**
+     * 批量根据用户id 和优惠券状态查找用户优惠券记录
+     * 按用户逐行返回(NDJSON): {"userId": ..., "coupons": [...]}
+     * @param request
+     * @return
+     * @throws CouponException
+     */
+    //127.0.0.1:7002/coupon-distribution/coupons/batch
+    @IgnoreResponseAdvice
+    @PostMapping(value = "/coupons/batch", produces = "application/x-ndjson")
+    public StreamingResponseBody batchFindCouponsByStatus(
+            @RequestBody BatchCouponRequest request) throws CouponException {
+
+        log.info("Batch Find Coupon By Status: {}", JSON.toJSONString(request));
+
+        if(CollectionUtils.isEmpty(request.getUserIds())
+                || request.getUserIds().size() > batchMaxUsers){
+            throw new CouponException("UserIds Is Empty Or Exceed Limit: "
+                    + batchMaxUsers);
+        }
+        if(null == request.getStatus()){
+            throw new CouponException("Status Is Null");
+        }
+        //非法的状态在开始写响应之前抛出
+        CouponStatus.of(request.getStatus());
+
+        return out -> {
+            try {
+                userService.findCouponsByStatus(
+                        request.getUserIds(), request.getStatus(),
+                        (userId, coupons) -> {
+                            Map<String, Object> line = new HashMap<>(2);
+                            line.put("userId", userId);
+                            line.put("coupons", coupons);
+                            writeLine(out, line);
+                        });
+            } catch (CouponException ex) {
+                //响应已经开始写入, 只能用一行错误信息结束
+                log.error("Batch Find Coupon Error: {}", ex.getMessage());
+                Map<String, Object> line = new HashMap<>(1);
+                line.put("error", ex.getMessage());
+                writeLine(out, line);
+            }
+        };
+    }
+
     /**
      * 根据用户id 查找当前可以领取的优惠券模板
      * @param userId
@@ -87,4 +154,15 @@ public class UserServiceController {
         log.info("Settlement : {}", JSON.toJSONString(info));
         return userService.settlement(info);
     }
+
+    //写入一行 json 并刷新, 让调用方可以边接收边处理
+    private void writeLine(OutputStream out, Object line){
+        try {
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
 }
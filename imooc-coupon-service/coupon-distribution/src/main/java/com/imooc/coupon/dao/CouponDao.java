@@ -2,8 +2,13 @@ package com.imooc.coupon.dao;
 
 import com.imooc.coupon.constant.CouponStatus;
 import com.imooc.coupon.entity.Coupon;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface CouponDao extends JpaRepository<Coupon,Integer> {
@@ -14,4 +19,53 @@ public interface CouponDao extends JpaRepository<Coupon,Integer> {
      * */
     List<Coupon> findAllByUserIdAndStatus(Long userId, CouponStatus status);
 
+    /**
+     * <h2>根据 userIds + 状态寻找优惠券记录</h2>
+     * where userId in (...) and status = ...
+     * */
+    List<Coupon> findAllByUserIdInAndStatus(Collection<Long> userIds,
+                                            CouponStatus status);
+
+    /**
+     * <h2>当前最大的优惠券主键</h2>
+     * */
+    @Query("select max(c.id) from Coupon c")
+    Integer findMaxId();
+
+    /**
+     * <h2>按 userId 递增分页查找拥有优惠券的用户</h2>
+     * where userId > ... order by userId limit ...
+     * */
+    @Query("select distinct c.userId from Coupon c where c.userId > ?1 " +
+            "order by c.userId")
+    List<Long> findUserIdsAfter(Long userId, Pageable pageable);
+
+    /**
+     * <h2>查找主键大于 id 的优惠券所属的用户</h2>
+     * where id > ...
+     * */
+    @Query("select distinct c.userId from Coupon c where c.id > ?1")
+    List<Long> findUserIdsByIdAfter(Integer id);
+
+    /**
+     * <h2>在给定的优惠券码中查找已经被领取的</h2>
+     * where templateId = ... and couponCode in (...)
+     * */
+    @Query("select c.couponCode from Coupon c where c.templateId = ?1 " +
+            "and c.couponCode in ?2")
+    List<String> findCouponCodesIn(Integer templateId, Collection<String> codes);
+
+    /**
+     * <h2>批量修改优惠券状态</h2>
+     * update coupon set status = ... where id in (...) and status = ...
+     * 只修改当前状态是 fromStatus 的优惠券, 重复消费时不会覆盖已经变化的状态
+     * @return 修改的记录数
+     * */
+    @Modifying
+    @Transactional
+    @Query("update Coupon c set c.status = ?1 " +
+            "where c.id in ?2 and c.status = ?3")
+    int updateStatusByIds(CouponStatus status, Collection<Integer> ids,
+                          CouponStatus fromStatus);
+
 }
@@ -59,13 +59,6 @@ public class Coupon {
     @Transient
     private CouponTemplateSDK templateSDK;
 
-    //返回一个无效的 Coupon 对象
-    public static Coupon invalidCoupon(){
-        Coupon coupon = new Coupon();
-        coupon.setId(-1);
-        return coupon;
-    }
-
     //构造优惠券
     public Coupon(Integer templateId, Long userId,String CouponCode,
                   CouponStatus status){
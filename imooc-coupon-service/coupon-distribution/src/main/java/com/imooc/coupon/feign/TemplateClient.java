@@ -3,6 +3,7 @@ package com.imooc.coupon.feign;
 import com.imooc.coupon.feign.hystrix.TemplateClientHystrix;
 import com.imooc.coupon.vo.CommonResponse;
 import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateSDKChanges;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -26,6 +27,15 @@ public interface TemplateClient {
             method = RequestMethod.GET)
     CommonResponse<List<CouponTemplateSDK>> findAllUsableTemplate();
 
+    /**
+     * 查找可用模板从 since 版本到当前版本的变化, since 为 null 时返回全量
+     */
+    @RequestMapping(value = "/coupon-template/template/sdk/changes",
+            method = RequestMethod.GET)
+    CommonResponse<TemplateSDKChanges> findTemplateSDKChanges(
+            @RequestParam(value = "since", required = false) Long since
+    );
+
     /**
      * 查找模板 ids 到 CouponTemplateSDK 的映射
      *
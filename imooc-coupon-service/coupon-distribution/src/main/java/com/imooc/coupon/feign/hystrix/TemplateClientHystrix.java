@@ -3,6 +3,7 @@ package com.imooc.coupon.feign.hystrix;
 import com.imooc.coupon.feign.TemplateClient;
 import com.imooc.coupon.vo.CommonResponse;
 import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateSDKChanges;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
@@ -27,6 +28,18 @@ public class TemplateClientHystrix implements TemplateClient {
         );
     }
 
+    @Override
+    public CommonResponse<TemplateSDKChanges> findTemplateSDKChanges(Long since) {
+
+        log.error("[eureka-client-coupon-template] findTemplateSDKChanges" +
+                "request error");
+        return new CommonResponse<>(
+                -1,
+                "[eureka-client-coupon-template] request error",
+                null
+        );
+    }
+
     @Override
     public CommonResponse<Map<Integer, CouponTemplateSDK>> findIds2TemplateSDK(Collection<Integer> ids) {
 
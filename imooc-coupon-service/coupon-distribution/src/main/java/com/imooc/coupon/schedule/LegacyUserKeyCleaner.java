@@ -0,0 +1,189 @@
+package com.imooc.coupon.schedule;
+
+import com.imooc.coupon.constant.Constant;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <h1>删除没有 hash tag 的旧用户优惠券 key</h1>
+ * 旧的 key 是 前缀 + userId; 其中空列表(无效优惠券)的 key 写入时没有过期时间, 不会自己消失
+ * 在后台 SCAN 一遍, UNLINK 所有不含 '{' 的旧 key; 多个节点只有拿到锁的执行
+ * 不记录完成标记, 可以重复执行: 配置 coupon.redis.cleanup-legacy-keys 时启动后执行,
+ * 或者通过 /cache/legacy-keys/cleanup 触发
+ * 滚动发布窗口(coupon.redis.legacy-key-window)内旧版本节点还在使用旧 key, 不执行
+ */
+@Slf4j
+@Component
+public class LegacyUserKeyCleaner {
+
+    //每次 SCAN 建议返回的 key 个数, 也是每次 UNLINK 的最多个数
+    private static final int SCAN_COUNT = 1000;
+
+    //旧 key 的前缀
+    private static final List<String> LEGACY_PREFIXES = Arrays.asList(
+            Constant.RedisPrefix.USER_COUPON_USABLE,
+            Constant.RedisPrefix.USER_COUPON_USED,
+            Constant.RedisPrefix.USER_COUPON_EXPIRED,
+            Constant.RedisPrefix.USER_COUPON_ACQUIRED
+    );
+
+    private final StringRedisTemplate redisTemplate;
+
+    //释放锁的脚本, 只有持有者才能释放
+    private final DefaultRedisScript<Long> releaseLockScript;
+
+    //启动后是否清理旧 key
+    @Value("${coupon.redis.cleanup-legacy-keys:false}")
+    private boolean enabled;
+
+    //滚动发布窗口, 旧版本节点还在读写旧 key
+    @Value("${coupon.redis.legacy-key-window:false}")
+    private boolean legacyKeyWindow;
+
+    //本节点是否正在清理
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    //Redis Cluster 上 SCAN 只能逐个节点执行, 旧 key 只存在于引入 hash tag 之前的单机部署
+    @Value("${coupon.redis.cluster:false}")
+    private boolean clusterMode;
+
+    @Autowired
+    public LegacyUserKeyCleaner(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+
+        this.releaseLockScript = new DefaultRedisScript<>();
+        this.releaseLockScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_lease.lua")));
+        this.releaseLockScript.setResultType(Long.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+
+        if (enabled) {
+            trigger();
+        }
+    }
+
+    /**
+     * <h2>在后台清理旧 key</h2>
+     * @return 是否开始清理; Redis Cluster 上、滚动发布窗口内或者本节点正在清理时返回 false
+     */
+    public boolean trigger() {
+
+        if (clusterMode) {
+            log.warn("Skip Legacy User Key Cleanup On Redis Cluster");
+            return false;
+        }
+        if (legacyKeyWindow) {
+            log.warn("Skip Legacy User Key Cleanup In Legacy Key Window");
+            return false;
+        }
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        Thread thread = new Thread(() -> {
+            try {
+                cleanup();
+            } finally {
+                running.set(false);
+            }
+        }, "ImoocLegacyKeyCleanup");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * 清理所有旧 key, 其他节点正在清理时直接返回
+     */
+    private void cleanup() {
+
+        try {
+            //锁过期之后其他节点(或者再次触发时)重新清理, 已经删除的 key 不会再出现
+            String token = UUID.randomUUID().toString();
+            Boolean locked = redisTemplate.opsForValue().setIfAbsent(
+                    Constant.RedisPrefix.USER_COUPON_LEGACY_CLEANUP_LOCK,
+                    token, 1, TimeUnit.HOURS);
+            if (!Boolean.TRUE.equals(locked)) {
+                return;
+            }
+
+            try {
+                long removed = 0;
+                for (String prefix : LEGACY_PREFIXES) {
+                    removed += cleanup(prefix);
+                }
+                log.info("Done To Cleanup Legacy User Keys: {}", removed);
+            } finally {
+                redisTemplate.execute(releaseLockScript,
+                        Collections.singletonList(
+                                Constant.RedisPrefix.USER_COUPON_LEGACY_CLEANUP_LOCK),
+                        token);
+            }
+        } catch (RuntimeException ex) {
+            log.error("Cleanup Legacy User Keys Error: {}", ex.getMessage());
+        }
+    }
+
+    //SCAN 一个前缀下的 key, 分批 UNLINK 不含 '{' 的旧 key
+    private long cleanup(String prefix) {
+
+        Long removed = redisTemplate.execute((RedisCallback<Long>) connection -> {
+            long count = 0;
+            List<byte[]> batch = new ArrayList<>(SCAN_COUNT);
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions()
+                    .match(prefix + "*").count(SCAN_COUNT).build())) {
+                while (cursor.hasNext()) {
+                    byte[] key = cursor.next();
+                    if (new String(key, StandardCharsets.UTF_8).indexOf('{') >= 0) {
+                        continue;
+                    }
+                    batch.add(key);
+                    if (batch.size() == SCAN_COUNT) {
+                        count += unlink(connection, batch);
+                    }
+                }
+            } catch (IOException ex) {
+                log.warn("Close Scan Cursor Error: {}", ex.getMessage());
+            }
+            return count + unlink(connection, batch);
+        });
+
+        log.info("Cleanup Legacy User Keys: {}, {}", prefix, removed);
+        return null == removed ? 0 : removed;
+    }
+
+    private static long unlink(RedisConnection connection, List<byte[]> keys) {
+
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        Long removed = connection.unlink(keys.toArray(new byte[0][]));
+        keys.clear();
+        return null == removed ? 0 : removed;
+    }
+}
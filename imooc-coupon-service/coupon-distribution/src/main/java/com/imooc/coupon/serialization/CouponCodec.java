@@ -0,0 +1,111 @@
+package com.imooc.coupon.serialization;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.entity.Coupon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * 用户优惠券在 Redis 中的紧凑编码
+ * 只保存 id, templateId, couponCode, assignTime, status; userId 由 Redis Key 决定,
+ * templateSDK 在读取时再填充, 不再每张优惠券都拷贝一份模板
+ *
+ * 二进制格式(Base64 之后存入 Hash 的 value):
+ * [version:1][id:varint][templateId:varint][assignTime:varlong][status:1]
+ * [codeLength:varint][code:utf8]
+ */
+public final class CouponCodec {
+
+    //当前的编码版本
+    private static final byte VERSION_1 = 1;
+
+    //当前状态没有优惠券的用户写入的空标记(field -> value), 防止缓存穿透
+    //编码之后的 Coupon 至少有版本号一个字节, 不会是空字符串
+    public static final String EMPTY_FIELD = "empty";
+    public static final String EMPTY_VALUE = "";
+
+    private CouponCodec() {
+    }
+
+    //编码 Coupon
+    public static String encode(Coupon coupon) {
+
+        byte[] code = coupon.getCouponCode().getBytes(StandardCharsets.UTF_8);
+        byte[] buf = new byte[1 + 5 + 5 + 10 + 1 + 5 + code.length];
+        int pos = 0;
+
+        buf[pos++] = VERSION_1;
+        pos = writeVarLong(buf, pos, coupon.getId());
+        pos = writeVarLong(buf, pos, coupon.getTemplateId());
+        pos = writeVarLong(buf, pos, coupon.getAssignTime().getTime());
+        buf[pos++] = coupon.getStatus().getCode().byteValue();
+        pos = writeVarLong(buf, pos, code.length);
+        System.arraycopy(code, 0, buf, pos, code.length);
+        pos += code.length;
+
+        return Base64.getEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOf(buf, pos));
+    }
+
+    /**
+     * 解码 Coupon
+     * @param userId Redis Key 对应的用户 id
+     * @param value Hash 中保存的 value
+     */
+    public static Coupon decode(Long userId, String value) {
+
+        byte[] buf = Base64.getDecoder().decode(value);
+        int[] pos = {0};
+
+        byte version = buf[pos[0]++];
+        if (version != VERSION_1) {
+            throw new IllegalArgumentException(
+                    "Unsupported Coupon Codec Version: " + version);
+        }
+
+        Coupon coupon = new Coupon();
+        coupon.setUserId(userId);
+        coupon.setId((int) readVarLong(buf, pos));
+        coupon.setTemplateId((int) readVarLong(buf, pos));
+        coupon.setAssignTime(new Date(readVarLong(buf, pos)));
+        coupon.setStatus(CouponStatus.of((int) buf[pos[0]++]));
+        int codeLength = (int) readVarLong(buf, pos);
+        coupon.setCouponCode(
+                new String(buf, pos[0], codeLength, StandardCharsets.UTF_8));
+
+        return coupon;
+    }
+
+    /**
+     * 是否是空标记, 读取时跳过, 不需要解码
+     */
+    public static boolean isEmptyMarker(String value) {
+        return EMPTY_VALUE.equals(value);
+    }
+
+    //写入无符号变长整数, 返回新的写入位置
+    private static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    //读取无符号变长整数, pos[0] 会前移
+    private static long readVarLong(byte[] buf, int[] pos) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package com.imooc.coupon.service;
+
+import java.util.Map;
+
+/**
+ * <h1>优惠券码本地租约服务</h1>
+ * 每个分发节点从 Redis 中按批租借优惠券码到本地队列, 领取时直接从本地获取
+ * 没有使用的优惠券码在空闲超时或者节点关闭时放回 Redis
+ */
+public interface ICouponCodeLeaseService {
+
+    /**
+     * <h2>是否开启本地租约</h2>
+     * */
+    boolean isEnabled();
+
+    /**
+     * <h2>从本地租约中获取一个优惠券码</h2>
+     * 本地没有时同步租借一批
+     * @param templateId 优惠券模板主键
+     * @return 优惠券码, 优惠券码已经领完时返回 null
+     * */
+    String poll(Integer templateId);
+
+    /**
+     * <h2>把从本地租约获取但没有发出去的优惠券码放回 Cache</h2>
+     * 和从租约列表中移除是原子的, 租约被回收时不会重复放回
+     * @param templateId 优惠券模板主键
+     * @param couponCode 优惠券码
+     * @return 是否是本节点租约中的优惠券码, 不是时由调用方直接放回 Cache
+     * */
+    boolean giveBack(Integer templateId, String couponCode);
+
+    /**
+     * <h2>本地租约的统计信息</h2>
+     * */
+    Map<String, Object> stats();
+}
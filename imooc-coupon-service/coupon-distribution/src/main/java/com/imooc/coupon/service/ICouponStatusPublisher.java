@@ -0,0 +1,27 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponStatus;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <h1>优惠券状态变化的 Kafka 消息发送服务</h1>
+ * 状态变化先在本地合并一个很短的时间窗口, 再异步批量发送, 调用方不等待 broker 确认
+ */
+public interface ICouponStatusPublisher {
+
+    /**
+     * <h2>提交一次优惠券状态变化</h2>
+     * @param userId 用户 id, 作为消息的 key
+     * @param status 变化后的状态
+     * @param couponIds 优惠券主键
+     * */
+    void publish(Long userId, CouponStatus status, Collection<Integer> couponIds);
+
+    /**
+     * <h2>发送的统计信息</h2>
+     * 从注册到 MeterRegistry 的 coupon.kafka.publisher.* 指标读取
+     * */
+    Map<String, Object> stats();
+}
@@ -1,12 +1,17 @@
 package com.imooc.coupon.service;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.List;
 
 public interface IKafkaService {
 
     /**
-     * <h2>消费优惠券 Kafka 消息</h2>
-     * @param record {@link ConsumerRecord}
+     * <h2>批量消费优惠券 Kafka 消息</h2>
+     * @param records 一次 poll 到的 {@link ConsumerRecord}s
+     * @param ack 这一批处理完之后提交 offset
      * */
-    void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record);
+    void consumeCouponKafkaMessages(List<ConsumerRecord<?, ?>> records,
+                                    Acknowledgment ack);
 }
@@ -1,9 +1,12 @@
 package com.imooc.coupon.service;
 
+import com.imooc.coupon.constant.AcquireStatus;
 import com.imooc.coupon.entity.Coupon;
 import com.imooc.coupon.exception.CouponException;
+import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.List;
+import java.util.Map;
 
 public interface IRedisService {
 
@@ -11,16 +14,27 @@ public interface IRedisService {
      * <h2>根据 userId 和状态找到缓存的优惠券列表数据</h2> 优惠券列表tag页面
      * @param userId 用户 id
      * @param status 优惠券状态 {@link com.imooc.coupon.constant.CouponStatus}
-     * @return {@link Coupon}s, 注意, 可能会返回 null, 代表从没有过记录
+     * @return {@link Coupon}s, 缓存了空标记(当前状态没有优惠券)时返回空列表, 缓存未命中时返回 null
      * */
     List<Coupon> getCachedCoupons(Long userId, Integer status);
 
     /**
-     * <h2>保存空的优惠券列表到缓存中</h2>
-     * @param userId 用户 id
-     * @param status 优惠券状态列表
+     * <h2>批量根据 userIds 和状态找到缓存的优惠券列表数据</h2>
+     * 所有用户的缓存在一个 pipeline 中读取
+     * @param userIds 用户 ids
+     * @param status 优惠券状态 {@link com.imooc.coupon.constant.CouponStatus}
+     * @return 缓存命中的用户 -> {@link Coupon}s(空标记为空列表), 未命中的用户不在结果中
+     * */
+    Map<Long, List<Coupon>> getCachedCoupons(List<Long> userIds, Integer status);
+
+    /**
+     * <h2>把从 db 加载的多个用户的优惠券写入对应状态的缓存</h2>
+     * 所有用户的写入在一个 pipeline 中完成, 不做状态转换
+     * 优惠券列表为空的用户写入一个过期时间较短的空标记
+     * @param userId2Coupons 用户 -> {@link Coupon}s
+     * @param status 优惠券状态
      * */
-    void saveEmptyCouponListToCache(Long userId, List<Integer> status);
+    void saveCouponsToCache(Map<Long, List<Coupon>> userId2Coupons, Integer status);
 
     /**功能 2
      * <h2>尝试从 Cache 中获取一个优惠券码</h2>  1.这个要从template模块处获取
@@ -30,6 +44,71 @@ public interface IRedisService {
      * */
     String tryToAcquireCouponCodeFromCache(Integer templateId);
 
+    /**
+     * <h2>原子性地领取优惠券码</h2>
+     * 一次 Redis 往返完成: 校验领取限制, 弹出优惠券码, 记录领取计数
+     * @param userId 用户 id
+     * @param templateId 优惠券模板主键
+     * @param limitation 模板的领取限制
+     * @return left 是领取结果, right 是优惠券码(只有 SUCCESS 时不为 null)
+     * */
+    Pair<AcquireStatus, String> tryToAcquireCouponCode(Long userId,
+                                                       Integer templateId,
+                                                       Integer limitation);
+
+    /**
+     * <h2>原子性地占用一次领取额度</h2>
+     * 只校验领取限制并记录领取计数, 优惠券码由本地租约提供
+     * @param userId 用户 id
+     * @param templateId 优惠券模板主键
+     * @param limitation 模板的领取限制
+     * @return 领取结果, 不会返回 SOLD_OUT
+     * */
+    AcquireStatus tryToReserveAcquire(Long userId, Integer templateId,
+                                      Integer limitation);
+
+    /**
+     * <h2>归还一次领取额度</h2>
+     * 占用额度之后没有领取成功时使用
+     * @param userId 用户 id
+     * @param templateId 优惠券模板主键
+     * */
+    void releaseAcquire(Long userId, Integer templateId);
+
+    /**
+     * <h2>把没有发出去的优惠券码放回 Cache</h2>
+     * @param templateId 优惠券模板主键
+     * @param couponCode 优惠券码
+     * */
+    void returnCouponCode(Integer templateId, String couponCode);
+
+    /**
+     * <h2>根据用户当前可用的优惠券初始化领取计数</h2>
+     * 领取计数已经存在时不做任何修改
+     * @param userId 用户 id
+     * @param usableCoupons 用户当前可用的 {@link Coupon}s
+     * */
+    void initAcquiredCount(Long userId, List<Coupon> usableCoupons);
+
+    /**
+     * <h2>尝试获取从 db 加载用户优惠券的跨节点租约</h2>
+     * @param userId 用户 id
+     * @param status 优惠券状态
+     * @param leaseMillis 租约有效期
+     * @return 租约的 token, 没有拿到租约返回 null
+     * */
+    String tryToLockCouponLoad(Long userId, Integer status, long leaseMillis);
+
+    /**
+     * <h2>加载租约是否被持有</h2>
+     * */
+    boolean isCouponLoadLocked(Long userId, Integer status);
+
+    /**
+     * <h2>释放加载租约, 只有 token 匹配时才会释放</h2>
+     * */
+    void unlockCouponLoad(Long userId, Integer status, String token);
+
     /**功能 3
      * <h2>将优惠券保存到 Cache 中</h2>
      * @param userId 用户 id
@@ -39,4 +118,11 @@ public interface IRedisService {
      * */
     Integer addCouponToCache(Long userId, List<Coupon> coupons,
                              Integer status) throws CouponException;
+
+    /**
+     * <h2>批量把已过期的优惠券从可用缓存移动到已过期缓存</h2>
+     * 所有用户在一个 pipeline 中完成, 不校验优惠券是否在可用缓存中
+     * @param userId2Expired 用户 id -> 已过期的 {@link Coupon}s
+     * */
+    void moveCouponsToExpired(Map<Long, List<Coupon>> userId2Expired);
 }
@@ -0,0 +1,32 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.vo.CouponTemplateSDK;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 优惠券模板近端缓存服务接口定义
+ * 在分发服务本地缓存 {@link CouponTemplateSDK}, 避免每次都通过 Feign 调用模板微服务
+ */
+public interface ITemplateCacheService {
+
+    /**
+     * <h2>查找所有可用的优惠券模板</h2>
+     * @return {@link CouponTemplateSDK}s
+     * */
+    List<CouponTemplateSDK> findAllUsableTemplate();
+
+    /**
+     * <h2>查找模板 ids 到 CouponTemplateSDK 的映射</h2>
+     * @param ids 模板 ids
+     * @return 模板服务中不存在(或者暂时不可用)的 id 不会出现在结果中
+     * */
+    Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids);
+
+    /**
+     * <h2>缓存的统计信息(命中, 未命中, 加载等)</h2>
+     * */
+    Map<String, Object> stats();
+}
@@ -0,0 +1,29 @@
+package com.imooc.coupon.service;
+
+import java.util.Map;
+
+/**
+ * 拥有优惠券的用户布隆过滤器服务接口定义
+ * 用于防止缓存穿透: 过滤器判断用户一定没有优惠券时, 不再访问 Redis 和 MySQL
+ */
+public interface IUserBloomService {
+
+    /**
+     * <h2>用户是否可能拥有优惠券</h2>
+     * 返回 false 时用户一定没有任何优惠券(其他节点刚写入的用户可能稍后才可见);
+     * 过滤器还没有构建好时总是返回 true
+     * @param userId 用户 id
+     * */
+    boolean mightHaveCoupons(Long userId);
+
+    /**
+     * <h2>记录用户拥有优惠券</h2>
+     * @param userId 用户 id
+     * */
+    void put(Long userId);
+
+    /**
+     * <h2>过滤器的状态信息</h2>
+     * */
+    Map<String, Object> stats();
+}
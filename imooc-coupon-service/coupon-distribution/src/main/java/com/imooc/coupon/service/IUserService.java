@@ -9,6 +9,7 @@ import com.imooc.coupon.vo.CouponTemplateSDK;
 import com.imooc.coupon.vo.SettlementInfo;
 
 import java.util.List;
+import java.util.function.BiConsumer;
 
 /**
  * 1.用户三类状态优惠券信息展示服务
@@ -27,6 +28,17 @@ public interface IUserService {
      */
     List<Coupon> findCouponByStatus(Long userId,Integer status) throws CouponException;
 
+    /**
+     * 批量根据用户id 和 状态查询优惠券记录
+     * @param userIds
+     * @param status
+     * @param consumer 按 userIds 的顺序(去重后)接收每个用户的优惠券
+     * @throws CouponException
+     */
+    void findCouponsByStatus(List<Long> userIds, Integer status,
+                             BiConsumer<Long, List<Coupon>> consumer)
+            throws CouponException;
+
     /**
      * 根据用户id 查找当前可以领取的优惠券模板
      * @param userId
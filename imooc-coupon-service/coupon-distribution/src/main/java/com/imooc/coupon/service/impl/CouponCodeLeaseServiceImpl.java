@@ -0,0 +1,591 @@
+package com.imooc.coupon.service.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.service.ICouponCodeLeaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 优惠券码本地租约服务接口实现
+ * 1. 每次从 Redis 租借 blockSize 个优惠券码, 本地剩余少于 lowWatermark 时在后台续借
+ * 2. 租借的优惠券码同时记录在 Redis 的租约列表中, 节点定时续约
+ * 3. 本地空闲超过 idleMillis 或者节点关闭时, 没有使用的优惠券码放回 Redis
+ * 4. 节点宕机没有续约的租约, 由其他节点回收; 回收之后等待 reclaimDelayMillis,
+ *    节点宕机前已经取出的优惠券码写入 db 之后, 只放回 db 中不存在的优惠券码
+ * 5. 取出但没有发出去的优惠券码通过租约放回: 从租约列表中移除的同时放回 Redis;
+ *    租约在 Redis 中结束(放回或者回收)之前, 本地记录每个优惠券码所属的租约
+ */
+@Slf4j
+@Service
+public class CouponCodeLeaseServiceImpl implements ICouponCodeLeaseService {
+
+    private final StringRedisTemplate redisTemplate;
+
+    //回收租约时判断哪些优惠券码已经被领取
+    private final CouponDao couponDao;
+
+    //后台续借的线程池
+    private final ExecutorService refillExecutor;
+
+    //租借一批优惠券码的脚本
+    private final DefaultRedisScript<List> leaseScript;
+
+    //续约的脚本
+    private final DefaultRedisScript<Long> renewScript;
+
+    //结束租约并放回优惠券码的脚本
+    private final DefaultRedisScript<Long> returnScript;
+
+    //从租约列表中移除并放回一个优惠券码的脚本
+    private final DefaultRedisScript<Long> giveBackScript;
+
+    //templateId -> 本地租约
+    private final ConcurrentMap<Integer, TemplateLease> leases =
+            new ConcurrentHashMap<>();
+
+    //<templateId>_<优惠券码> -> 租约 member, 租约在 Redis 中结束之后移除
+    private final ConcurrentMap<String, String> leasedCodes =
+            new ConcurrentHashMap<>();
+
+    //本地已经丢弃但在 Redis 中可能还没有被回收放回的租约, 回收完成之后移除 leasedCodes
+    private final Queue<CodeBlock> dropped = new ConcurrentLinkedQueue<>();
+
+    //是否开启本地租约
+    @Value("${coupon.code-lease.enabled:false}")
+    private boolean enabled;
+
+    //每次租借的个数
+    @Value("${coupon.code-lease.block-size:200}")
+    private int blockSize;
+
+    //本地剩余少于这个值时在后台续借
+    @Value("${coupon.code-lease.low-watermark:50}")
+    private int lowWatermark;
+
+    //租约的有效期, 节点定时续约
+    @Value("${coupon.code-lease.lease-millis:60000}")
+    private long leaseMillis;
+
+    //本地空闲多久之后放回没有使用的优惠券码
+    @Value("${coupon.code-lease.idle-millis:60000}")
+    private long idleMillis;
+
+    //过期的租约回收之后多久放回
+    @Value("${coupon.code-lease.reclaim-delay-millis:60000}")
+    private long reclaimDelayMillis;
+
+    //租借不到优惠券码之后, 多久之内不再去 Redis 租借
+    @Value("${coupon.code-lease.sold-out-backoff-millis:1000}")
+    private long soldOutBackoffMillis;
+
+    @Autowired
+    public CouponCodeLeaseServiceImpl(StringRedisTemplate redisTemplate,
+                                      CouponDao couponDao) {
+        this.redisTemplate = redisTemplate;
+        this.couponDao = couponDao;
+        this.refillExecutor = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocCodeLease_%d")
+                        .setDaemon(true)
+                        .build());
+
+        this.leaseScript = new DefaultRedisScript<>();
+        this.leaseScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/lease_coupon_codes.lua")));
+        this.leaseScript.setResultType(List.class);
+
+        this.renewScript = new DefaultRedisScript<>();
+        this.renewScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/renew_code_lease.lua")));
+        this.renewScript.setResultType(Long.class);
+
+        this.returnScript = new DefaultRedisScript<>();
+        this.returnScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/return_code_lease.lua")));
+        this.returnScript.setResultType(Long.class);
+
+        this.giveBackScript = new DefaultRedisScript<>();
+        this.giveBackScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/give_back_leased_code.lua")));
+        this.giveBackScript.setResultType(Long.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * <h2>从本地租约中获取一个优惠券码</h2>
+     * 本地没有时同步租借一批, 同一个模板同时只有一个线程去租借
+     * */
+    @Override
+    public String poll(Integer templateId) {
+
+        TemplateLease lease = leases.computeIfAbsent(templateId, TemplateLease::new);
+        lease.lastAccess = System.currentTimeMillis();
+
+        String code = lease.poll();
+        if (null == code) {
+            synchronized (lease) {
+                code = lease.poll();
+                if (null == code && leaseBlock(lease)) {
+                    code = lease.poll();
+                }
+            }
+        }
+
+        if (lease.remaining.get() < lowWatermark
+                && lease.refilling.compareAndSet(false, true)) {
+            refillExecutor.execute(() -> refill(lease));
+        }
+        return code;
+    }
+
+    /**
+     * <h2>把没有发出去的优惠券码通过租约放回</h2>
+     * 租约在 Redis 中已经结束时, 优惠券码要么已经由回收流程放回, 要么已经和租约列表一起删除,
+     * 不能再放回(可能重复), 这个优惠券码作废, 模板少发一张
+     * */
+    @Override
+    public boolean giveBack(Integer templateId, String couponCode) {
+
+        String member = leasedCodes.remove(leasedCodeKey(templateId, couponCode));
+        if (null == member) {
+            return false;
+        }
+
+        Long returned = redisTemplate.execute(
+                giveBackScript,
+                Arrays.asList(codeRedisKey(templateId), holdRedisKey(member)),
+                couponCode
+        );
+        if (Long.valueOf(1).equals(returned)) {
+            log.info("Give Back Leased Coupon Code: {}, {}", member, couponCode);
+        } else {
+            log.warn("Discard Coupon Code Of Finished Lease: {}, {}",
+                    member, couponCode);
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+
+        Map<String, Object> templates = new TreeMap<>();
+        leases.forEach((id, lease) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("remaining", lease.remaining.get());
+            item.put("blocks", lease.blocks.size());
+            item.put("soldOut", System.currentTimeMillis() < lease.soldOutUntil);
+            templates.put(id.toString(), item);
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("blockSize", blockSize);
+        result.put("leasedCodes", leasedCodes.size());
+        result.put("templates", templates);
+        return result;
+    }
+
+    /**
+     * 定时维护租约
+     * 1. 空闲超时的模板放回没有使用的优惠券码
+     * 2. 其余的租约续约, 已经被回收的租约从本地丢弃
+     * 3. 回收其他节点过期的租约, 放回回收时间足够久的租约
+     * 每个租约和每一步单独处理异常, Redis 出错时不影响其他租约和后面的步骤
+     */
+    @Scheduled(fixedDelayString = "${coupon.code-lease.check-millis:5000}")
+    public void maintain() {
+
+        long now = System.currentTimeMillis();
+        leases.forEach((id, lease) -> {
+            try {
+                if (now - lease.lastAccess > idleMillis) {
+                    leases.remove(id, lease);
+                    returnAll(lease);
+                } else {
+                    renewAll(lease, now + leaseMillis);
+                }
+            } catch (Exception ex) {
+                log.error("Maintain Coupon Code Lease Error: {}, {}",
+                        id, ex.getMessage());
+            }
+        });
+
+        try {
+            reapExpired(now);
+        } catch (Exception ex) {
+            log.error("Reap Expired Coupon Code Lease Error: {}", ex.getMessage());
+        }
+        try {
+            returnReaped(now);
+        } catch (Exception ex) {
+            log.error("Return Reaped Coupon Code Lease Error: {}", ex.getMessage());
+        }
+        forgetDropped(now);
+    }
+
+    /**
+     * 节点关闭时放回所有没有使用的优惠券码
+     */
+    @PreDestroy
+    public void shutdown() {
+
+        refillExecutor.shutdownNow();
+        leases.values().forEach(this::returnAll);
+        leases.clear();
+    }
+
+    private void refill(TemplateLease lease) {
+
+        try {
+            synchronized (lease) {
+                if (lease.remaining.get() < lowWatermark) {
+                    leaseBlock(lease);
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Refill Coupon Codes Error: {}, {}",
+                    lease.templateId, ex.getMessage());
+        } finally {
+            lease.refilling.set(false);
+        }
+    }
+
+    /**
+     * 从 Redis 租借一批优惠券码, 需要持有 lease 的锁
+     * @return 是否租借到了优惠券码
+     */
+    @SuppressWarnings("unchecked")
+    private boolean leaseBlock(TemplateLease lease) {
+
+        long now = System.currentTimeMillis();
+        if (now < lease.soldOutUntil) {
+            return false;
+        }
+
+        String member = String.format("%s_%s", lease.templateId,
+                UUID.randomUUID().toString().replace("-", ""));
+        //先登记租约再租借, 租借之后节点宕机时租约列表也一定能被回收
+        redisTemplate.opsForZSet().add(Constant.RedisPrefix.COUPON_CODE_LEASES,
+                member, now + leaseMillis);
+        List<String> codes = redisTemplate.execute(
+                leaseScript,
+                Arrays.asList(codeRedisKey(lease.templateId),
+                        holdRedisKey(member)),
+                String.valueOf(blockSize)
+        );
+
+        if (null == codes || codes.isEmpty()) {
+            redisTemplate.opsForZSet().remove(
+                    Constant.RedisPrefix.COUPON_CODE_LEASES, member);
+            lease.soldOutUntil = now + soldOutBackoffMillis;
+            log.info("No Coupon Codes To Lease: {}", lease.templateId);
+            return false;
+        }
+
+        codes.forEach(code -> leasedCodes.put(
+                leasedCodeKey(lease.templateId, code), member));
+        lease.blocks.add(new CodeBlock(member, lease.templateId, codes,
+                now + leaseMillis));
+        lease.remaining.addAndGet(codes.size());
+        log.info("Lease Coupon Codes: {}, {}", member, codes.size());
+        return true;
+    }
+
+    /**
+     * 续约一个模板的所有租约, 只有续约成功才延长本地的截止时间
+     * 续约出错的租约保留原来的截止时间, 在下一次续约成功之前过了截止时间就不再使用(见 poll)
+     */
+    private void renewAll(TemplateLease lease, long deadline) {
+
+        for (CodeBlock block : lease.blocks) {
+            Long renewed;
+            try {
+                renewed = redisTemplate.execute(
+                        renewScript,
+                        Collections.singletonList(Constant.RedisPrefix.COUPON_CODE_LEASES),
+                        block.member,
+                        String.valueOf(deadline)
+                );
+            } catch (Exception ex) {
+                log.error("Renew Coupon Code Lease Error: {}, {}",
+                        block.member, ex.getMessage());
+                continue;
+            }
+            if (Long.valueOf(1).equals(renewed)) {
+                block.deadline = deadline;
+                continue;
+            }
+            //租约已经被其他节点回收, 本地的优惠券码之后会被放回, 不能再使用
+            if (lease.blocks.remove(block)) {
+                lease.remaining.addAndGet(-drain(block).size());
+                dropped.add(block);
+                log.warn("Coupon Code Lease Was Reclaimed: {}", block.member);
+            }
+        }
+    }
+
+    private void returnAll(TemplateLease lease) {
+
+        synchronized (lease) {
+            CodeBlock block;
+            while (null != (block = lease.blocks.poll())) {
+                List<String> unused = drain(block);
+                lease.remaining.addAndGet(-unused.size());
+                try {
+                    finishBlock(block, unused);
+                } catch (Exception ex) {
+                    //租约还在租约 zset 中, 过期之后由回收流程放回 db 中不存在的优惠券码
+                    dropped.add(block);
+                    log.error("Return Coupon Code Lease Error: {}, {}",
+                            block.member, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 回收已经过了截止时间的租约
+     * 先记录到待放回的 zset, 再从租约 zset 中移除(持有的节点续约失败之后丢弃本地的优惠券码)
+     * 这时持有的节点可能还有取出但没有写入 db 的优惠券码, 等待 reclaimDelayMillis 之后再放回
+     */
+    private void reapExpired(long now) {
+
+        Set<String> expired = redisTemplate.opsForZSet().rangeByScore(
+                Constant.RedisPrefix.COUPON_CODE_LEASES, 0, now);
+        if (null == expired) {
+            return;
+        }
+
+        for (String member : expired) {
+            redisTemplate.opsForZSet().add(
+                    Constant.RedisPrefix.COUPON_CODE_LEASES_REAPED,
+                    member, now + reclaimDelayMillis);
+            redisTemplate.opsForZSet().remove(
+                    Constant.RedisPrefix.COUPON_CODE_LEASES, member);
+            log.info("Reap Expired Coupon Code Lease: {}", member);
+        }
+    }
+
+    /**
+     * 放回回收时间足够久的租约, 只放回 db 中不存在的优惠券码
+     */
+    private void returnReaped(long now) {
+
+        Set<String> reaped = redisTemplate.opsForZSet().rangeByScore(
+                Constant.RedisPrefix.COUPON_CODE_LEASES_REAPED, 0, now);
+        if (null == reaped) {
+            return;
+        }
+
+        for (String member : reaped) {
+            try {
+                Integer templateId = Integer.valueOf(
+                        member.substring(0, member.indexOf('_')));
+                List<String> codes = redisTemplate.opsForList().range(
+                        holdRedisKey(member), 0, -1);
+                List<String> unused = new ArrayList<>(
+                        null == codes ? Collections.emptyList() : codes);
+                if (!unused.isEmpty()) {
+                    unused.removeAll(couponDao.findCouponCodesIn(templateId, unused));
+                }
+                Long returned = returnCodes(templateId, member, unused);
+                redisTemplate.opsForZSet().remove(
+                        Constant.RedisPrefix.COUPON_CODE_LEASES_REAPED, member);
+                log.info("Return Reaped Coupon Code Lease: {}, {}",
+                        member, returned);
+            } catch (Exception ex) {
+                log.error("Return Reaped Coupon Code Lease Error: {}, {}",
+                        member, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 结束一个租约, 把没有使用的优惠券码放回 Redis
+     * 先放回(和删除租约列表是原子的), 再从租约 zset 中移除;
+     * 两步之间节点宕机时, 留在 zset 中的租约由其他节点回收, 租约列表已经不存在, 不会重复放回
+     * 租约列表删除之后, 之后放回的优惠券码不会再被回收流程放回, 可以直接放回 Cache
+     */
+    private void finishBlock(CodeBlock block, List<String> unused) {
+
+        Long returned = returnCodes(block.templateId, block.member, unused);
+        redisTemplate.opsForZSet().remove(
+                Constant.RedisPrefix.COUPON_CODE_LEASES, block.member);
+        if (Long.valueOf(-1).equals(returned)) {
+            //租约已经被回收放回
+            dropped.add(block);
+        } else {
+            forget(block);
+        }
+    }
+
+    /**
+     * 本地丢弃的租约在 Redis 中最晚 leaseMillis 之后被回收, 再过 reclaimDelayMillis 之后放回
+     * 放回之后移除这些优惠券码的记录
+     */
+    private void forgetDropped(long now) {
+
+        CodeBlock block;
+        while (null != (block = dropped.peek())
+                && now > block.deadline + leaseMillis + reclaimDelayMillis) {
+            if (dropped.remove(block)) {
+                forget(block);
+            }
+        }
+    }
+
+    private void forget(CodeBlock block) {
+        block.leased.forEach(code -> leasedCodes.remove(
+                leasedCodeKey(block.templateId, code), block.member));
+    }
+
+    /**
+     * 放回没有使用的优惠券码并删除租约列表
+     * @return 放回的个数, 租约列表已经不存在(已经放回过)时是 -1
+     */
+    private Long returnCodes(Integer templateId, String member, List<String> unused) {
+
+        return redisTemplate.execute(
+                returnScript,
+                Arrays.asList(codeRedisKey(templateId), holdRedisKey(member)),
+                unused.toArray()
+        );
+    }
+
+    private static List<String> drain(CodeBlock block) {
+
+        List<String> codes = new ArrayList<>();
+        String code;
+        while (null != (code = block.codes.poll())) {
+            codes.add(code);
+        }
+        return codes;
+    }
+
+    private static String leasedCodeKey(Integer templateId, String couponCode) {
+        return String.format("%s_%s", templateId, couponCode);
+    }
+
+    private static String codeRedisKey(Integer templateId) {
+        return String.format("%s%s",
+                Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
+    }
+
+    //租约列表的 redis Key, 以优惠券码列表的 key 作为 hash tag, 和它位于同一个 slot
+    private static String holdRedisKey(String member) {
+        String templateId = member.substring(0, member.indexOf('_'));
+        return String.format("%s{%s}%s", Constant.RedisPrefix.COUPON_CODE_LEASE,
+                codeRedisKey(Integer.valueOf(templateId)),
+                member.substring(member.indexOf('_')));
+    }
+
+    /**
+     * 一个模板在本地的所有租约
+     */
+    private class TemplateLease {
+
+        private final Integer templateId;
+
+        //按租借顺序排列的租约, 从队头开始使用
+        private final Queue<CodeBlock> blocks = new ConcurrentLinkedQueue<>();
+
+        //本地剩余的优惠券码个数
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        //是否有后台续借任务
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private volatile long soldOutUntil;
+
+        private TemplateLease(Integer templateId) {
+            this.templateId = templateId;
+        }
+
+        /**
+         * 从队头的租约获取优惠券码, 用完的租约在后台结束
+         * 已经过了截止时间的租约可能正在被其他节点回收, 直接丢弃
+         */
+        private String poll() {
+
+            CodeBlock block;
+            while (null != (block = blocks.peek())) {
+                if (System.currentTimeMillis() >= block.deadline) {
+                    if (blocks.remove(block)) {
+                        remaining.addAndGet(-drain(block).size());
+                        dropped.add(block);
+                        log.warn("Coupon Code Lease Expired: {}", block.member);
+                    }
+                    continue;
+                }
+                String code = block.codes.poll();
+                if (null != code) {
+                    remaining.decrementAndGet();
+                    return code;
+                }
+                if (blocks.remove(block)) {
+                    CodeBlock used = block;
+                    refillExecutor.execute(() -> {
+                        try {
+                            finishBlock(used, Collections.emptyList());
+                        } catch (Exception ex) {
+                            dropped.add(used);
+                            log.error("Finish Coupon Code Lease Error: {}, {}",
+                                    used.member, ex.getMessage());
+                        }
+                    });
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 一次租借的优惠券码
+     */
+    private static class CodeBlock {
+
+        //租约在 zset 中的 member, <templateId>_<leaseId>
+        private final String member;
+
+        private final Integer templateId;
+
+        //租借到的所有优惠券码
+        private final List<String> leased;
+
+        //租约的截止时间, 续约成功之后更新
+        private volatile long deadline;
+
+        //还没有使用的优惠券码
+        private final Queue<String> codes;
+
+        private CodeBlock(String member, Integer templateId, List<String> leased,
+                          long deadline) {
+            this.member = member;
+            this.templateId = templateId;
+            this.leased = leased;
+            this.deadline = deadline;
+            this.codes = new ConcurrentLinkedQueue<>(leased);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.imooc.coupon.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.service.ICouponStatusPublisher;
+import com.imooc.coupon.vo.CouponKafkaMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 优惠券状态变化的 Kafka 消息发送服务接口实现
+ * 1. 同一个 (userId, status) 在 windowMillis 之内的变化合并成一条消息, 以 userId 为 key
+ * 2. 本地积压的 id 超过 maxPendingIds 时提前发送, 超过 maxBacklogIds 时丢弃新的变化并计入 droppedIds
+ * 3. 发送失败(异步回调失败或者 send 直接抛出异常)的 id 重新放回本地, 按指数退避等待之后再发送,
+ *    每个退避周期只记录一次错误日志
+ * 4. 节点关闭之后发送失败的 id 不能再发送, 记录日志并计入 droppedIds
+ * 5. 计数、积压和确认耗时注册到 MeterRegistry, stats() 从这些 meter 读取
+ */
+@Slf4j
+@Service
+public class CouponStatusPublisherImpl implements ICouponStatusPublisher {
+
+    //Kafka 客户端
+    private final KafkaTemplate<String, String> kafkaTemplate;
+
+    //定时发送的线程
+    private final ScheduledExecutorService flushExecutor;
+
+    //(userId, status) -> 还没有发送的优惠券主键
+    private final ConcurrentMap<Pair<Long, CouponStatus>, Set<Integer>> pending =
+            new ConcurrentHashMap<>();
+
+    //还没有发送的优惠券主键个数
+    private final AtomicInteger pendingIds = new AtomicInteger();
+
+    //是否已经提交了提前发送的任务
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    //节点关闭之后不再放回本地
+    private volatile boolean closed;
+
+    //连续失败的退避周期数, 发送成功之后清零
+    private volatile int backoffLevel;
+
+    //退避结束的时间, 在这之前不发送
+    private volatile long retryAfterMillis;
+
+    //退避周期内没有记录日志的失败消息数
+    private final AtomicLong suppressedFailures = new AtomicLong();
+
+    //上一次记录丢弃日志的时间
+    private final AtomicLong lastDropLogMillis = new AtomicLong();
+
+    private final Counter publishedIds;
+    private final Counter sentMessages;
+    private final Counter sentIds;
+    private final Counter failedMessages;
+    private final Counter droppedIds;
+    private final Gauge pendingKeysGauge;
+    private final Gauge pendingIdsGauge;
+    private final Timer ackTimer;
+
+    //合并的时间窗口
+    @Value("${coupon.kafka-producer.window-millis:50}")
+    private long windowMillis;
+
+    //本地积压超过这个值时提前发送
+    @Value("${coupon.kafka-producer.max-pending-ids:5000}")
+    private int maxPendingIds;
+
+    //本地积压的上限, 超过之后丢弃新的变化
+    @Value("${coupon.kafka-producer.max-backlog-ids:50000}")
+    private int maxBacklogIds;
+
+    //发送失败之后退避时间的上限
+    @Value("${coupon.kafka-producer.max-backoff-millis:5000}")
+    private long maxBackoffMillis;
+
+    //一条消息最多的优惠券主键个数
+    @Value("${coupon.kafka-producer.max-ids-per-message:500}")
+    private int maxIdsPerMessage;
+
+    @Autowired
+    public CouponStatusPublisherImpl(KafkaTemplate<String, String> kafkaTemplate,
+                                     MeterRegistry meterRegistry) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocKafkaPublisher_%d")
+                        .setDaemon(true)
+                        .build());
+
+        this.publishedIds = meterRegistry.counter("coupon.kafka.publisher.published.ids");
+        this.sentMessages = meterRegistry.counter("coupon.kafka.publisher.sent.messages");
+        this.sentIds = meterRegistry.counter("coupon.kafka.publisher.sent.ids");
+        this.failedMessages = meterRegistry.counter("coupon.kafka.publisher.failed.messages");
+        this.droppedIds = meterRegistry.counter("coupon.kafka.publisher.dropped.ids");
+        this.pendingKeysGauge = Gauge.builder("coupon.kafka.publisher.pending.keys",
+                pending, Map::size).register(meterRegistry);
+        this.pendingIdsGauge = Gauge.builder("coupon.kafka.publisher.pending.ids",
+                pendingIds, AtomicInteger::get).register(meterRegistry);
+        this.ackTimer = meterRegistry.timer("coupon.kafka.publisher.ack");
+    }
+
+    @PostConstruct
+    public void init() {
+        flushExecutor.scheduleWithFixedDelay(this::flushQuietly,
+                windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(Long userId, CouponStatus status,
+                        Collection<Integer> couponIds) {
+
+        if (couponIds.isEmpty()) {
+            return;
+        }
+
+        publishedIds.increment(couponIds.size());
+        enqueue(Pair.of(userId, status), couponIds);
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("publishedIds", (long) publishedIds.count());
+        result.put("pendingKeys", (long) pendingKeysGauge.value());
+        result.put("pendingIds", (long) pendingIdsGauge.value());
+        result.put("sentMessages", (long) sentMessages.count());
+        result.put("sentIds", (long) sentIds.count());
+        result.put("failedMessages", (long) failedMessages.count());
+        result.put("droppedIds", (long) droppedIds.count());
+        result.put("avgAckMillis", (long) ackTimer.mean(TimeUnit.MILLISECONDS));
+        result.put("maxAckMillis", (long) ackTimer.max(TimeUnit.MILLISECONDS));
+        result.put("retryAfterMillis",
+                Math.max(0, retryAfterMillis - System.currentTimeMillis()));
+        return result;
+    }
+
+    /**
+     * 节点关闭时把本地合并的消息全部发送出去
+     */
+    @PreDestroy
+    public void shutdown() {
+
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(windowMillis * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        flush();
+        kafkaTemplate.flush();
+    }
+
+    private void enqueue(Pair<Long, CouponStatus> key,
+                         Collection<Integer> couponIds) {
+
+        //broker 长时间不可用时本地积压不能无限增长, 超过上限的变化丢弃并计数
+        if (pendingIds.get() >= maxBacklogIds) {
+            drop(couponIds.size());
+            return;
+        }
+
+        //compute 和 flush 中的 remove 对同一个 key 是原子的, 合并的 id 不会丢失
+        //只累加新加入的 id, 和 flush 时减去的 set 大小一致
+        AtomicInteger added = new AtomicInteger();
+        pending.compute(key, (k, v) -> {
+            Set<Integer> ids = null == v ? new LinkedHashSet<>() : v;
+            couponIds.forEach(id -> {
+                if (ids.add(id)) {
+                    added.incrementAndGet();
+                }
+            });
+            return ids;
+        });
+
+        if (pendingIds.addAndGet(added.get()) >= maxPendingIds
+                && !flushExecutor.isShutdown()
+                && flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (Exception ex) {
+            log.error("Flush Coupon Status Messages Error: {}", ex.getMessage());
+        }
+    }
+
+    private synchronized void flush() {
+
+        flushRequested.set(false);
+        //退避期间不发送, 节点关闭时的最后一次发送不受限制
+        if (!closed && System.currentTimeMillis() < retryAfterMillis) {
+            return;
+        }
+
+        //发送失败放回的 key 留到下一个窗口, 不在这一次遍历中重复发送
+        for (Pair<Long, CouponStatus> key : new ArrayList<>(pending.keySet())) {
+            Set<Integer> ids = pending.remove(key);
+            if (null == ids) {
+                continue;
+            }
+            pendingIds.addAndGet(-ids.size());
+            for (List<Integer> part : ListUtils.partition(
+                    new ArrayList<>(ids), maxIdsPerMessage)) {
+                send(key, part);
+            }
+        }
+    }
+
+    private void send(Pair<Long, CouponStatus> key, List<Integer> ids) {
+
+        long start = System.currentTimeMillis();
+        String message = JSON.toJSONString(
+                new CouponKafkaMessage(key.getRight().getCode(), ids));
+
+        //send 可能直接抛出异常(序列化失败, 获取元数据超时等), 不能让这一批 id 丢失,
+        //也不能中断这一次 flush 中其他 key 的发送
+        try {
+            kafkaTemplate.send(Constant.TOPIC, key.getLeft().toString(), message)
+                    .addCallback(
+                            result -> {
+                                sentMessages.increment();
+                                sentIds.increment(ids.size());
+                                ackTimer.record(System.currentTimeMillis() - start,
+                                        TimeUnit.MILLISECONDS);
+                                backoffLevel = 0;
+                            },
+                            ex -> retry(key, ids, message, ex));
+        } catch (RuntimeException ex) {
+            retry(key, ids, message, ex);
+        }
+    }
+
+    //发送失败的 id 放回本地, 节点已经关闭时丢弃并计数
+    private void retry(Pair<Long, CouponStatus> key, List<Integer> ids,
+                       String message, Throwable ex) {
+
+        failedMessages.increment();
+        if (closed) {
+            droppedIds.increment(ids.size());
+            log.error("Send Coupon Status Message Error After Shutdown, Drop: {}, {}",
+                    message, ex.getMessage());
+            return;
+        }
+        backoff(message, ex);
+        enqueue(key, ids);
+    }
+
+    //一个退避周期内的第一次失败延长退避时间并记录日志, 其余的失败只计数
+    private synchronized void backoff(String message, Throwable ex) {
+
+        long now = System.currentTimeMillis();
+        if (now < retryAfterMillis) {
+            suppressedFailures.incrementAndGet();
+            return;
+        }
+
+        int level = backoffLevel;
+        long delay = Math.min(windowMillis << Math.min(level, 20), maxBackoffMillis);
+        backoffLevel = level + 1;
+        retryAfterMillis = now + delay;
+        log.error("Send Coupon Status Message Error, Retry After {}ms " +
+                        "({} Failures Suppressed): {}, {}",
+                delay, suppressedFailures.getAndSet(0), message, ex.getMessage());
+    }
+
+    //丢弃超过积压上限的变化, 每个退避上限的时间内只记录一次日志
+    private void drop(int size) {
+
+        droppedIds.increment(size);
+        long now = System.currentTimeMillis();
+        long last = lastDropLogMillis.get();
+        if (now - last >= maxBackoffMillis
+                && lastDropLogMillis.compareAndSet(last, now)) {
+            log.error("Coupon Status Backlog Is Full ({}), Dropped Ids: {}",
+                    pendingIds.get(), (long) droppedIds.count());
+        }
+    }
+}
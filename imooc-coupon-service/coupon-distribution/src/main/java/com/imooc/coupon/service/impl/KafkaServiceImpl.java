@@ -4,24 +4,26 @@ import com.alibaba.fastjson.JSON;
 import com.imooc.coupon.constant.Constant;
 import com.imooc.coupon.constant.CouponStatus;
 import com.imooc.coupon.dao.CouponDao;
-import com.imooc.coupon.entity.Coupon;
 import com.imooc.coupon.service.IKafkaService;
 import com.imooc.coupon.vo.CouponKafkaMessage;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 //kafka相关服务接口实现
 @Slf4j
 @Component
 public class KafkaServiceImpl implements IKafkaService {
 
+    //一条 update 语句 in 里面最多的 id 个数
+    private static final int MAX_IDS_PER_UPDATE = 1000;
+
     //CouponDao
     private final CouponDao couponDao;
 
@@ -30,62 +32,65 @@ public class KafkaServiceImpl implements IKafkaService {
         this.couponDao = couponDao;
     }
 
+    /**
+     * <h2>批量消费优惠券 Kafka 消息</h2>
+     * 一批消息中的优惠券 id 按目标状态合并, 每个状态一条 update ... where id in (...)
+     * 全部更新完成后才提交 offset, 更新失败抛出异常, 这一批会被重新消费
+     * */
     @Override
-    @KafkaListener(topics = {Constant.TOPIC}, groupId = "imooc-coupon-1")
-    public void consumeCouponKafkaMessage(ConsumerRecord<?, ?> record) {
-
-        Optional<?> kafkaMessage = Optional.ofNullable(record.value());
-        if(kafkaMessage.isPresent()){
-            Object message = kafkaMessage.get();
-            CouponKafkaMessage couponInfo = JSON.parseObject(
-                    message.toString(),CouponKafkaMessage.class
-            );
+    @KafkaListener(topics = {Constant.TOPIC}, groupId = "imooc-coupon-1",
+            containerFactory = "batchKafkaListenerContainerFactory")
+    public void consumeCouponKafkaMessages(List<ConsumerRecord<?, ?>> records,
+                                           Acknowledgment ack) {
 
-            log.info("Receive CouponKafkaMessage: {}",message.toString());
+        Map<CouponStatus, Set<Integer>> status2Ids =
+                new EnumMap<>(CouponStatus.class);
 
-            CouponStatus status = CouponStatus.of(couponInfo.getStatus());
-
-            switch (status){
+        for(ConsumerRecord<?, ?> record : records){
+            Optional<?> kafkaMessage = Optional.ofNullable(record.value());
+            if(!kafkaMessage.isPresent()){
+                continue;
+            }
+            Object message = kafkaMessage.get();
+            try {
+                CouponKafkaMessage couponInfo = JSON.parseObject(
+                        message.toString(),CouponKafkaMessage.class
+                );
+                CouponStatus status = CouponStatus.of(couponInfo.getStatus());
                 //USABLE不用操作，因为领取优惠券时还没由Coupon的id生成
-                case USABLE:
-                    break;
-                case USED:
-                    processUsedCoupons(couponInfo,status);
-                    break;
-                case EXPIRED:
-                    processExpiredCoupons(couponInfo,status);
-                    break;
+                if(status != CouponStatus.USABLE){
+                    status2Ids.computeIfAbsent(status, k -> new LinkedHashSet<>())
+                            .addAll(couponInfo.getIds());
+                }
+            } catch (RuntimeException ex) {
+                //格式错误的消息重新消费也不会成功, 跳过
+                log.error("Skip Invalid CouponKafkaMessage: {}, {}",
+                        message, ex.getMessage());
             }
         }
-    }
 
-    //处理已使用的优惠券
-    private void processUsedCoupons(CouponKafkaMessage kafkaMessage,
-                                    CouponStatus status){
-        //TODO 给用户发送信息
-        processCouponsByStatus(kafkaMessage,status);
-    }
-    //处理已过期的优惠券
-    private void processExpiredCoupons(CouponKafkaMessage kafkaMessage,
-                                    CouponStatus status){
-        processCouponsByStatus(kafkaMessage,status);
+        status2Ids.forEach(this::processCouponsByStatus);
+
+        ack.acknowledge();
+        log.info("Consume CouponKafkaMessage Batch: {}, {}",
+                records.size(), JSON.toJSONString(status2Ids.keySet()));
     }
 
-    //kafka 更新优惠券状态
-    private void processCouponsByStatus(CouponKafkaMessage kafkaMessage,
-                                        CouponStatus status){
-        List<Coupon> coupons = couponDao.findAllById(
-                kafkaMessage.getIds()
-        );
-        if(CollectionUtils.isEmpty(coupons)
-            || coupons.size() != kafkaMessage.getIds().size()){
-            log.error("Can not find right Coupon INfo: {}",
-                    JSON.toJSONString(kafkaMessage));
-            return;
+    //kafka 更新优惠券状态, 只有可用的优惠券才能变为已使用或已过期
+    private void processCouponsByStatus(CouponStatus status, Set<Integer> ids){
+
+        //TODO USED 给用户发送信息
+        int updated = 0;
+        for(List<Integer> part : ListUtils.partition(
+                new ArrayList<>(ids), MAX_IDS_PER_UPDATE)){
+            updated += couponDao.updateStatusByIds(
+                    status, part, CouponStatus.USABLE);
         }
 
-        coupons.forEach(c -> c.setStatus(status));
-        log.info("CouponKafkaMessage Op Coupon Count: {}",
-                couponDao.saveAll(coupons).size());
+        if(updated != ids.size()){
+            log.warn("Not All Coupons Are Usable: {}, {}/{}",
+                    status, updated, ids.size());
+        }
+        log.info("CouponKafkaMessage Op Coupon Count: {}, {}", status, updated);
     }
 }
@@ -3,25 +3,43 @@ package com.imooc.coupon.service.impl;
 //Redis 相关的操作服务接口实现
 
 import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.AcquireStatus;
 import com.imooc.coupon.constant.Constant;
 import com.imooc.coupon.constant.CouponStatus;
 import com.imooc.coupon.entity.Coupon;
 import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.generator.CodePermutation;
+import com.imooc.coupon.generator.CouponCodeGenerator;
+import com.imooc.coupon.serialization.CouponCodec;
 import com.imooc.coupon.service.IRedisService;
+import com.imooc.coupon.service.ITemplateCacheService;
+import com.imooc.coupon.service.IUserBloomService;
+import com.imooc.coupon.vo.CouponTemplateSDK;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
 
-
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -29,18 +47,131 @@ import java.util.stream.Collectors;
 @Service
 public class RedisServiceImpl implements IRedisService {
 
+    //没有 hash tag 的旧用户 key 的前缀, 旧版本节点读写 前缀 + userId
+    private static final List<String> LEGACY_USER_PREFIXES = Arrays.asList(
+            Constant.RedisPrefix.USER_COUPON_USABLE,
+            Constant.RedisPrefix.USER_COUPON_USED,
+            Constant.RedisPrefix.USER_COUPON_EXPIRED,
+            Constant.RedisPrefix.USER_COUPON_ACQUIRED
+    );
+
     private final StringRedisTemplate redisTemplate;
 
+    //优惠券模板近端缓存, 读取缓存的优惠券时填充 templateSDK
+    private final ITemplateCacheService templateCacheService;
+
+    //拥有优惠券的用户布隆过滤器
+    private final IUserBloomService userBloomService;
+
+    //原子领取优惠券码的脚本
+    private final DefaultRedisScript<List> acquireScript;
+
+    //从 Cache 中获取优惠券码的脚本(弹出或者按需生成)
+    private final DefaultRedisScript<List> acquireTemplateCodeScript;
+
+    //初始化用户领取计数的脚本
+    private final DefaultRedisScript<Long> initAcquiredScript;
+
+    //释放加载租约的脚本
+    private final DefaultRedisScript<Long> releaseLeaseScript;
+
+    //占用领取额度的脚本
+    private final DefaultRedisScript<String> reserveAcquireScript;
+
+    //归还领取额度的脚本
+    private final DefaultRedisScript<Long> releaseAcquireScript;
+
+    //把优惠券从可用缓存移动到已使用/已过期缓存的脚本
+    private final DefaultRedisScript<Long> moveScript;
+
+    //追加新领取的优惠券到可用缓存的脚本
+    private final DefaultRedisScript<Long> addUsableScript;
+
+    //是否部署在 Redis Cluster 上, 是的话领取时不使用跨 slot 的脚本
+    @Value("${coupon.redis.cluster:false}")
+    private boolean clusterMode;
+
+    //滚动发布窗口: 旧版本节点还在读写没有 hash tag 的旧 key
+    //打开时新节点写入之后删除用户的旧 key, 读取之前发现旧 key 时删除新旧 key 从 db 重新加载
+    @Value("${coupon.redis.legacy-key-window:false}")
+    private boolean legacyKeyWindow;
+
+    //当前状态没有优惠券的用户的空标记的过期时间, 实际过期时间在 [ttl, 2 * ttl) 之间
+    @Value("${coupon.redis.empty-ttl-seconds:60}")
+    private long emptyTtlSeconds;
+
+    //优惠券码置换的密钥, 和模板微服务的配置相同, 只有领取按需生成的模板时使用
+    @Value("${coupon.code-secret:}")
+    private String codeSecret;
+
+    //按需生成的模板 -> 优惠券码生成器
+    private final ConcurrentMap<Integer, CouponCodeGenerator> mintGenerators =
+            new ConcurrentHashMap<>();
+
     @Autowired
-    public RedisServiceImpl(StringRedisTemplate redisTemplate) {
+    public RedisServiceImpl(StringRedisTemplate redisTemplate,
+                            ITemplateCacheService templateCacheService,
+                            IUserBloomService userBloomService) {
         this.redisTemplate = redisTemplate;
+        this.templateCacheService = templateCacheService;
+        this.userBloomService = userBloomService;
+
+        this.acquireScript = new DefaultRedisScript<>();
+        this.acquireScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/acquire_coupon_code.lua")));
+        this.acquireScript.setResultType(List.class);
+
+        this.acquireTemplateCodeScript = new DefaultRedisScript<>();
+        this.acquireTemplateCodeScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/acquire_template_code.lua")));
+        this.acquireTemplateCodeScript.setResultType(List.class);
+
+        this.initAcquiredScript = new DefaultRedisScript<>();
+        this.initAcquiredScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/init_acquired_count.lua")));
+        this.initAcquiredScript.setResultType(Long.class);
+
+        this.releaseLeaseScript = new DefaultRedisScript<>();
+        this.releaseLeaseScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_lease.lua")));
+        this.releaseLeaseScript.setResultType(Long.class);
+
+        this.reserveAcquireScript = new DefaultRedisScript<>();
+        this.reserveAcquireScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/reserve_acquire.lua")));
+        this.reserveAcquireScript.setResultType(String.class);
+
+        this.releaseAcquireScript = new DefaultRedisScript<>();
+        this.releaseAcquireScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_acquire.lua")));
+        this.releaseAcquireScript.setResultType(Long.class);
+
+        this.moveScript = new DefaultRedisScript<>();
+        this.moveScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/move_usable_coupons.lua")));
+        this.moveScript.setResultType(Long.class);
+
+        this.addUsableScript = new DefaultRedisScript<>();
+        this.addUsableScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/add_usable_coupons.lua")));
+        this.addUsableScript.setResultType(Long.class);
+    }
+
+    //没有按需生成的模板时不需要密钥, 启动时只提示; 创建第一个生成器时再检查
+    @PostConstruct
+    public void checkCodeSecret() {
+        if (StringUtils.isBlank(codeSecret)) {
+            log.warn("coupon.code-secret Is Not Configured, " +
+                    "Acquiring Minted CouponCode Will Fail");
+        }
     }
 
 
     //用户优惠券缓存信息
     //KV
-    //K：status + userId -> redisKey
-    //V: {coupon_id: 序列化的 Coupon}
+    //K：status + {userId} -> redisKey, userId 是 hash tag, 同一个用户的 key 在同一个 slot
+    //V: {coupon_id: CouponCodec 编码的 Coupon(不包含 templateSDK)}
+    //   当前状态没有优惠券时只有一个空标记 {empty: ""}, 过期时间较短
 
 
     //优惠券模板缓存信息
@@ -52,74 +183,148 @@ public class RedisServiceImpl implements IRedisService {
      * <h2>根据 userId 和状态找到缓存的优惠券列表数据</h2> 优惠券列表tag页面
      * @param userId 用户 id
      * @param status 优惠券状态 {@link com.imooc.coupon.constant.CouponStatus}
-     * @return {@link Coupon}s, 注意, 可能会返回 null, 代表从没有过记录
+     * @return {@link Coupon}s, 缓存了空标记时返回空列表, 缓存未命中时返回 null
      * */
     @Override
     public List<Coupon> getCachedCoupons(Long userId, Integer status) {
 
         log.info("Get Coupons From Cache:{},{}", userId,status);
+
+        //用户一定没有优惠券, 不需要访问 Redis
+        if(!userBloomService.mightHaveCoupons(userId)){
+            return Collections.emptyList();
+        }
+        reconcileLegacyKeys(Collections.singletonList(userId));
         String redisKey = status2RedisKey(status,userId);
 
-        List<String> couponStrs = redisTemplate.opsForHash().values(redisKey)
-                .stream()
-                .map(o -> Objects.toString(o,null))
-                .collect(Collectors.toList());
+        List<Object> values = redisTemplate.opsForHash().values(redisKey);
+        if(values.isEmpty()){
+            return null;
+        }
 
-        //防止内存穿透
-        if(CollectionUtils.isEmpty(couponStrs)){
-            saveEmptyCouponListToCache(userId,
-                    Collections.singletonList(status));
+        //没有优惠券的用户由布隆过滤器拦截; 有优惠券但当前状态没有的用户缓存的是空标记
+        List<Coupon> coupons = decode(userId, values);
+        if(coupons.isEmpty()){
             return Collections.emptyList();
         }
 
-        return couponStrs.stream()
-                .map(cs -> JSON.parseObject(cs,Coupon.class))
-                .collect(Collectors.toList());
+        return fillTemplateSDK(coupons);
     }
 
     /**
-     * <h2>保存空的优惠券列表到缓存中</h2>
-     * @param userId 用户 id
-     * @param status 优惠券状态列表
+     * <h2>批量根据 userIds 和状态找到缓存的优惠券列表数据</h2>
+     * 布隆过滤器判断一定没有优惠券的用户直接返回空列表, 其余用户在一个 pipeline 中读取
+     * @param userIds 用户 ids
+     * @param status 优惠券状态 {@link com.imooc.coupon.constant.CouponStatus}
+     * @return 缓存命中的用户 -> {@link Coupon}s(空标记为空列表), 未命中的用户不在结果中
      * */
     @Override
-    public void saveEmptyCouponListToCache(Long userId, List<Integer> status) {
+    @SuppressWarnings("unchecked")
+    public Map<Long, List<Coupon>> getCachedCoupons(List<Long> userIds,
+                                                    Integer status) {
+
+        log.info("Batch Get Coupons From Cache: {}, {}", userIds.size(), status);
+
+        Map<Long, List<Coupon>> result = new HashMap<>(userIds.size());
+        List<Long> needRead = new ArrayList<>(userIds.size());
+        userIds.forEach(id -> {
+            if(userBloomService.mightHaveCoupons(id)){
+                needRead.add(id);
+            } else {
+                result.put(id, Collections.emptyList());
+            }
+        });
+        if(needRead.isEmpty()){
+            return result;
+        }
+        reconcileLegacyKeys(needRead);
 
-        log.info("Save Empty List to Cache for user:{},Status:{}",
-                userId, JSON.toJSONString(status));
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                needRead.forEach(id -> redisOperations.opsForHash()
+                        .values(status2RedisKey(status, id)));
+                return null;
+            }
+        };
+        //pipeline 的返回值和命令的顺序一一对应
+        List<Object> values = redisTemplate.executePipelined(sessionCallback);
+
+        List<Coupon> allCoupons = new ArrayList<>();
+        Map<Long, List<Coupon>> hits = new HashMap<>(needRead.size());
+        for(int i = 0; i < needRead.size(); i++){
+            Long userId = needRead.get(i);
+            List<Object> cached = (List<Object>) values.get(i);
+            if(CollectionUtils.isEmpty(cached)){
+                continue;
+            }
+            List<Coupon> coupons = decode(userId, cached);
+            hits.put(userId, coupons);
+            allCoupons.addAll(coupons);
+        }
 
-        //key 是 coupon_id,value 是序列化的Coupon
-        Map<String,String> invalidCouponMap = new HashMap<>();
-        invalidCouponMap.put("-1",JSON.toJSONString(Coupon.invalidCoupon()));
+        //一次填充所有命中用户的 templateSDK
+        fillTemplateSDK(allCoupons);
+        result.putAll(hits);
 
+        return result;
+    }
 
+    /**
+     * <h2>把从 db 加载的多个用户的优惠券写入对应状态的缓存</h2>
+     * 所有用户的写入在一个 pipeline 中完成, 不做状态转换
+     * 没有优惠券的用户写入空标记, 在较短的时间内不再查询 db
+     * @param userId2Coupons 用户 -> {@link Coupon}s
+     * @param status 优惠券状态
+     * */
+    @Override
+    public void saveCouponsToCache(Map<Long, List<Coupon>> userId2Coupons,
+                                   Integer status) {
+
+        if(userId2Coupons.isEmpty()){
+            return;
+        }
 
-        //使用 SessionCallBack  把数据命令放入到Redis 的pipeline
         SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
             @Override
-            public  Object execute(RedisOperations redisOperations) throws DataAccessException {
-                status.forEach(s -> {
-                    String redisKey = status2RedisKey(s,userId);
-                    redisOperations.opsForHash().putAll(redisKey,invalidCouponMap);
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                userId2Coupons.forEach((userId, coupons) -> {
+                    Map<String, String> needCached = new HashMap<>(
+                            Math.max(coupons.size(), 1));
+                    coupons.forEach(c -> needCached.put(
+                            c.getId().toString(), CouponCodec.encode(c)));
+                    if(needCached.isEmpty()){
+                        needCached.put(CouponCodec.EMPTY_FIELD, CouponCodec.EMPTY_VALUE);
+                    }
+                    String redisKey = status2RedisKey(status, userId);
+                    redisOperations.opsForHash().putAll(redisKey, needCached);
+                    redisOperations.expire(
+                            redisKey,
+                            coupons.isEmpty()
+                                    ? getRandomEmptyExpirationTime()
+                                    : getRandomExpirationTime(1,2),
+                            TimeUnit.SECONDS
+                    );
                 });
-
                 return null;
             }
         };
 
-        log.info("Pipeline Exe Result: {}",
-                JSON.toJSONString(redisTemplate.executePipelined(sessionCallback)));
+        redisTemplate.executePipelined(sessionCallback);
+        dropLegacyKeys(userId2Coupons.keySet());
+        log.info("Batch Save Coupons To Cache: {}, {}",
+                userId2Coupons.size(), status);
     }
 
-
-
     /**  方法二
      * <h2>尝试从 Cache 中获取一个优惠券码</h2>  1.这个要从template模块处获取
      * 2.根据优惠券的领取限制，对比当前用户所拥有的优惠券作出判断
+     * 按需生成的模板在 Redis 中只占用一个序号, 优惠券码根据序号在本地生成
      * @param templateId 优惠券模板主键
-     * @return 优惠券码
+     * @return 优惠券码, 售罄时返回 null
      * */
     @Override
+    @SuppressWarnings("unchecked")
     public String tryToAcquireCouponCodeFromCache(Integer templateId) {
 
         //redis 中优惠券模板和优惠券
@@ -128,13 +333,207 @@ public class RedisServiceImpl implements IRedisService {
         String redisKey = String.format("%s%s",
                 Constant.RedisPrefix.COUPON_TEMPLATE,templateId.toString());
         // 优惠券不存在顺序关系 ，左边pop和右边pop都行
-        String couponCode = redisTemplate.opsForList().leftPop(redisKey);
+        List<String> result = redisTemplate.execute(
+                acquireTemplateCodeScript,
+                Arrays.asList(redisKey, mintRedisKey(templateId))
+        );
+        String couponCode = result.isEmpty() ? null : toCouponCode(templateId, result, 0);
 
         log.info("Acquire Coupon Code: {} ,{} ,{}",
                 templateId,redisKey,couponCode);
         return couponCode;
     }
 
+    /**
+     * <h2>原子性地领取优惠券码</h2>
+     * 一次 Redis 往返完成: 校验领取限制, 获取优惠券码, 记录领取计数
+     * @param userId 用户 id
+     * @param templateId 优惠券模板主键
+     * @param limitation 模板的领取限制
+     * @return left 是领取结果, right 是优惠券码(只有 SUCCESS 时不为 null)
+     * */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Pair<AcquireStatus, String> tryToAcquireCouponCode(
+            Long userId, Integer templateId, Integer limitation) {
+
+        String codeKey = String.format("%s%s",
+                Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
+        String acquiredKey = acquiredRedisKey(userId);
+        reconcileLegacyKeys(Collections.singletonList(userId));
+
+        //优惠券码列表和领取计数在不同的 slot, Cluster 中分两步: 先占用额度, 再获取优惠券码
+        if(clusterMode){
+            AcquireStatus reserved = tryToReserveAcquire(userId, templateId, limitation);
+            if(reserved != AcquireStatus.SUCCESS){
+                return Pair.of(reserved, null);
+            }
+            String couponCode = tryToAcquireCouponCodeFromCache(templateId);
+            if(null == couponCode){
+                releaseAcquire(userId, templateId);
+                return Pair.of(AcquireStatus.SOLD_OUT, null);
+            }
+            log.info("Acquire Coupon Code In Cluster: {}, {}, {}",
+                    userId, templateId, couponCode);
+            return Pair.of(AcquireStatus.SUCCESS, couponCode);
+        }
+
+        List<String> result = redisTemplate.execute(
+                acquireScript,
+                Arrays.asList(codeKey, acquiredKey, mintRedisKey(templateId)),
+                templateId.toString(),
+                limitation.toString(),
+                getRandomExpirationTime(1, 2).toString()
+        );
+
+        AcquireStatus status = AcquireStatus.valueOf(result.get(0));
+        String couponCode = status == AcquireStatus.SUCCESS
+                ? toCouponCode(templateId, result, 1) : null;
+        if(status == AcquireStatus.SUCCESS){
+            dropLegacyKeys(Collections.singletonList(userId));
+        }
+
+        log.info("Acquire Coupon Code By Script: {}, {}, {}, {}",
+                userId, templateId, status, couponCode);
+        return Pair.of(status, couponCode);
+    }
+
+    /**
+     * <h2>原子性地占用一次领取额度</h2>
+     * 只校验领取限制并记录领取计数, 优惠券码由本地租约提供
+     * @param userId 用户 id
+     * @param templateId 优惠券模板主键
+     * @param limitation 模板的领取限制
+     * @return 领取结果, 不会返回 SOLD_OUT
+     * */
+    @Override
+    public AcquireStatus tryToReserveAcquire(Long userId, Integer templateId,
+                                             Integer limitation) {
+
+        reconcileLegacyKeys(Collections.singletonList(userId));
+        String result = redisTemplate.execute(
+                reserveAcquireScript,
+                Collections.singletonList(acquiredRedisKey(userId)),
+                templateId.toString(),
+                limitation.toString(),
+                getRandomExpirationTime(1, 2).toString()
+        );
+
+        log.debug("Reserve Acquire: {}, {}, {}", userId, templateId, result);
+        AcquireStatus status = AcquireStatus.valueOf(result);
+        if(status == AcquireStatus.SUCCESS){
+            dropLegacyKeys(Collections.singletonList(userId));
+        }
+        return status;
+    }
+
+    /**
+     * <h2>归还一次领取额度</h2>
+     * 领取计数已经被清理时不做任何修改
+     * */
+    @Override
+    public void releaseAcquire(Long userId, Integer templateId) {
+
+        redisTemplate.execute(
+                releaseAcquireScript,
+                Collections.singletonList(acquiredRedisKey(userId)),
+                templateId.toString()
+        );
+        dropLegacyKeys(Collections.singletonList(userId));
+        log.info("Release Acquire: {}, {}", userId, templateId);
+    }
+
+    /**
+     * <h2>把没有发出去的优惠券码放回 Cache</h2>
+     * 只用于不是从本地租约获取的优惠券码, 租约中的优惠券码见 ICouponCodeLeaseService.giveBack
+     * */
+    @Override
+    public void returnCouponCode(Integer templateId, String couponCode) {
+
+        //按需生成的序号不能放回, 这个序号作废, 模板少发一张
+        //是否按需生成以 Redis 中的计数 key 为准, 本节点可能还没有这个模板的生成器
+        if(mintGenerators.containsKey(templateId)
+                || Boolean.TRUE.equals(redisTemplate.hasKey(mintRedisKey(templateId)))){
+            log.warn("Discard Minted Coupon Code: {}, {}", templateId, couponCode);
+            return;
+        }
+
+        String redisKey = String.format("%s%s",
+                Constant.RedisPrefix.COUPON_TEMPLATE, templateId.toString());
+        redisTemplate.opsForList().rightPush(redisKey, couponCode);
+        log.info("Return Coupon Code: {}, {}", templateId, couponCode);
+    }
+
+    /**
+     * <h2>根据用户当前可用的优惠券初始化领取计数</h2>
+     * 领取计数已经存在时不做任何修改
+     * @param userId 用户 id
+     * @param usableCoupons 用户当前可用的 {@link Coupon}s
+     * */
+    @Override
+    public void initAcquiredCount(Long userId, List<Coupon> usableCoupons) {
+
+        Map<Integer, Long> templateId2Count = usableCoupons.stream()
+                .collect(Collectors.groupingBy(
+                        Coupon::getTemplateId, Collectors.counting()));
+
+        List<String> args = new ArrayList<>(templateId2Count.size() * 2 + 1);
+        args.add(getRandomExpirationTime(1, 2).toString());
+        templateId2Count.forEach((k, v) -> {
+            args.add(k.toString());
+            args.add(v.toString());
+        });
+
+        Long result = redisTemplate.execute(
+                initAcquiredScript,
+                Collections.singletonList(acquiredRedisKey(userId)),
+                args.toArray()
+        );
+        dropLegacyKeys(Collections.singletonList(userId));
+        log.info("Init Acquired Count: {}, {}, {}",
+                userId, JSON.toJSONString(templateId2Count), result);
+    }
+
+    /**
+     * <h2>尝试获取从 db 加载用户优惠券的跨节点租约</h2>
+     * @param userId 用户 id
+     * @param status 优惠券状态
+     * @param leaseMillis 租约有效期
+     * @return 租约的 token, 没有拿到租约返回 null
+     * */
+    @Override
+    public String tryToLockCouponLoad(Long userId, Integer status,
+                                      long leaseMillis) {
+
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(
+                loadLeaseRedisKey(userId, status), token,
+                leaseMillis, TimeUnit.MILLISECONDS
+        );
+        return Boolean.TRUE.equals(locked) ? token : null;
+    }
+
+    /**
+     * <h2>加载租约是否被持有</h2>
+     * */
+    @Override
+    public boolean isCouponLoadLocked(Long userId, Integer status) {
+        return Boolean.TRUE.equals(
+                redisTemplate.hasKey(loadLeaseRedisKey(userId, status)));
+    }
+
+    /**
+     * <h2>释放加载租约, 只有 token 匹配时才会释放</h2>
+     * */
+    @Override
+    public void unlockCouponLoad(Long userId, Integer status, String token) {
+        redisTemplate.execute(
+                releaseLeaseScript,
+                Collections.singletonList(loadLeaseRedisKey(userId, status)),
+                token
+        );
+    }
+
     /**方法三
      * <h2>将优惠券保存到 Cache 中</h2>
      * @param userId 用户 id
@@ -169,32 +568,33 @@ public class RedisServiceImpl implements IRedisService {
 
     /**
      * 新增加优惠券到 Cache中  Usable
+     * 只追加到已经存在的可用缓存中, 缓存不存在时由下一次读取从 db 完整加载
      * @param userId
      * @param coupons
-     * @return
+     * @return 写入缓存的个数
      */
     private Integer addCouponToCacheForUsable(Long userId,List<Coupon> coupons){
         //如果 status是 USABLE ，代表是新增加的优惠券
         //只会影响一个cache：USER_COUPON_USABLE
         log.debug("Add Coupon TO Cache For Usable");
 
-        Map<String,String> needCachedObject = new HashMap<>();
+        List<String> args = new ArrayList<>(coupons.size() * 2 + 1);
+        args.add(getRandomExpirationTime(1,2).toString());
         coupons.forEach(c -> {
-            needCachedObject.put(c.getId().toString(),JSON.toJSONString(c));
+            args.add(c.getId().toString());
+            args.add(CouponCodec.encode(c));
         });
 
         String redisKey = status2RedisKey(CouponStatus.USABLE.getCode(),userId);
-        redisTemplate.opsForHash().putAll(redisKey,needCachedObject);
-        log.info("Add {} Coupons To Cache: {} , {}",
-                needCachedObject.size(),userId,redisKey);
-
-        redisTemplate.expire(
-                redisKey,
-                getRandomExpirationTime(1,2),
-                TimeUnit.SECONDS
+        Long added = redisTemplate.execute(
+                addUsableScript,
+                Collections.singletonList(redisKey),
+                args.toArray()
         );
+        dropLegacyKeys(Collections.singletonList(userId));
+        log.info("Add {} Coupons To Cache: {} , {}", added, userId, redisKey);
 
-        return needCachedObject.size();
+        return null == added ? 0 : added.intValue();
     }
 
     /**
@@ -224,17 +624,15 @@ public class RedisServiceImpl implements IRedisService {
                 CouponStatus.USED.getCode(),userId
         );
 
-        //获取当前用户可用的优惠券
-        List<Coupon> curUsableCoupons = getCachedCoupons(
-                userId,CouponStatus.USABLE.getCode()
-        );
-        //这个curUsableCoupons 是 当前用户可用的所有优惠券 加 一个无效的空优惠券
+        //获取当前用户可用的优惠券, 缓存未命中时按没有可用的优惠券处理
+        List<Coupon> curUsableCoupons = cachedUsableCoupons(userId);
+        //这个curUsableCoupons 是 当前用户可用的所有优惠券
         //参数 coupons 是用户现在准备用的优惠券
-        assert curUsableCoupons.size() > coupons.size();
+        assert curUsableCoupons.size() >= coupons.size();
 
         coupons.forEach(c -> needCachedForUsed.put(
                 c.getId().toString(),
-                JSON.toJSONString(c)
+                CouponCodec.encode(c)
         ));
 
         /**
@@ -254,39 +652,9 @@ public class RedisServiceImpl implements IRedisService {
         }
 
         /**
-         * 第三步   操作缓存
+         * 第三步   操作缓存, 在一个脚本中原子性地完成
          */
-        List<String> needCleanKey = paramIds.stream()
-                .map(e -> e.toString()).collect(Collectors.toList());
-        SessionCallback<Objects> sessionCallback = new SessionCallback<Objects>() {
-            @Override
-            public  Objects execute(RedisOperations redisOperations) throws DataAccessException {
-
-                //1.已使用的优惠券 Cache 缓存添加
-                redisOperations.opsForHash().putAll(redisKeyForUsad,needCachedForUsed);
-                //2.可用的优惠券 Cache 需要清理
-                redisOperations.opsForHash().delete(
-                        redisKeyForUsable,needCleanKey.toArray()
-                );
-                //3.重置过期时间
-                redisOperations.expire(
-                        redisKeyForUsable,
-                        getRandomExpirationTime(1,2),
-                        TimeUnit.SECONDS
-                );
-                redisOperations.expire(
-                        redisKeyForUsad,
-                        getRandomExpirationTime(1,2),
-                        TimeUnit.SECONDS
-                );
-
-                return null;
-            }
-        };
-
-        log.info("Pipeline Exe Result: {}",
-                JSON.toJSONString(
-                        redisTemplate.executePipelined(sessionCallback)));
+        moveUsableCoupons(userId, redisKeyForUsad, needCachedForUsed);
         return coupons.size();
     }
 
@@ -308,17 +676,15 @@ public class RedisServiceImpl implements IRedisService {
                 CouponStatus.EXPIRED.getCode(),userId
         );
 
-        List<Coupon> curUsableCoupons = getCachedCoupons(
-                userId,CouponStatus.USABLE.getCode()
-        );
+        List<Coupon> curUsableCoupons = cachedUsableCoupons(userId);
 
 
-        //当前可用的优惠券个数一定大于1的
-        assert curUsableCoupons.size() > coupons.size();
+        //当前可用的优惠券个数一定不少于过期的优惠券个数
+        assert curUsableCoupons.size() >= coupons.size();
 
         coupons.forEach(c -> needCachedForExpired.put(
                 c.getId().toString(),
-                JSON.toJSONString(c)
+                CouponCodec.encode(c)
         ));
 
         //校验当前的优惠券参数是否与 Cached 中的匹配
@@ -333,66 +699,271 @@ public class RedisServiceImpl implements IRedisService {
             throw new CouponException("CurCoupon Is Not Equal TO cache");
         }
 
-        List<String> needCleanKey = paramIds.stream()
-                .map(i -> i.toString()).collect(Collectors.toList());
+        moveUsableCoupons(userId, redisKeyForExpired, needCachedForExpired);
+        return coupons.size();
+    }
+
+
+    //缓存中用户可用的优惠券, 缓存未命中时返回空列表
+    private List<Coupon> cachedUsableCoupons(Long userId){
+        List<Coupon> coupons = getCachedCoupons(userId, CouponStatus.USABLE.getCode());
+        return null == coupons ? Collections.emptyList() : coupons;
+    }
 
-        SessionCallback<Objects> sessionCallback = new SessionCallback<Objects>() {
+    /**
+     * <h2>批量把已过期的优惠券从可用缓存移动到已过期缓存</h2>
+     * 和单个用户使用同一个脚本, pipeline 中用 EVAL 执行(EVALSHA 在 pipeline 中无法处理 NOSCRIPT)
+     * @param userId2Expired 用户 id -> 已过期的 {@link Coupon}s
+     * */
+    @Override
+    public void moveCouponsToExpired(Map<Long, List<Coupon>> userId2Expired) {
+
+        byte[] script = moveScript.getScriptAsString()
+                .getBytes(StandardCharsets.UTF_8);
+
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            userId2Expired.forEach((userId, coupons) -> {
+                List<String> keysAndArgs = new ArrayList<>(coupons.size() * 2 + 5);
+                keysAndArgs.add(status2RedisKey(CouponStatus.USABLE.getCode(), userId));
+                keysAndArgs.add(status2RedisKey(CouponStatus.EXPIRED.getCode(), userId));
+                keysAndArgs.add(acquiredRedisKey(userId));
+                keysAndArgs.add(getRandomExpirationTime(1,2).toString());
+                keysAndArgs.add(getRandomExpirationTime(1,2).toString());
+                coupons.forEach(c -> {
+                    keysAndArgs.add(c.getId().toString());
+                    keysAndArgs.add(CouponCodec.encode(c));
+                });
+                connection.eval(script, ReturnType.INTEGER, 3,
+                        keysAndArgs.stream()
+                                .map(v -> v.getBytes(StandardCharsets.UTF_8))
+                                .toArray(byte[][]::new));
+            });
+            return null;
+        });
+        dropLegacyKeys(userId2Expired.keySet());
+        log.info("Batch Move Expired Coupons: {}", userId2Expired.size());
+    }
+
+    /**
+     * 把优惠券从可用缓存移动到 targetKey, 同时清理领取计数
+     * 所有 key 都带有 {userId} 的 hash tag, Redis Cluster 中也可以在一个脚本中完成
+     */
+    private void moveUsableCoupons(Long userId, String targetKey,
+                                   Map<String,String> needCached){
+
+        List<String> args = new ArrayList<>(needCached.size() * 2 + 2);
+        args.add(getRandomExpirationTime(1,2).toString());
+        args.add(getRandomExpirationTime(1,2).toString());
+        needCached.forEach((k, v) -> {
+            args.add(k);
+            args.add(v);
+        });
+
+        Long moved = redisTemplate.execute(
+                moveScript,
+                Arrays.asList(
+                        status2RedisKey(CouponStatus.USABLE.getCode(), userId),
+                        targetKey,
+                        acquiredRedisKey(userId)
+                ),
+                args.toArray()
+        );
+        dropLegacyKeys(Collections.singletonList(userId));
+        log.info("Move Usable Coupons: {}, {}, {}", userId, targetKey, moved);
+    }
+
+    /**
+     * 滚动发布窗口内, 旧版本节点修改过的用户(旧 key 存在)的新 key 可能已经过时,
+     * 删除这些用户的新旧 key, 之后从 db 重新加载(领取计数重新初始化)
+     */
+    private void reconcileLegacyKeys(Collection<Long> userIds){
+
+        if(!legacyKeyWindow || userIds.isEmpty()){
+            return;
+        }
+        List<Long> ids = new ArrayList<>(userIds);
+
+        SessionCallback<Object> existsCallback = new SessionCallback<Object>() {
             @Override
-            public  Objects execute(RedisOperations redisOperations) throws DataAccessException {
-
-                //1.已过期的优惠券 Cache 缓存
-                redisOperations.opsForHash().putAll(
-                        redisKeyForExpired,needCachedForExpired
-                );
-                //2.可用的优惠券 Cache 需要清理
-                redisOperations.opsForHash().delete(
-                        redisKeyForUsable,needCleanKey.toArray()
-                );
-                //重置过期时间
-                redisOperations.expire(
-                        redisKeyForUsable,
-                        getRandomExpirationTime(1,2),
-                        TimeUnit.SECONDS
-                );
-                redisOperations.expire(
-                        redisKeyForExpired,
-                        getRandomExpirationTime(1,2),
-                        TimeUnit.SECONDS
-                );
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                ids.forEach(id -> redisOperations.countExistingKeys(legacyUserKeys(id)));
                 return null;
             }
         };
+        List<Object> counts = redisTemplate.executePipelined(existsCallback);
 
-        log.info("Pipeline Exe Result: {}",
-                JSON.toJSONString(
-                        redisTemplate.executePipelined(sessionCallback)
-                ));
-        return coupons.size();
+        List<Long> touched = new ArrayList<>();
+        for(int i = 0; i < ids.size(); i++){
+            if(counts.get(i) instanceof Long && (Long) counts.get(i) > 0){
+                touched.add(ids.get(i));
+            }
+        }
+        if(touched.isEmpty()){
+            return;
+        }
+
+        //逐个删除, 新旧 key 不在同一个 slot
+        SessionCallback<Object> deleteCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                touched.forEach(id -> {
+                    legacyUserKeys(id).forEach(redisOperations::delete);
+                    taggedUserKeys(id).forEach(redisOperations::delete);
+                });
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(deleteCallback);
+        log.info("Drop User Keys Touched By Legacy Nodes: {}", touched);
+    }
+
+    /**
+     * 滚动发布窗口内, 新节点修改用户缓存之后删除旧 key, 旧版本节点从 db 重新加载
+     */
+    private void dropLegacyKeys(Collection<Long> userIds){
+
+        if(!legacyKeyWindow || userIds.isEmpty()){
+            return;
+        }
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                userIds.forEach(id -> legacyUserKeys(id).forEach(redisOperations::delete));
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(sessionCallback);
     }
 
+    private static List<String> legacyUserKeys(Long userId){
+        return LEGACY_USER_PREFIXES.stream()
+                .map(prefix -> prefix + userId)
+                .collect(Collectors.toList());
+    }
+
+    private List<String> taggedUserKeys(Long userId){
+        return Arrays.asList(
+                status2RedisKey(CouponStatus.USABLE.getCode(), userId),
+                status2RedisKey(CouponStatus.USED.getCode(), userId),
+                status2RedisKey(CouponStatus.EXPIRED.getCode(), userId),
+                acquiredRedisKey(userId)
+        );
+    }
 
-    //根据status 获取到对应的redis Key
+    //根据status 获取到对应的redis Key, userId 作为 hash tag
     private String status2RedisKey(Integer status,Long userId){
-        String redisKey = null;
+        return String.format("%s{%s}", status2RedisPrefix(status), userId);
+    }
+
+    private String status2RedisPrefix(Integer status){
+        String prefix = null;
 
         CouponStatus couponStatus = CouponStatus.of(status);
 
         switch (couponStatus){
             case USABLE:
-                redisKey = String.format("%s%s",
-                        Constant.RedisPrefix.USER_COUPON_USABLE,userId);
+                prefix = Constant.RedisPrefix.USER_COUPON_USABLE;
                 break;
             case USED:
-                redisKey = String.format("%s%s",
-                        Constant.RedisPrefix.USER_COUPON_USED,userId);
+                prefix = Constant.RedisPrefix.USER_COUPON_USED;
                 break;
             case EXPIRED:
-                redisKey = String.format("%s%s",
-                        Constant.RedisPrefix.USER_COUPON_EXPIRED,userId);
+                prefix = Constant.RedisPrefix.USER_COUPON_EXPIRED;
                 break;
         }
 
-        return redisKey;
+        return prefix;
+    }
+
+    /**
+     * 解码一个用户缓存的优惠券, 跳过空标记和之前版本写入的无效优惠券(这些 key 过期之后就不会再出现)
+     */
+    private List<Coupon> decode(Long userId, Collection<Object> values){
+
+        List<Coupon> coupons = new ArrayList<>(values.size());
+        for(Object o : values){
+            String value = Objects.toString(o, null);
+            if(!CouponCodec.isEmptyMarker(value)){
+                coupons.add(CouponCodec.decode(userId, value));
+            }
+        }
+        return coupons;
+    }
+
+    /**
+     * 填充缓存中读取的优惠券的 templateSDK
+     * 模板统一从近端缓存中获取, 获取不到模板(例如模板微服务暂时不可用)的优惠券记录日志后保留,
+     * templateSDK 为 null, 和从 db 加载时一致
+     */
+    private List<Coupon> fillTemplateSDK(List<Coupon> coupons){
+
+        Set<Integer> templateIds = coupons.stream()
+                .filter(c -> null == c.getTemplateSDK())
+                .map(Coupon::getTemplateId)
+                .collect(Collectors.toSet());
+        if(templateIds.isEmpty()){
+            return coupons;
+        }
+
+        Map<Integer, CouponTemplateSDK> id2Template =
+                templateCacheService.findIds2TemplateSDK(templateIds);
+
+        coupons.forEach(c -> {
+            if(null == c.getTemplateSDK()){
+                c.setTemplateSDK(id2Template.get(c.getTemplateId()));
+                if(null == c.getTemplateSDK()){
+                    log.error("Can Not Find Template For Cached Coupon: {}, {}",
+                            c.getId(), c.getTemplateId());
+                }
+            }
+        });
+
+        return coupons;
+    }
+
+    //从 db 加载用户优惠券的租约 redis Key
+    private String loadLeaseRedisKey(Long userId, Integer status){
+        return String.format("%s{%s}_%s",
+                Constant.RedisPrefix.USER_COUPON_LOAD_LEASE, userId, status);
+    }
+
+    /**
+     * <h2>把脚本返回的结果转换为优惠券码</h2>
+     * result[offset] 是 CODE 时后面是优惠券码; 是 SEQ 时后面是序号, 前四位, 日期
+     * */
+    private String toCouponCode(Integer templateId, List<String> result, int offset) {
+
+        if("CODE".equals(result.get(offset))){
+            return result.get(offset + 1);
+        }
+
+        CouponCodeGenerator generator = mintGenerators.computeIfAbsent(
+                templateId, id -> newMintGenerator(
+                        id, result.get(offset + 2), result.get(offset + 3)));
+        return generator.code(Integer.parseInt(result.get(offset + 1)));
+    }
+
+    //没有配置密钥时不能生成, 否则按需生成的优惠券码和模板微服务不一致
+    private CouponCodeGenerator newMintGenerator(Integer templateId,
+                                                 String prefix4, String date) {
+        if (StringUtils.isBlank(codeSecret)) {
+            throw new IllegalStateException(
+                    "coupon.code-secret Is Not Configured, Set COUPON_CODE_SECRET");
+        }
+        return new CouponCodeGenerator(prefix4, date,
+                CodePermutation.of(codeSecret, templateId));
+    }
+
+    //按需生成优惠券码的模板计数 key, 和优惠券码列表在同一个 slot
+    private String mintRedisKey(Integer templateId) {
+        return String.format("%s{%s%s}", Constant.RedisPrefix.COUPON_TEMPLATE_MINT,
+                Constant.RedisPrefix.COUPON_TEMPLATE, templateId);
+    }
+
+    //用户领取计数的 redis Key
+    private String acquiredRedisKey(Long userId){
+        return String.format("%s{%s}",
+                Constant.RedisPrefix.USER_COUPON_ACQUIRED, userId);
     }
 
 
@@ -411,4 +982,12 @@ public class RedisServiceImpl implements IRedisService {
                 max * 60 * 60
         );
     }
+
+    /**
+     * 空标记的随机过期时间(秒), 在 [emptyTtlSeconds, 2 * emptyTtlSeconds) 之间
+     */
+    private Long getRandomEmptyExpirationTime(){
+        long ttl = Math.max(emptyTtlSeconds, 1);
+        return RandomUtils.nextLong(ttl, ttl * 2);
+    }
 }
@@ -0,0 +1,242 @@
+package com.imooc.coupon.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.feign.TemplateClient;
+import com.imooc.coupon.service.ITemplateCacheService;
+import com.imooc.coupon.vo.CommonResponse;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateSDKChanges;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 优惠券模板近端缓存服务接口实现
+ * 1. 容量有上限, 写入后 refreshAfterWrite 秒开始在后台异步刷新, 刷新期间返回旧值
+ * 2. 写入后 expireAfterWrite 秒强制过期, 模板服务长时间不可用时不会一直返回旧值
+ * 3. 模板服务熔断降级时不缓存降级结果
+ * 4. 所有可用模板按目录版本增量同步, 刷新时只传输变化的模板
+ */
+@Slf4j
+@Service
+public class TemplateCacheServiceImpl implements ITemplateCacheService {
+
+    //所有可用模板在缓存中的 key (只有这一个 key)
+    private static final String ALL_USABLE = "all";
+
+    //模板微服务客户端
+    private final TemplateClient templateClient;
+
+    //后台刷新缓存的线程池
+    private final ExecutorService refreshExecutor;
+
+    //templateId -> CouponTemplateSDK
+    private final LoadingCache<Integer, CouponTemplateSDK> id2Template;
+
+    //所有可用的优惠券模板
+    private final LoadingCache<String, List<CouponTemplateSDK>> usableTemplates;
+
+    //usableTemplates 对应的模板目录版本
+    private volatile Long catalogVersion;
+
+    @Autowired
+    public TemplateCacheServiceImpl(
+            TemplateClient templateClient,
+            @Value("${coupon.template-cache.max-size:10000}") long maxSize,
+            @Value("${coupon.template-cache.refresh-seconds:60}") long refreshSeconds,
+            @Value("${coupon.template-cache.expire-seconds:600}") long expireSeconds) {
+
+        this.templateClient = templateClient;
+        this.refreshExecutor = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocTemplateCache_%d")
+                        .setDaemon(true)
+                        .build());
+
+        this.id2Template = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(new CacheLoader<Integer, CouponTemplateSDK>() {
+
+                    @Override
+                    public CouponTemplateSDK load(Integer id) throws Exception {
+                        CouponTemplateSDK template = loadIds2TemplateSDK(
+                                Collections.singletonList(id)).get(id);
+                        if (null == template) {
+                            throw new CouponException("Template Is Not Exist: " + id);
+                        }
+                        return template;
+                    }
+
+                    @Override
+                    public Map<Integer, CouponTemplateSDK> loadAll(
+                            Iterable<? extends Integer> ids) throws Exception {
+                        List<Integer> idList = new ArrayList<>();
+                        ids.forEach(idList::add);
+                        return loadIds2TemplateSDK(idList);
+                    }
+
+                    @Override
+                    public ListenableFuture<CouponTemplateSDK> reload(
+                            Integer id, CouponTemplateSDK oldValue) {
+                        return asyncReload(() -> load(id));
+                    }
+                });
+
+        this.usableTemplates = CacheBuilder.newBuilder()
+                .maximumSize(1)
+                .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(new CacheLoader<String, List<CouponTemplateSDK>>() {
+
+                    @Override
+                    public List<CouponTemplateSDK> load(String key) throws Exception {
+                        return loadAllUsableTemplate(null);
+                    }
+
+                    @Override
+                    public ListenableFuture<List<CouponTemplateSDK>> reload(
+                            String key, List<CouponTemplateSDK> oldValue) {
+                        return asyncReload(() -> loadAllUsableTemplate(oldValue));
+                    }
+                });
+    }
+
+    /**
+     * <h2>查找所有可用的优惠券模板</h2>
+     * 模板服务不可用且本地没有缓存时返回空列表
+     * */
+    @Override
+    public List<CouponTemplateSDK> findAllUsableTemplate() {
+
+        try {
+            return usableTemplates.get(ALL_USABLE);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            log.error("Load All Usable Template Error: {}", ex.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * <h2>查找模板 ids 到 CouponTemplateSDK 的映射</h2>
+     * 只有未命中的 id 才会通过 Feign 批量加载
+     * */
+    @Override
+    public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(
+            Collection<Integer> ids) {
+
+        try {
+            return new HashMap<>(id2Template.getAll(ids));
+        } catch (CacheLoader.InvalidCacheLoadException
+                | ExecutionException | UncheckedExecutionException ex) {
+            //有的模板不存在或者模板服务降级了, 已经加载到的模板仍然会放入缓存
+            log.warn("Load Templates Partially: {}, {}",
+                    JSON.toJSONString(ids), ex.getMessage());
+            return new HashMap<>(id2Template.getAllPresent(ids));
+        }
+    }
+
+    /**
+     * <h2>缓存的统计信息(命中, 未命中, 加载等)</h2>
+     * */
+    @Override
+    public Map<String, Object> stats() {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id2Template", stats2Map(id2Template.stats(), id2Template.size()));
+        result.put("usableTemplates",
+                stats2Map(usableTemplates.stats(), usableTemplates.size()));
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    //通过 TemplateClient 加载模板, 降级的结果抛出异常, 不会被缓存
+    private Map<Integer, CouponTemplateSDK> loadIds2TemplateSDK(
+            Collection<Integer> ids) throws CouponException {
+
+        CommonResponse<Map<Integer, CouponTemplateSDK>> response =
+                templateClient.findIds2TemplateSDK(ids);
+        if (response.getCode() != 0) {
+            throw new CouponException(response.getMessage());
+        }
+        log.debug("Load Templates From TemplateClient: {}", JSON.toJSONString(ids));
+        return response.getData();
+    }
+
+    //通过 TemplateClient 同步所有可用模板, 新增的模板同时放入 id2Template
+    //oldValue 为 null 时(第一次加载或者已经过期)拿全量, 否则只拿 catalogVersion 之后的变化
+    private List<CouponTemplateSDK> loadAllUsableTemplate(
+            List<CouponTemplateSDK> oldValue) throws CouponException {
+
+        CommonResponse<TemplateSDKChanges> response =
+                templateClient.findTemplateSDKChanges(
+                        null == oldValue ? null : catalogVersion);
+        if (response.getCode() != 0) {
+            throw new CouponException(response.getMessage());
+        }
+
+        TemplateSDKChanges changes = response.getData();
+        Map<Integer, CouponTemplateSDK> templates = new LinkedHashMap<>();
+        if (!changes.getFull() && null != oldValue) {
+            oldValue.forEach(t -> templates.put(t.getId(), t));
+        }
+        //过期的模板仍然留在 id2Template 中, 已经领取的优惠券还要用到
+        changes.getRemoved().forEach(templates::remove);
+        changes.getAdded().forEach(t -> {
+            templates.put(t.getId(), t);
+            id2Template.put(t.getId(), t);
+        });
+        catalogVersion = changes.getVersion();
+
+        log.debug("Sync Usable Template From TemplateClient: {}, {}, +{}, -{}",
+                changes.getVersion(), changes.getFull(),
+                changes.getAdded().size(), changes.getRemoved().size());
+        return Collections.unmodifiableList(new ArrayList<>(templates.values()));
+    }
+
+    //在后台线程中刷新, 刷新完成之前调用方拿到的是旧值
+    private <V> ListenableFuture<V> asyncReload(
+            Callable<V> loader) {
+        ListenableFutureTask<V> task = ListenableFutureTask.create(loader);
+        refreshExecutor.execute(task);
+        return task;
+    }
+
+    private Map<String, Object> stats2Map(CacheStats stats, long size) {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", size);
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("loadSuccessCount", stats.loadSuccessCount());
+        result.put("loadExceptionCount", stats.loadExceptionCount());
+        result.put("evictionCount", stats.evictionCount());
+        return result;
+    }
+}
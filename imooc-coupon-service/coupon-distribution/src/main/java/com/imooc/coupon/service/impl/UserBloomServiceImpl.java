@@ -0,0 +1,822 @@
+package com.imooc.coupon.service.impl;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.service.IUserBloomService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 拥有优惠券的用户布隆过滤器服务接口实现
+ *
+ * 1. 可扩展: 一代过滤器由多个分片组成, 第 i 个分片的容量是 n * 2^i, 误判率是 p / 2^(i+1),
+ *    最后一个分片满了就增加一个分片, 总的误判率不超过 p
+ * 2. 可轮换: 每隔 rotate-hours 小时从 MySQL 重建新的一代, 重建期间和切换之后的一段时间里
+ *    上一代仍然参与判断, 重建完成后补齐重建期间新领取优惠券的用户, 再删除上一代
+ * 3. 位图保存在 Redis(imooc_user_coupon_bloom_<generation>_<slice>), 每个节点保存一份本地副本,
+ *    每次写入新用户时版本号加一并记录这个用户; 节点每隔 sync-millis 比较一次版本号, 只把落后的
+ *    用户补到本地副本中, 切换一代、增加分片或者落后太多时才全量拉取位图
+ * 4. 本地副本在 max-stale-millis 之内和 Redis 同步过时, 本地的判断就是结果(其他节点新写入的用户
+ *    最多在 sync-millis 之后可见); 同步失败太久或者正在轮换时, 本地未命中再到 Redis 确认一次
+ *
+ * 元信息 imooc_user_coupon_bloom_meta:
+ * generation, previous, built_at, version, slices_<generation>, count_<generation>_<slice>
+ */
+@Slf4j
+@Service
+public class UserBloomServiceImpl implements IUserBloomService {
+
+    private static final String GENERATION = "generation";
+    private static final String PREVIOUS = "previous";
+    private static final String BUILT_AT = "built_at";
+    private static final String VERSION = "version";
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final CouponDao couponDao;
+
+    //增加分片的脚本
+    private final DefaultRedisScript<Long> growScript;
+
+    //释放重建锁的脚本, 只有持有者才能释放
+    private final DefaultRedisScript<Long> releaseLockScript;
+
+    //记录一次变化(版本号加一)的脚本
+    private final DefaultRedisScript<Long> recordChangeScript;
+
+    //读取版本号和之后的变化的脚本
+    private final DefaultRedisScript<List> readChangesScript;
+
+    //重建之后延迟执行补齐和清理上一代, 不占用 @Scheduled 的线程
+    private final ScheduledExecutorService rotateTimer;
+
+    //是否开启布隆过滤器
+    @Value("${coupon.user-bloom.enabled:true}")
+    private boolean enabled;
+
+    //第一个分片的预期插入数
+    @Value("${coupon.user-bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    //总的误判率
+    @Value("${coupon.user-bloom.fpp:0.01}")
+    private double fpp;
+
+    //两次全量拉取位图的最小间隔(落后太多时), 也是轮换之后等待其他节点切换的时间
+    @Value("${coupon.user-bloom.refresh-millis:60000}")
+    private long refreshMillis;
+
+    //本地副本多久没有和 Redis 同步之后, 本地未命中需要到 Redis 确认
+    @Value("${coupon.user-bloom.max-stale-millis:5000}")
+    private long maxStaleMillis;
+
+    //Redis 中保留最近多少个变化, 落后更多的节点全量拉取
+    @Value("${coupon.user-bloom.history-size:10000}")
+    private int historySize;
+
+    //轮换间隔
+    @Value("${coupon.user-bloom.rotate-hours:24}")
+    private long rotateHours;
+
+    //重建时每次从 MySQL 读取的用户数
+    @Value("${coupon.user-bloom.rebuild-batch:5000}")
+    private int rebuildBatch;
+
+    //一个分片最多的位数, 本地副本的大小是它的 1/8; 达到上限的分片相应减少容量, 保证误判率
+    @Value("${coupon.user-bloom.max-slice-bits:268435456}")
+    private long maxSliceBits;
+
+    //当前这一代(包含本地位图副本), null 代表还没有构建好
+    private volatile Generation current;
+
+    //轮换中的上一代(只在 Redis 中判断), 没有轮换时为 null
+    private volatile Generation previous;
+
+    //本地副本对应的版本号
+    private volatile long localVersion;
+
+    //本地副本最后一次确认和 Redis 一致的时间
+    private volatile long syncedAt;
+
+    //最后一次全量拉取的时间
+    private volatile long lastFullRefresh;
+
+    //写入 Redis 失败的用户, 本节点判断为可能拥有优惠券, 每次刷新本地副本时重新写入
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public UserBloomServiceImpl(StringRedisTemplate redisTemplate,
+                                CouponDao couponDao) {
+        this.redisTemplate = redisTemplate;
+        this.couponDao = couponDao;
+
+        this.growScript = new DefaultRedisScript<>();
+        this.growScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/grow_bloom_slice.lua")));
+        this.growScript.setResultType(Long.class);
+
+        this.releaseLockScript = new DefaultRedisScript<>();
+        this.releaseLockScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/release_lease.lua")));
+        this.releaseLockScript.setResultType(Long.class);
+
+        this.recordChangeScript = new DefaultRedisScript<>();
+        this.recordChangeScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/record_bloom_change.lua")));
+        this.recordChangeScript.setResultType(Long.class);
+
+        this.readChangesScript = new DefaultRedisScript<>();
+        this.readChangesScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/read_bloom_changes.lua")));
+        this.readChangesScript.setResultType(List.class);
+
+        this.rotateTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocUserBloomRotate_%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        //没有完成的轮换在重建锁过期之后由下一次检查重新开始
+        rotateTimer.shutdownNow();
+    }
+
+    /**
+     * <h2>用户是否可能拥有优惠券</h2>
+     * 返回 false 时用户一定没有任何优惠券(其他节点刚写入的用户最多在 sync-millis 之后可见);
+     * 过滤器还没有构建好时总是返回 true
+     * @param userId 用户 id
+     * */
+    @Override
+    public boolean mightHaveCoupons(Long userId) {
+
+        Generation gen = current;
+        if (!enabled || null == gen || pending.contains(userId)) {
+            return true;
+        }
+
+        long[] hash = hash(userId);
+        for (BloomSlice slice : gen.slices) {
+            if (slice.localContains(hash)) {
+                return true;
+            }
+        }
+
+        //本地副本最近和 Redis 同步过, 不需要再访问 Redis
+        Generation prev = previous;
+        if (null == prev
+                && System.currentTimeMillis() - syncedAt <= maxStaleMillis) {
+            return false;
+        }
+
+        //本地副本太久没有同步, 或者轮换中(重建期间的用户可能只在上一代),
+        //到 Redis 中确认(包括轮换中的上一代)
+        List<BloomSlice> slices = new ArrayList<>(gen.slices);
+        if (null != prev) {
+            slices.addAll(prev.slices);
+        }
+        List<Object> bits;
+        try {
+            bits = redisTemplate.executePipelined(
+                    (RedisCallback<Object>) connection -> {
+                        slices.forEach(s -> {
+                            for (long offset : s.offsets(hash)) {
+                                connection.getBit(s.rawKey(), offset);
+                            }
+                        });
+                        return null;
+                    });
+        } catch (RuntimeException ex) {
+            //无法确认时按可能拥有处理, 由缓存和 db 给出结果
+            log.warn("Check User Bloom Error: {}, {}", userId, ex.getMessage());
+            return true;
+        }
+
+        int idx = 0;
+        for (BloomSlice slice : slices) {
+            boolean all = true;
+            for (int i = 0; i != slice.hashes; ++i) {
+                all &= Boolean.TRUE.equals(bits.get(idx++));
+            }
+            if (all) {
+                slice.setLocal(hash);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * <h2>记录用户拥有优惠券</h2>
+     * 写入当前这一代的最后一个分片
+     * 本地还没有拉取过滤器(例如节点刚启动)时, 按 Redis 中的元信息直接写入 Redis,
+     * 否则其他节点会认为这个用户一定没有优惠券
+     * 写入失败不抛出异常(调用方的优惠券已经保存到 db): 用户放入 pending, 本节点按可能拥有处理,
+     * 下一次同步时重新写入; 在此之前其他节点的本地副本和 Redis 中都没有这个用户
+     * @param userId 用户 id
+     * */
+    @Override
+    public void put(Long userId) {
+
+        if (!enabled) {
+            return;
+        }
+        try {
+            doPut(userId);
+        } catch (RuntimeException ex) {
+            pending.add(userId);
+            log.error("Put User To Bloom Error, Retry Later: {}, {}",
+                    userId, ex.getMessage());
+        }
+    }
+
+    //写入当前这一代的最后一个分片, 分片满了增加一个分片
+    private void doPut(Long userId) {
+
+        Generation gen = current;
+        if (null == gen) {
+            gen = remoteGeneration();
+            if (null == gen) {
+                //过滤器还没有构建好, 构建完成后会补齐
+                return;
+            }
+        }
+
+        BloomSlice slice = gen.slices.get(gen.slices.size() - 1);
+        long[] hash = hash(userId);
+        slice.setLocal(hash);
+
+        List<Object> oldBits = redisTemplate.executePipelined(
+                (RedisCallback<Object>) connection -> {
+                    for (long offset : slice.offsets(hash)) {
+                        connection.setBit(slice.rawKey(), offset, true);
+                    }
+                    return null;
+                });
+
+        //所有的位之前都已经是 1, 不算一次新的插入
+        if (oldBits.stream().allMatch(Boolean.TRUE::equals)) {
+            return;
+        }
+
+        //计数加一, 同时记录这个用户, 其他节点同步时补到本地副本中
+        Long count = redisTemplate.execute(
+                recordChangeScript,
+                changeKeys(),
+                String.valueOf(historySize),
+                userId.toString(),
+                countField(gen.number, slice.index)
+        );
+        if (null != count && count >= slice.capacity) {
+            Long slices = redisTemplate.execute(
+                    growScript,
+                    changeKeys(),
+                    slicesField(gen.number),
+                    String.valueOf(gen.slices.size()),
+                    String.valueOf(historySize)
+            );
+            log.info("User Bloom Slice Is Full: {}, {}, Slices Now: {}",
+                    gen.number, slice.index, slices);
+        }
+    }
+
+    /**
+     * <h2>过滤器的状态信息</h2>
+     * */
+    @Override
+    public Map<String, Object> stats() {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        Generation gen = current;
+        Generation prev = previous;
+        result.put("enabled", enabled);
+        result.put("ready", null != gen);
+        result.put("generation", null == gen ? null : gen.number);
+        result.put("slices", null == gen ? 0 : gen.slices.size());
+        result.put("bits", null == gen ? 0 :
+                gen.slices.stream().mapToLong(s -> s.bits).sum());
+        result.put("previous", null == prev ? null : prev.number);
+        result.put("version", localVersion);
+        result.put("synced_at", syncedAt);
+        result.put("pending", pending.size());
+        return result;
+    }
+
+    /**
+     * 比较本地副本和 Redis 的版本号, 只补齐落后的用户
+     * 切换了一代、增加了分片时立即全量拉取; 落后太多时全量拉取, 但两次之间至少间隔 refresh-millis
+     */
+    @Scheduled(fixedDelayString = "${coupon.user-bloom.sync-millis:1000}")
+    @SuppressWarnings("unchecked")
+    public synchronized void sync() {
+
+        if (!enabled) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Generation gen = current;
+        List<String> result;
+        try {
+            result = redisTemplate.execute(
+                    readChangesScript,
+                    changeKeys(),
+                    String.valueOf(localVersion),
+                    String.valueOf(historySize)
+            );
+        } catch (RuntimeException ex) {
+            //本地副本超过 max-stale-millis 没有同步之后, 未命中的用户到 Redis 确认
+            log.warn("Sync User Bloom Error: {}", ex.getMessage());
+            return;
+        }
+
+        //过滤器不存在, 或者本地还没有拉取过
+        if (null == gen || null == result || result.isEmpty()) {
+            refresh();
+            return;
+        }
+
+        long version = Long.parseLong(result.get(0));
+        if (version != localVersion) {
+            List<String> changes = result.subList(1, result.size());
+            if (changes.size() != version - localVersion) {
+                //落后太多(变化已经不在 Redis 中)或者 Redis 中的版本号被重置
+                if (start - lastFullRefresh >= refreshMillis) {
+                    log.info("User Bloom Is Too Far Behind: {}, {}",
+                            localVersion, version);
+                    refresh();
+                }
+                return;
+            }
+            if (!applyChanges(gen, changes)) {
+                refresh();
+                return;
+            }
+            localVersion = version;
+        }
+
+        syncedAt = start;
+        retryPending();
+    }
+
+    /**
+     * 把其他节点新写入的用户补到本地副本中, changes 从新到旧
+     * @return false 代表其中有结构变化(切换一代或者增加分片), 需要全量拉取
+     */
+    private boolean applyChanges(Generation gen, List<String> changes) {
+
+        List<Long> userIds = new ArrayList<>(changes.size());
+        for (String change : changes) {
+            String userId = change.substring(change.indexOf(';') + 1);
+            if (userId.isEmpty()) {
+                return false;
+            }
+            userIds.add(Long.valueOf(userId));
+        }
+
+        //补到最后一个分片即可, 本地副本只需要对这些用户返回命中
+        BloomSlice last = gen.slices.get(gen.slices.size() - 1);
+        userIds.forEach(userId -> last.setLocal(hash(userId)));
+        log.debug("Apply User Bloom Changes: {}", userIds.size());
+        return true;
+    }
+
+    /**
+     * 从 Redis 全量拉取元信息和当前这一代的位图, 更新本地副本
+     * 版本号在拉取位图之前读取, 拉取期间写入的用户由下一次同步再补一次
+     */
+    public synchronized void refresh() {
+
+        if (!enabled) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        lastFullRefresh = start;
+        Map<Object, Object> meta = redisTemplate.opsForHash()
+                .entries(Constant.RedisPrefix.USER_COUPON_BLOOM_META);
+        if (!meta.containsKey(GENERATION)) {
+            current = null;
+            previous = null;
+            localVersion = 0;
+            return;
+        }
+
+        long version = meta.containsKey(VERSION)
+                ? Long.parseLong(meta.get(VERSION).toString()) : 0;
+        int number = Integer.parseInt(meta.get(GENERATION).toString());
+        Generation gen = loadGeneration(number, sliceCount(meta, number), true);
+
+        Generation prev = null;
+        if (meta.containsKey(PREVIOUS)) {
+            int prevNumber = Integer.parseInt(meta.get(PREVIOUS).toString());
+            prev = loadGeneration(prevNumber, sliceCount(meta, prevNumber), false);
+        }
+
+        previous = prev;
+        current = gen;
+        localVersion = version;
+        syncedAt = start;
+        log.info("Refresh User Bloom: {}, Version: {}, Slices: {}",
+                number, version, gen.slices.size());
+
+        retryPending();
+    }
+
+    //重新写入之前写入失败的用户, 仍然失败的留在 pending 中
+    private void retryPending() {
+
+        for (Long userId : new ArrayList<>(pending)) {
+            try {
+                doPut(userId);
+                pending.remove(userId);
+            } catch (RuntimeException ex) {
+                log.warn("Retry Put User To Bloom Error: {}, {}",
+                        userId, ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 过滤器不存在或者已经到了轮换时间, 重建新的一代
+     * 只有拿到重建锁的节点会去重建
+     */
+    @Scheduled(initialDelay = 5 * 1000,
+            fixedDelayString = "${coupon.user-bloom.rotate-check-millis:600000}")
+    public void rotateIfNeeded() {
+
+        if (!enabled) {
+            return;
+        }
+
+        Map<Object, Object> meta = redisTemplate.opsForHash()
+                .entries(Constant.RedisPrefix.USER_COUPON_BLOOM_META);
+        Integer oldNumber = meta.containsKey(GENERATION)
+                ? Integer.parseInt(meta.get(GENERATION).toString()) : null;
+        if (null != oldNumber && meta.containsKey(BUILT_AT)
+                && System.currentTimeMillis()
+                - Long.parseLong(meta.get(BUILT_AT).toString())
+                < TimeUnit.HOURS.toMillis(rotateHours)) {
+            return;
+        }
+
+        String token = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(
+                Constant.RedisPrefix.USER_COUPON_BLOOM_LOCK,
+                token, 1, TimeUnit.HOURS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+
+        //重建成功时锁在延迟的补齐任务完成之后释放
+        boolean scheduled = false;
+        try {
+            scheduled = rebuild(null == oldNumber ? 1 : oldNumber + 1, oldNumber,
+                    sliceCount(meta, oldNumber), token);
+        } finally {
+            if (!scheduled) {
+                unlockRebuild(token);
+            }
+        }
+    }
+
+    /**
+     * 从 MySQL 重建新的一代
+     * 1. 按 userId 递增分页读取所有拥有优惠券的用户, 写入新的一代
+     * 2. 切换到新的一代, 上一代继续参与判断
+     * 3. 等待所有节点刷新之后(延迟任务), 补齐重建开始之后领取了优惠券的用户, 再删除上一代
+     * @return 是否已经安排了延迟任务, 延迟任务负责释放重建锁
+     */
+    private boolean rebuild(int number, Integer oldNumber, int oldSlices,
+                            String token) {
+
+        log.info("Start To Rebuild User Bloom: {}", number);
+
+        Integer maxId = couponDao.findMaxId();
+        int slices = 1;
+        long sliceCount = 0;
+        long total = 0;
+        Long cursor = Long.MIN_VALUE;
+
+        while (true) {
+            List<Long> userIds = couponDao.findUserIdsAfter(
+                    cursor, PageRequest.of(0, rebuildBatch));
+            if (userIds.isEmpty()) {
+                break;
+            }
+
+            Map<BloomSlice, List<long[]>> slice2Hashes = new HashMap<>();
+            for (Long userId : userIds) {
+                if (sliceCount >= capacity(slices - 1)) {
+                    ++slices;
+                    sliceCount = 0;
+                }
+                slice2Hashes.computeIfAbsent(
+                        new BloomSlice(number, slices - 1, false),
+                        k -> new ArrayList<>()
+                ).add(hash(userId));
+                ++sliceCount;
+            }
+
+            redisTemplate.executePipelined(
+                    (RedisCallback<Object>) connection -> {
+                        slice2Hashes.forEach((slice, hashes) ->
+                                hashes.forEach(hash -> {
+                                    for (long offset : slice.offsets(hash)) {
+                                        connection.setBit(slice.rawKey(), offset, true);
+                                    }
+                                }));
+                        return null;
+                    });
+
+            total += userIds.size();
+            cursor = userIds.get(userIds.size() - 1);
+        }
+
+        Map<String, String> meta = new HashMap<>();
+        meta.put(GENERATION, String.valueOf(number));
+        meta.put(BUILT_AT, String.valueOf(System.currentTimeMillis()));
+        meta.put(slicesField(number), String.valueOf(slices));
+        meta.put(countField(number, slices - 1), String.valueOf(sliceCount));
+        if (null != oldNumber) {
+            meta.put(PREVIOUS, String.valueOf(oldNumber));
+        }
+        redisTemplate.opsForHash().putAll(
+                Constant.RedisPrefix.USER_COUPON_BLOOM_META, meta);
+        recordStructureChange();
+        refresh();
+        log.info("Switch User Bloom To Generation: {}, Users: {}, Slices: {}",
+                number, total, slices);
+
+        //等待其他节点也切换到新的一代, 之后新领取优惠券的用户都会写入新的一代
+        rotateTimer.schedule(() -> {
+            try {
+                finishRotation(number, oldNumber, oldSlices, maxId);
+            } catch (RuntimeException ex) {
+                log.error("Finish User Bloom Rotation Error: {}, {}",
+                        number, ex.getMessage());
+            } finally {
+                unlockRebuild(token);
+            }
+        }, 2 * refreshMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 补齐重建开始之后领取了优惠券的用户, 再删除上一代
+     */
+    private void finishRotation(int number, Integer oldNumber, int oldSlices,
+                                Integer maxId) {
+
+        List<Long> lateUserIds = couponDao.findUserIdsByIdAfter(
+                null == maxId ? 0 : maxId);
+        lateUserIds.forEach(this::put);
+        log.info("User Bloom Catch Up Users: {}", lateUserIds.size());
+
+        if (null != oldNumber) {
+            List<String> oldFields = new ArrayList<>();
+            List<String> oldKeys = new ArrayList<>();
+            oldFields.add(PREVIOUS);
+            oldFields.add(slicesField(oldNumber));
+            for (int i = 0; i != oldSlices; ++i) {
+                oldFields.add(countField(oldNumber, i));
+                oldKeys.add(bitmapKey(oldNumber, i));
+            }
+            redisTemplate.opsForHash().delete(
+                    Constant.RedisPrefix.USER_COUPON_BLOOM_META,
+                    oldFields.toArray());
+            redisTemplate.delete(oldKeys);
+            recordStructureChange();
+            refresh();
+        }
+
+        log.info("Done To Rebuild User Bloom: {}", number);
+    }
+
+    //切换一代或者删除上一代之后版本号加一, 其他节点下一次同步时全量拉取
+    private void recordStructureChange() {
+        redisTemplate.execute(
+                recordChangeScript,
+                changeKeys(),
+                String.valueOf(historySize),
+                ""
+        );
+    }
+
+    private void unlockRebuild(String token) {
+        redisTemplate.execute(
+                releaseLockScript,
+                Collections.singletonList(Constant.RedisPrefix.USER_COUPON_BLOOM_LOCK),
+                token
+        );
+    }
+
+    //只根据 Redis 中的元信息构造当前这一代(没有本地副本), 过滤器不存在时返回 null
+    private Generation remoteGeneration() {
+
+        Map<Object, Object> meta = redisTemplate.opsForHash()
+                .entries(Constant.RedisPrefix.USER_COUPON_BLOOM_META);
+        if (!meta.containsKey(GENERATION)) {
+            return null;
+        }
+        int number = Integer.parseInt(meta.get(GENERATION).toString());
+        return loadGeneration(number, sliceCount(meta, number), false);
+    }
+
+    //加载一代过滤器, withBits 为 true 时拉取位图作为本地副本
+    private Generation loadGeneration(int number, int slices, boolean withBits) {
+
+        List<BloomSlice> result = new ArrayList<>(slices);
+        for (int i = 0; i != slices; ++i) {
+            BloomSlice slice = new BloomSlice(number, i, withBits);
+            if (withBits) {
+                byte[] bytes = redisTemplate.execute(
+                        (RedisCallback<byte[]>) connection ->
+                                connection.get(slice.rawKey()));
+                if (null != bytes) {
+                    //Redis 只返回到最后一个非零字节为止
+                    System.arraycopy(bytes, 0, slice.local, 0,
+                            Math.min(bytes.length, slice.local.length));
+                }
+            }
+            result.add(slice);
+        }
+
+        return new Generation(number, Collections.unmodifiableList(result));
+    }
+
+    private int sliceCount(Map<Object, Object> meta, Integer number) {
+        if (null == number) {
+            return 0;
+        }
+        Object slices = meta.get(slicesField(number));
+        return null == slices ? 1 : Integer.parseInt(slices.toString());
+    }
+
+    //第 index 个分片的误判率
+    private double sliceFpp(int index) {
+        return fpp / (2L << index);
+    }
+
+    //第 index 个分片的容量: 位数达到上限之后按上限和误判率反推
+    private long capacity(int index) {
+        double p = sliceFpp(index);
+        long expected = expectedInsertions << index;
+        return Math.min(expected, (long) (maxSliceBits * Math.log(2) * Math.log(2)
+                / -Math.log(p)));
+    }
+
+    //第 index 个分片的位数, 不超过 maxSliceBits
+    private long sliceBits(int index) {
+        return Math.min(maxSliceBits, (long) Math.ceil(-capacity(index)
+                * Math.log(sliceFpp(index)) / (Math.log(2) * Math.log(2))));
+    }
+
+    //用户 id 的 128 位 murmur3 哈希, 拆成两个 long 做双重哈希
+    private static long[] hash(Long userId) {
+        ByteBuffer buffer = ByteBuffer.wrap(
+                Hashing.murmur3_128().hashLong(userId).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    private static List<String> changeKeys() {
+        return Arrays.asList(Constant.RedisPrefix.USER_COUPON_BLOOM_META,
+                Constant.RedisPrefix.USER_COUPON_BLOOM_CHANGES);
+    }
+
+    private static String bitmapKey(int number, int index) {
+        return String.format("%s%s_%s",
+                Constant.RedisPrefix.USER_COUPON_BLOOM, number, index);
+    }
+
+    private static String slicesField(int number) {
+        return "slices_" + number;
+    }
+
+    private static String countField(int number, int index) {
+        return "count_" + number + "_" + index;
+    }
+
+    //一代过滤器
+    private static class Generation {
+
+        private final int number;
+
+        private final List<BloomSlice> slices;
+
+        Generation(int number, List<BloomSlice> slices) {
+            this.number = number;
+            this.slices = slices;
+        }
+    }
+
+    //过滤器的一个分片, 位的顺序与 Redis 位图一致(每个字节的高位在前)
+    private class BloomSlice {
+
+        private final int number;
+
+        private final int index;
+
+        private final long capacity;
+
+        //位数
+        private final long bits;
+
+        //哈希函数个数
+        private final int hashes;
+
+        //本地副本, 不需要本地副本时为 null
+        private final byte[] local;
+
+        private final byte[] rawKey;
+
+        BloomSlice(int number, int index, boolean withLocal) {
+            this.number = number;
+            this.index = index;
+            this.capacity = capacity(index);
+
+            this.bits = sliceBits(index);
+            this.hashes = Math.max(1, (int) Math.round(
+                    (double) bits / capacity * Math.log(2)));
+            this.local = withLocal ? new byte[(int) ((bits + 7) >>> 3)] : null;
+            this.rawKey = bitmapKey(number, index).getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] rawKey() {
+            return rawKey;
+        }
+
+        long[] offsets(long[] hash) {
+            long[] result = new long[hashes];
+            long combined = hash[0];
+            for (int i = 0; i != hashes; ++i) {
+                result[i] = (combined & Long.MAX_VALUE) % bits;
+                combined += hash[1];
+            }
+            return result;
+        }
+
+        boolean localContains(long[] hash) {
+            if (null == local) {
+                return false;
+            }
+            for (long offset : offsets(hash)) {
+                if ((local[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //本地未命中会被直接当作结果, 写入不能丢位; 只有新用户才会写入, 加锁的代价可以忽略
+        synchronized void setLocal(long[] hash) {
+            if (null == local) {
+                return;
+            }
+            for (long offset : offsets(hash)) {
+                local[(int) (offset >>> 3)] |= (0x80 >>> (offset & 7));
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BloomSlice)) {
+                return false;
+            }
+            BloomSlice other = (BloomSlice) o;
+            return number == other.number && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(number, index);
+        }
+    }
+}
@@ -1,29 +1,34 @@
 package com.imooc.coupon.service.impl;
 
 import com.alibaba.fastjson.JSON;
-import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.constant.AcquireStatus;
 import com.imooc.coupon.constant.CouponStatus;
 import com.imooc.coupon.dao.CouponDao;
 import com.imooc.coupon.entity.Coupon;
 import com.imooc.coupon.exception.CouponException;
 import com.imooc.coupon.feign.SettlementClient;
-import com.imooc.coupon.feign.TemplateClient;
+import com.imooc.coupon.money.Money;
+import com.imooc.coupon.service.ICouponCodeLeaseService;
+import com.imooc.coupon.service.ICouponStatusPublisher;
 import com.imooc.coupon.service.IRedisService;
+import com.imooc.coupon.service.ITemplateCacheService;
+import com.imooc.coupon.service.IUserBloomService;
 import com.imooc.coupon.service.IUserService;
 import com.imooc.coupon.vo.*;
 
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.collections4.MapUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -42,22 +47,53 @@ public class UserServiceImpl implements IUserService {
     // Redis 服务
     private final IRedisService redisService;
 
-    //模板微服务客户端
-    private final TemplateClient templateClient;
+    //优惠券模板近端缓存(背后是模板微服务客户端)
+    private final ITemplateCacheService templateCacheService;
+
+    //拥有优惠券的用户布隆过滤器
+    private final IUserBloomService userBloomService;
+
+    //优惠券码本地租约
+    private final ICouponCodeLeaseService codeLeaseService;
 
     //结算微服务客户端
     private final SettlementClient settlementClient;
 
-    //Kafka 客户端
-    private final KafkaTemplate<String,String> kafkaTemplate;
+    //优惠券状态变化的 Kafka 消息发送
+    private final ICouponStatusPublisher statusPublisher;
+
+    //等待跨节点租约释放时的轮询间隔
+    private static final long LEASE_POLL_MILLIS = 20;
+
+    //正在加载的 (userId, status), key 是 status_userId
+    private final ConcurrentMap<String, CompletableFuture<List<Coupon>>>
+            loadingFlights = new ConcurrentHashMap<>();
+
+    //批量查询时每一批的用户数
+    @Value("${coupon.batch.chunk-size:100}")
+    private int batchChunkSize;
+
+    //是否开启跨节点的加载租约
+    @Value("${coupon.load-lease.enabled:false}")
+    private boolean loadLeaseEnabled;
+
+    //加载租约的有效期
+    @Value("${coupon.load-lease.lease-millis:3000}")
+    private long loadLeaseMillis;
+
+    //等待其他节点释放加载租约的最长时间
+    @Value("${coupon.load-lease.wait-millis:2000}")
+    private long loadWaitMillis;
 
     @Autowired
-    public UserServiceImpl(CouponDao couponDao, IRedisService redisService, TemplateClient templateClient, SettlementClient settlementClient, KafkaTemplate<String, String> kafkaTemplate) {
+    public UserServiceImpl(CouponDao couponDao, IRedisService redisService, ITemplateCacheService templateCacheService, IUserBloomService userBloomService, ICouponCodeLeaseService codeLeaseService, SettlementClient settlementClient, ICouponStatusPublisher statusPublisher) {
         this.couponDao = couponDao;
         this.redisService = redisService;
-        this.templateClient = templateClient;
+        this.templateCacheService = templateCacheService;
+        this.userBloomService = userBloomService;
+        this.codeLeaseService = codeLeaseService;
         this.settlementClient = settlementClient;
-        this.kafkaTemplate = kafkaTemplate;
+        this.statusPublisher = statusPublisher;
     }
 
     /**
@@ -70,58 +106,156 @@ public class UserServiceImpl implements IUserService {
     @Override
     public List<Coupon> findCouponByStatus(Long userId, Integer status) throws CouponException {
 
+        //布隆过滤器判断用户一定没有优惠券, 不需要访问 Redis 和 db
+        if(!userBloomService.mightHaveCoupons(userId)){
+            log.debug("user has no coupon(bloom filter): {}, {}", userId, status);
+            return Collections.emptyList();
+        }
+
         List<Coupon> curCached = redisService.getCachedCoupons(userId, status);
         List<Coupon> preTarget;
 
         /**
-         * 第一步，从redis中拿数据
+         * 第一步，从redis中拿数据, 缓存了空标记时是空列表
          */
-        if(CollectionUtils.isNotEmpty(curCached)){
-            log.debug("coupon cache is not empty: {} , {}",userId,status);
+        if(null != curCached){
+            log.debug("coupon cache hit: {} , {}",userId,status);
             preTarget = curCached;
         } else {
             /**
              * 第二步，若是redis中没有，则从db中拿数据
-             * 这时则要填充templateSDK字段
+             * 同一个 (userId, status) 同时只有一个请求去加载, 其他请求等待它的结果
              */
             log.debug("coupon cache is empty,get Coupon from db: {}, {}",
                     userId,status);
-            List<Coupon> dbcoupons = couponDao.findAllByUserIdAndStatus(
-                    userId, CouponStatus.of(status)
-            );
-            //如果数据库中没有记录，直接返回就可以，Cache 中已经加入了一张无效的优惠券
-            if(CollectionUtils.isEmpty(dbcoupons)){
-                log.debug("current user do not have coupon: {} ,{}",userId,status);
-                return  dbcoupons;
-            }
-
-            //填充 dbCoupons 的 templateSDK 字段,因为该字段是transient，数据库
-            //里没有,而插入redis的时候需要这个字段
-            Map<Integer, CouponTemplateSDK> id2TemplateSDK =
-                    templateClient.findIds2TemplateSDK(
-                            dbcoupons.stream()
-                                .map(Coupon::getTemplateId)
-                                .collect(Collectors.toList())
-                    ).getData();  //hystrix在map之上包装了一层CommonResponse
-            dbcoupons.forEach(dc -> {
-                dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()));
-            });
-            //数据库中存在记录
-            preTarget = dbcoupons;
-            //将记录写入Cache
-            redisService.addCouponToCache(userId,preTarget, status);
+            preTarget = loadCouponsSingleFlight(userId, status);
+        }
+        //当前状态没有优惠券，直接返回就可以; 加载时已经写入了空标记
+        if(CollectionUtils.isEmpty(preTarget)){
+            log.debug("current user do not have coupon: {} ,{}",userId,status);
+            return  Collections.emptyList();
         }
 
-        //将无效优惠券剔除
-        preTarget = preTarget.stream()
-                .filter(c -> c.getId() != -1)
-                .collect(Collectors.toList());
+        //将找不到模板的优惠券剔除
+        preTarget = displayableCoupons(userId, preTarget);
 
         /**
          * 第三步，
          * 如果当前获取的是可用优惠券,还需要做对已过期优惠券的延迟处理，并 通过kafka 修改db的优惠券状态
          */
-        //
+        return processExpiredCoupons(userId, status, preTarget);
+    }
+
+    /**
+     * 批量根据用户id 和 状态查询优惠券记录
+     * 按 chunk 分批处理, 每一批: 一次 Redis pipeline 读取缓存, 未命中的用户一次 db 查询,
+     * 需要的模板一次获取; 每处理完一批就把结果交给 consumer
+     * @param userIds
+     * @param status
+     * @param consumer 按 userIds 的顺序接收每个用户的优惠券
+     * @throws CouponException
+     */
+    @Override
+    public void findCouponsByStatus(List<Long> userIds, Integer status,
+                                    BiConsumer<Long, List<Coupon>> consumer)
+            throws CouponException {
+
+        List<Long> distinctIds = userIds.stream().distinct()
+                .collect(Collectors.toList());
+
+        for(List<Long> chunk : ListUtils.partition(distinctIds, batchChunkSize)){
+
+            Map<Long, List<Coupon>> cached =
+                    redisService.getCachedCoupons(chunk, status);
+            List<Long> misses = chunk.stream()
+                    .filter(id -> !cached.containsKey(id))
+                    .collect(Collectors.toList());
+            log.debug("Batch Find Coupons, Cache Hit: {}, Miss: {}",
+                    cached.size(), misses.size());
+
+            Map<Long, List<Coupon>> loaded = misses.isEmpty()
+                    ? Collections.emptyMap()
+                    : loadCouponsFromDb(misses, status);
+
+            //一批用户的已过期优惠券一起处理, 结果按 chunk 的顺序交给 consumer
+            Map<Long, List<Coupon>> userId2Result = new LinkedHashMap<>();
+            Map<Long, List<Coupon>> userId2Expired = new HashMap<>();
+            for(Long userId : chunk){
+                List<Coupon> preTarget = cached.containsKey(userId)
+                        ? cached.get(userId)
+                        : loaded.getOrDefault(userId, Collections.emptyList());
+                preTarget = displayableCoupons(userId, preTarget);
+
+                if(CouponStatus.of(status) == CouponStatus.USABLE){
+                    CouponClassify classify = CouponClassify.classify(preTarget);
+                    if(CollectionUtils.isNotEmpty(classify.getExpired())){
+                        userId2Expired.put(userId, classify.getExpired());
+                    }
+                    preTarget = classify.getUsable();
+                }
+                userId2Result.put(userId, preTarget);
+            }
+            processExpiredCoupons(userId2Expired);
+
+            userId2Result.forEach(consumer);
+        }
+    }
+
+    /**
+     * 批量处理已过期的优惠券: 一个 pipeline 移动缓存, 再通过 kafka 修改 db 的优惠券状态
+     * 失败只记录日志, 不影响本次返回的结果(已过期的优惠券已经被过滤), 下一次查询时会再次处理
+     */
+    private void processExpiredCoupons(Map<Long, List<Coupon>> userId2Expired) {
+
+        if(userId2Expired.isEmpty()){
+            return;
+        }
+        log.info("Add Expired Coupons To Cache From FindCouponsByStatus: {}",
+                userId2Expired.size());
+        try {
+            redisService.moveCouponsToExpired(userId2Expired);
+        } catch (RuntimeException ex) {
+            log.error("Batch Move Expired Coupons Error: {}", ex.getMessage());
+        }
+        userId2Expired.forEach((userId, expired) -> {
+            try {
+                statusPublisher.publish(userId, CouponStatus.EXPIRED,
+                        expired.stream().map(Coupon::getId)
+                                .collect(Collectors.toList()));
+            } catch (RuntimeException ex) {
+                log.error("Publish Expired Coupons Error: {}, {}",
+                        userId, ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 剔除找不到模板的优惠券
+     * 模板微服务不可用并且近端缓存中也没有时, 无法判断优惠券是否过期, 也无法展示和结算,
+     * 这些优惠券暂时不返回(缓存和 db 中的记录不变), 模板恢复之后再次出现
+     */
+    private List<Coupon> displayableCoupons(Long userId, List<Coupon> coupons) {
+
+        List<Coupon> result = new ArrayList<>(coupons.size());
+        for (Coupon c : coupons) {
+            if(null == c.getTemplateSDK()){
+                log.warn("Skip Coupon Without Template: {}, {}, {}",
+                        userId, c.getId(), c.getTemplateId());
+                continue;
+            }
+            result.add(c);
+        }
+        return result;
+    }
+
+    /**
+     * 如果当前获取的是可用优惠券,还需要做对已过期优惠券的延迟处理，并 通过kafka 修改db的优惠券状态
+     * @return 过滤掉已过期的优惠券之后的结果
+     */
+    private List<Coupon> processExpiredCoupons(Long userId, Integer status,
+                                               List<Coupon> preTarget)
+            throws CouponException {
+
         if(CouponStatus.of(status) == CouponStatus.USABLE){
             CouponClassify classify = CouponClassify.classify(preTarget);
             //如果已过期状态的list不为空,需要做延迟处理
@@ -133,13 +267,10 @@ public class UserServiceImpl implements IUserService {
                         CouponStatus.EXPIRED.getCode()
                 );
                 // 发送到 kafka 中做异步处理,修改优惠券状态
-                kafkaTemplate.send(
-                        Constant.TOPIC,
-                        JSON.toJSONString(new CouponKafkaMessage(
-                                CouponStatus.EXPIRED.getCode(),
-                                classify.getExpired().stream()
+                statusPublisher.publish(
+                        userId, CouponStatus.EXPIRED,
+                        classify.getExpired().stream()
                                 .map(Coupon::getId).collect(Collectors.toList())
-                        ))
                 );
             }
 
@@ -160,9 +291,9 @@ public class UserServiceImpl implements IUserService {
 
         long curTIme = new Date().getTime();
         List<CouponTemplateSDK> templateSDKS =
-                templateClient.findAllUsableTemplate().getData();
+                templateCacheService.findAllUsableTemplate();
 
-        log.debug("Find All Template(From TemplateClient) Count: {}",
+        log.debug("Find All Template(From TemplateCache) Count: {}",
                 templateSDKS.size());
 
         //过滤过期的优惠券模板
@@ -224,8 +355,8 @@ public class UserServiceImpl implements IUserService {
 
     /**
      * 用户领取优惠券
-     * 1.从 TemplateClient 拿到对应的优惠券， 并检查是否过期
-     * 2.根据 limitation 判断用户是否可以领取
+     * 1.从 TemplateClient 拿到对应的优惠券模板
+     * 2.通过 lua 脚本原子地校验 limitation, 获取优惠券码并记录领取计数
      * 3.save to db
      * 4.填充 CouponTemplateSDK
      * 5.save to cache
@@ -238,53 +369,68 @@ public class UserServiceImpl implements IUserService {
 
         //这是根据request里的couponTemplateSDK里的id获取到的一个couponTemplateSDK,因为request里只有id
         Map<Integer,CouponTemplateSDK> id2Template =
-                templateClient.findIds2TemplateSDK(
+                templateCacheService.findIds2TemplateSDK(
                         Collections.singletonList(
                                 request.getTemplateSDK().getId()
                         )
-                ).getData();
+                );
 
         if(id2Template.size() <= 0){
-            log.error("Cant Not Acquire Template From TemplateClient : {}",
+            log.error("Cant Not Acquire Template From TemplateCache : {}",
                     request.getTemplateSDK().getId());
             throw new CouponException("Cant Acquire TEmplate From TemplateClient");
         }
+        CouponTemplateSDK templateSDK =
+                id2Template.get(request.getTemplateSDK().getId());
 
-        //用户是否可以领取这张优惠券
-        List<Coupon> userUsableCoupons = findCouponByStatus(
-                request.getUserId(), CouponStatus.USABLE.getCode()
+        //校验领取限制 + 获取优惠券码
+        Pair<AcquireStatus,String> acquired = acquireCouponCode(
+                request.getUserId(), templateSDK
         );
-        Map<Integer,List<Coupon>> templateId2Coupons = userUsableCoupons
-                .stream().collect(Collectors.groupingBy(Coupon::getId));
-
-        if(templateId2Coupons.containsKey(request.getTemplateSDK().getId())
-            && templateId2Coupons.get(request.getTemplateSDK().getId()).size() >=
-        request.getTemplateSDK().getRule().getLimitation()){
-
-            log.error("Exceed Template Assign Limitation : {}",
-                    request.getTemplateSDK().getId());
-            throw new CouponException("Exceed Template Assign Limitation : ");
+        //领取计数还没有初始化(第一次领取或者缓存过期), 用当前可用的优惠券初始化后重试
+        if(acquired.getLeft() == AcquireStatus.NOT_CACHED){
+            redisService.initAcquiredCount(
+                    request.getUserId(),
+                    findCouponByStatus(
+                            request.getUserId(), CouponStatus.USABLE.getCode()
+                    )
+            );
+            acquired = acquireCouponCode(request.getUserId(), templateSDK);
         }
 
-        //尝试去获取优惠券码
-        String couponCode = redisService.tryToAcquireCouponCodeFromCache(
-                request.getTemplateSDK().getId()
-        );
-        if(StringUtils.isEmpty(couponCode)){
-            log.error("Can not Acquire Coupon Code: {}",
-                    request.getTemplateSDK().getId());
-            throw new CouponException("can not Acquire Coupon Code");
+        switch (acquired.getLeft()){
+            case SUCCESS:
+                break;
+            case LIMIT_EXCEEDED:
+                log.error("Exceed Template Assign Limitation : {}",
+                        templateSDK.getId());
+                throw new CouponException("Exceed Template Assign Limitation : ");
+            default:
+                log.error("Can not Acquire Coupon Code: {}, {}",
+                        templateSDK.getId(), acquired.getLeft());
+                throw new CouponException("can not Acquire Coupon Code");
         }
 
         Coupon newCoupon = new Coupon(
-                request.getTemplateSDK().getId(), request.getUserId(),
-                couponCode,CouponStatus.USABLE
+                templateSDK.getId(), request.getUserId(),
+                acquired.getRight(),CouponStatus.USABLE
         );
         //返回的对象有id
-        newCoupon = couponDao.save(newCoupon);
+        try {
+            newCoupon = couponDao.save(newCoupon);
+        } catch (RuntimeException ex) {
+            //没有领取成功, 优惠券码和领取额度都要还回去
+            //租约中的优惠券码通过租约放回, 租约被回收时不会重复放回
+            if(!codeLeaseService.giveBack(templateSDK.getId(), acquired.getRight())){
+                redisService.returnCouponCode(templateSDK.getId(), acquired.getRight());
+            }
+            redisService.releaseAcquire(request.getUserId(), templateSDK.getId());
+            throw ex;
+        }
+        userBloomService.put(request.getUserId());
 
         // 填充 Coupon 对象的 CouponTemplateSDK， 一定要在放入缓存前去填充
-        newCoupon.setTemplateSDK(request.getTemplateSDK());
+        newCoupon.setTemplateSDK(templateSDK);
 
         //放入缓存中
         redisService.addCouponToCache(
@@ -298,6 +444,41 @@ public class UserServiceImpl implements IUserService {
 
     }
 
+    /**
+     * 获取一个优惠券码
+     * 开启本地租约时, Redis 中只占用领取额度, 优惠券码从本地租约获取;
+     * 否则在 Redis 中一步完成
+     * @return left 是领取结果, right 是优惠券码(只有 SUCCESS 时不为 null)
+     */
+    private Pair<AcquireStatus,String> acquireCouponCode(
+            Long userId, CouponTemplateSDK templateSDK){
+
+        Integer limitation = templateSDK.getRule().getLimitation();
+        if(!codeLeaseService.isEnabled()){
+            return redisService.tryToAcquireCouponCode(
+                    userId, templateSDK.getId(), limitation
+            );
+        }
+
+        AcquireStatus reserved = redisService.tryToReserveAcquire(
+                userId, templateSDK.getId(), limitation
+        );
+        if(reserved != AcquireStatus.SUCCESS){
+            return Pair.of(reserved, null);
+        }
+
+        String couponCode = codeLeaseService.poll(templateSDK.getId());
+        //本地租约中没有优惠券码(售罄或者按需生成的模板), 直接从 Cache 中获取
+        if(null == couponCode){
+            couponCode = redisService.tryToAcquireCouponCodeFromCache(templateSDK.getId());
+        }
+        if(null == couponCode){
+            redisService.releaseAcquire(userId, templateSDK.getId());
+            return Pair.of(AcquireStatus.SOLD_OUT, null);
+        }
+        return Pair.of(AcquireStatus.SUCCESS, couponCode);
+    }
+
     /**
      * 结算（核销）优惠卷
      * 这里需要注意, 规则相关处理需要由 Settlement 系统去做, 当前系统仅仅做
@@ -315,14 +496,10 @@ public class UserServiceImpl implements IUserService {
         if(CollectionUtils.isEmpty(ctInfos)){
 
             log.info("Empty Coupons For settle.");
-            double goodsSum = 0.0;
-
-            for (GoodsInfo gi : info.getGoodsInfos()){
-                goodsSum += gi.getPrice() * gi.getCount();
-            }
 
             //没有优惠券也就不存在优惠券的核销，SettlementInfo 其他的字段不需要修改
-            info.setCost(retain2Decimals(goodsSum));
+            //和结算微服务一样以分为单位求和
+            info.setCost(Money.toYuan(Money.goodsCostSum(info.getGoodsInfos())));
         }
 
         /**
@@ -379,24 +556,181 @@ public class UserServiceImpl implements IUserService {
             );
 
             //更新db
-            kafkaTemplate.send(
-                    Constant.TOPIC,
-                    JSON.toJSONString(new CouponKafkaMessage(
-                            CouponStatus.USED.getCode(),
-                            settleCoupons.stream().map(Coupon::getId).
-                                    collect(Collectors.toList())
-                    ))
+            statusPublisher.publish(
+                    info.getUserId(), CouponStatus.USED,
+                    settleCoupons.stream().map(Coupon::getId).
+                            collect(Collectors.toList())
             );
         }
 
         return processedInfo;
     }
 
-    //保留两位小数
-    private double retain2Decimals(double value){
-        return new BigDecimal(value)
-                .setScale(2,BigDecimal.ROUND_HALF_UP)
-                .doubleValue();
+    /**
+     * 合并同一个 (userId, status) 的并发加载请求
+     * 本节点内只有第一个请求真正去加载, 其他请求等待它的结果
+     */
+    private List<Coupon> loadCouponsSingleFlight(Long userId, Integer status)
+            throws CouponException {
+
+        String flightKey = status + "_" + userId;
+        CompletableFuture<List<Coupon>> flight = new CompletableFuture<>();
+        CompletableFuture<List<Coupon>> running =
+                loadingFlights.putIfAbsent(flightKey, flight);
+
+        //已经有请求在加载了, 等待它的结果
+        if(null != running){
+            log.debug("Wait For Loading Coupons: {}, {}", userId, status);
+            return waitForFlight(running);
+        }
+
+        try {
+            List<Coupon> coupons = loadCouponsWithLease(userId, status);
+            flight.complete(coupons);
+            return coupons;
+        } catch (CouponException | RuntimeException ex) {
+            flight.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loadingFlights.remove(flightKey, flight);
+        }
+    }
+
+    //等待本节点其他请求的加载结果
+    private List<Coupon> waitForFlight(CompletableFuture<List<Coupon>> flight)
+            throws CouponException {
+
+        try {
+            //领头的请求最多等待租约 loadWaitMillis, 再加上自己加载的时间
+            return flight.get(loadWaitMillis + loadLeaseMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CouponException("Wait For Loading Coupons Interrupted");
+        } catch (TimeoutException ex) {
+            throw new CouponException("Wait For Loading Coupons Timeout");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof CouponException){
+                throw (CouponException) ex.getCause();
+            }
+            throw new CouponException("Load Coupons Error: "
+                    + ex.getCause().getMessage());
+        }
     }
 
+    /**
+     * 开启跨节点租约时, 只有拿到 Redis 租约的节点去查询 MySQL,
+     * 其他节点等待租约释放之后从缓存读取, 等不到就自己去加载
+     */
+    private List<Coupon> loadCouponsWithLease(Long userId, Integer status)
+            throws CouponException {
+
+        if(!loadLeaseEnabled){
+            return loadCouponsFromDb(userId, status);
+        }
+
+        String token = redisService.tryToLockCouponLoad(
+                userId, status, loadLeaseMillis);
+        if(null != token){
+            try {
+                return loadCouponsFromDb(userId, status);
+            } finally {
+                redisService.unlockCouponLoad(userId, status, token);
+            }
+        }
+
+        //其他节点正在加载, 等待租约释放
+        long deadline = System.currentTimeMillis() + loadWaitMillis;
+        while(redisService.isCouponLoadLocked(userId, status)
+                && System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(LEASE_POLL_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CouponException("Wait For Coupon Load Lease Interrupted");
+            }
+        }
+
+        List<Coupon> cached = redisService.getCachedCoupons(userId, status);
+        if(null != cached){
+            log.debug("Coupons Loaded By Other Node: {}, {}", userId, status);
+            return cached;
+        }
+        return loadCouponsFromDb(userId, status);
+    }
+
+    /**
+     * 从 db 中加载优惠券, 填充 templateSDK 字段之后写入 Cache
+     */
+    private List<Coupon> loadCouponsFromDb(Long userId, Integer status)
+            throws CouponException {
+
+        List<Coupon> dbcoupons = couponDao.findAllByUserIdAndStatus(
+                userId, CouponStatus.of(status)
+        );
+        if(CollectionUtils.isEmpty(dbcoupons)){
+            //用户有优惠券(或者布隆过滤器误判), 但是当前状态没有, 写入空标记,
+            //空标记过期之前不再查询 db
+            redisService.saveCouponsToCache(Collections.singletonMap(
+                    userId, Collections.emptyList()), status);
+            return Collections.emptyList();
+        }
+        userBloomService.put(userId);
+
+        //填充 dbCoupons 的 templateSDK 字段,因为该字段是transient，数据库
+        //里没有,而插入redis的时候需要这个字段
+        Map<Integer, CouponTemplateSDK> id2TemplateSDK =
+                templateCacheService.findIds2TemplateSDK(
+                        dbcoupons.stream()
+                            .map(Coupon::getTemplateId)
+                            .collect(Collectors.toSet())
+                );
+        dbcoupons.forEach(dc -> {
+            dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()));
+        });
+        //将记录写入Cache, db 中是完整的记录, 直接写入(不做状态转换)
+        redisService.saveCouponsToCache(
+                Collections.singletonMap(userId, dbcoupons), status);
+
+        return dbcoupons;
+    }
+
+    /**
+     * 一次 db 查询加载多个用户的优惠券, 一次获取需要的模板, 一个 pipeline 写入 Cache
+     * 和单个用户的加载一致: 找不到模板的优惠券记录日志后保留(templateSDK 为 null), 返回时再剔除
+     */
+    private Map<Long, List<Coupon>> loadCouponsFromDb(List<Long> userIds,
+                                                      Integer status){
+
+        List<Coupon> dbcoupons = couponDao.findAllByUserIdInAndStatus(
+                userIds, CouponStatus.of(status)
+        );
+        Map<Integer, CouponTemplateSDK> id2TemplateSDK = dbcoupons.isEmpty()
+                ? Collections.emptyMap()
+                : templateCacheService.findIds2TemplateSDK(
+                        dbcoupons.stream()
+                            .map(Coupon::getTemplateId)
+                            .collect(Collectors.toSet())
+                );
+
+        Map<Long, List<Coupon>> userId2Coupons = new HashMap<>();
+        dbcoupons.forEach(dc -> {
+            dc.setTemplateSDK(id2TemplateSDK.get(dc.getTemplateId()));
+            if(null == dc.getTemplateSDK()){
+                log.error("Can Not Find Template For Coupon: {}, {}",
+                        dc.getId(), dc.getTemplateId());
+            }
+            userId2Coupons.computeIfAbsent(dc.getUserId(),
+                    k -> new ArrayList<>()).add(dc);
+        });
+
+        userId2Coupons.keySet().forEach(userBloomService::put);
+
+        //db 中当前状态没有记录的用户写入空标记, 没有任何优惠券的用户由布隆过滤器拦截, 不会到这里
+        Map<Long, List<Coupon>> needCached = new HashMap<>(userId2Coupons);
+        userIds.forEach(id -> needCached.putIfAbsent(id, Collections.emptyList()));
+        redisService.saveCouponsToCache(needCached, status);
+
+        return userId2Coupons;
+    }
 }
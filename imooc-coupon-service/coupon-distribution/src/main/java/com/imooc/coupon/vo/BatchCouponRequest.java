@@ -0,0 +1,22 @@
+package com.imooc.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量查询用户优惠券 请求对象定义
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchCouponRequest {
+
+    //用户 ids
+    private List<Long> userIds;
+
+    //优惠券状态
+    private Integer status;
+}
@@ -46,7 +46,10 @@ public class CouponClassify {
             boolean isTimeExpire;
             long curTime = new Date().getTime();
 
-            if(c.getTemplateSDK().getRule().getExpiration().getPeriod()
+            //没有模板(模板微服务不可用)时无法判断是否到期, 只按状态分类
+            if(null == c.getTemplateSDK()){
+                isTimeExpire = false;
+            }else if(c.getTemplateSDK().getRule().getExpiration().getPeriod()
                     .equals(PeriodType.REGULAR.getCode())){
                 isTimeExpire = c.getTemplateSDK().getRule().getExpiration()
                         .getDeadline() <= curTime;
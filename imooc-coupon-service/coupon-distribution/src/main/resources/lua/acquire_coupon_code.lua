@@ -0,0 +1,41 @@
+-- 原子性地领取一个优惠券码: 校验领取限制 + 获取优惠券码 + 记录领取计数
+-- 用户的 key 和模板的 key 不在同一个 slot, 部署在 Redis Cluster 上(coupon.redis.cluster)时不使用这个脚本
+-- KEYS[1]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[2]: 用户领取计数 imooc_user_coupon_acquired_{<userId>}, field 是 templateId
+-- KEYS[3]: 按需生成的计数 imooc_coupon_template_mint_{imooc_coupon_template_code_<templateId>}
+-- ARGV[1]: templateId
+-- ARGV[2]: 模板的领取限制 limitation
+-- ARGV[3]: 领取计数的过期时间(秒)
+-- 成功时返回 {'SUCCESS', 'CODE', 优惠券码} 或者 {'SUCCESS', 'SEQ', 序号, 前四位, 日期}
+
+-- 领取计数还没有初始化, 由调用方加载用户可用的优惠券后初始化
+if redis.call('EXISTS', KEYS[2]) == 0 then
+    return {'NOT_CACHED'}
+end
+
+local acquired = tonumber(redis.call('HGET', KEYS[2], ARGV[1]) or '0')
+if acquired >= tonumber(ARGV[2]) then
+    return {'LIMIT_EXCEEDED'}
+end
+
+local result
+if redis.call('EXISTS', KEYS[3]) == 1 then
+    -- 按需生成: 计数没有达到总数时占用下一个序号, 优惠券码由调用方根据序号生成
+    local mint = redis.call('HMGET', KEYS[3], 'count', 'issued', 'prefix4', 'date')
+    if tonumber(mint[2]) >= tonumber(mint[1]) then
+        return {'SOLD_OUT'}
+    end
+    local issued = redis.call('HINCRBY', KEYS[3], 'issued', 1)
+    result = {'SUCCESS', 'SEQ', tostring(issued - 1), mint[3], mint[4]}
+else
+    local code = redis.call('LPOP', KEYS[1])
+    if not code then
+        return {'SOLD_OUT'}
+    end
+    result = {'SUCCESS', 'CODE', code}
+end
+
+redis.call('HINCRBY', KEYS[2], ARGV[1], 1)
+redis.call('EXPIRE', KEYS[2], ARGV[3])
+
+return result
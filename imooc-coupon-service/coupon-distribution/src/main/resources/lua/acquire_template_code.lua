@@ -0,0 +1,20 @@
+-- 从 Cache 中获取优惠券码: 按需生成的模板占用一个序号, 否则从优惠券码列表中弹出
+-- 两个 key 使用同一个 hash tag, 在同一个 slot
+-- KEYS[1]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[2]: 按需生成的计数 imooc_coupon_template_mint_{imooc_coupon_template_code_<templateId>}
+-- 返回: 售罄时返回空列表; {'CODE', 优惠券码}; {'SEQ', 序号, 前四位, 日期}
+
+if redis.call('EXISTS', KEYS[2]) == 1 then
+    local mint = redis.call('HMGET', KEYS[2], 'count', 'issued', 'prefix4', 'date')
+    if tonumber(mint[2]) >= tonumber(mint[1]) then
+        return {}
+    end
+    local issued = redis.call('HINCRBY', KEYS[2], 'issued', 1)
+    return {'SEQ', tostring(issued - 1), mint[3], mint[4]}
+end
+
+local code = redis.call('LPOP', KEYS[1])
+if not code then
+    return {}
+end
+return {'CODE', code}
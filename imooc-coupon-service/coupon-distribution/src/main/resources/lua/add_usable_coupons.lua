@@ -0,0 +1,17 @@
+-- 把新领取的优惠券追加到已经存在的可用缓存中
+-- 可用缓存不存在(没有加载过或者已经过期)时不写入, 下一次读取会从 db 完整加载, db 中已经有新的优惠券
+-- 否则只包含新优惠券的缓存会被当作完整的命中, 用户其他可用的优惠券就看不到了
+-- KEYS[1]: 可用的优惠券缓存 imooc_user_coupon_usable_{<userId>}
+-- ARGV[1]: 过期时间(秒)
+-- ARGV[2...]: coupon_id, 编码之后的 Coupon, 成对出现
+
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return 0
+end
+
+for i = 2, #ARGV, 2 do
+    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+end
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+
+return (#ARGV - 1) / 2
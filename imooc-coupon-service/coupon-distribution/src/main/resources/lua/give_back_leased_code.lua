@@ -0,0 +1,14 @@
+-- 把从租约中取出但没有发出去的优惠券码放回优惠券码列表
+-- 先从租约列表中移除再放回, 之后回收这个租约时不会再放回一次
+-- 租约列表中已经没有这个优惠券码(租约已经结束或者已经被回收放回)时不放回, 这个优惠券码作废
+-- KEYS[1]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[2]: 租约列表 imooc_coupon_code_lease_{imooc_coupon_template_code_<templateId>}_<leaseId>
+-- ARGV[1]: 优惠券码
+-- 返回 1 放回成功, 0 没有放回
+
+if redis.call('LREM', KEYS[2], 1, ARGV[1]) == 0 then
+    return 0
+end
+
+redis.call('RPUSH', KEYS[1], ARGV[1])
+return 1
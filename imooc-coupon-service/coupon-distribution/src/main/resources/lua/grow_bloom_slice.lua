@@ -0,0 +1,17 @@
+-- 布隆过滤器的最后一个分片满了之后增加一个分片, 并发时只有一个节点能增加成功
+-- 增加成功时记录一次结构变化, 其他节点全量拉取之后才会写入新的分片
+-- KEYS[1]: 布隆过滤器的元信息 imooc_user_coupon_bloom_meta
+-- KEYS[2]: 变化列表 imooc_user_coupon_bloom_changes_{imooc_user_coupon_bloom_meta}
+-- ARGV[1]: 分片数的 field, slices_<generation>
+-- ARGV[2]: 调用方看到的分片数
+-- ARGV[3]: 保留最近多少个变化
+
+if tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0') == tonumber(ARGV[2]) then
+    local slices = redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+    local version = redis.call('HINCRBY', KEYS[1], 'version', 1)
+    redis.call('LPUSH', KEYS[2], version .. ';')
+    redis.call('LTRIM', KEYS[2], 0, tonumber(ARGV[3]) - 1)
+    return slices
+end
+
+return tonumber(redis.call('HGET', KEYS[1], ARGV[1]))
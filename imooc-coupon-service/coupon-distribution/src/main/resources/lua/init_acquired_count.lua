@@ -0,0 +1,17 @@
+-- 初始化用户的领取计数, 已经存在则不覆盖(可能已经有并发的领取在计数)
+-- KEYS[1]: 用户领取计数 imooc_user_coupon_acquired_{<userId>}
+-- ARGV[1]: 过期时间(秒)
+-- ARGV[2...]: templateId, count 成对出现
+
+if redis.call('EXISTS', KEYS[1]) == 1 then
+    return 0
+end
+
+-- 占位 field, 保证没有优惠券的用户也能标识为已初始化
+redis.call('HSET', KEYS[1], '-1', '0')
+for i = 2, #ARGV, 2 do
+    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+end
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+
+return 1
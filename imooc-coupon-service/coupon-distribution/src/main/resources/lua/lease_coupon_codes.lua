@@ -0,0 +1,16 @@
+-- 从优惠券码列表中租借一批优惠券码到本地
+-- 租借的优惠券码同时记录在租约列表中, 租约过期没有续约时由其他节点回收
+-- 租约列表的 hash tag 是优惠券码列表的 key, 两个 key 在 Redis Cluster 中位于同一个 slot
+-- KEYS[1]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[2]: 租约列表 imooc_coupon_code_lease_{imooc_coupon_template_code_<templateId>}_<leaseId>
+-- ARGV[1]: 租借的个数
+
+local codes = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)
+if #codes == 0 then
+    return codes
+end
+
+redis.call('LTRIM', KEYS[1], #codes, -1)
+redis.call('RPUSH', KEYS[2], unpack(codes))
+
+return codes
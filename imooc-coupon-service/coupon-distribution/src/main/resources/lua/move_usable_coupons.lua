@@ -0,0 +1,20 @@
+-- 原子性地把优惠券从可用缓存移动到已使用/已过期缓存
+-- 三个 key 都带有 {userId} 的 hash tag, 在 Redis Cluster 中位于同一个 slot
+-- KEYS[1]: 可用的优惠券缓存 imooc_user_coupon_usable_{<userId>}
+-- KEYS[2]: 已使用/已过期的优惠券缓存
+-- KEYS[3]: 用户领取计数 imooc_user_coupon_acquired_{<userId>}
+-- ARGV[1]: 可用的优惠券缓存的过期时间(秒)
+-- ARGV[2]: 已使用/已过期的优惠券缓存的过期时间(秒)
+-- ARGV[3...]: coupon_id, 编码之后的 Coupon, 成对出现
+
+for i = 3, #ARGV, 2 do
+    redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 1])
+    redis.call('HDEL', KEYS[1], ARGV[i])
+end
+
+redis.call('EXPIRE', KEYS[1], ARGV[1])
+redis.call('EXPIRE', KEYS[2], ARGV[2])
+-- 可用的优惠券减少了, 领取计数需要重新初始化
+redis.call('DEL', KEYS[3])
+
+return (#ARGV - 2) / 2
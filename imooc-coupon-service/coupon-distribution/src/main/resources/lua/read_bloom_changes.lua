@@ -0,0 +1,21 @@
+-- 读取布隆过滤器的版本号和调用方的版本之后的变化
+-- KEYS[1]: 布隆过滤器的元信息 imooc_user_coupon_bloom_meta
+-- KEYS[2]: 变化列表 imooc_user_coupon_bloom_changes_{imooc_user_coupon_bloom_meta}
+-- ARGV[1]: 调用方本地副本的版本号
+-- ARGV[2]: 保留最近多少个变化
+-- 返回 {版本号, 变化...}, 变化从新到旧; 过滤器不存在时返回空列表, 还没有记录过变化时版本号是 0
+-- 版本号相同, 或者落后太多(变化已经不在列表中)、版本号比调用方小时只返回版本号, 由调用方全量拉取
+
+if redis.call('HEXISTS', KEYS[1], 'generation') == 0 then
+    return {}
+end
+local version = redis.call('HGET', KEYS[1], 'version') or '0'
+
+local count = tonumber(version) - tonumber(ARGV[1])
+if count <= 0 or count > tonumber(ARGV[2]) then
+    return {version}
+end
+
+local result = redis.call('LRANGE', KEYS[2], 0, count - 1)
+table.insert(result, 1, version)
+return result
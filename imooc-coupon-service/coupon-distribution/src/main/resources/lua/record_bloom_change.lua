@@ -0,0 +1,17 @@
+-- 记录布隆过滤器的一次变化: 版本号加一, 变化放入变化列表的队头
+-- 两个 key 在 Redis Cluster 中位于同一个 slot(变化列表以元信息 key 作为 hash tag)
+-- KEYS[1]: 布隆过滤器的元信息 imooc_user_coupon_bloom_meta, field: version 版本号
+-- KEYS[2]: 变化列表 imooc_user_coupon_bloom_changes_{imooc_user_coupon_bloom_meta}
+-- ARGV[1]: 保留最近多少个变化
+-- ARGV[2]: 新写入的用户 id; 空字符串代表结构变化(切换一代, 增加或者删除分片), 其他节点需要全量拉取
+-- ARGV[3]: 写入用户时所在分片的计数 field, 结构变化时不传
+-- 返回分片的计数(写入用户时)或者新的版本号(结构变化时)
+
+local version = redis.call('HINCRBY', KEYS[1], 'version', 1)
+redis.call('LPUSH', KEYS[2], version .. ';' .. ARGV[2])
+redis.call('LTRIM', KEYS[2], 0, tonumber(ARGV[1]) - 1)
+
+if ARGV[3] then
+    return redis.call('HINCRBY', KEYS[1], ARGV[3], 1)
+end
+return version
@@ -0,0 +1,11 @@
+-- 归还一次领取额度(领取失败时使用), 领取计数已经被清理或者为 0 时不做任何修改
+-- KEYS[1]: 用户领取计数 imooc_user_coupon_acquired_{<userId>}, field 是 templateId
+-- ARGV[1]: templateId
+
+local acquired = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+if acquired <= 0 then
+    return 0
+end
+
+redis.call('HINCRBY', KEYS[1], ARGV[1], -1)
+return 1
@@ -0,0 +1,9 @@
+-- 释放租约, 只有持有者(token 匹配)才能释放
+-- KEYS[1]: 租约 key
+-- ARGV[1]: 获取租约时写入的 token
+
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+
+return 0
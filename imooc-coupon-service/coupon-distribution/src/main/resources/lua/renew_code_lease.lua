@@ -0,0 +1,11 @@
+-- 续约, 租约已经被回收时返回 0
+-- KEYS[1]: 所有租约的 zset imooc_coupon_code_leases
+-- ARGV[1]: 租约在 zset 中的 member
+-- ARGV[2]: 新的截止时间(毫秒)
+
+if not redis.call('ZSCORE', KEYS[1], ARGV[1]) then
+    return 0
+end
+
+redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])
+return 1
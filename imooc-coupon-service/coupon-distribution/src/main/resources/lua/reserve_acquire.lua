@@ -0,0 +1,20 @@
+-- 原子性地占用一次领取额度: 校验领取限制 + 记录领取计数, 优惠券码由本地租约提供
+-- KEYS[1]: 用户领取计数 imooc_user_coupon_acquired_{<userId>}, field 是 templateId
+-- ARGV[1]: templateId
+-- ARGV[2]: 模板的领取限制 limitation
+-- ARGV[3]: 领取计数的过期时间(秒)
+
+-- 领取计数还没有初始化, 由调用方加载用户可用的优惠券后初始化
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return 'NOT_CACHED'
+end
+
+local acquired = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+if acquired >= tonumber(ARGV[2]) then
+    return 'LIMIT_EXCEEDED'
+end
+
+redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+redis.call('EXPIRE', KEYS[1], ARGV[3])
+
+return 'SUCCESS'
@@ -0,0 +1,17 @@
+-- 结束一个租约, 把没有使用的优惠券码放回优惠券码列表
+-- 租约列表存在才放回, 放回的同时删除租约列表, 保证同一个租约只放回一次
+-- 两个 key 在同一个 slot, 放回和删除是原子的, 不会出现放回了优惠券码但租约列表还在的情况
+-- KEYS[1]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[2]: 租约列表 imooc_coupon_code_lease_{imooc_coupon_template_code_<templateId>}_<leaseId>
+-- ARGV[...]: 没有使用的优惠券码
+
+if redis.call('EXISTS', KEYS[2]) == 0 then
+    return -1
+end
+
+if #ARGV > 0 then
+    redis.call('RPUSH', KEYS[1], unpack(ARGV))
+end
+redis.call('DEL', KEYS[2])
+
+return #ARGV
@@ -0,0 +1,45 @@
+package com.imooc.coupon.serialization;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.entity.Coupon;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * 用户优惠券 Redis 编码测试用例
+ */
+public class CouponCodecTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    @Test
+    public void testEncodeAndDecode() {
+
+        Coupon coupon = new Coupon(12, fakeUserId,
+                "100120190101123456", CouponStatus.USABLE);
+        coupon.setId(1024);
+        coupon.setAssignTime(new Date());
+
+        String value = CouponCodec.encode(coupon);
+
+        Coupon decoded = CouponCodec.decode(fakeUserId, value);
+        Assert.assertEquals(coupon, decoded);
+    }
+
+    @Test
+    public void testEmptyMarker() {
+
+        //空标记不会和编码之后的优惠券混淆
+        Assert.assertTrue(CouponCodec.isEmptyMarker(CouponCodec.EMPTY_VALUE));
+
+        Coupon coupon = new Coupon(12, fakeUserId,
+                "100120190101123456", CouponStatus.USED);
+        coupon.setId(1024);
+        coupon.setAssignTime(new Date());
+
+        Assert.assertFalse(CouponCodec.isEmptyMarker(CouponCodec.encode(coupon)));
+    }
+}
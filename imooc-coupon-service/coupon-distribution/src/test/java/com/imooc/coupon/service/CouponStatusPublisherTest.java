@@ -0,0 +1,112 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.service.impl.CouponStatusPublisherImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+/**
+ * 优惠券状态消息发送失败处理的测试用例
+ */
+public class CouponStatusPublisherTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    private MeterRegistry meterRegistry;
+
+    private CouponStatusPublisherImpl publisher;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        kafkaTemplate = Mockito.mock(KafkaTemplate.class);
+        //send 直接抛出异常, 不返回 future
+        Mockito.when(kafkaTemplate.send(Mockito.anyString(),
+                Mockito.anyString(), Mockito.anyString()))
+                .thenThrow(new TimeoutException("Fetch Metadata Timeout"));
+
+        meterRegistry = new SimpleMeterRegistry();
+        publisher = new CouponStatusPublisherImpl(kafkaTemplate, meterRegistry);
+        ReflectionTestUtils.setField(publisher, "windowMillis", 50L);
+        ReflectionTestUtils.setField(publisher, "maxPendingIds", 5000);
+        ReflectionTestUtils.setField(publisher, "maxBacklogIds", 5);
+        ReflectionTestUtils.setField(publisher, "maxBackoffMillis", 200L);
+        ReflectionTestUtils.setField(publisher, "maxIdsPerMessage", 500);
+    }
+
+    @Test
+    public void testRequeueWhenSendThrows() {
+
+        publisher.publish(fakeUserId, CouponStatus.USED, Arrays.asList(1, 2, 3));
+        ReflectionTestUtils.invokeMethod(publisher, "flush");
+
+        //这一次 flush 只发送一次, 失败的 id 放回本地等下一个窗口
+        Mockito.verify(kafkaTemplate, Mockito.times(1)).send(
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+        Assert.assertEquals(3L, publisher.stats().get("pendingIds"));
+        Assert.assertEquals(1L, publisher.stats().get("failedMessages"));
+        Assert.assertEquals(0L, publisher.stats().get("droppedIds"));
+        Assert.assertEquals(1.0, meterRegistry.get("coupon.kafka.publisher.failed.messages")
+                .counter().count(), 0);
+        Assert.assertEquals(3.0, meterRegistry.get("coupon.kafka.publisher.pending.ids")
+                .gauge().value(), 0);
+    }
+
+    @Test
+    public void testBackoffAfterFailure() throws Exception {
+
+        publisher.publish(fakeUserId, CouponStatus.USED, Arrays.asList(1, 2, 3));
+        ReflectionTestUtils.invokeMethod(publisher, "flush");
+
+        //退避期间的 flush 不发送
+        ReflectionTestUtils.invokeMethod(publisher, "flush");
+        Mockito.verify(kafkaTemplate, Mockito.times(1)).send(
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+
+        //第一次退避 50ms, 之后再次发送失败, 第二次退避 100ms
+        Thread.sleep(60);
+        ReflectionTestUtils.invokeMethod(publisher, "flush");
+        Mockito.verify(kafkaTemplate, Mockito.times(2)).send(
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+        Assert.assertEquals(2, ReflectionTestUtils.getField(publisher, "backoffLevel"));
+        Assert.assertTrue((Long) publisher.stats().get("retryAfterMillis") > 50);
+    }
+
+    @Test
+    public void testDropPastBacklogCap() {
+
+        publisher.publish(fakeUserId, CouponStatus.USED, Arrays.asList(1, 2, 3));
+        publisher.publish(fakeUserId, CouponStatus.USED, Arrays.asList(3, 4, 5));
+        //重复的 id 只计算一次, 积压达到上限之后新的变化被丢弃
+        Assert.assertEquals(5L, publisher.stats().get("pendingIds"));
+        publisher.publish(fakeUserId, CouponStatus.EXPIRED, Arrays.asList(6, 7));
+
+        Assert.assertEquals(5L, publisher.stats().get("pendingIds"));
+        Assert.assertEquals(1L, publisher.stats().get("pendingKeys"));
+        Assert.assertEquals(2L, publisher.stats().get("droppedIds"));
+        Assert.assertEquals(8L, publisher.stats().get("publishedIds"));
+    }
+
+    @Test
+    public void testDropAfterShutdown() {
+
+        publisher.publish(fakeUserId, CouponStatus.USED, Arrays.asList(1, 2, 3));
+        publisher.shutdown();
+
+        Assert.assertEquals(0L, publisher.stats().get("pendingIds"));
+        Assert.assertEquals(3L, publisher.stats().get("droppedIds"));
+    }
+}
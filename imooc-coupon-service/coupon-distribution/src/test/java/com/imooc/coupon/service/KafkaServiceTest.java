@@ -0,0 +1,122 @@
+package com.imooc.coupon.service;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.service.impl.KafkaServiceImpl;
+import com.imooc.coupon.vo.CouponKafkaMessage;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.kafka.support.Acknowledgment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 批量消费优惠券 Kafka 消息的测试用例
+ */
+public class KafkaServiceTest {
+
+    private CouponDao couponDao;
+
+    private Acknowledgment ack;
+
+    private KafkaServiceImpl kafkaService;
+
+    private List<ConsumerRecord<?, ?>> records = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+
+        couponDao = Mockito.mock(CouponDao.class);
+        ack = Mockito.mock(Acknowledgment.class);
+        kafkaService = new KafkaServiceImpl(couponDao);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGroupByStatusThenAck() {
+
+        Mockito.when(couponDao.updateStatusByIds(Mockito.any(CouponStatus.class),
+                Mockito.any(Collection.class), Mockito.eq(CouponStatus.USABLE)))
+                .thenAnswer(invocation ->
+                        ((Collection<Integer>) invocation.getArgument(1)).size());
+
+        fakeRecord(CouponStatus.USED, 1, 2);
+        fakeRecord(CouponStatus.EXPIRED, 3);
+        fakeRecord(CouponStatus.USED, 2, 4);
+        //USABLE 不需要更新, 空消息和格式错误的消息跳过
+        fakeRecord(CouponStatus.USABLE, 5);
+        records.add(new ConsumerRecord<>(Constant.TOPIC, 0, records.size(),
+                null, null));
+        records.add(new ConsumerRecord<>(Constant.TOPIC, 0, records.size(),
+                null, "not json"));
+
+        kafkaService.consumeCouponKafkaMessages(records, ack);
+
+        //每个状态一条 update, 全部完成之后才提交 offset
+        InOrder inOrder = Mockito.inOrder(couponDao, ack);
+        inOrder.verify(couponDao).updateStatusByIds(CouponStatus.USED,
+                Arrays.asList(1, 2, 4), CouponStatus.USABLE);
+        inOrder.verify(couponDao).updateStatusByIds(CouponStatus.EXPIRED,
+                Arrays.asList(3), CouponStatus.USABLE);
+        inOrder.verify(ack).acknowledge();
+        Mockito.verifyNoMoreInteractions(couponDao, ack);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSplitLargeUpdate() {
+
+        //超过 1000 个 id 时拆分为多条 update
+        Integer[] ids = IntStream.rangeClosed(1, 1500).boxed().toArray(Integer[]::new);
+        fakeRecord(CouponStatus.EXPIRED, ids);
+
+        kafkaService.consumeCouponKafkaMessages(records, ack);
+
+        List<Integer> all = Arrays.asList(ids);
+        InOrder inOrder = Mockito.inOrder(couponDao, ack);
+        inOrder.verify(couponDao).updateStatusByIds(CouponStatus.EXPIRED,
+                all.subList(0, 1000), CouponStatus.USABLE);
+        inOrder.verify(couponDao).updateStatusByIds(CouponStatus.EXPIRED,
+                all.subList(1000, 1500), CouponStatus.USABLE);
+        inOrder.verify(ack).acknowledge();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNoAckWhenUpdateFails() {
+
+        Mockito.when(couponDao.updateStatusByIds(Mockito.any(CouponStatus.class),
+                Mockito.any(Collection.class), Mockito.any(CouponStatus.class)))
+                .thenThrow(new IllegalStateException("DB Is Down"));
+        fakeRecord(CouponStatus.USED, 1);
+
+        //更新失败时不提交 offset, 这一批会被重新消费
+        try {
+            kafkaService.consumeCouponKafkaMessages(records, ack);
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("DB Is Down", ex.getMessage());
+        }
+        Mockito.verify(ack, Mockito.never()).acknowledge();
+    }
+
+    //fake 一条优惠券 Kafka 消息
+    private void fakeRecord(CouponStatus status, Integer... ids) {
+
+        CouponKafkaMessage message = new CouponKafkaMessage(status.getCode(),
+                Arrays.stream(ids).collect(Collectors.toList()));
+        records.add(new ConsumerRecord<>(Constant.TOPIC, 0, records.size(),
+                null, JSON.toJSONString(message)));
+    }
+}
@@ -0,0 +1,44 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.service.impl.UserBloomServiceImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Redis 不可用时布隆过滤器写入的测试用例
+ */
+public class UserBloomServiceFailureTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private UserBloomServiceImpl userBloomService;
+
+    @Before
+    public void setUp() {
+
+        StringRedisTemplate redisTemplate = Mockito.mock(StringRedisTemplate.class);
+        Mockito.when(redisTemplate.opsForHash()).thenThrow(
+                new RedisConnectionFailureException("Redis Is Down"));
+
+        userBloomService = new UserBloomServiceImpl(
+                redisTemplate, Mockito.mock(CouponDao.class));
+        ReflectionTestUtils.setField(userBloomService, "enabled", true);
+    }
+
+    @Test
+    public void testPutWhenRedisIsDown() {
+
+        //优惠券已经保存到 db, 写入过滤器失败不能抛出异常
+        userBloomService.put(fakeUserId);
+
+        Assert.assertEquals(1, userBloomService.stats().get("pending"));
+        Assert.assertTrue(userBloomService.mightHaveCoupons(fakeUserId));
+    }
+}
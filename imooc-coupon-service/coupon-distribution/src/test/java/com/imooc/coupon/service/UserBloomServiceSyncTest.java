@@ -0,0 +1,84 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.service.impl.UserBloomServiceImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 布隆过滤器本地副本判断的测试用例
+ */
+public class UserBloomServiceSyncTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private StringRedisTemplate redisTemplate;
+
+    private UserBloomServiceImpl userBloomService;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        redisTemplate = Mockito.mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOperations =
+                Mockito.mock(HashOperations.class);
+        Mockito.doReturn(hashOperations).when(redisTemplate).opsForHash();
+
+        //Redis 中有第 1 代过滤器, 位图是空的(redisTemplate.execute 返回 null)
+        Map<Object, Object> meta = new HashMap<>();
+        meta.put("generation", "1");
+        meta.put("version", "5");
+        Mockito.when(hashOperations.entries(
+                Constant.RedisPrefix.USER_COUPON_BLOOM_META)).thenReturn(meta);
+
+        userBloomService = new UserBloomServiceImpl(
+                redisTemplate, Mockito.mock(CouponDao.class));
+        ReflectionTestUtils.setField(userBloomService, "enabled", true);
+        ReflectionTestUtils.setField(userBloomService, "expectedInsertions", 1000L);
+        ReflectionTestUtils.setField(userBloomService, "fpp", 0.01);
+        ReflectionTestUtils.setField(userBloomService, "maxSliceBits", 1L << 20);
+        ReflectionTestUtils.setField(userBloomService, "maxStaleMillis", 5000L);
+
+        userBloomService.refresh();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTrustLocalNegativeAfterSync() {
+
+        Assert.assertEquals(5L, userBloomService.stats().get("version"));
+        Assert.assertFalse(userBloomService.mightHaveCoupons(fakeUserId));
+
+        //本地副本刚同步过, 不需要到 Redis 确认
+        Mockito.verify(redisTemplate, Mockito.never())
+                .executePipelined(Mockito.any(RedisCallback.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConfirmInRedisWhenStale() {
+
+        ReflectionTestUtils.setField(userBloomService, "syncedAt",
+                System.currentTimeMillis() - 10000L);
+        Mockito.when(redisTemplate.executePipelined(Mockito.any(RedisCallback.class)))
+                .thenThrow(new RedisConnectionFailureException("Redis Is Down"));
+
+        //本地副本太久没有同步, 需要到 Redis 确认; Redis 不可用时按可能拥有处理
+        Assert.assertTrue(userBloomService.mightHaveCoupons(fakeUserId));
+        Mockito.verify(redisTemplate)
+                .executePipelined(Mockito.any(RedisCallback.class));
+    }
+}
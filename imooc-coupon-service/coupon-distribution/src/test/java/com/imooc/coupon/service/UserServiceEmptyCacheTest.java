@@ -0,0 +1,178 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.entity.Coupon;
+import com.imooc.coupon.feign.SettlementClient;
+import com.imooc.coupon.serialization.CouponCodec;
+import com.imooc.coupon.service.impl.RedisServiceImpl;
+import com.imooc.coupon.service.impl.UserServiceImpl;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 当前状态没有优惠券的用户缓存空标记的测试用例
+ * Redis 的 hash 由内存中的 Map 代替, pipeline 中的命令直接执行并按顺序返回结果
+ */
+public class UserServiceEmptyCacheTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    //FAKE 另一个有优惠券的 UserID
+    private Long otherUserId = 20002L;
+
+    private CouponDao couponDao;
+
+    private IUserService userService;
+
+    //redisKey -> hash
+    private Map<String, Map<Object, Object>> hashes = new ConcurrentHashMap<>();
+
+    //redisKey -> 过期时间(秒)
+    private Map<String, Long> ttls = new ConcurrentHashMap<>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        StringRedisTemplate redisTemplate = Mockito.mock(StringRedisTemplate.class);
+        Mockito.doReturn(fakeHashOperations(null)).when(redisTemplate).opsForHash();
+        Mockito.when(redisTemplate.executePipelined(Mockito.any(SessionCallback.class)))
+                .thenAnswer(invocation -> pipelined(invocation.getArgument(0)));
+
+        IUserBloomService userBloomService = Mockito.mock(IUserBloomService.class);
+        Mockito.when(userBloomService.mightHaveCoupons(Mockito.anyLong())).thenReturn(true);
+
+        CouponTemplateSDK template = new CouponTemplateSDK();
+        template.setId(12);
+        ITemplateCacheService templateCacheService =
+                Mockito.mock(ITemplateCacheService.class);
+        Mockito.when(templateCacheService.findIds2TemplateSDK(Mockito.anyCollection()))
+                .thenReturn(Collections.singletonMap(12, template));
+
+        RedisServiceImpl redisService = new RedisServiceImpl(
+                redisTemplate, templateCacheService, userBloomService);
+        ReflectionTestUtils.setField(redisService, "emptyTtlSeconds", 60L);
+
+        couponDao = Mockito.mock(CouponDao.class);
+        userService = new UserServiceImpl(
+                couponDao,
+                redisService,
+                templateCacheService,
+                userBloomService,
+                Mockito.mock(ICouponCodeLeaseService.class),
+                Mockito.mock(SettlementClient.class),
+                Mockito.mock(ICouponStatusPublisher.class)
+        );
+        ReflectionTestUtils.setField(userService, "batchChunkSize", 100);
+    }
+
+    @Test
+    public void testSecondLookupHitsEmptyMarker() throws Exception {
+
+        //用户有优惠券(布隆过滤器判断可能有), 但是没有已使用的优惠券
+        Assert.assertTrue(userService.findCouponByStatus(
+                fakeUserId, CouponStatus.USED.getCode()).isEmpty());
+        Assert.assertTrue(userService.findCouponByStatus(
+                fakeUserId, CouponStatus.USED.getCode()).isEmpty());
+
+        //第二次读到空标记, 不再查询 db
+        Mockito.verify(couponDao, Mockito.times(1)).findAllByUserIdAndStatus(
+                fakeUserId, CouponStatus.USED);
+
+        String redisKey = hashes.keySet().iterator().next();
+        Assert.assertEquals(Collections.singletonMap(
+                CouponCodec.EMPTY_FIELD, CouponCodec.EMPTY_VALUE), hashes.get(redisKey));
+        //空标记的过期时间较短
+        Assert.assertTrue(ttls.get(redisKey) >= 60 && ttls.get(redisKey) < 120);
+    }
+
+    @Test
+    public void testBatchSecondLookupHitsEmptyMarker() throws Exception {
+
+        Coupon coupon = new Coupon(12, otherUserId,
+                "100120190101123456", CouponStatus.EXPIRED);
+        coupon.setId(1);
+        coupon.setAssignTime(new Date());
+        Mockito.when(couponDao.findAllByUserIdInAndStatus(
+                Mockito.anyCollection(), Mockito.eq(CouponStatus.EXPIRED)))
+                .thenReturn(new ArrayList<>(Collections.singletonList(coupon)));
+
+        List<Long> userIds = Arrays.asList(fakeUserId, otherUserId);
+        for (int i = 0; i < 2; i++) {
+            Map<Long, List<Coupon>> result = new LinkedHashMap<>();
+            userService.findCouponsByStatus(userIds,
+                    CouponStatus.EXPIRED.getCode(), result::put);
+
+            Assert.assertTrue(result.get(fakeUserId).isEmpty());
+            Assert.assertEquals(1, result.get(otherUserId).size());
+            Assert.assertEquals(Integer.valueOf(1),
+                    result.get(otherUserId).get(0).getId());
+        }
+
+        //第二次两个用户都命中缓存(其中一个是空标记), 不再查询 db
+        Mockito.verify(couponDao, Mockito.times(1)).findAllByUserIdInAndStatus(
+                Mockito.anyCollection(), Mockito.eq(CouponStatus.EXPIRED));
+    }
+
+    //在 pipeline 中执行 callback, 读取命令的结果按顺序返回
+    @SuppressWarnings("unchecked")
+    private List<Object> pipelined(SessionCallback<?> callback) {
+
+        List<Object> results = new ArrayList<>();
+        RedisOperations<String, String> operations = Mockito.mock(RedisOperations.class);
+        Mockito.doReturn(fakeHashOperations(results)).when(operations).opsForHash();
+        Mockito.when(operations.expire(Mockito.anyString(), Mockito.anyLong(),
+                Mockito.any(TimeUnit.class))).thenAnswer(invocation -> {
+                    ttls.put(invocation.getArgument(0), invocation.getArgument(1));
+                    return true;
+                });
+
+        callback.execute((RedisOperations) operations);
+        return results;
+    }
+
+    //results 不为 null 时是 pipeline 中的操作: values 的结果记录到 results 中, 自己返回 null
+    @SuppressWarnings("unchecked")
+    private HashOperations<String, Object, Object> fakeHashOperations(
+            List<Object> results) {
+
+        HashOperations<String, Object, Object> hashOperations =
+                Mockito.mock(HashOperations.class);
+        Mockito.when(hashOperations.values(Mockito.anyString())).thenAnswer(invocation -> {
+            List<Object> values = new ArrayList<>(hashes.getOrDefault(
+                    invocation.getArgument(0), Collections.emptyMap()).values());
+            if (null == results) {
+                return values;
+            }
+            results.add(values);
+            return null;
+        });
+        Mockito.doAnswer(invocation -> {
+            hashes.computeIfAbsent(invocation.getArgument(0), k -> new HashMap<>())
+                    .putAll(invocation.getArgument(1));
+            return null;
+        }).when(hashOperations).putAll(Mockito.anyString(), Mockito.anyMap());
+        return hashOperations;
+    }
+}
@@ -0,0 +1,163 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.entity.Coupon;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.feign.SettlementClient;
+import com.imooc.coupon.service.impl.UserServiceImpl;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一个用户并发加载优惠券时合并为一次 db 查询的测试用例
+ */
+public class UserServiceSingleFlightTest {
+
+    //并发请求数
+    private static final int CALLERS = 8;
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private CouponDao couponDao;
+
+    private IUserService userService;
+
+    private ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+
+    @Before
+    public void setUp() {
+
+        //缓存一直未命中
+        IRedisService redisService = Mockito.mock(IRedisService.class);
+
+        IUserBloomService userBloomService = Mockito.mock(IUserBloomService.class);
+        Mockito.when(userBloomService.mightHaveCoupons(Mockito.anyLong())).thenReturn(true);
+
+        CouponTemplateSDK template = new CouponTemplateSDK();
+        template.setId(12);
+        ITemplateCacheService templateCacheService =
+                Mockito.mock(ITemplateCacheService.class);
+        Mockito.when(templateCacheService.findIds2TemplateSDK(Mockito.anyCollection()))
+                .thenReturn(Collections.singletonMap(12, template));
+
+        couponDao = Mockito.mock(CouponDao.class);
+        userService = new UserServiceImpl(
+                couponDao,
+                redisService,
+                templateCacheService,
+                userBloomService,
+                Mockito.mock(ICouponCodeLeaseService.class),
+                Mockito.mock(SettlementClient.class),
+                Mockito.mock(ICouponStatusPublisher.class)
+        );
+        ReflectionTestUtils.setField(userService, "loadLeaseEnabled", false);
+        ReflectionTestUtils.setField(userService, "loadLeaseMillis", 3000L);
+        ReflectionTestUtils.setField(userService, "loadWaitMillis", 2000L);
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+
+        //第一个请求在 db 查询中等待, 直到其他请求都在等它的结果
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Coupon coupon = fakeCoupon();
+        Mockito.when(couponDao.findAllByUserIdAndStatus(fakeUserId, CouponStatus.USED))
+                .thenAnswer(invocation -> {
+                    loading.countDown();
+                    release.await();
+                    return new ArrayList<>(Collections.singletonList(coupon));
+                });
+
+        List<Future<List<Coupon>>> results = new ArrayList<>();
+        results.add(callers.submit(this::findUsedCoupons));
+        Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < CALLERS; i++) {
+            results.add(callers.submit(this::findUsedCoupons));
+        }
+
+        //其他请求都在等待同一个加载的结果
+        CompletableFuture<List<Coupon>> flight = loadingFlights().values().iterator().next();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (flight.getNumberOfDependents() < CALLERS - 1
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(CALLERS - 1, flight.getNumberOfDependents());
+        release.countDown();
+
+        for (Future<List<Coupon>> result : results) {
+            List<Coupon> coupons = result.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, coupons.size());
+            Assert.assertSame(coupon, coupons.get(0));
+        }
+        Mockito.verify(couponDao, Mockito.times(1))
+                .findAllByUserIdAndStatus(fakeUserId, CouponStatus.USED);
+        Assert.assertTrue(loadingFlights().isEmpty());
+    }
+
+    @Test
+    public void testFailedLoadNotLeftInFlights() throws Exception {
+
+        Coupon coupon = fakeCoupon();
+        Mockito.when(couponDao.findAllByUserIdAndStatus(fakeUserId, CouponStatus.USED))
+                .thenThrow(new IllegalStateException("DB Is Down"))
+                .thenReturn(new ArrayList<>(Collections.singletonList(coupon)));
+
+        try {
+            findUsedCoupons();
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("DB Is Down", ex.getMessage());
+        }
+        //失败的加载不会留在 loadingFlights 中, 下一次请求重新加载
+        Assert.assertTrue(loadingFlights().isEmpty());
+
+        Assert.assertSame(coupon, findUsedCoupons().get(0));
+        Mockito.verify(couponDao, Mockito.times(2))
+                .findAllByUserIdAndStatus(fakeUserId, CouponStatus.USED);
+        Assert.assertTrue(loadingFlights().isEmpty());
+    }
+
+    private List<Coupon> findUsedCoupons() throws CouponException {
+        return userService.findCouponByStatus(fakeUserId, CouponStatus.USED.getCode());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, CompletableFuture<List<Coupon>>> loadingFlights() {
+        return (Map<String, CompletableFuture<List<Coupon>>>)
+                ReflectionTestUtils.getField(userService, "loadingFlights");
+    }
+
+    //fake 一张已使用的优惠券
+    private Coupon fakeCoupon() {
+
+        Coupon coupon = new Coupon(12, fakeUserId,
+                "100120190101123456", CouponStatus.USED);
+        coupon.setId(1);
+        return coupon;
+    }
+}
@@ -0,0 +1,91 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.constant.PeriodType;
+import com.imooc.coupon.dao.CouponDao;
+import com.imooc.coupon.entity.Coupon;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.feign.SettlementClient;
+import com.imooc.coupon.service.impl.UserServiceImpl;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 模板微服务不可用(缓存的优惠券找不到模板)时查询用户优惠券的测试用例
+ */
+public class UserServiceTemplateOutageTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private IRedisService redisService;
+
+    private IUserService userService;
+
+    @Before
+    public void setUp() {
+
+        redisService = Mockito.mock(IRedisService.class);
+        IUserBloomService userBloomService = Mockito.mock(IUserBloomService.class);
+        Mockito.when(userBloomService.mightHaveCoupons(fakeUserId)).thenReturn(true);
+
+        userService = new UserServiceImpl(
+                Mockito.mock(CouponDao.class),
+                redisService,
+                Mockito.mock(ITemplateCacheService.class),
+                userBloomService,
+                Mockito.mock(ICouponCodeLeaseService.class),
+                Mockito.mock(SettlementClient.class),
+                Mockito.mock(ICouponStatusPublisher.class)
+        );
+    }
+
+    @Test
+    public void testFindUsableCouponsWithoutTemplate() throws CouponException {
+
+        Coupon resolved = coupon(1, 12);
+        resolved.setTemplateSDK(template(12));
+        //模板获取失败, templateSDK 为 null
+        Coupon unresolved = coupon(2, 13);
+
+        Mockito.when(redisService.getCachedCoupons(
+                fakeUserId, CouponStatus.USABLE.getCode()))
+                .thenReturn(Arrays.asList(resolved, unresolved));
+
+        List<Coupon> coupons = userService.findCouponByStatus(
+                fakeUserId, CouponStatus.USABLE.getCode());
+
+        //找不到模板的优惠券暂时不返回, 也不会被当作过期的优惠券移动
+        Assert.assertEquals(Arrays.asList(resolved), coupons);
+        Mockito.verify(redisService, Mockito.never()).addCouponToCache(
+                Mockito.anyLong(), Mockito.anyList(), Mockito.anyInt());
+    }
+
+    private Coupon coupon(Integer id, Integer templateId) {
+
+        Coupon coupon = new Coupon(templateId, fakeUserId,
+                "100120190101123456", CouponStatus.USABLE);
+        coupon.setId(id);
+        coupon.setAssignTime(new Date());
+        return coupon;
+    }
+
+    private CouponTemplateSDK template(Integer id) {
+
+        TemplateRule rule = new TemplateRule();
+        rule.setExpiration(new TemplateRule.Expiration(PeriodType.REGULAR.getCode(),
+                1, System.currentTimeMillis() + 3600000L));
+        CouponTemplateSDK template = new CouponTemplateSDK();
+        template.setId(id);
+        template.setRule(rule);
+        return template;
+    }
+}
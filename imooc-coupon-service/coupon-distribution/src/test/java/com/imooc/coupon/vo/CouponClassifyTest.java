@@ -0,0 +1,68 @@
+package com.imooc.coupon.vo;
+
+import com.imooc.coupon.constant.CouponStatus;
+import com.imooc.coupon.constant.PeriodType;
+import com.imooc.coupon.entity.Coupon;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 用户优惠券分类测试用例
+ */
+public class CouponClassifyTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    @Test
+    public void testClassifyByExpiration() {
+
+        Coupon usable = coupon(1, CouponStatus.USABLE,
+                System.currentTimeMillis() + 3600000L);
+        Coupon timeExpired = coupon(2, CouponStatus.USABLE,
+                System.currentTimeMillis() - 1);
+
+        CouponClassify classify = CouponClassify.classify(
+                Arrays.asList(usable, timeExpired));
+
+        Assert.assertEquals(Arrays.asList(usable), classify.getUsable());
+        Assert.assertEquals(Arrays.asList(timeExpired), classify.getExpired());
+    }
+
+    @Test
+    public void testClassifyWithoutTemplate() {
+
+        //模板微服务不可用时 templateSDK 为 null, 只按状态分类
+        Coupon usable = coupon(1, CouponStatus.USABLE, null);
+        Coupon expired = coupon(2, CouponStatus.EXPIRED, null);
+        Coupon used = coupon(3, CouponStatus.USED, null);
+
+        CouponClassify classify = CouponClassify.classify(
+                Arrays.asList(usable, expired, used));
+
+        Assert.assertEquals(Arrays.asList(usable), classify.getUsable());
+        Assert.assertEquals(Arrays.asList(expired), classify.getExpired());
+        Assert.assertEquals(Arrays.asList(used), classify.getUsed());
+    }
+
+    //deadline 为 null 时不设置模板
+    private Coupon coupon(Integer id, CouponStatus status, Long deadline) {
+
+        Coupon coupon = new Coupon(12, fakeUserId, "100120190101123456", status);
+        coupon.setId(id);
+        coupon.setAssignTime(new Date());
+        if (null != deadline) {
+            TemplateRule rule = new TemplateRule();
+            rule.setExpiration(new TemplateRule.Expiration(
+                    PeriodType.REGULAR.getCode(), 1, deadline));
+            CouponTemplateSDK template = new CouponTemplateSDK();
+            template.setId(12);
+            template.setRule(rule);
+            coupon.setTemplateSDK(template);
+        }
+        return coupon;
+    }
+}
@@ -0,0 +1,127 @@
+package com.imooc.coupon.controller;
+
+import com.alibaba.fastjson.JSON;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.imooc.coupon.annotation.IgnoreResponseAdvice;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.ExecuteManager;
+import com.imooc.coupon.service.IBatchSettlementService;
+import com.imooc.coupon.service.IOptimizeService;
+import com.imooc.coupon.vo.SettlementInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * 结算服务 Controller
+ */
+@Slf4j
+@RestController
+public class SettlementController {
+
+    //结算规则执行管理器
+    private final ExecuteManager executeManager;
+
+    //最优优惠券组合搜索服务
+    private final IOptimizeService optimizeService;
+
+    //批量结算服务
+    private final IBatchSettlementService batchSettlementService;
+
+    //和普通接口使用同一个 ObjectMapper, 保证结算信息的序列化格式一致
+    private final ObjectMapper objectMapper;
+
+    //批量结算一次最多的结算信息个数
+    @Value("${coupon.batch.max-size:500}")
+    private int batchMaxSize;
+
+    @Autowired
+    public SettlementController(ExecuteManager executeManager,
+                                IOptimizeService optimizeService,
+                                IBatchSettlementService batchSettlementService,
+                                ObjectMapper objectMapper) {
+        this.executeManager = executeManager;
+        this.optimizeService = optimizeService;
+        this.batchSettlementService = batchSettlementService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * 优惠券结算
+     * @param settlement
+     * @return
+     * @throws CouponException
+     */
+    //127.0.0.1:7003/coupon-settlement/settlement/compute
+    @PostMapping("/settlement/compute")
+    public SettlementInfo computeRule(@RequestBody SettlementInfo settlement)
+            throws CouponException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Settlement: {}", JSON.toJSONString(settlement));
+        }
+        return executeManager.computeRule(settlement);
+    }
+
+    /**
+     * 从候选优惠券中找出结算价格最低的组合, 不做核销
+     * @param settlement couponAndTemplateInfos 是用户所有可用的优惠券
+     * @return couponAndTemplateInfos 是最优的组合, 为空表示不使用优惠券最便宜
+     * @throws CouponException
+     */
+    //127.0.0.1:7003/coupon-settlement/settlement/optimize
+    @PostMapping("/settlement/optimize")
+    public SettlementInfo optimize(@RequestBody SettlementInfo settlement)
+            throws CouponException {
+
+        log.debug("Optimize Settlement: {}, {}", settlement.getUserId(),
+                null == settlement.getCouponAndTemplateInfos() ? 0
+                        : settlement.getCouponAndTemplateInfos().size());
+        return optimizeService.optimize(settlement);
+    }
+
+    /**
+     * 批量优惠券结算
+     * 按请求的顺序逐行返回(NDJSON): {"index": ..., "settlement": {...}} 或者 {"index": ..., "error": "..."}
+     * 单个结算信息失败不影响其他的
+     * @param settlements
+     * @return
+     * @throws CouponException
+     */
+    //127.0.0.1:7003/coupon-settlement/settlement/compute/batch
+    @IgnoreResponseAdvice
+    @PostMapping(value = "/settlement/compute/batch", produces = "application/x-ndjson")
+    public StreamingResponseBody batchComputeRule(
+            @RequestBody List<SettlementInfo> settlements) throws CouponException {
+
+        if (CollectionUtils.isEmpty(settlements)
+                || settlements.size() > batchMaxSize) {
+            throw new CouponException("Settlements Is Empty Or Exceed Limit: "
+                    + batchMaxSize);
+        }
+        log.info("Batch Settlement: {}", settlements.size());
+
+        return out -> batchSettlementService.computeRules(settlements,
+                result -> writeLine(out, result));
+    }
+
+    private void writeLine(OutputStream out, Object line) {
+        try {
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -1,17 +1,16 @@
 package com.imooc.coupon.executor;
 
-import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.money.Money;
 import com.imooc.coupon.vo.GoodsInfo;
 import com.imooc.coupon.vo.SettlementInfo;
-import org.apache.commons.collections4.CollectionUtils;
 
-import java.math.BigDecimal;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * 规则执行器抽象类，定义通用方法
+ * 金额都以分(long)为单位计算, 只在写入 cost 时转换为元
  */
 public class AbstractExecutor {
 
@@ -21,25 +20,14 @@ public class AbstractExecutor {
      * 1.这里实现的单品类优惠券的校验，多品类优惠券重载此方法
      * 2.商品只需要有一个优惠券要求的商品类型匹配就可以
      */
-    @SuppressWarnings("all")
     protected boolean isGoodsTypeSatisfy(SettlementInfo settlement){
 
-        //settlement里所有的商品类型的id
-        List<Integer> goodsType = settlement.getGoodsInfos()
-                .stream().map(GoodsInfo::getType)
-                .collect(Collectors.toList());
-
-        //优惠券里规定所优惠的商品类型id范围
-        List<Integer> templateGoodsType = JSON.parseObject(
-                settlement.getCouponAndTemplateInfos().get(0).getTemplate()
-                .getRule().getUsage().getGoodsType(),
-                List.class
-        );
+        //优惠券里规定所优惠的商品类型的位掩码
+        int templateGoodsType = settlement.getCouponAndTemplateInfos()
+                .get(0).getTemplate().getRule().getUsage().goodsTypeMask();
 
         //存在交集即可
-        return CollectionUtils.isNotEmpty(
-                CollectionUtils.intersection(goodsType,templateGoodsType)
-        );
+        return (goodsTypeMask(settlement.getGoodsInfos()) & templateGoodsType) != 0;
     }
 
     /**
@@ -47,13 +35,13 @@ public class AbstractExecutor {
      * @return
      */
     protected SettlementInfo processGoddsTypeNotSatisfy(
-            SettlementInfo settlementInfo,double goodsSum
+            SettlementInfo settlementInfo,long goodsSum
     ){
         boolean isGoodsTypeSatisfy = isGoodsTypeSatisfy(settlementInfo);
 
         //当商品类型不满足时，直接返回总价，并清空优惠券
         if(!isGoodsTypeSatisfy){
-            settlementInfo.setCost(goodsSum);
+            settlementInfo.setCost(Money.toYuan(goodsSum));
             settlementInfo.setCouponAndTemplateInfos(Collections.emptyList());
             return settlementInfo;
         }
@@ -61,23 +49,23 @@ public class AbstractExecutor {
         return null;
     }
 
-    //计算商品总价
-    protected double goodCostSum(List<GoodsInfo> goodsInfos){
+    //settlement里所有的商品类型的位掩码
+    protected int goodsTypeMask(List<GoodsInfo> goodsInfos){
 
-        return goodsInfos.stream().mapToDouble(
-                g -> g.getPrice() * g.getCount()
-        ).sum();
+        int mask = 0;
+        for (GoodsInfo goodsInfo : goodsInfos) {
+            mask |= GoodsType.bit(goodsInfo.getType());
+        }
+        return mask;
     }
 
-    //保留两位小数
-    protected double retain2Decimal(double value){
-        return new BigDecimal(value).setScale(
-                2,BigDecimal.ROUND_HALF_UP
-        ).doubleValue();
+    //计算商品总价(分)
+    protected long goodCostSum(List<GoodsInfo> goodsInfos){
+        return Money.goodsCostSum(goodsInfos);
     }
 
-    //最小支付费用
-    protected double minCost(){
-        return 0.1;
+    //最小支付费用(分)
+    protected long minCost(){
+        return Money.MIN_COST;
     }
 }
@@ -0,0 +1,136 @@
+package com.imooc.coupon.executor;
+
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.RuleFlag;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.vo.SettlementInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 优惠券结算规则执行管理器
+ * 1. 启动时收集所有的 RuleExecutor, 按 RuleFlag 建立索引
+ * 2. 结算时根据优惠券的类别组合找到规则类型, 再从索引中找到对应的执行器
+ * 类别组合用位掩码表示, 每个类别一位, 掩码直接作为数组下标得到规则类型, 不需要遍历执行器
+ */
+@Slf4j
+@Component
+public class ExecuteManager implements BeanPostProcessor {
+
+    //类别编码 -> 类别在掩码中的位
+    private static final Map<String, Integer> CATEGORY_BITS =
+            new HashMap<>(CouponCategory.values().length * 2);
+
+    //类别掩码 -> 规则类型, 没有对应规则的组合为 null
+    private static final RuleFlag[] RULE_FLAG_BY_MASK =
+            new RuleFlag[1 << CouponCategory.values().length];
+
+    static {
+        for (CouponCategory category : CouponCategory.values()) {
+            CATEGORY_BITS.put(category.getCode(), bit(category));
+        }
+        for (RuleFlag ruleFlag : RuleFlag.values()) {
+            RULE_FLAG_BY_MASK[categoryMask(ruleFlag)] = ruleFlag;
+        }
+    }
+
+    //规则类型 -> 执行器
+    private final Map<RuleFlag, RuleExecutor> executorIndex =
+            new EnumMap<>(RuleFlag.class);
+
+    /**
+     * <h2>优惠券结算规则计算入口</h2>
+     * 注意: 一定要保证传递进来的优惠券个数 >= 1
+     * */
+    public SettlementInfo computeRule(SettlementInfo settlement)
+            throws CouponException {
+
+        List<SettlementInfo.CouponAndTemplateInfo> ctInfos =
+                settlement.getCouponAndTemplateInfos();
+        if (CollectionUtils.isEmpty(ctInfos) || CollectionUtils.isEmpty(
+                settlement.getGoodsInfos())) {
+            throw new CouponException("Settlement Coupons Or Goods Is Empty");
+        }
+
+        //同一个类别的优惠券只能有一张, 掩码的位数必须等于优惠券个数
+        int mask = 0;
+        for (SettlementInfo.CouponAndTemplateInfo ct : ctInfos) {
+            Integer bit = CATEGORY_BITS.get(ct.getTemplate().getCategory());
+            if (null == bit || (mask & bit) != 0) {
+                throw new CouponException("Unsupported Coupon Category: "
+                        + ct.getTemplate().getCategory());
+            }
+            mask |= bit;
+        }
+
+        RuleFlag ruleFlag = RULE_FLAG_BY_MASK[mask];
+        RuleExecutor executor = null == ruleFlag ? null : executorIndex.get(ruleFlag);
+        if (null == executor) {
+            throw new CouponException("Unsupported Coupon Category Combination");
+        }
+        return executor.computeRule(settlement);
+    }
+
+    /**
+     * <h2>在 bean 初始化之前去执行 (before)</h2>
+     * 每种规则类型只能有一个执行器
+     * */
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName)
+            throws BeansException {
+
+        if (!(bean instanceof RuleExecutor)) {
+            return bean;
+        }
+
+        RuleExecutor executor = (RuleExecutor) bean;
+        RuleFlag ruleFlag = executor.ruleConfig();
+        if (executorIndex.containsKey(ruleFlag)) {
+            throw new IllegalStateException("There Is Already An Executor " +
+                    "For RuleFlag: " + ruleFlag);
+        }
+
+        log.info("Load Executor {} For RuleFlag {}.", executor.getClass(), ruleFlag);
+        executorIndex.put(ruleFlag, executor);
+
+        return bean;
+    }
+
+    /**
+     * <h2>在 bean 初始化之后去执行 (after)</h2>
+     * */
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName)
+            throws BeansException {
+        return bean;
+    }
+
+    //规则类型对应的优惠券类别组合
+    private static int categoryMask(RuleFlag ruleFlag) {
+
+        switch (ruleFlag) {
+            case MANJIAN:
+                return bit(CouponCategory.MANJIAN);
+            case ZHEKOU:
+                return bit(CouponCategory.ZHEKOU);
+            case LIJIAN:
+                return bit(CouponCategory.LIJIAN);
+            case MANJIAN_ZHEKOU:
+                return bit(CouponCategory.MANJIAN) | bit(CouponCategory.ZHEKOU);
+            default:
+                throw new IllegalArgumentException("Unknown RuleFlag: " + ruleFlag);
+        }
+    }
+
+    private static int bit(CouponCategory category) {
+        return 1 << category.ordinal();
+    }
+}
@@ -3,6 +3,7 @@ package com.imooc.coupon.executor.impl;
 import com.imooc.coupon.constant.RuleFlag;
 import com.imooc.coupon.executor.AbstractExecutor;
 import com.imooc.coupon.executor.RuleExecutor;
+import com.imooc.coupon.money.Money;
 import com.imooc.coupon.vo.CouponTemplateSDK;
 import com.imooc.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
@@ -36,9 +37,7 @@ public class ManJianExecutor extends AbstractExecutor implements RuleExecutor {
     @Override
     public SettlementInfo computeRule(SettlementInfo settlement) {
 
-        double goodsSum = retain2Decimal(
-                goodCostSum(settlement.getGoodsInfos())
-        );
+        long goodsSum = goodCostSum(settlement.getGoodsInfos());
 
         SettlementInfo probability = processGoddsTypeNotSatisfy(
                 settlement,goodsSum
@@ -51,23 +50,23 @@ public class ManJianExecutor extends AbstractExecutor implements RuleExecutor {
         //如果返回空的话，就是这些商品符合优惠券的使用规则
         CouponTemplateSDK templateSDK = settlement.getCouponAndTemplateInfos()
                 .get(0).getTemplate();
-        double base = (double)templateSDK.getRule().getDiscount().getBase();
-        double quota = (double) templateSDK.getRule().getDiscount().getQuota();
+        long base = Money.toCents(templateSDK.getRule().getDiscount().getBase());
+        long quota = Money.toCents(templateSDK.getRule().getDiscount().getQuota());
 
         //如果不符合标准,则返回商品总价
         if(goodsSum < base){
             log.debug("Current Goods Cost Sum < ManJian Coupon Base!");
-            settlement.setCost(goodsSum);
+            settlement.setCost(Money.toYuan(goodsSum));
             settlement.setCouponAndTemplateInfos(Collections.emptyList());
             return settlement;
         }
 
         //计算使用优惠券的价格  -- 结算
-        settlement.setCost(retain2Decimal(
+        settlement.setCost(Money.toYuan(
                 (goodsSum - quota) > minCost() ? (goodsSum - quota) : minCost()
         ));
         log.debug("Use ManJian Coupon Make Goods Cost From {} TO {}",
-                goodsSum,settlement.getCost());
+                Money.toYuan(goodsSum),settlement.getCost());
 
         return settlement;
     }
@@ -1,18 +1,16 @@
 package com.imooc.coupon.executor.impl;
 
-import com.alibaba.fastjson.JSON;
 import com.imooc.coupon.constant.CouponCategory;
 import com.imooc.coupon.constant.RuleFlag;
 import com.imooc.coupon.executor.AbstractExecutor;
 import com.imooc.coupon.executor.RuleExecutor;
-import com.imooc.coupon.vo.GoodsInfo;
+import com.imooc.coupon.money.Money;
 import com.imooc.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * 满减 + 折扣优惠券结算规则执行器
@@ -38,24 +36,17 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
      * @param settlement 用户传递的结算信息
      */
     @Override
-    @SuppressWarnings("all")
     protected boolean isGoodsTypeSatisfy(SettlementInfo settlement) {
 
         log.debug("Check ManJian And Zhekou Is Match Or Not");
-        List<Integer> goodsType = settlement.getGoodsInfos().stream()
-                .map(GoodsInfo::getType).collect(Collectors.toList());
-        List<Integer> templateGoodsType = new ArrayList<>();
-
-        settlement.getCouponAndTemplateInfos().forEach(ct -> {
-            templateGoodsType.addAll(JSON.parseObject(
-                    ct.getTemplate().getRule().getUsage().getGoodsType()
-            ,List.class));
-        });
+        int templateGoodsType = 0;
+        for (SettlementInfo.CouponAndTemplateInfo ct :
+                settlement.getCouponAndTemplateInfos()) {
+            templateGoodsType |= ct.getTemplate().getRule().getUsage().goodsTypeMask();
+        }
 
         // 如果想要使用多类优惠券，则必须要所有的商品类型都包含在内，即差集为空，其实也是子集
-        return CollectionUtils.isEmpty(CollectionUtils.subtract(
-                goodsType,templateGoodsType
-        ));
+        return (goodsTypeMask(settlement.getGoodsInfos()) & ~templateGoodsType) == 0;
 
         //goodsType            水果 电脑
         //templateGoodsType    水果 电脑 家具
@@ -71,9 +62,7 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
     @Override
     public SettlementInfo computeRule(SettlementInfo settlementInfo) {
 
-        double goodsSum = retain2Decimal(goodCostSum(
-                settlementInfo.getGoodsInfos()
-        ));
+        long goodsSum = goodCostSum(settlementInfo.getGoodsInfos());
         SettlementInfo probability = processGoddsTypeNotSatisfy(
                 settlementInfo,goodsSum
         );
@@ -108,7 +97,7 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
          */
         if(!isTemplateCanShared(manJian,zheKou)){
             log.debug("Current ManJian And Zhekou Can Not Shared!");
-            settlementInfo.setCost(goodsSum);
+            settlementInfo.setCost(Money.toYuan(goodsSum));
             settlementInfo.setCouponAndTemplateInfos(Collections.emptyList());
             return settlementInfo;
         }
@@ -118,28 +107,28 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
          */
         //先计算满减
         List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>();
-        double manJianBase = (double)manJian.getTemplate().getRule().getDiscount().getBase();
-        double manJianQuota = (double)manJian.getTemplate().getRule().getDiscount().getQuota();
+        long manJianBase = Money.toCents(manJian.getTemplate().getRule().getDiscount().getBase());
+        long manJianQuota = Money.toCents(manJian.getTemplate().getRule().getDiscount().getQuota());
 
         //最终的价格
-        double targetSum = goodsSum;
+        long targetSum = goodsSum;
         if(targetSum >= manJianBase){
             targetSum -= manJianQuota;
             ctInfos.add(manJian);
         }
 
         //再计算折扣
-        double zhekouQuota = (double)zheKou.getTemplate().getRule().getDiscount().getQuota();
-        targetSum *= zhekouQuota * 1.0 / 100;
+        int zhekouQuota = zheKou.getTemplate().getRule().getDiscount().getQuota();
+        targetSum = Money.discount(targetSum, zhekouQuota);
         ctInfos.add(zheKou);
 
         settlementInfo.setCouponAndTemplateInfos(ctInfos);
-        settlementInfo.setCost(retain2Decimal(
+        settlementInfo.setCost(Money.toYuan(
                 targetSum > minCost() ? targetSum : minCost()
         ));
 
         log.debug("Use ManJian And ZheKou coupon Make Goods Cost From {} To {}",
-                goodsSum,settlementInfo.getCost());
+                Money.toYuan(goodsSum),settlementInfo.getCost());
 
         return settlementInfo;
     }
@@ -147,12 +136,13 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
     /**
      * 当前的两张优惠券是否可以共用
      * 即校验 TemplateRule 中的 weight 是否满足条件
+     * 组合搜索时也用来预先过滤不能共用的组合
      * @param manJian
      * @param zheKou
      * @return
      */
     @SuppressWarnings("all")
-    private boolean
+    public static boolean
     isTemplateCanShared(SettlementInfo.CouponAndTemplateInfo manJian,
                         SettlementInfo.CouponAndTemplateInfo zheKou){
         //优惠券模板的编码
@@ -163,15 +153,13 @@ public class ManJianZheKouExecutor extends AbstractExecutor implements RuleExecu
 
         List<String> allSharedKeysForManjian = new ArrayList<>();
         allSharedKeysForManjian.add(manjianKey);
-        allSharedKeysForManjian.addAll(JSON.parseObject(
-                manJian.getTemplate().getRule().getWeight(),List.class
-        ));
+        allSharedKeysForManjian.addAll(
+                manJian.getTemplate().getRule().shareKeys());
 
         List<String> allSharedKeysForZheKou = new ArrayList<>();
         allSharedKeysForZheKou.add(zhekouKey);
-        allSharedKeysForZheKou.addAll(JSON.parseObject(
-                zheKou.getTemplate().getRule().getWeight(),List.class
-        ));
+        allSharedKeysForZheKou.addAll(
+                zheKou.getTemplate().getRule().shareKeys());
 
         return CollectionUtils.isSubCollection(
                     Arrays.asList(manjianKey,zhekouKey), allSharedKeysForManjian)
@@ -3,6 +3,7 @@ package com.imooc.coupon.executor.impl;
 import com.imooc.coupon.constant.RuleFlag;
 import com.imooc.coupon.executor.AbstractExecutor;
 import com.imooc.coupon.executor.RuleExecutor;
+import com.imooc.coupon.money.Money;
 import com.imooc.coupon.vo.CouponTemplateSDK;
 import com.imooc.coupon.vo.SettlementInfo;
 import lombok.extern.slf4j.Slf4j;
@@ -32,9 +33,7 @@ public class ZheKouExecutor extends AbstractExecutor implements RuleExecutor {
     @Override
     public SettlementInfo computeRule(SettlementInfo settlement) {
 
-        double goodsSum = retain2Decimal(goodCostSum(
-                settlement.getGoodsInfos()
-        ));
+        long goodsSum = goodCostSum(settlement.getGoodsInfos());
         SettlementInfo probability = processGoddsTypeNotSatisfy(
                 settlement,goodsSum
         );
@@ -46,16 +45,16 @@ public class ZheKouExecutor extends AbstractExecutor implements RuleExecutor {
         // 折扣优惠券可以直接使用 没有门槛
         CouponTemplateSDK templateSDK= settlement.getCouponAndTemplateInfos().get(0)
                 .getTemplate();
-        double quota = (double)templateSDK.getRule().getDiscount().getQuota();
+        int quota = templateSDK.getRule().getDiscount().getQuota();
 
         //计算使用优惠券之后的价格
-        settlement.setCost(
-                retain2Decimal((goodsSum * (quota * 1.0 / 100))) > minCost() ?
-                        retain2Decimal((goodsSum * (quota * 1.0 / 100))) : minCost()
-        );
+        long targetSum = Money.discount(goodsSum, quota);
+        settlement.setCost(Money.toYuan(
+                targetSum > minCost() ? targetSum : minCost()
+        ));
 
         log.debug("Use Zhekou Coupon Make Goods Cost From {} TO {}",
-                goodsSum,settlement.getCost());
+                Money.toYuan(goodsSum),settlement.getCost());
         return settlement;
     }
 }
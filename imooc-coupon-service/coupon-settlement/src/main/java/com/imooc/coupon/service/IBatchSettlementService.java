@@ -0,0 +1,22 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.vo.SettlementInfo;
+import com.imooc.coupon.vo.SettlementResult;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 批量结算服务接口定义
+ */
+public interface IBatchSettlementService {
+
+    /**
+     * <h2>并行计算多个结算信息</h2>
+     * 单个结算信息失败不影响其他的, 失败原因记录在结果的 error 中
+     * @param settlements 结算信息列表
+     * @param consumer 按 settlements 的顺序接收每个结果
+     * */
+    void computeRules(List<SettlementInfo> settlements,
+                      Consumer<SettlementResult> consumer);
+}
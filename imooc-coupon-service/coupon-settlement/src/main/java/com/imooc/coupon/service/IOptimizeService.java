@@ -0,0 +1,17 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.vo.SettlementInfo;
+
+/**
+ * 最优优惠券组合搜索服务接口定义
+ */
+public interface IOptimizeService {
+
+    /**
+     * <h2>从候选优惠券中找出结算价格最低的组合</h2>
+     * @param settlement {@link SettlementInfo} couponAndTemplateInfos 是所有候选的优惠券
+     * @return {@link SettlementInfo} couponAndTemplateInfos 是最优的组合(可能为空), cost 是对应的价格
+     * */
+    SettlementInfo optimize(SettlementInfo settlement) throws CouponException;
+}
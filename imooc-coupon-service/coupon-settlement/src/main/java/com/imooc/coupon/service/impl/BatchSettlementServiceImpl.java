@@ -0,0 +1,119 @@
+package com.imooc.coupon.service.impl;
+
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.ExecuteManager;
+import com.imooc.coupon.service.IBatchSettlementService;
+import com.imooc.coupon.vo.SettlementInfo;
+import com.imooc.coupon.vo.SettlementResult;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 批量结算服务接口实现
+ * 1. 所有批量请求共用一个固定大小的线程池, 同时计算的结算信息不超过线程数
+ * 2. 每个请求最多有 window 个结算信息已经提交但还没有输出, 内存占用和请求大小无关
+ * 3. 按请求的顺序等待结果并输出, 输出一个之后再提交下一个
+ */
+@Slf4j
+@Service
+public class BatchSettlementServiceImpl implements IBatchSettlementService {
+
+    //结算规则执行管理器
+    private final ExecuteManager executeManager;
+
+    private final ExecutorService executor;
+
+    //每个请求已经提交但还没有输出的结算信息个数上限
+    private final int window;
+
+    @Autowired
+    public BatchSettlementServiceImpl(
+            ExecuteManager executeManager,
+            @Value("${coupon.batch.parallelism:0}") int parallelism,
+            @Value("${coupon.batch.window:0}") int window) {
+
+        int threads = parallelism > 0
+                ? parallelism : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executeManager = executeManager;
+        this.window = window > 0 ? window : threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r,
+                    "ImoocBatchSettlement_" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void computeRules(List<SettlementInfo> settlements,
+                             Consumer<SettlementResult> consumer) {
+
+        Deque<Future<SettlementResult>> inFlight = new ArrayDeque<>(window);
+        int next = 0;
+        try {
+            while (next < settlements.size() && inFlight.size() < window) {
+                inFlight.addLast(submit(next, settlements.get(next)));
+                next++;
+            }
+
+            while (!inFlight.isEmpty()) {
+                int index = next - inFlight.size();
+                SettlementResult result = await(index, inFlight.pollFirst());
+                if (next < settlements.size()) {
+                    inFlight.addLast(submit(next, settlements.get(next)));
+                    next++;
+                }
+                consumer.accept(result);
+            }
+        } finally {
+            //输出失败(例如调用方断开)时取消还没有开始的计算
+            inFlight.forEach(f -> f.cancel(false));
+        }
+    }
+
+    private Future<SettlementResult> submit(int index, SettlementInfo settlement) {
+        return executor.submit(() -> compute(index, settlement));
+    }
+
+    //结算一个结算信息, 异常转换为结果中的 error
+    private SettlementResult compute(int index, SettlementInfo settlement) {
+
+        try {
+            return new SettlementResult(index,
+                    executeManager.computeRule(settlement), null);
+        } catch (CouponException | RuntimeException ex) {
+            log.debug("Batch Settlement Item Error: {}, {}", index, ex.getMessage());
+            return new SettlementResult(index, null,
+                    null == ex.getMessage() ? ex.getClass().getSimpleName()
+                            : ex.getMessage());
+        }
+    }
+
+    private static SettlementResult await(int index, Future<SettlementResult> future) {
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch Settlement Interrupted", ex);
+        } catch (ExecutionException ex) {
+            return new SettlementResult(index, null, ex.getCause().getMessage());
+        }
+    }
+}
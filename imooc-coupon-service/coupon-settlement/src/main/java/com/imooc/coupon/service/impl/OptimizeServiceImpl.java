@@ -0,0 +1,322 @@
+package com.imooc.coupon.service.impl;
+
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.ExecuteManager;
+import com.imooc.coupon.executor.impl.ManJianZheKouExecutor;
+import com.imooc.coupon.money.Money;
+import com.imooc.coupon.service.IOptimizeService;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.GoodsInfo;
+import com.imooc.coupon.vo.SettlementInfo;
+import com.imooc.coupon.vo.TemplateRule;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 最优优惠券组合搜索服务接口实现
+ * 1. 候选组合: 每一张优惠券单独使用, 以及可以共用的 满减 + 折扣 两张优惠券, 同一个类别最多一张
+ * 2. 每个组合先算出不考虑商品类型限制的价格作为下界, 按下界从小到大排序
+ * 3. 在 ForkJoinPool 中并行计算, 下界不可能比当前最优更低的组合直接跳过(分支限界)
+ * 4. 超过时间预算时返回已经找到的最优组合
+ */
+@Slf4j
+@Service
+public class OptimizeServiceImpl implements IOptimizeService {
+
+    //每个子任务最多直接计算的组合个数
+    private static final int TASK_THRESHOLD = 4;
+
+    //结算规则执行管理器, 计算每个组合的实际价格
+    private final ExecuteManager executeManager;
+
+    private final ForkJoinPool pool;
+
+    //一次搜索的时间预算
+    @Value("${coupon.optimize.budget-millis:50}")
+    private long budgetMillis;
+
+    //候选优惠券的个数上限
+    @Value("${coupon.optimize.max-coupons:200}")
+    private int maxCoupons;
+
+    @Autowired
+    public OptimizeServiceImpl(ExecuteManager executeManager,
+                               @Value("${coupon.optimize.parallelism:0}") int parallelism) {
+        this.executeManager = executeManager;
+        this.pool = new ForkJoinPool(
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(),
+                p -> {
+                    ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    thread.setName("ImoocOptimize_" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public SettlementInfo optimize(SettlementInfo settlement) throws CouponException {
+
+        if (CollectionUtils.isEmpty(settlement.getGoodsInfos())) {
+            throw new CouponException("Settlement Goods Is Empty");
+        }
+        List<SettlementInfo.CouponAndTemplateInfo> coupons =
+                null == settlement.getCouponAndTemplateInfos()
+                        ? Collections.emptyList()
+                        : settlement.getCouponAndTemplateInfos();
+        if (coupons.size() > maxCoupons) {
+            throw new CouponException("Too Many Coupons To Optimize: " + maxCoupons);
+        }
+
+        long start = System.currentTimeMillis();
+        long goodsSum = Money.goodsCostSum(settlement.getGoodsInfos());
+
+        //不使用优惠券的价格作为初始的最优
+        SettlementInfo noCoupon = new SettlementInfo(settlement.getUserId(),
+                settlement.getGoodsInfos(), Collections.emptyList(), false,
+                Money.toYuan(goodsSum));
+        AtomicReference<Result> best = new AtomicReference<>(new Result(-1, noCoupon));
+
+        List<Candidate> candidates = candidates(coupons, goodsSum,
+                goodsTypeMask(settlement.getGoodsInfos()), best.get().cost);
+        if (!candidates.isEmpty()) {
+            long deadline = start + budgetMillis;
+            Search search = new Search(settlement, candidates, 0,
+                    candidates.size(), best, deadline);
+            try {
+                pool.submit(search).get(budgetMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                //还没有开始的组合不再计算, 返回已经找到的最优
+                log.warn("Optimize Settlement Out Of Budget: {}, {}",
+                        settlement.getUserId(), candidates.size());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                log.error("Optimize Settlement Error: {}", ex.getMessage());
+            }
+        }
+
+        SettlementInfo result = best.get().settlement;
+        log.debug("Optimize Settlement: {} candidates, cost {} -> {}, {}ms",
+                candidates.size(), Money.toYuan(goodsSum), result.getCost(),
+                System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 生成候选组合并按下界排序
+     * 相同模板的优惠券结果相同, 只保留第一张; 下界不比不使用优惠券更低的组合直接丢弃
+     * 商品类型不满足的组合结算时会被清空优惠券, 也直接丢弃(和执行器的校验相同)
+     */
+    private List<Candidate> candidates(
+            List<SettlementInfo.CouponAndTemplateInfo> coupons,
+            long goodsSum, int goodsTypeMask, long noCouponCost) {
+
+        Map<Integer, SettlementInfo.CouponAndTemplateInfo> distinct =
+                new LinkedHashMap<>();
+        coupons.forEach(ct -> distinct.putIfAbsent(ct.getTemplate().getId(), ct));
+
+        List<SettlementInfo.CouponAndTemplateInfo> manJians = new ArrayList<>();
+        List<SettlementInfo.CouponAndTemplateInfo> zheKous = new ArrayList<>();
+        List<Candidate> candidates = new ArrayList<>();
+
+        for (SettlementInfo.CouponAndTemplateInfo ct : distinct.values()) {
+            CouponCategory category = CouponCategory.of(ct.getTemplate().getCategory());
+            if (category == CouponCategory.MANJIAN) {
+                manJians.add(ct);
+            } else if (category == CouponCategory.ZHEKOU) {
+                zheKous.add(ct);
+            }
+            if ((goodsTypeMask & goodsTypeMask(ct)) != 0) {
+                candidates.add(new Candidate(Collections.singletonList(ct),
+                        afterDiscount(ct.getTemplate(), category, goodsSum)));
+            }
+        }
+
+        for (SettlementInfo.CouponAndTemplateInfo manJian : manJians) {
+            long afterManJian = afterDiscount(manJian.getTemplate(),
+                    CouponCategory.MANJIAN, goodsSum);
+            for (SettlementInfo.CouponAndTemplateInfo zheKou : zheKous) {
+                int pairMask = goodsTypeMask(manJian) | goodsTypeMask(zheKou);
+                if ((goodsTypeMask & ~pairMask) == 0
+                        && ManJianZheKouExecutor.isTemplateCanShared(manJian, zheKou)) {
+                    candidates.add(new Candidate(Arrays.asList(manJian, zheKou),
+                            afterDiscount(zheKou.getTemplate(),
+                                    CouponCategory.ZHEKOU, afterManJian)));
+                }
+            }
+        }
+
+        candidates.removeIf(c -> !canImprove(c.bound, noCouponCost));
+        candidates.sort(Comparator.comparingLong(c -> c.bound));
+        return candidates;
+    }
+
+    /**
+     * 不考虑商品类型限制和最低价格时, 使用一张优惠券之后的价格(分)
+     * 和执行器的整数运算相同, 实际价格不会低于这个值
+     */
+    private static long afterDiscount(CouponTemplateSDK template,
+                                      CouponCategory category, long sum) {
+
+        TemplateRule.Discount discount = template.getRule().getDiscount();
+        switch (category) {
+            case MANJIAN:
+                return sum >= Money.toCents(discount.getBase())
+                        ? sum - Money.toCents(discount.getQuota()) : sum;
+            case ZHEKOU:
+                return Money.discount(sum, discount.getQuota());
+            case LIJIAN:
+                return sum - Money.toCents(discount.getQuota());
+            default:
+                return sum;
+        }
+    }
+
+    //下界为 bound 的组合是否可能比 cost 更低
+    private static boolean canImprove(long bound, long cost) {
+        return bound < cost;
+    }
+
+    //下标为 index, 下界为 bound 的组合是否可能比 best 更优
+    //下界等于 best 的价格时, 实际价格可能相同而下标更小, 不能剪掉, 否则结果取决于线程的执行顺序
+    private static boolean canImprove(long bound, int index, Result best) {
+        return canImprove(bound, best.cost)
+                || (bound == best.cost && index < best.index);
+    }
+
+    private static int goodsTypeMask(List<GoodsInfo> goodsInfos) {
+        int mask = 0;
+        for (GoodsInfo g : goodsInfos) {
+            mask |= GoodsType.bit(g.getType());
+        }
+        return mask;
+    }
+
+    private static int goodsTypeMask(SettlementInfo.CouponAndTemplateInfo ct) {
+        return ct.getTemplate().getRule().getUsage().goodsTypeMask();
+    }
+
+    /**
+     * 候选组合
+     */
+    private static class Candidate {
+
+        private final List<SettlementInfo.CouponAndTemplateInfo> coupons;
+
+        //价格的下界(分)
+        private final long bound;
+
+        private Candidate(List<SettlementInfo.CouponAndTemplateInfo> coupons,
+                          long bound) {
+            this.coupons = coupons;
+            this.bound = bound;
+        }
+    }
+
+    /**
+     * 已经计算过的组合, index 是在候选列表中的下标, 不使用优惠券为 -1
+     * 价格相同时下标小的更优, 保证并行计算的结果是确定的
+     */
+    private static class Result {
+
+        private final int index;
+
+        private final SettlementInfo settlement;
+
+        //结算价格(分)
+        private final long cost;
+
+        private Result(int index, SettlementInfo settlement) {
+            this.index = index;
+            this.settlement = settlement;
+            this.cost = Money.toCents(settlement.getCost());
+        }
+
+        private boolean betterThan(Result other) {
+            return cost < other.cost
+                    || (cost == other.cost && index < other.index);
+        }
+    }
+
+    /**
+     * 并行计算 [from, to) 范围内的候选组合
+     * 候选组合按下界排好序, 某个组合的下界不能比当前最优更低时, 后面的组合也不能
+     */
+    private class Search extends RecursiveAction {
+
+        private final SettlementInfo settlement;
+        private final List<Candidate> candidates;
+        private final int from;
+        private final int to;
+        private final AtomicReference<Result> best;
+        private final long deadline;
+
+        private Search(SettlementInfo settlement, List<Candidate> candidates,
+                       int from, int to, AtomicReference<Result> best, long deadline) {
+            this.settlement = settlement;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.best = best;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > TASK_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Search(settlement, candidates, from, mid, best, deadline),
+                        new Search(settlement, candidates, mid, to, best, deadline));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                if (!canImprove(candidates.get(i).bound, i, best.get())
+                        || System.currentTimeMillis() > deadline) {
+                    return;
+                }
+                evaluate(i);
+            }
+        }
+
+        //用对应的执行器计算组合的实际价格, 执行器会修改结算信息, 每个组合使用一个副本
+        private void evaluate(int index) {
+
+            SettlementInfo copy = new SettlementInfo(settlement.getUserId(),
+                    settlement.getGoodsInfos(),
+                    new ArrayList<>(candidates.get(index).coupons), false, null);
+            Result result;
+            try {
+                result = new Result(index, executeManager.computeRule(copy));
+            } catch (CouponException | RuntimeException ex) {
+                log.warn("Skip Settlement Candidate: {}, {}", index, ex.getMessage());
+                return;
+            }
+
+            Result current;
+            do {
+                current = best.get();
+                if (!result.betterThan(current)) {
+                    return;
+                }
+            } while (!best.compareAndSet(current, result));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.imooc.coupon.vo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量结算中一个结算信息的结果
+ * settlement 和 error 只有一个不为空
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SettlementResult {
+
+    //在请求列表中的下标
+    private Integer index;
+
+    //结算之后的结算信息
+    private SettlementInfo settlement;
+
+    //结算失败的原因
+    private String error;
+}
@@ -0,0 +1,54 @@
+package com.imooc.coupon;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.constant.PeriodType;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateRule;
+
+import java.util.Collections;
+
+/**
+ * 结算测试用例共用的 fake 优惠券模板
+ */
+public class SettlementFixtures {
+
+    private SettlementFixtures() {
+    }
+
+    //fake 模板编码
+    public static String fakeKey(Integer id) {
+        return "10012019080" + id;
+    }
+
+    //模板编码 + 4 位模板 id, 即 weight 中记录的可以共用的优惠券编码
+    public static String shareKey(Integer id) {
+        return fakeKey(id) + String.format("%04d", id);
+    }
+
+    //fake 只能用于文娱类商品的模板
+    public static CouponTemplateSDK fakeTemplate(Integer id, CouponCategory category,
+                                                 Integer quota, Integer base,
+                                                 String weight) {
+        return fakeTemplate(id, category, quota, base,
+                GoodsType.WENYU.getCode(), weight);
+    }
+
+    //fake 模板, 有效期 1 天, 每人限领 1 张
+    public static CouponTemplateSDK fakeTemplate(Integer id, CouponCategory category,
+                                                 Integer quota, Integer base,
+                                                 Integer goodsType, String weight) {
+
+        TemplateRule rule = new TemplateRule(
+                new TemplateRule.Expiration(PeriodType.REGULAR.getCode(), 1,
+                        System.currentTimeMillis() + 86400000L),
+                new TemplateRule.Discount(quota, base), 1,
+                new TemplateRule.Usage("安徽省", "桐城市", JSON.toJSONString(
+                        Collections.singletonList(goodsType))),
+                weight);
+
+        return new CouponTemplateSDK(id, "优惠券模板-" + id, "logo", "desc",
+                category.getCode(), 1, fakeKey(id), 1, rule);
+    }
+}
@@ -0,0 +1,158 @@
+package com.imooc.coupon.executor;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.SettlementFixtures;
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.impl.LiJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianZheKouExecutor;
+import com.imooc.coupon.executor.impl.ZheKouExecutor;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.GoodsInfo;
+import com.imooc.coupon.vo.SettlementInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 优惠券结算规则执行器的测试用例
+ * 商品总价: 10.88 * 2 + 20.88 * 10 = 230.56
+ */
+public class ExecuteManagerTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private ExecuteManager executeManager;
+
+    @Before
+    public void setUp() {
+
+        executeManager = new ExecuteManager();
+        for (RuleExecutor executor : Arrays.asList(new ManJianExecutor(),
+                new ZheKouExecutor(), new LiJianExecutor(),
+                new ManJianZheKouExecutor())) {
+            executeManager.postProcessBeforeInitialization(
+                    executor, executor.getClass().getSimpleName());
+        }
+    }
+
+    @Test
+    public void testManJian() throws CouponException {
+
+        //满 199 减 20
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 199, "[]")));
+        Assert.assertEquals(210.56, result.getCost(), 0);
+        Assert.assertEquals(1, result.getCouponAndTemplateInfos().size());
+
+        //不满 300, 返回总价并清空优惠券
+        result = executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 300, "[]")));
+        Assert.assertEquals(230.56, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    @Test
+    public void testZheKou() throws CouponException {
+
+        //八五折: 195.976 四舍五入到分
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                zheKou(2, 85, "[]")));
+        Assert.assertEquals(195.98, result.getCost(), 0);
+        Assert.assertEquals(1, result.getCouponAndTemplateInfos().size());
+    }
+
+    @Test
+    public void testLiJian() throws CouponException {
+
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                liJian(3, 5)));
+        Assert.assertEquals(225.56, result.getCost(), 0);
+
+        //立减超过总价时, 不低于最小支付费用
+        result = executeManager.computeRule(fakeSettlement(liJian(3, 300)));
+        Assert.assertEquals(0.1, result.getCost(), 0);
+    }
+
+    @Test
+    public void testManJianZheKou() throws CouponException {
+
+        //先满减再打折: (230.56 - 20) * 0.85 = 178.976
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 199, "[]"),
+                zheKou(2, 85, JSON.toJSONString(
+                        Collections.singletonList(SettlementFixtures.shareKey(1))))));
+        Assert.assertEquals(178.98, result.getCost(), 0);
+        Assert.assertEquals(2, result.getCouponAndTemplateInfos().size());
+
+        //不满足满减条件时只使用折扣券
+        result = executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 300, JSON.toJSONString(
+                        Collections.singletonList(SettlementFixtures.shareKey(2)))),
+                zheKou(2, 85, "[]")));
+        Assert.assertEquals(195.98, result.getCost(), 0);
+        Assert.assertEquals(1, result.getCouponAndTemplateInfos().size());
+        Assert.assertEquals(CouponCategory.ZHEKOU.getCode(), result
+                .getCouponAndTemplateInfos().get(0).getTemplate().getCategory());
+    }
+
+    @Test
+    public void testManJianZheKouNotShared() throws CouponException {
+
+        //两张优惠券的 weight 都不包含对方, 返回总价并清空优惠券
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 199, "[]"), zheKou(2, 85, "[]")));
+        Assert.assertEquals(230.56, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    @Test(expected = CouponException.class)
+    public void testSameCategoryTwice() throws CouponException {
+        executeManager.computeRule(fakeSettlement(
+                liJian(3, 5), liJian(4, 10)));
+    }
+
+    @Test(expected = CouponException.class)
+    public void testUnsupportedCombination() throws CouponException {
+        executeManager.computeRule(fakeSettlement(
+                manJian(1, 20, 199, "[]"), liJian(3, 5)));
+    }
+
+    //fake 结算信息, 商品都是文娱类
+    private SettlementInfo fakeSettlement(CouponTemplateSDK... templates) {
+
+        List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>();
+        for (CouponTemplateSDK template : templates) {
+            ctInfos.add(new SettlementInfo.CouponAndTemplateInfo(
+                    template.getId(), template));
+        }
+
+        return new SettlementInfo(fakeUserId, Arrays.asList(
+                new GoodsInfo(GoodsType.WENYU.getCode(), 10.88, 2),
+                new GoodsInfo(GoodsType.WENYU.getCode(), 20.88, 10)),
+                ctInfos, false, null);
+    }
+
+    private CouponTemplateSDK manJian(Integer id, Integer quota, Integer base,
+                                      String weight) {
+        return SettlementFixtures.fakeTemplate(id, CouponCategory.MANJIAN,
+                quota, base, weight);
+    }
+
+    private CouponTemplateSDK zheKou(Integer id, Integer quota, String weight) {
+        return SettlementFixtures.fakeTemplate(id, CouponCategory.ZHEKOU,
+                quota, 1, weight);
+    }
+
+    private CouponTemplateSDK liJian(Integer id, Integer quota) {
+        return SettlementFixtures.fakeTemplate(id, CouponCategory.LIJIAN, quota, 1, "[]");
+    }
+}
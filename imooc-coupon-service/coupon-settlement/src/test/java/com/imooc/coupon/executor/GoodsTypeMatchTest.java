@@ -0,0 +1,138 @@
+package com.imooc.coupon.executor;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.SettlementFixtures;
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.impl.LiJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianZheKouExecutor;
+import com.imooc.coupon.executor.impl.ZheKouExecutor;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.GoodsInfo;
+import com.imooc.coupon.vo.SettlementInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 优惠券商品类型位掩码校验的测试用例
+ * 单类优惠券: 商品类型和优惠券有交集即可; 满减 + 折扣: 商品类型必须都被两张优惠券覆盖
+ */
+public class GoodsTypeMatchTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private ExecuteManager executeManager;
+
+    @Before
+    public void setUp() {
+
+        executeManager = new ExecuteManager();
+        for (RuleExecutor executor : Arrays.asList(new ManJianExecutor(),
+                new ZheKouExecutor(), new LiJianExecutor(),
+                new ManJianZheKouExecutor())) {
+            executeManager.postProcessBeforeInitialization(
+                    executor, executor.getClass().getSimpleName());
+        }
+    }
+
+    @Test
+    public void testSingleCouponNoIntersection() throws CouponException {
+
+        //生鲜的满减券不能用于文娱商品, 返回总价并清空优惠券
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                goods(GoodsType.WENYU.getCode()),
+                SettlementFixtures.fakeTemplate(1, CouponCategory.MANJIAN, 10, 50,
+                        GoodsType.SHENGXIAN.getCode(), "[]")));
+        Assert.assertEquals(100.0, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    @Test
+    public void testSingleCouponIntersection() throws CouponException {
+
+        //只要有一种商品类型匹配就可以使用
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                goods(GoodsType.WENYU.getCode(), GoodsType.SHENGXIAN.getCode()),
+                SettlementFixtures.fakeTemplate(3, CouponCategory.LIJIAN, 10, 1,
+                        GoodsType.SHENGXIAN.getCode(), "[]")));
+        Assert.assertEquals(190.0, result.getCost(), 0);
+        Assert.assertEquals(1, result.getCouponAndTemplateInfos().size());
+    }
+
+    @Test
+    public void testUnknownGoodsTypeNeverMatch() throws CouponException {
+
+        //不认识的商品类型编码不会匹配任何优惠券, 即使优惠券里写了同样的编码
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                goods(99), SettlementFixtures.fakeTemplate(
+                        2, CouponCategory.ZHEKOU, 85, 1, 99, "[]")));
+        Assert.assertEquals(100.0, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    @Test
+    public void testManJianZheKouCoverAllGoodsTypes() throws CouponException {
+
+        //文娱 + 家居 分别由满减券和折扣券覆盖: (200 - 10) * 0.85 = 161.5
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                goods(GoodsType.WENYU.getCode(), GoodsType.JIAJU.getCode()),
+                sharedManJian(GoodsType.WENYU.getCode()),
+                SettlementFixtures.fakeTemplate(2, CouponCategory.ZHEKOU, 85, 1,
+                        GoodsType.JIAJU.getCode(), "[]")));
+        Assert.assertEquals(161.5, result.getCost(), 0);
+        Assert.assertEquals(2, result.getCouponAndTemplateInfos().size());
+    }
+
+    @Test
+    public void testManJianZheKouNotCoverAllGoodsTypes() throws CouponException {
+
+        //家居商品不在任何一张优惠券的范围内, 返回总价并清空优惠券
+        SettlementInfo result = executeManager.computeRule(fakeSettlement(
+                goods(GoodsType.WENYU.getCode(), GoodsType.JIAJU.getCode()),
+                sharedManJian(GoodsType.WENYU.getCode()),
+                SettlementFixtures.fakeTemplate(2, CouponCategory.ZHEKOU, 85, 1,
+                        GoodsType.SHENGXIAN.getCode(), "[]")));
+        Assert.assertEquals(200.0, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    //每种类型一件 100 元的商品
+    private List<GoodsInfo> goods(Integer... types) {
+
+        List<GoodsInfo> goodsInfos = new ArrayList<>();
+        for (Integer type : types) {
+            goodsInfos.add(new GoodsInfo(type, 100.0, 1));
+        }
+        return goodsInfos;
+    }
+
+    private SettlementInfo fakeSettlement(List<GoodsInfo> goodsInfos,
+                                          CouponTemplateSDK... templates) {
+
+        List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>();
+        for (CouponTemplateSDK template : templates) {
+            ctInfos.add(new SettlementInfo.CouponAndTemplateInfo(
+                    template.getId(), template));
+        }
+        return new SettlementInfo(fakeUserId, goodsInfos, ctInfos, false, null);
+    }
+
+    //满 50 减 10, 可以和 id 为 2 的折扣券共用
+    private CouponTemplateSDK sharedManJian(Integer goodsType) {
+
+        CouponTemplateSDK manJian = SettlementFixtures.fakeTemplate(1,
+                CouponCategory.MANJIAN, 10, 50, goodsType, "[]");
+        manJian.getRule().setWeight(JSON.toJSONString(Collections.singletonList(
+                SettlementFixtures.shareKey(2))));
+        return manJian;
+    }
+}
@@ -0,0 +1,105 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.executor.ExecuteManager;
+import com.imooc.coupon.service.impl.BatchSettlementServiceImpl;
+import com.imooc.coupon.vo.SettlementInfo;
+import com.imooc.coupon.vo.SettlementResult;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量结算按请求顺序输出的测试用例
+ */
+public class BatchSettlementServiceTest {
+
+    //结算信息个数
+    private static final int SIZE = 12;
+
+    //这个下标的结算信息计算失败
+    private static final int FAILED_INDEX = 5;
+
+    private ExecuteManager executeManager;
+
+    private BatchSettlementServiceImpl batchSettlementService;
+
+    //同时在计算的结算信息个数的最大值
+    private AtomicInteger running = new AtomicInteger();
+    private AtomicInteger maxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws CouponException {
+
+        //下标越小计算越慢, 计算完成的顺序和请求的顺序相反
+        executeManager = Mockito.mock(ExecuteManager.class);
+        Mockito.when(executeManager.computeRule(Mockito.any())).thenAnswer(invocation -> {
+            SettlementInfo settlement = invocation.getArgument(0);
+            int index = settlement.getUserId().intValue();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep((SIZE - index) * 10L);
+            } finally {
+                running.decrementAndGet();
+            }
+            if (index == FAILED_INDEX) {
+                throw new CouponException("Settlement Failed: " + index);
+            }
+            settlement.setCost((double) index);
+            return settlement;
+        });
+
+        batchSettlementService = new BatchSettlementServiceImpl(executeManager, 4, 4);
+    }
+
+    @After
+    public void tearDown() {
+        batchSettlementService.shutdown();
+    }
+
+    @Test
+    public void testOutputInRequestOrder() {
+
+        List<SettlementInfo> settlements = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            //用 userId 记录结算信息的下标
+            settlements.add(new SettlementInfo((long) i, Collections.emptyList(),
+                    Collections.emptyList(), false, null));
+        }
+
+        List<SettlementResult> results = new ArrayList<>();
+        batchSettlementService.computeRules(settlements, results::add);
+
+        Assert.assertEquals(SIZE, results.size());
+        for (int i = 0; i < SIZE; i++) {
+            SettlementResult result = results.get(i);
+            Assert.assertEquals(Integer.valueOf(i), result.getIndex());
+            if (i == FAILED_INDEX) {
+                //单个结算信息失败不影响其他的
+                Assert.assertNull(result.getSettlement());
+                Assert.assertEquals("Settlement Failed: " + i, result.getError());
+            } else {
+                Assert.assertNull(result.getError());
+                Assert.assertEquals((double) i, result.getSettlement().getCost(), 0);
+            }
+        }
+
+        //同时计算的结算信息不超过 window
+        Assert.assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void testEmptyBatch() {
+
+        List<SettlementResult> results = new ArrayList<>();
+        batchSettlementService.computeRules(Collections.emptyList(), results::add);
+        Assert.assertTrue(results.isEmpty());
+    }
+}
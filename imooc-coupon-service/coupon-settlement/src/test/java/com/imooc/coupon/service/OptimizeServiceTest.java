@@ -0,0 +1,172 @@
+package com.imooc.coupon.service;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.SettlementFixtures;
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.executor.ExecuteManager;
+import com.imooc.coupon.executor.RuleExecutor;
+import com.imooc.coupon.executor.impl.LiJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianExecutor;
+import com.imooc.coupon.executor.impl.ManJianZheKouExecutor;
+import com.imooc.coupon.executor.impl.ZheKouExecutor;
+import com.imooc.coupon.service.impl.OptimizeServiceImpl;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.GoodsInfo;
+import com.imooc.coupon.vo.SettlementInfo;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+/**
+ * 最优优惠券组合搜索的测试用例
+ * 商品总价: 100 * 2 + 30.56 = 230.56
+ */
+public class OptimizeServiceTest {
+
+    //FAKE 一个 UserID
+    private Long fakeUserId = 20001L;
+
+    private ExecuteManager executeManager;
+
+    private OptimizeServiceImpl optimizeService;
+
+    @Before
+    public void setUp() {
+
+        executeManager = Mockito.spy(new ExecuteManager());
+        for (RuleExecutor executor : Arrays.asList(new ManJianExecutor(),
+                new ZheKouExecutor(), new LiJianExecutor(),
+                new ManJianZheKouExecutor())) {
+            executeManager.postProcessBeforeInitialization(
+                    executor, executor.getClass().getSimpleName());
+        }
+
+        optimizeService = newOptimizeService(executeManager, 1000L);
+    }
+
+    @After
+    public void tearDown() {
+        optimizeService.shutdown();
+    }
+
+    @Test
+    public void testPickBestCombination() throws Exception {
+
+        //单独使用: 满减 210.56, 折扣 195.98, 立减 225.56
+        //满减 + 折扣: (230.56 - 20) * 0.85 = 178.976
+        SettlementInfo result = optimizeService.optimize(fakeSettlement(
+                SettlementFixtures.fakeTemplate(1, CouponCategory.MANJIAN, 20, 199,
+                        JSON.toJSONString(Collections.singletonList(
+                                SettlementFixtures.shareKey(2)))),
+                SettlementFixtures.fakeTemplate(2, CouponCategory.ZHEKOU, 85, 1, "[]"),
+                SettlementFixtures.fakeTemplate(3, CouponCategory.LIJIAN, 5, 1, "[]")));
+
+        Assert.assertEquals(178.98, result.getCost(), 0);
+        Assert.assertEquals(Arrays.asList(1, 2), templateIds(result));
+    }
+
+    @Test
+    public void testSameTemplateOnlyOnce() throws Exception {
+
+        //同一个模板的两张优惠券结果相同, 只计算一次
+        SettlementInfo result = optimizeService.optimize(fakeSettlement(
+                SettlementFixtures.fakeTemplate(3, CouponCategory.LIJIAN, 5, 1, "[]"),
+                SettlementFixtures.fakeTemplate(3, CouponCategory.LIJIAN, 5, 1, "[]")));
+
+        Assert.assertEquals(225.56, result.getCost(), 0);
+        Assert.assertEquals(Collections.singletonList(3), templateIds(result));
+        Mockito.verify(executeManager).computeRule(Mockito.any());
+    }
+
+    @Test
+    public void testNoCouponBaseline() throws Exception {
+
+        //满减不满足基准, 折扣券的商品类型不匹配, 都不可能比原价更低
+        SettlementInfo settlement = fakeSettlement(
+                SettlementFixtures.fakeTemplate(1, CouponCategory.MANJIAN, 20, 300, "[]"),
+                SettlementFixtures.fakeTemplate(2, CouponCategory.ZHEKOU, 85, 1, "[]"));
+        settlement.getCouponAndTemplateInfos().get(1).getTemplate().getRule()
+                .getUsage().setGoodsType(JSON.toJSONString(
+                        Collections.singletonList(GoodsType.SHENGXIAN.getCode())));
+
+        SettlementInfo result = optimizeService.optimize(settlement);
+        Assert.assertEquals(230.56, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+        Assert.assertFalse(result.getEmploy());
+        //候选组合在下界阶段就被剪掉, 不需要调用执行器
+        Mockito.verify(executeManager, Mockito.never()).computeRule(Mockito.any());
+
+        //没有优惠券时同样返回原价
+        result = optimizeService.optimize(fakeSettlement());
+        Assert.assertEquals(230.56, result.getCost(), 0);
+        Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+    }
+
+    @Test
+    public void testReturnBestFoundWhenOutOfBudget() throws Exception {
+
+        //执行器一直阻塞, 超过时间预算后返回不使用优惠券的结果
+        CountDownLatch release = new CountDownLatch(1);
+        ExecuteManager blocking = Mockito.mock(ExecuteManager.class);
+        Mockito.when(blocking.computeRule(Mockito.any())).thenAnswer(invocation -> {
+            release.await();
+            return invocation.getArgument(0);
+        });
+        OptimizeServiceImpl service = newOptimizeService(blocking, 50L);
+
+        try {
+            long start = System.currentTimeMillis();
+            SettlementInfo result = service.optimize(fakeSettlement(
+                    SettlementFixtures.fakeTemplate(3, CouponCategory.LIJIAN,
+                            5, 1, "[]")));
+
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertEquals(230.56, result.getCost(), 0);
+            Assert.assertTrue(result.getCouponAndTemplateInfos().isEmpty());
+        } finally {
+            release.countDown();
+            service.shutdown();
+        }
+    }
+
+    private OptimizeServiceImpl newOptimizeService(ExecuteManager manager,
+                                                   long budgetMillis) {
+
+        OptimizeServiceImpl service = new OptimizeServiceImpl(manager, 2);
+        ReflectionTestUtils.setField(service, "budgetMillis", budgetMillis);
+        ReflectionTestUtils.setField(service, "maxCoupons", 200);
+        return service;
+    }
+
+    private List<Integer> templateIds(SettlementInfo settlement) {
+        return settlement.getCouponAndTemplateInfos().stream()
+                .map(ct -> ct.getTemplate().getId())
+                .collect(Collectors.toList());
+    }
+
+    //fake 结算信息, 商品都是文娱类
+    private SettlementInfo fakeSettlement(CouponTemplateSDK... templates) {
+
+        List<SettlementInfo.CouponAndTemplateInfo> ctInfos = new ArrayList<>();
+        for (int i = 0; i < templates.length; i++) {
+            ctInfos.add(new SettlementInfo.CouponAndTemplateInfo(
+                    i + 1, templates[i]));
+        }
+
+        return new SettlementInfo(fakeUserId, Arrays.asList(
+                new GoodsInfo(GoodsType.WENYU.getCode(), 100.0, 2),
+                new GoodsInfo(GoodsType.WENYU.getCode(), 30.56, 1)),
+                ctInfos, false, null);
+    }
+}
@@ -0,0 +1,26 @@
+package com.imooc.coupon.constant;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+//模板后台任务的类型, 每种类型有自己的并发上限和队列容量
+//配置在 coupon.template-job.<configKey>.concurrency / queue-capacity
+@Getter
+@AllArgsConstructor
+public enum TemplateJobType {
+
+    BUILD("单个模板生成优惠券码", "build", 4, 100),
+    BATCH_BUILD("批量创建的模板生成优惠券码", "batch-build", 1, 10);
+
+    //描述信息
+    private String description;
+
+    //配置项的名称
+    private String configKey;
+
+    //默认的并发上限
+    private int concurrency;
+
+    //默认的队列容量
+    private int queueCapacity;
+}
@@ -3,19 +3,28 @@ package com.imooc.coupon.controller;
 //优惠券模板相关的功能控制器
 
 import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.annotation.IgnoreResponseAdvice;
 import com.imooc.coupon.entity.CouponTemplate;
 import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.service.IAsyncService;
 import com.imooc.coupon.service.IBuildTemplateService;
 import com.imooc.coupon.service.ITemplateBaseService;
-import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.service.ITemplateResponseCache;
+import com.imooc.coupon.vo.CouponCodeProgress;
+import com.imooc.coupon.vo.SerializedResponse;
+import com.imooc.coupon.vo.TemplateBuildResult;
 import com.imooc.coupon.vo.TemplateRequest;
+import com.imooc.coupon.vo.TemplateSDKChanges;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 @Slf4j
 @RestController
@@ -27,10 +36,19 @@ public class CouponTemplateController {
     //优惠券模板基础服务,创建优惠券模板
     private final ITemplateBaseService templateBaseService;
 
+    //异步服务, 查询优惠券码的生成进度
+    private final IAsyncService asyncService;
+
+    //模板 SDK 接口序列化好的响应
+    private final ITemplateResponseCache templateResponseCache;
+
     @Autowired
-    public CouponTemplateController(IBuildTemplateService buildTemplateService, ITemplateBaseService templateBaseService) {
+    public CouponTemplateController(IBuildTemplateService buildTemplateService, ITemplateBaseService templateBaseService, IAsyncService asyncService,
+                                    ITemplateResponseCache templateResponseCache) {
         this.buildTemplateService = buildTemplateService;
         this.templateBaseService = templateBaseService;
+        this.asyncService = asyncService;
+        this.templateResponseCache = templateResponseCache;
     }
 
     //构建优惠券模板
@@ -46,6 +64,15 @@ public class CouponTemplateController {
         return buildTemplateService.buildTemplate(request);
     }
 
+    //批量构建优惠券模板, 返回每个模板的创建结果
+    //127.0.0.1:7001/coupon-template/template/build/batch
+    @PostMapping("/template/build/batch")
+    public List<TemplateBuildResult> buildTemplates(
+            @RequestBody List<TemplateRequest> requests) throws CouponException{
+        log.info("Build Templates: {}", null == requests ? 0 : requests.size());
+        return buildTemplateService.buildTemplates(requests);
+    }
+
     //  根据id获取优惠券模板
     //127.0.0.1/coupon-template/template/info?id=1
     @GetMapping("/template/info")
@@ -55,22 +82,129 @@ public class CouponTemplateController {
         return templateBaseService.buildTemplateInfo(id);
     }
 
+    //获取优惠券码推送到 Redis 的进度
+    //127.0.0.1/coupon-template/template/progress?id=1
+    @GetMapping("/template/progress")
+    public CouponCodeProgress findCouponCodeProgress(@RequestParam("id") Integer id){
+        log.info("Find Coupon Code Progress: {}", id);
+        return asyncService.getCouponCodeProgress(id);
+    }
+
     //查找所有可用的优惠券模板
+    //直接返回当前目录版本序列化好的 CommonResponse, 调用方已经有这个版本时返回 304
     //127.0.0.1/coupon-template/template/sdk/all
+    @IgnoreResponseAdvice
     @GetMapping("template/sdk/all")
-    public List<CouponTemplateSDK> findAllUsableTemplate(){
-        log.info("Find All Usable Template.");
-        return templateBaseService.findAllUsableTemplate();
+    public ResponseEntity<byte[]> findAllUsableTemplate(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding){
+        log.debug("Find All Usable Template.");
+        return toResponseEntity(templateResponseCache.findAllUsableTemplate(),
+                ifNoneMatch, acceptEncoding);
+    }
+
+    //获取可用模板从 since 版本到当前版本的变化, 调用方用来同步本地的副本
+    //不传 since 时返回全量
+    //127.0.0.1/coupon-template/template/sdk/changes?since=1
+    @GetMapping("/template/sdk/changes")
+    public TemplateSDKChanges findTemplateSDKChanges(
+            @RequestParam(value = "since", required = false) Long since){
+        log.debug("Find Template SDK Changes Since: {}", since);
+        return templateBaseService.findTemplateSDKChanges(since);
     }
 
     // 获取模板 ids 到CouponTemplateSDK 的映射
+    //和 sdk/all 一样直接返回序列化好的响应
     //127.0.0.1/coupon-template/template/sdk/infos
+    @IgnoreResponseAdvice
     @GetMapping("/template/sdk/infos")
-    public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(
-            @RequestParam("ids") Collection<Integer> ids
+    public ResponseEntity<byte[]> findIds2TemplateSDK(
+            @RequestParam("ids") Collection<Integer> ids,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding
             ){
         log.info("FindIds2TemplateSDK: {}",JSON.toJSONString(ids));
-        return templateBaseService.findIds2TemplateSDK(ids);
+        return toResponseEntity(templateResponseCache.findIds2TemplateSDK(ids),
+                ifNoneMatch, acceptEncoding);
+    }
+
+    //If-None-Match 中有当前的 ETag 时返回 304, 否则返回序列化好的字节
+    //调用方接受 gzip 时返回压缩之后的字节, 压缩和不压缩的响应是不同的表示, ETag 也不同
+    private static ResponseEntity<byte[]> toResponseEntity(SerializedResponse response,
+                                                           String ifNoneMatch,
+                                                           String acceptEncoding){
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String etag = gzip ? gzipEtag(response.getEtag()) : response.getEtag();
+
+        if(null != ifNoneMatch){
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if(tag.startsWith("W/")){
+                    tag = tag.substring(2);
+                }
+                if("*".equals(tag) || etag.equals(tag)){
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                            .eTag(etag)
+                            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                            .build();
+                }
+            }
+        }
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+                .eTag(etag)
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if(gzip){
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                    .body(response.getGzipped());
+        }
+        return builder.body(response.getPlain());
+    }
+
+    //Accept-Encoding 是否接受 gzip, 按 q 值判断: gzip;q=0 代表不接受
+    //没有单独列出 gzip 时看 * 的 q 值, q 值不合法的按不接受处理
+    static boolean acceptsGzip(String acceptEncoding){
+
+        if(null == acceptEncoding){
+            return false;
+        }
+
+        Double gzip = null;
+        Double any = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if(!"gzip".equals(coding) && !"x-gzip".equals(coding)
+                    && !"*".equals(coding)){
+                continue;
+            }
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim().toLowerCase();
+                if(param.startsWith("q=")){
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if("*".equals(coding)){
+                any = q;
+            } else {
+                gzip = null == gzip ? q : Math.max(gzip, q);
+            }
+        }
+
+        Double q = null != gzip ? gzip : any;
+        return null != q && q > 0;
+    }
+
+    //gzip 响应的 ETag: 在引号内加上 -gz 后缀
+    private static String gzipEtag(String etag){
+        return etag.substring(0, etag.length() - 1) + "-gz\"";
     }
 
 }
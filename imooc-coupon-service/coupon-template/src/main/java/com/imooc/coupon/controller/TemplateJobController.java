@@ -0,0 +1,32 @@
+package com.imooc.coupon.controller;
+
+//模板后台任务的监控控制器
+
+import com.imooc.coupon.service.ITemplateJobService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@Slf4j
+@RestController
+public class TemplateJobController {
+
+    //模板后台任务服务
+    private final ITemplateJobService templateJobService;
+
+    @Autowired
+    public TemplateJobController(ITemplateJobService templateJobService) {
+        this.templateJobService = templateJobService;
+    }
+
+    //每种任务类型的队列长度, 等待时间, 执行时间等
+    //127.0.0.1:7001/coupon-template/template/job/stats
+    @GetMapping("/template/job/stats")
+    public Map<String, Object> jobStats(){
+        log.info("View Template Job Stats.");
+        return templateJobService.stats();
+    }
+}
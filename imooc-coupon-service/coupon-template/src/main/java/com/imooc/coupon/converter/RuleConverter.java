@@ -1,15 +1,30 @@
 package com.imooc.coupon.converter;
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.imooc.coupon.vo.TemplateRule;
 
 import javax.persistence.AttributeConverter;
 import javax.persistence.Converter;
+import java.util.concurrent.ExecutionException;
 
 //优惠券规则属性转换器
+//规则字符串 -> 解析好的 TemplateRule 的缓存, 批量加载模板时相同的规则只解析一次
+//缓存的 TemplateRule 不会交给调用方, 每个模板拿到的是一份复制(共享解析好的不可修改的集合),
+//修改一个模板的规则不会影响缓存和其他模板
 @Converter
 public class RuleConverter
         implements AttributeConverter<TemplateRule,String> {
+
+    //缓存的规则个数上限
+    private static final long MAX_CACHED_RULES = 10000;
+
+    //Converter 由 JPA 实例化, 缓存在所有实例之间共享
+    private static final Cache<String, TemplateRule> RULES =
+            CacheBuilder.newBuilder().maximumSize(MAX_CACHED_RULES).build();
+
     @Override
     public String convertToDatabaseColumn(TemplateRule templateRule) {
         return JSON.toJSONString(templateRule);
@@ -17,6 +32,21 @@ public class RuleConverter
 
     @Override
     public TemplateRule convertToEntityAttribute(String s) {
-        return JSON.parseObject(s,TemplateRule.class);
+        try {
+            return RULES.get(s, () -> parseRule(s)).copy();
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw new IllegalArgumentException("Invalid Template Rule: " + s, ex);
+        }
+    }
+
+    //解析规则, 同时解析商品类型(以及它的位掩码)和叠加使用的优惠券编码
+    private static TemplateRule parseRule(String s) {
+
+        TemplateRule rule = JSON.parseObject(s,TemplateRule.class);
+        rule.shareKeys();
+        if (null != rule.getUsage()) {
+            rule.getUsage().goodsTypeMask();
+        }
+        return rule;
     }
 }
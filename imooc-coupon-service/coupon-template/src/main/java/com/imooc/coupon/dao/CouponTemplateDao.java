@@ -3,7 +3,11 @@ package com.imooc.coupon.dao;
 import com.imooc.coupon.entity.CouponTemplate;
 import com.sun.org.apache.xpath.internal.operations.Bool;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 //CouponTemplate Dao接口定义
@@ -14,6 +18,10 @@ public interface CouponTemplateDao
     //where name = ...
     CouponTemplate findByName(String name);
 
+    //根据模板名称批量查询模板
+    //where name in (...)
+    List<CouponTemplate> findAllByNameIn(Collection<String> names);
+
     //根据available 和 expired 标记查找模板记录
     //where available = ... and expired = ...
     List<CouponTemplate> findAllByAvailableAndExpired(
@@ -23,4 +31,18 @@ public interface CouponTemplateDao
     //根据expired标记查找模板记录
     //where expired = ...
     List<CouponTemplate> findAllByExpired(Boolean expired);
+
+    //根据expired标记和失效时间查找模板记录, 走 (expired, deadline) 索引
+    //where expired = ... and deadline < ...
+    List<CouponTemplate> findAllByExpiredAndDeadlineLessThan(
+            Boolean expired, Long deadline
+    );
+
+    //把模板标记为过期, 已经过期的不会重复修改
+    //return 修改的记录数
+    @Modifying
+    @Transactional
+    @Query("update CouponTemplate t set t.expired = true " +
+            "where t.id in ?1 and t.expired = false")
+    int expireByIds(Collection<Integer> ids);
 }
@@ -96,6 +96,10 @@ public class CouponTemplate implements Serializable {
     @Convert(converter = RuleConverter.class)
     private TemplateRule rule;
 
+    //模板的失效时间, 和 rule.expiration.deadline 相同, 单独一列用于按时间范围查询
+    @Column(name = "deadline",nullable = false)
+    private Long deadline;
+
     //自定义构造函数
     public CouponTemplate(String name, String logo, String desc, String category,
                           Integer productLine, Integer count,Long userId,
@@ -114,5 +118,6 @@ public class CouponTemplate implements Serializable {
                 new SimpleDateFormat("yyyyMMdd").format(new Date());
         this.target = DistributeTarget.of(target);
         this.rule = rule;
+        this.deadline = rule.getExpiration().getDeadline();
     }
 }
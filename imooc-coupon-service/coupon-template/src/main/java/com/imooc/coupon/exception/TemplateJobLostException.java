@@ -0,0 +1,9 @@
+package com.imooc.coupon.exception;
+
+//模板后台任务已经被其他实例认领, 当前实例放弃执行, 不重试也不结束任务
+public class TemplateJobLostException extends RuntimeException {
+
+    public TemplateJobLostException(String jobId) {
+        super("Template Job Is Claimed By Another Instance: " + jobId);
+    }
+}
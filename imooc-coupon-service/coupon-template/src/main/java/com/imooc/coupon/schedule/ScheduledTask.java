@@ -1,20 +1,19 @@
 package com.imooc.coupon.schedule;
 
-// 定时清理已过起的优惠券模板
+// 定时把即将过期的优惠券模板加入失效时间队列
 
 import com.imooc.coupon.dao.CouponTemplateDao;
 import com.imooc.coupon.entity.CouponTemplate;
-import com.imooc.coupon.vo.TemplateRule;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 
 
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 
 @Slf4j
@@ -24,43 +23,50 @@ public class ScheduledTask {
     // CouponTemplate Dao
     private final CouponTemplateDao couponTemplateDao;
 
+    //按失效时间下线模板
+    private final TemplateExpiryScheduler expiryScheduler;
+
+    //每次加入队列的时间范围, 要大于执行间隔
+    @Value("${coupon.template-expiry.horizon-millis:7200000}")
+    private long horizonMillis;
+
     @Autowired
-    public ScheduledTask(CouponTemplateDao couponTemplateDao) {
+    public ScheduledTask(CouponTemplateDao couponTemplateDao,
+                         TemplateExpiryScheduler expiryScheduler) {
         this.couponTemplateDao = couponTemplateDao;
+        this.expiryScheduler = expiryScheduler;
     }
 
-    //下线已过期的优惠券模板  每60分钟将数据库中没过期的优惠券模板取出来判断日期
-    @Scheduled(fixedRate = 60 * 60 * 1000)
+    //每60分钟(以及启动时)从 deadline 索引中查出接下来 horizon 内失效的模板, 加入失效时间队列
+    //已经过了失效时间的模板会被立即下线
+    @Scheduled(fixedRateString = "${coupon.template-expiry.seed-millis:3600000}")
     public void offlineCouponTemplate(){
-        log.info("Start To Expire CouponTemplate");
+        log.info("Start To Schedule CouponTemplate Expiry");
 
         List<CouponTemplate> templates =
-                couponTemplateDao.findAllByExpired(false);
+                couponTemplateDao.findAllByExpiredAndDeadlineLessThan(
+                        false, System.currentTimeMillis() + horizonMillis);
         if(CollectionUtils.isEmpty(templates)){
-            log.info("Done to expire CouponTemplate.");
+            log.info("Done to schedule CouponTemplate Expiry.");
             return;
         }
 
-        Date cur = new Date();
-        List<CouponTemplate> expiredTemplates =
-                new ArrayList<>(templates.size());
-
+        List<CouponTemplate> unfilled = new ArrayList<>();
         templates.forEach(t -> {
-
-            // 根据优惠券模板规则中的 “过期规则” 校验模板是否过期
-            TemplateRule rule = t.getRule();
-            if(rule.getExpiration().getDeadline() < cur.getTime()){
-                t.setExpired(true);
-                expiredTemplates.add(t);
+            //deadline 列还没有回填的旧数据, 从规则中取出来保存, 之后就可以走索引
+            if(t.getDeadline() <= 0){
+                t.setDeadline(t.getRule().getExpiration().getDeadline());
+                unfilled.add(t);
             }
+            expiryScheduler.schedule(t.getId(), t.getDeadline());
         });
 
-        if(CollectionUtils.isNotEmpty(expiredTemplates)){
-            log.info("Expired CouponTemplate Num: {}",
-                    couponTemplateDao.saveAll(expiredTemplates));
+        if(CollectionUtils.isNotEmpty(unfilled)){
+            couponTemplateDao.saveAll(unfilled);
+            log.info("Fill CouponTemplate Deadline Num: {}", unfilled.size());
         }
 
-        log.info("Done to expire CouponTemplate.");
+        log.info("Done to schedule CouponTemplate Expiry: {}", expiryScheduler.size());
 
     }
 }
@@ -0,0 +1,165 @@
+package com.imooc.coupon.schedule;
+
+// 按失效时间下线优惠券模板
+
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.service.ITemplateBaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 内存中按失效时间排序的模板队列, 一个后台线程等到队头的失效时间再下线模板
+ * 队列中只有最近一段时间内失效的模板, 由 {@link ScheduledTask} 定时从 deadline 索引中补充
+ */
+@Slf4j
+@Component
+public class TemplateExpiryScheduler {
+
+    //一次最多下线的模板个数
+    private static final int MAX_BATCH = 500;
+
+    private final CouponTemplateDao couponTemplateDao;
+
+    //模板过期之后重建可用模板目录
+    private final ITemplateBaseService templateBaseService;
+
+    //按失效时间排序的队列
+    private final DelayQueue<Deadline> queue = new DelayQueue<>();
+
+    //已经在队列中的模板 -> 失效时间, 避免重复加入
+    private final ConcurrentMap<Integer, Long> scheduled = new ConcurrentHashMap<>();
+
+    //是否开启
+    @Value("${coupon.template-expiry.enabled:true}")
+    private boolean enabled;
+
+    //下线失败之后的重试间隔
+    @Value("${coupon.template-expiry.retry-millis:5000}")
+    private long retryMillis;
+
+    private Thread worker;
+
+    @Autowired
+    public TemplateExpiryScheduler(CouponTemplateDao couponTemplateDao,
+                                   ITemplateBaseService templateBaseService) {
+        this.couponTemplateDao = couponTemplateDao;
+        this.templateBaseService = templateBaseService;
+    }
+
+    @PostConstruct
+    public void start() {
+
+        if (!enabled) {
+            return;
+        }
+        worker = new Thread(this::run, "ImoocTemplateExpiry");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (null != worker) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * <h2>在失效时间下线模板</h2>
+     * 已经过了失效时间的模板会被立即下线
+     * */
+    public void schedule(Integer templateId, Long deadline) {
+
+        if (!enabled || null == deadline) {
+            return;
+        }
+        Long old = scheduled.put(templateId, deadline);
+        if (!deadline.equals(old)) {
+            queue.add(new Deadline(templateId, deadline));
+        }
+    }
+
+    /**
+     * <h2>队列中等待下线的模板个数</h2>
+     * */
+    public int size() {
+        return scheduled.size();
+    }
+
+    private void run() {
+
+        List<Deadline> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                expire(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException ex) {
+                log.error("Expire CouponTemplate Error: {}", ex.getMessage());
+                long retryAt = System.currentTimeMillis() + retryMillis;
+                batch.forEach(d -> schedule(d.templateId, retryAt));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    //下线一批到期的模板, 队列中已经被更新过失效时间的模板跳过
+    //有到期的模板就重建可用模板目录, 目录没有变化时版本号不变
+    private void expire(List<Deadline> batch) {
+
+        List<Integer> ids = batch.stream()
+                .filter(d -> d.deadline.equals(scheduled.get(d.templateId)))
+                .map(d -> d.templateId)
+                .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        int expired = couponTemplateDao.expireByIds(ids);
+        batch.forEach(d -> scheduled.remove(d.templateId, d.deadline));
+        log.info("Expired CouponTemplate: {}, {}", ids, expired);
+
+        //不按 expired 判断: 上一次下线成功但是重建目录失败时, 重试的这一次 expired 是 0
+        templateBaseService.refreshTemplateCatalog();
+    }
+
+    //一个模板的失效时间
+    private static class Deadline implements Delayed {
+
+        private final Integer templateId;
+
+        private final Long deadline;
+
+        private Deadline(Integer templateId, Long deadline) {
+            this.templateId = templateId;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline, ((Deadline) other).deadline);
+        }
+    }
+}
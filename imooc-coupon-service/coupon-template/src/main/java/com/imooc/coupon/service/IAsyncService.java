@@ -1,10 +1,22 @@
 package com.imooc.coupon.service;
 
 import com.imooc.coupon.entity.CouponTemplate;
+import com.imooc.coupon.vo.CouponCodeProgress;
 
-//异步服务接口定义  给优惠券模板生成优惠券码
+import java.util.List;
+
+//异步服务接口定义  给优惠券模板生成优惠券码, 由模板任务在后台线程中执行
 public interface IAsyncService {
 
-    //根据模板异步地创建优惠券码
-    void asyncConstructCouponByTemplate(CouponTemplate couponTemplate);
+    //把等待生成优惠券码的模板标记为排队中
+    void markCouponCodeQueued(List<CouponTemplate> couponTemplates);
+
+    //依次给多个模板创建优惠券码, 由模板任务 ITemplateJobService 在后台线程中调用
+    //一个模板失败不影响其他模板, 有失败的模板时最后抛出异常
+    //推送前确认任务 jobId 仍然由 owner 持有, 已经被其他实例认领时抛出 TemplateJobLostException
+    void constructCouponByTemplates(List<CouponTemplate> couponTemplates,
+                                    String jobId, String owner);
+
+    //获取优惠券码推送到 Redis 的进度
+    CouponCodeProgress getCouponCodeProgress(Integer templateId);
 }
@@ -2,8 +2,11 @@ package com.imooc.coupon.service;
 
 import com.imooc.coupon.entity.CouponTemplate;
 import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.vo.TemplateBuildResult;
 import com.imooc.coupon.vo.TemplateRequest;
 
+import java.util.List;
+
 //构建优惠券模板接口定义
 public interface IBuildTemplateService {
 
@@ -13,4 +16,12 @@ public interface IBuildTemplateService {
         @return CouponTemplate 优惠券模板实体
      */
     CouponTemplate buildTemplate(TemplateRequest request) throws CouponException;
+
+     /*
+        批量创建优惠券模板, 校验不通过或者名称重复的模板不创建, 其余的一起保存
+        @param requests 模板信息请求对象列表
+        @return 和 requests 一一对应的创建结果
+     */
+    List<TemplateBuildResult> buildTemplates(List<TemplateRequest> requests)
+            throws CouponException;
 }
@@ -3,6 +3,8 @@ package com.imooc.coupon.service;
 import com.imooc.coupon.entity.CouponTemplate;
 import com.imooc.coupon.exception.CouponException;
 import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateCatalog;
+import com.imooc.coupon.vo.TemplateSDKChanges;
 
 import java.util.Collection;
 import java.util.List;
@@ -23,5 +25,17 @@ public interface ITemplateBaseService {
     //return map<key: 模板 id,  value： CouponTemplateSDK>
     Map<Integer,CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids);
 
+    //同上, 可用的模板从给定的目录快照中获取, 调用方的版本号和结果来自同一个快照
+    Map<Integer,CouponTemplateSDK> findIds2TemplateSDK(TemplateCatalog catalog,
+                                                       Collection<Integer> ids);
 
+    //获取可用模板目录的当前快照, 只读取本地快照(定期检查共享的版本号), 不打印日志
+    TemplateCatalog findTemplateCatalog();
+
+    //获取可用模板目录从 since 版本到当前版本的变化
+    //版本号由所有实例共享, since 太旧(不在保留的变化中)时返回全量
+    TemplateSDKChanges findTemplateSDKChanges(Long since);
+
+    //模板变为可用或者过期之后, 重建可用模板目录
+    void refreshTemplateCatalog();
 }
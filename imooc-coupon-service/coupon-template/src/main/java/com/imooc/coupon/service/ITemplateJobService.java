@@ -0,0 +1,18 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.TemplateJobType;
+import com.imooc.coupon.exception.CouponException;
+
+import java.util.List;
+import java.util.Map;
+
+//模板后台任务服务定义: 持久化的任务队列, 每种任务类型单独限制并发
+public interface ITemplateJobService {
+
+    //提交一个给模板生成优惠券码的任务
+    //队列已满时拒绝, 抛出 CouponException
+    void submit(TemplateJobType type, List<Integer> templateIds) throws CouponException;
+
+    //每种任务类型的统计信息(队列长度, 等待时间, 执行时间等)
+    Map<String, Object> stats();
+}
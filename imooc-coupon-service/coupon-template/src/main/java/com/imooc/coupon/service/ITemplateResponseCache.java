@@ -0,0 +1,15 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.vo.SerializedResponse;
+
+import java.util.Collection;
+
+//模板 SDK 接口的响应缓存: 缓存序列化好的 CommonResponse 字节, 可用模板目录版本变化时重新序列化
+public interface ITemplateResponseCache {
+
+    //所有可用模板的响应 CommonResponse<List<CouponTemplateSDK>>
+    SerializedResponse findAllUsableTemplate();
+
+    //模板 ids 到 CouponTemplateSDK 映射的响应 CommonResponse<Map<Integer, CouponTemplateSDK>>
+    SerializedResponse findIds2TemplateSDK(Collection<Integer> ids);
+}
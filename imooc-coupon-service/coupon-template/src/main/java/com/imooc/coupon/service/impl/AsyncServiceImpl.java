@@ -4,52 +4,255 @@ import com.google.common.base.Stopwatch;
 import com.imooc.coupon.constant.Constant;
 import com.imooc.coupon.dao.CouponTemplateDao;
 import com.imooc.coupon.entity.CouponTemplate;
+import com.imooc.coupon.exception.TemplateJobLostException;
+import com.imooc.coupon.generator.CodePermutation;
+import com.imooc.coupon.generator.CouponCodeGenerator;
 import com.imooc.coupon.service.IAsyncService;
+import com.imooc.coupon.service.ITemplateBaseService;
+import com.imooc.coupon.vo.CouponCodeProgress;
 import lombok.extern.slf4j.Slf4j;
-import net.bytebuddy.asm.Advice;
-import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 //异步服务接口实现
 @Slf4j
 @Service
 public class AsyncServiceImpl implements IAsyncService {
 
+    //进度 hash 中的 field
+    private static final String TOTAL = "total";
+    private static final String PUSHED = "pushed";
+    private static final String STATUS = "status";
+
+    //按需生成的计数 hash 中的 field
+    private static final String COUNT = "count";
+    private static final String ISSUED = "issued";
+    private static final String PREFIX4 = "prefix4";
+    private static final String DATE = "date";
+
     private final CouponTemplateDao templateDao;
 
     private final StringRedisTemplate redisTemplate;
 
+    //模板可用之后重建可用模板目录
+    private final ITemplateBaseService templateBaseService;
+
+    //确认任务持有者之后开始推送的脚本
+    private final DefaultRedisScript<String> startPushScript;
+
+    //确认任务持有者之后推送一批优惠券码的脚本
+    private final DefaultRedisScript<Long> pushScript;
+
+    //确认任务持有者之后结束推送的脚本
+    private final DefaultRedisScript<Long> endPushScript;
+
+    //每一批生成并推送的优惠券码个数
+    @Value("${coupon.code-push.chunk-size:10000}")
+    private int chunkSize;
+
+    //优惠券码置换的密钥, 泄露之后可以推算出其他的优惠券码
+    @Value("${coupon.code-secret}")
+    private String codeSecret;
+
+    //是否按需生成优惠券码
+    @Value("${coupon.code-mint.enabled:false}")
+    private boolean mintEnabled;
+
     @Autowired
-    public AsyncServiceImpl(CouponTemplateDao templateDao, StringRedisTemplate redisTemplate) {
+    public AsyncServiceImpl(CouponTemplateDao templateDao, StringRedisTemplate redisTemplate,
+                            ITemplateBaseService templateBaseService) {
         this.templateDao = templateDao;
         this.redisTemplate = redisTemplate;
+        this.templateBaseService = templateBaseService;
+
+        this.startPushScript = new DefaultRedisScript<>();
+        this.startPushScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/start_code_push.lua")));
+        this.startPushScript.setResultType(String.class);
+
+        this.pushScript = new DefaultRedisScript<>();
+        this.pushScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/push_coupon_codes.lua")));
+        this.pushScript.setResultType(Long.class);
+
+        this.endPushScript = new DefaultRedisScript<>();
+        this.endPushScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/end_code_push.lua")));
+        this.endPushScript.setResultType(Long.class);
     }
 
-    //根据模板异步地创建优惠券码
-    @Async("getAsyncExecutor")
+    //没有配置密钥时启动失败, 不能用空的密钥生成优惠券码
+    @PostConstruct
+    public void checkCodeSecret() {
+        if (StringUtils.isBlank(codeSecret)) {
+            throw new IllegalStateException(
+                    "coupon.code-secret Is Not Configured, Set COUPON_CODE_SECRET");
+        }
+    }
+
+    //把等待生成优惠券码的模板标记为排队中, 排队中的模板也可以查询进度
     @Override
-    public void asyncConstructCouponByTemplate(CouponTemplate couponTemplate) {
+    public void markCouponCodeQueued(List<CouponTemplate> couponTemplates) {
+
+        if(mintEnabled){
+            return;
+        }
+
+        SessionCallback<Object> sessionCallback = new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations redisOperations) throws DataAccessException {
+                couponTemplates.forEach(t -> {
+                    Map<String, String> progress = new HashMap<>();
+                    progress.put(TOTAL, t.getCount().toString());
+                    progress.put(PUSHED, "0");
+                    progress.put(STATUS, "QUEUED");
+                    redisOperations.opsForHash().putAll(progressRedisKey(t.getId()), progress);
+                });
+                return null;
+            }
+        };
+        redisTemplate.executePipelined(sessionCallback);
+    }
+
+    //依次给多个模板创建优惠券码, 在模板任务的线程中执行
+    //一个模板失败不影响后面的模板, 全部处理完之后有失败的抛出异常, 由模板任务重试
+    //任务被其他实例认领时立即停止, 抛出 TemplateJobLostException, 由新的持有者继续
+    //所有模板处理完之后重建一次可用模板目录
+    @Override
+    public void constructCouponByTemplates(List<CouponTemplate> couponTemplates,
+                                           String jobId, String owner) {
 
         Stopwatch stopwatch = Stopwatch.createStarted();
 
-        Set<String> couponCodes = buildCouponCode(couponTemplate);
+        int failed = 0;
+        for (CouponTemplate couponTemplate : couponTemplates) {
+            try {
+                constructCouponByTemplate(couponTemplate, jobId, owner);
+            } catch (TemplateJobLostException ex) {
+                log.warn("Stop Construct CouponCode: {}, {}",
+                        couponTemplate.getId(), ex.getMessage());
+                throw ex;
+            } catch (RuntimeException ex) {
+                //进度中已经记录了 FAILED, 继续处理下一个模板
+                failed++;
+            }
+        }
+        templateBaseService.refreshTemplateCatalog();
+
+        stopwatch.stop();
+        log.info("Construct CouponCode By Templates: {}, failed {}, cost {}ms",
+                couponTemplates.size(), failed,
+                stopwatch.elapsed(TimeUnit.MILLISECONDS));
+
+        if(failed > 0){
+            throw new IllegalStateException(
+                    "Construct CouponCode Failed Templates: " + failed);
+        }
+    }
+
+    //给一个模板创建优惠券码
+    //按 chunkSize 分批生成, 每一批用一个脚本推送到 Redis, 推送当前批时并行生成下一批
+    //清理、每一批推送和结束都先确认任务仍然由当前实例持有(心跳过期后可能被其他实例认领),
+    //两个实例不会同时向同一个列表推送
+    //所有批次都推送完成之后模板才可用
+    //按需生成时只初始化计数, 模板立即可用
+    private void constructCouponByTemplate(CouponTemplate couponTemplate,
+                                           String jobId, String owner) {
+
+        if(mintEnabled){
+            initCouponCodeMint(couponTemplate);
+            return;
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
 
         //imooc_coupon_template_code_1
         String redisKey = String.format("%s%s",
                 Constant.RedisPrefix.COUPON_TEMPLATE,couponTemplate.getId().toString());
-        log.info("Push CouponCode TO Redis",
-                redisTemplate.opsForList().rightPushAll(redisKey,couponCodes));
+        List<String> pushKeys = Arrays.asList(
+                Constant.RedisPrefix.COUPON_TEMPLATE_JOB_OWNERS,
+                redisKey, progressRedisKey(couponTemplate.getId()));
+        int total = couponTemplate.getCount();
+
+        //重试时先清掉上一次推送了一部分的优惠券码, 模板还不可用, 不会有人领取
+        String started = redisTemplate.execute(startPushScript, pushKeys,
+                jobId, owner, String.valueOf(total));
+        if ("LOST".equals(started)) {
+            throw new TemplateJobLostException(jobId);
+        }
+        if ("DONE".equals(started)) {
+            //上一个持有者已经推送完成, 还没有把模板标记为可用
+            log.info("CouponCode Already Pushed: {}", couponTemplate.getId());
+            makeAvailable(couponTemplate);
+            return;
+        }
 
-        couponTemplate.setAvailable(true);
-        templateDao.save(couponTemplate);
+        //正在并行生成的下一批, 推送失败时取消
+        CompletableFuture<String[]> next = null;
+        try {
+            //序号 0..total-1 经过置换得到后八位, 不会重复, 不需要去重
+            CouponCodeGenerator generator = buildCouponCodeGenerator(couponTemplate);
+
+            int pushed = 0;
+            next = CompletableFuture.supplyAsync(
+                    () -> generator.generate(0, Math.min(chunkSize, total)));
+            while (pushed < total) {
+                String[] chunk = next.join();
+                int from = pushed + chunk.length;
+                if (from < total) {
+                    next = CompletableFuture.supplyAsync(
+                            () -> generator.generate(from,
+                                    Math.min(chunkSize, total - from)));
+                }
+
+                pushed += chunk.length;
+                if (!pushCouponCodes(pushKeys, jobId, owner, pushed, chunk)) {
+                    throw new TemplateJobLostException(jobId);
+                }
+                log.debug("Push Coupon Code Chunk: {}, {}/{}",
+                        couponTemplate.getId(), pushed, total);
+            }
+        } catch (TemplateJobLostException ex) {
+            //新的持有者会重新推送, 不能删除它的列表
+            throw ex;
+        } catch (RuntimeException ex) {
+            //删除已经推送的一部分优惠券码, 模板不可用时 Redis 中不留下残缺的列表
+            //清理失败时附加到原来的异常上, 不覆盖推送失败的原因
+            try {
+                endCouponCodePush(pushKeys, jobId, owner, "FAILED");
+            } catch (RuntimeException cleanupEx) {
+                ex.addSuppressed(cleanupEx);
+            }
+            log.error("Construct CouponCode Error: {}, {}",
+                    couponTemplate.getId(), ex.getMessage());
+            throw ex;
+        } finally {
+            //推送失败时不再需要下一批; 还没有开始执行的生成任务会被跳过, 正常结束时已经完成
+            if (null != next) {
+                next.cancel(false);
+            }
+        }
+
+        //先记录推送完成再标记可用, 之后认领的实例不会再清理和推送这个模板
+        if (!endCouponCodePush(pushKeys, jobId, owner, "DONE")) {
+            throw new TemplateJobLostException(jobId);
+        }
+        makeAvailable(couponTemplate);
 
         stopwatch.stop();
         log.info("Construct CouponCode By Template Cost:{}ms",
@@ -59,66 +262,116 @@ public class AsyncServiceImpl implements IAsyncService {
         //异步批量创建优惠券结束
     }
 
-    //构造优惠券码
-    //优惠券码（每一张18位)
-    //前四位 : 产品线 + 类型
-    //中间六位 ： 日期随机（190101）
-    //后八位： 0-9 随机数构成
-
-    //return Set<String> 与 template.count 相同个数的优惠券码
-    private Set<String> buildCouponCode(CouponTemplate couponTemplate){
-        Stopwatch watch = Stopwatch.createStarted();
-
-        Set<String> result = new HashSet<>(couponTemplate.getCount());
-
-        //前四位
-        String prefix4 = couponTemplate.getProductLine().getCode().toString()
-                + couponTemplate.getCategory().getCode();
+    private void makeAvailable(CouponTemplate couponTemplate) {
+        couponTemplate.setAvailable(true);
+        templateDao.save(couponTemplate);
+    }
 
-        String date = new SimpleDateFormat("yyMMdd")
-                .format(couponTemplate.getCreateTime());
+    //获取优惠券码推送到 Redis 的进度
+    @Override
+    public CouponCodeProgress getCouponCodeProgress(Integer templateId) {
 
-        for(int i = 0;i != couponTemplate.getCount();++i){
-            result.add(prefix4 + buildCouponCodeSuffix14(date));
+        Map<Object, Object> progress = redisTemplate.opsForHash()
+                .entries(progressRedisKey(templateId));
+        if (progress.isEmpty()) {
+            return getCouponCodeMintProgress(templateId);
         }
 
-        while(result.size() < couponTemplate.getCount()){
-            result.add(prefix4 + buildCouponCodeSuffix14(date));
-        }
+        return new CouponCodeProgress(
+                templateId,
+                Integer.valueOf(progress.get(TOTAL).toString()),
+                Integer.valueOf(progress.get(PUSHED).toString()),
+                progress.get(STATUS).toString()
+        );
+    }
 
-        assert result.size() == couponTemplate.getCount();
+    //按需生成的模板, pushed 是已经发出的个数
+    private CouponCodeProgress getCouponCodeMintProgress(Integer templateId) {
 
-        watch.stop();
-        log.info("Build Coupon Code Cost: {}ms",
-                watch.elapsed(TimeUnit.MILLISECONDS));
+        List<Object> mint = redisTemplate.opsForHash().multiGet(
+                mintRedisKey(templateId), Arrays.asList(COUNT, ISSUED));
+        if (null == mint.get(0)) {
+            return new CouponCodeProgress(templateId, 0, 0, "NONE");
+        }
 
-        return result;
+        return new CouponCodeProgress(
+                templateId,
+                Integer.valueOf(mint.get(0).toString()),
+                Integer.valueOf(mint.get(1).toString()),
+                "ON_DEMAND"
+        );
     }
 
+    //初始化按需生成的计数, 领取时由分发微服务根据序号生成优惠券码
+    //计数已经存在时不重置已经发出的个数
+    private void initCouponCodeMint(CouponTemplate couponTemplate) {
+
+        String mintKey = mintRedisKey(couponTemplate.getId());
+        Map<String, String> mint = new HashMap<>();
+        mint.put(COUNT, couponTemplate.getCount().toString());
+        mint.put(PREFIX4, codePrefix4(couponTemplate));
+        mint.put(DATE, codeDate(couponTemplate));
+        redisTemplate.opsForHash().putAll(mintKey, mint);
+        redisTemplate.opsForHash().putIfAbsent(mintKey, ISSUED, "0");
 
-    //构造优惠券码的后14位
-    //date 是创建优惠券的日期
-    //return 14位优惠卷码
-    private String buildCouponCodeSuffix14(String date){
+        couponTemplate.setAvailable(true);
+        templateDao.save(couponTemplate);
 
-        char[] bases = new char[]{'1','2','3','4','5','6','7','8','9'};
+        log.info("CouponTemplate({}) is Available On Demand!", couponTemplate.getId());
+    }
 
-        //中间六位
-        List<Character> chars = date.chars()
-                .mapToObj(e -> (char) e).collect(Collectors.toList());
-        Collections.shuffle(chars);
-        String mid6 = chars.stream()
-                .map(Objects::toString).collect(Collectors.joining());
+    //构造优惠券码
+    //优惠券码（每一张18位)
+    //前四位 : 产品线 + 类型
+    //中间六位 ： 日期随机（190101）
+    //后八位： 序号经过置换得到, 每个模板的密钥不同
+    private CouponCodeGenerator buildCouponCodeGenerator(CouponTemplate couponTemplate){
 
+        return new CouponCodeGenerator(
+                codePrefix4(couponTemplate), codeDate(couponTemplate),
+                CodePermutation.of(codeSecret, couponTemplate.getId()));
+    }
 
-        //后八位
-        String suffix8 = RandomStringUtils.random(1,bases)
-                    + RandomStringUtils.randomNumeric(7);
+    //优惠券码前四位: 产品线 + 类型
+    private String codePrefix4(CouponTemplate couponTemplate){
+        return couponTemplate.getProductLine().getCode().toString()
+                + couponTemplate.getCategory().getCode();
+    }
 
+    //优惠券码中间六位洗牌之前的日期
+    private String codeDate(CouponTemplate couponTemplate){
+        return new SimpleDateFormat("yyMMdd").format(couponTemplate.getCreateTime());
+    }
 
+    //用一个脚本把一批优惠券码推送到 Redis, 任务已经被其他实例认领时返回 false
+    private boolean pushCouponCodes(List<String> pushKeys, String jobId, String owner,
+                                    int pushed, String[] codes){
+
+        Object[] args = new Object[codes.length + 3];
+        args[0] = jobId;
+        args[1] = owner;
+        args[2] = String.valueOf(pushed);
+        System.arraycopy(codes, 0, args, 3, codes.length);
+        return Long.valueOf(1).equals(
+                redisTemplate.execute(pushScript, pushKeys, args));
+    }
 
+    //结束推送(DONE 或者 FAILED), 任务已经被其他实例认领时返回 false
+    private boolean endCouponCodePush(List<String> pushKeys, String jobId,
+                                      String owner, String status){
+        return Long.valueOf(1).equals(
+                redisTemplate.execute(endPushScript, pushKeys, jobId, owner, status));
+    }
 
+    //按需生成优惠券码的模板计数 redis Key, 和优惠券码列表在同一个 slot
+    private String mintRedisKey(Integer templateId){
+        return String.format("%s{%s%s}", Constant.RedisPrefix.COUPON_TEMPLATE_MINT,
+                Constant.RedisPrefix.COUPON_TEMPLATE, templateId);
+    }
 
-        return mid6 + suffix8;
+    //优惠券码推送进度的 redis Key
+    private String progressRedisKey(Integer templateId){
+        return String.format("%s%s",
+                Constant.RedisPrefix.COUPON_TEMPLATE_PROGRESS, templateId);
     }
 }
@@ -1,15 +1,23 @@
 package com.imooc.coupon.service.impl;
 
+import com.imooc.coupon.constant.TemplateJobType;
 import com.imooc.coupon.dao.CouponTemplateDao;
 import com.imooc.coupon.entity.CouponTemplate;
 import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.schedule.TemplateExpiryScheduler;
 import com.imooc.coupon.service.IAsyncService;
 import com.imooc.coupon.service.IBuildTemplateService;
+import com.imooc.coupon.service.ITemplateJobService;
+import com.imooc.coupon.vo.TemplateBuildResult;
 import com.imooc.coupon.vo.TemplateRequest;
 import com.imooc.coupon.vo.TemplateRule;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.*;
+import java.util.stream.Collectors;
+
 @Slf4j
 @Service
 public class BuildTemplateServiceImpl implements IBuildTemplateService {
@@ -18,9 +26,23 @@ public class BuildTemplateServiceImpl implements IBuildTemplateService {
 
     private final CouponTemplateDao couponTemplateDao;
 
-    public BuildTemplateServiceImpl(IAsyncService asyncService, CouponTemplateDao couponTemplateDao) {
+    //按失效时间下线模板
+    private final TemplateExpiryScheduler expiryScheduler;
+
+    //模板后台任务, 生成优惠券码
+    private final ITemplateJobService templateJobService;
+
+    //一次批量创建最多的模板个数
+    @Value("${coupon.build-batch.max-size:500}")
+    private int maxBatchSize;
+
+    public BuildTemplateServiceImpl(IAsyncService asyncService, CouponTemplateDao couponTemplateDao,
+                                    TemplateExpiryScheduler expiryScheduler,
+                                    ITemplateJobService templateJobService) {
         this.asyncService = asyncService;
         this.couponTemplateDao = couponTemplateDao;
+        this.expiryScheduler = expiryScheduler;
+        this.templateJobService = templateJobService;
     }
 
     //创建优惠券模板
@@ -44,12 +66,110 @@ public class BuildTemplateServiceImpl implements IBuildTemplateService {
 
         template = couponTemplateDao.save(template);
 
-        //根据优惠券模板异步生成优惠券码
-        asyncService.asyncConstructCouponByTemplate(template);
+        //根据优惠券模板在后台任务中生成优惠券码
+        submitJob(TemplateJobType.BUILD, Collections.singletonList(template));
+
+        //到失效时间时下线
+        expiryScheduler.schedule(template.getId(), template.getDeadline());
 
         return template;
     }
 
+    //批量创建优惠券模板
+    //1. 逐个校验参数, 请求内部的重名只保留第一个
+    //2. 一次查询校验数据库中的重名
+    //3. 一次 saveAll(一个事务) 保存所有合法的模板
+    //4. 所有模板的优惠券码在一个后台任务中依次生成
+    @Override
+    public List<TemplateBuildResult> buildTemplates(List<TemplateRequest> requests)
+            throws CouponException {
+
+        if(null == requests || requests.isEmpty() || requests.size() > maxBatchSize){
+            throw new CouponException("BuildTemplates Size Is Not Valid");
+        }
+
+        //名称的唯一索引不区分大小写, 这里也按小写比较
+        TemplateBuildResult[] results = new TemplateBuildResult[requests.size()];
+        Map<String, Integer> name2Index = new LinkedHashMap<>();
+        for (int i = 0; i != requests.size(); ++i) {
+            TemplateRequest request = requests.get(i);
+            if(!isValid(request)){
+                results[i] = failed(i, request, "INVALID",
+                        "BuildTemplate Param is not valid");
+            }else if(name2Index.containsKey(request.getName().toLowerCase())){
+                results[i] = failed(i, request, "DUPLICATE_NAME",
+                        "Same Name In Request");
+            }else{
+                name2Index.put(request.getName().toLowerCase(), i);
+            }
+        }
+
+        if(!name2Index.isEmpty()){
+            List<String> names = name2Index.values().stream()
+                    .map(i -> requests.get(i).getName())
+                    .collect(Collectors.toList());
+            couponTemplateDao.findAllByNameIn(names).forEach(t -> {
+                Integer i = name2Index.remove(t.getName().toLowerCase());
+                if(null != i){
+                    results[i] = failed(i, requests.get(i), "DUPLICATE_NAME",
+                            "Exist Same Name Template");
+                }
+            });
+        }
+
+        if(!name2Index.isEmpty()){
+            List<CouponTemplate> templates = couponTemplateDao.saveAll(
+                    name2Index.values().stream()
+                            .map(i -> requestToTemplate(requests.get(i)))
+                            .collect(Collectors.toList()));
+
+            submitJob(TemplateJobType.BATCH_BUILD, templates);
+
+            //saveAll 按传入的顺序返回
+            Iterator<Integer> indexes = name2Index.values().iterator();
+            templates.forEach(t -> {
+                int i = indexes.next();
+                results[i] = new TemplateBuildResult(
+                        i, t.getName(), t.getId(), "CREATED", null);
+                expiryScheduler.schedule(t.getId(), t.getDeadline());
+            });
+        }
+
+        log.info("Build Templates: {}, created {}", requests.size(), name2Index.size());
+        return Arrays.asList(results);
+    }
+
+    //提交生成优惠券码的任务, 任务被拒绝(或者保存任务失败)时删除刚保存的模板
+    private void submitJob(TemplateJobType type, List<CouponTemplate> templates)
+            throws CouponException {
+
+        try {
+            //任务可能马上开始执行, 要在提交之前标记排队中
+            asyncService.markCouponCodeQueued(templates);
+            templateJobService.submit(type, templates.stream()
+                    .map(CouponTemplate::getId).collect(Collectors.toList()));
+        } catch (CouponException | RuntimeException ex) {
+            couponTemplateDao.deleteAll(templates);
+            log.error("Submit Template Job Error: {}, {}", type, ex.getMessage());
+            throw new CouponException("Template Job Is Rejected: " + ex.getMessage());
+        }
+    }
+
+    //校验单个请求, 缺少字段时 validate 会抛出空指针
+    private boolean isValid(TemplateRequest request){
+        try {
+            return null != request && request.validate();
+        } catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    private TemplateBuildResult failed(int index, TemplateRequest request,
+                                       String status, String message){
+        return new TemplateBuildResult(index,
+                null == request ? null : request.getName(), null, status, message);
+    }
+
     //将 TemplateRequest 转换为 CouponTemplate
     private CouponTemplate requestToTemplate(TemplateRequest request){
 
@@ -1,32 +1,70 @@
 package com.imooc.coupon.service.impl;
 
+import com.imooc.coupon.constant.Constant;
 import com.imooc.coupon.dao.CouponTemplateDao;
 import com.imooc.coupon.entity.CouponTemplate;
 import com.imooc.coupon.exception.CouponException;
 import com.imooc.coupon.service.ITemplateBaseService;
 import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.TemplateCatalog;
+import com.imooc.coupon.vo.TemplateSDKChanges;
 
 
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
 import org.springframework.stereotype.Service;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 //优惠券模板基础服务接口实现
+//可用的模板保存在内存中不可变的目录快照里, 模板变为可用或者过期时重建
+//版本号和最近的变化保存在 Redis 中, 所有实例共享, 同一个版本号在每个实例上的目录都相同
 @Slf4j
 @Service
 public class TemplateBaseServiceImpl implements ITemplateBaseService {
 
+    //目录 hash 中的 field
+    private static final String VERSION = "version";
+
     @Autowired
     private CouponTemplateDao templateDao;
 
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    //更新共享版本的脚本
+    private final DefaultRedisScript<Long> catalogScript;
+
+    //保留最近多少个版本的变化, 更旧的 since 返回全量
+    @Value("${coupon.catalog.history-size:100}")
+    private int historySize;
+
+    //多久检查一次共享的版本号, 发现其他实例上的变化
+    @Value("${coupon.catalog.version-check-millis:1000}")
+    private long versionCheckMillis;
+
+    //当前的目录快照, 第一次使用时构建
+    private volatile Catalog catalog;
+
+    //上一次检查共享版本号的时间
+    private volatile long lastVersionCheck;
+
+    public TemplateBaseServiceImpl() {
+        this.catalogScript = new DefaultRedisScript<>();
+        this.catalogScript.setScriptSource(new ResourceScriptSource(
+                new ClassPathResource("lua/update_template_catalog.lua")));
+        this.catalogScript.setResultType(Long.class);
+    }
+
     //根据优惠券模板id 获取优惠券模板信息
     //id是模板id
     @Override
@@ -43,29 +81,210 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
     //查找所有可用的优惠券模板
     @Override
     public List<CouponTemplateSDK> findAllUsableTemplate() {
-        List<CouponTemplate> templates =
-                templateDao.findAllByAvailableAndExpired(true,false);
-
-        return templates.stream().map(this::template2TemplateSDK).collect(Collectors.toList());
+        return currentCatalog().templates;
     }
 
     //获取模板 ids 到 CouponTemplateSDK 的映射
     //param ids 模板ids
     //return map<key: 模板 id,  value： CouponTemplateSDK>
+    //可用的模板从目录中获取, 其余的(已过期, 还没有可用)查询数据库
     @Override
     public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(Collection<Integer> ids) {
+        return findIds2TemplateSDK(currentCatalog().snapshot, ids);
+    }
+
+    @Override
+    public Map<Integer, CouponTemplateSDK> findIds2TemplateSDK(TemplateCatalog catalog,
+                                                              Collection<Integer> ids) {
+
+        Map<Integer, CouponTemplateSDK> id2Template = catalog.getId2Template();
+        Map<Integer, CouponTemplateSDK> result = new HashMap<>(ids.size());
+        List<Integer> missIds = new ArrayList<>();
+        ids.forEach(id -> {
+            CouponTemplateSDK template = id2Template.get(id);
+            if(null != template){
+                result.put(id, template);
+            }else{
+                missIds.add(id);
+            }
+        });
+        if(missIds.isEmpty()){
+            return result;
+        }
 
-        List<CouponTemplate> templates = templateDao.findAllById(ids);
+        List<CouponTemplate> templates = templateDao.findAllById(missIds);
 
-        return templates.stream().map(this::template2TemplateSDK)
+        result.putAll(templates.stream().map(this::template2TemplateSDK)
                 .collect(Collectors.toMap(
                         CouponTemplateSDK::getId, Function.identity()
-                ));
+                )));
+        return result;
+
+    }
+
+    @Override
+    public TemplateCatalog findTemplateCatalog() {
+        return currentCatalog().snapshot;
+    }
+
+    //获取可用模板目录从 since 版本到当前版本的变化
+    @Override
+    public TemplateSDKChanges findTemplateSDKChanges(Long since) {
+
+        Catalog current = currentCatalog();
+        if(null != since && since == current.version){
+            return new TemplateSDKChanges(current.version, false,
+                    Collections.emptyList(), Collections.emptyList());
+        }
+
+        List<String[]> deltas = null == since
+                ? Collections.emptyList()
+                : findDeltas(since, current.version);
+        if(deltas.isEmpty()){
+            log.info("Full Template Catalog: since {}, current {}",
+                    since, current.version);
+            return new TemplateSDKChanges(current.version, true,
+                    current.templates, Collections.emptyList());
+        }
+
+        //合并多个版本的变化, 先加入后删除的模板不出现在结果中
+        Map<Integer, CouponTemplateSDK> added = new LinkedHashMap<>();
+        Set<Integer> removed = new LinkedHashSet<>();
+        deltas.forEach(delta -> {
+            splitIds(delta[1]).forEach(id -> {
+                removed.remove(id);
+                CouponTemplateSDK template = current.id2Template.get(id);
+                if(null != template){
+                    added.put(id, template);
+                }
+            });
+            splitIds(delta[2]).forEach(id -> {
+                if(null == added.remove(id)){
+                    removed.add(id);
+                }
+            });
+        });
+
+        return new TemplateSDKChanges(current.version, false,
+                new ArrayList<>(added.values()), new ArrayList<>(removed));
+    }
 
+    //重建可用模板目录, 没有变化时版本号不变
+    //有变化时共享的版本号加一, 其他实例在下一次检查版本号时重建
+    //Redis 不可用时用本地的版本号应用 db 中的目录, 之后的重建再发布到共享的版本
+    @Override
+    @Scheduled(fixedDelayString = "${coupon.catalog.refresh-millis:60000}")
+    public synchronized void refreshTemplateCatalog() {
+
+        Map<Integer, CouponTemplateSDK> id2Template = new LinkedHashMap<>();
+        templateDao.findAllByAvailableAndExpired(true,false).forEach(
+                t -> id2Template.put(t.getId(), template2TemplateSDK(t)));
+        String ids = id2Template.keySet().stream().sorted()
+                .map(String::valueOf)
+                .collect(Collectors.joining(","));
+
+        Catalog old = catalog;
+        Long version;
+        boolean published = true;
+        try {
+            //目录不存在时版本号从当前时间开始, Redis 数据丢失之后调用方的旧版本一定会拿到全量
+            version = redisTemplate.execute(
+                    catalogScript,
+                    Arrays.asList(Constant.RedisPrefix.COUPON_TEMPLATE_CATALOG,
+                            Constant.RedisPrefix.COUPON_TEMPLATE_CATALOG_CHANGES),
+                    ids,
+                    String.valueOf(System.currentTimeMillis() * 1000),
+                    String.valueOf(historySize)
+            );
+        } catch (RuntimeException ex) {
+            log.error("Update Template Catalog Version Error: {}", ex.getMessage());
+            if(null != old && old.id2Template.keySet().equals(id2Template.keySet())){
+                //可用模板没有变化, 保留原来的版本号, 调用方不用重复拿全量
+                return;
+            }
+            //本地的版本号不在共享的变化中, 调用方拿到的都是全量
+            version = System.currentTimeMillis() * 1000;
+            published = false;
+        }
+
+        if(null != old && old.published && old.version == version){
+            return;
+        }
+        catalog = new Catalog(version, id2Template, published);
+        log.info("Refresh Template Catalog: {}, {}, published {}",
+                version, id2Template.size(), published);
     }
 
+    private Catalog currentCatalog() {
+
+        Catalog current = catalog;
+        if(null == current){
+            refreshTemplateCatalog();
+            return catalog;
+        }
+
+        long now = System.currentTimeMillis();
+        if(now - lastVersionCheck < versionCheckMillis){
+            return current;
+        }
+        lastVersionCheck = now;
+        try {
+            Object version = redisTemplate.opsForHash().get(
+                    Constant.RedisPrefix.COUPON_TEMPLATE_CATALOG, VERSION);
+            //没有发布的目录在 Redis 恢复之后重新发布
+            if(!current.published || null == version
+                    || Long.parseLong(version.toString()) != current.version){
+                refreshTemplateCatalog();
+                current = catalog;
+            }
+        } catch (RuntimeException ex) {
+            log.error("Check Template Catalog Version Error: {}", ex.getMessage());
+        }
+        return current;
+    }
+
+    //从 Redis 中读取从 since 到 to 版本的变化, 按版本从旧到新
+    //since 不是保留的某个变化的起点时返回空列表, 不知道调用方的副本是什么
+    private List<String[]> findDeltas(long since, long to) {
+
+        List<String> changes;
+        try {
+            changes = redisTemplate.opsForList().range(
+                    Constant.RedisPrefix.COUPON_TEMPLATE_CATALOG_CHANGES, 0, -1);
+        } catch (RuntimeException ex) {
+            log.error("Find Template Catalog Changes Error: {}", ex.getMessage());
+            return Collections.emptyList();
+        }
+        if(null == changes){
+            return Collections.emptyList();
+        }
+
+        //最新的变化在队头; 比本地目录新的变化先跳过, 下一次检查版本号之后再返回
+        List<String[]> deltas = new ArrayList<>();
+        for (String change : changes) {
+            String[] delta = change.split(";", -1);
+            long from = Long.parseLong(delta[0]);
+            if(from >= to){
+                continue;
+            }
+            deltas.add(delta);
+            if(from == since){
+                Collections.reverse(deltas);
+                return deltas;
+            }
+        }
+        return Collections.emptyList();
+    }
 
+    private static List<Integer> splitIds(String ids) {
 
+        if(ids.isEmpty()){
+            return Collections.emptyList();
+        }
+        return Arrays.stream(ids.split(","))
+                .map(Integer::valueOf)
+                .collect(Collectors.toList());
+    }
 
     //将 CouponTemplate 转换为 CouponTemplateSDK
     private CouponTemplateSDK template2TemplateSDK(CouponTemplate template){
@@ -82,4 +301,30 @@ public class TemplateBaseServiceImpl implements ITemplateBaseService {
                 template.getRule()
         );
     }
+
+    //可用模板目录的快照, 构建之后不再修改
+    private static class Catalog {
+
+        private final long version;
+
+        //版本号是否已经发布到 Redis, false 代表 Redis 不可用时使用的本地版本号
+        private final boolean published;
+
+        private final Map<Integer, CouponTemplateSDK> id2Template;
+
+        private final List<CouponTemplateSDK> templates;
+
+        //对外提供的快照
+        private final TemplateCatalog snapshot;
+
+        private Catalog(long version, Map<Integer, CouponTemplateSDK> id2Template,
+                        boolean published) {
+            this.version = version;
+            this.published = published;
+            this.id2Template = Collections.unmodifiableMap(id2Template);
+            this.templates = Collections.unmodifiableList(
+                    new ArrayList<>(id2Template.values()));
+            this.snapshot = new TemplateCatalog(version, this.id2Template, this.templates);
+        }
+    }
 }
@@ -0,0 +1,520 @@
+package com.imooc.coupon.service.impl;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.imooc.coupon.constant.Constant;
+import com.imooc.coupon.constant.TemplateJobType;
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.entity.CouponTemplate;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.exception.TemplateJobLostException;
+import com.imooc.coupon.service.IAsyncService;
+import com.imooc.coupon.service.ITemplateJobService;
+import com.imooc.coupon.vo.TemplateJob;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 模板后台任务服务接口实现
+ * 1. 每种任务类型的容量由所有实例共享, 没有完成的任务达到容量时直接拒绝, 不会在调用方(Tomcat)线程中执行
+ * 2. 每种任务类型在每个实例上单独限制同时执行的个数
+ * 3. 任务保存在所有实例共享的 Redis hash 中, 执行完成后删除
+ * 4. 实例定时给持有的任务发送心跳; 心跳过期的任务(实例宕机或者被替换)由任意实例认领继续执行
+ *    提交和认领时给任务写入新的持有者 token, 推送优惠券码之前确认持有者, 同一个任务只有一个实例在执行
+ * 5. 失败的任务延迟重试, 超过最大次数之后放弃
+ * 6. 每种任务类型的排队数、执行数、计数和等待/执行时间注册到 MeterRegistry, tag 是任务类型,
+ *    stats() 也从这些 meter 读取
+ */
+@Slf4j
+@Service
+public class TemplateJobServiceImpl implements ITemplateJobService {
+
+    private final CouponTemplateDao templateDao;
+
+    private final IAsyncService asyncService;
+
+    private final StringRedisTemplate redisTemplate;
+
+    //读取每种任务类型的配置
+    private final Environment environment;
+
+    //注册队列的监控指标
+    private final MeterRegistry meterRegistry;
+
+    //检查容量并保存任务的脚本
+    private final DefaultRedisScript<Long> submitScript;
+
+    //结束任务的脚本
+    private final DefaultRedisScript<Long> finishScript;
+
+    //认领心跳过期的任务的脚本
+    private final DefaultRedisScript<List> claimScript;
+
+    //给持有者仍然是自己的任务发送心跳的脚本
+    private final DefaultRedisScript<List> heartbeatScript;
+
+    //最多执行的次数
+    @Value("${coupon.template-job.max-attempts:3}")
+    private int maxAttempts;
+
+    //第 n 次重试之前等待 n * retryDelayMillis
+    @Value("${coupon.template-job.retry-delay-millis:10000}")
+    private long retryDelayMillis;
+
+    //心跳多久没有更新之后, 任务可以被其他实例认领, 需要远大于心跳间隔
+    @Value("${coupon.template-job.stale-millis:60000}")
+    private long staleMillis;
+
+    //一次最多认领的任务个数
+    @Value("${coupon.template-job.claim-batch:10}")
+    private int claimBatch;
+
+    //任务类型 -> 队列
+    private final Map<TemplateJobType, JobQueue> queues =
+            new EnumMap<>(TemplateJobType.class);
+
+    private ExecutorService executor;
+
+    //延迟重试的定时器
+    private ScheduledExecutorService retryTimer;
+
+    //当前实例持有的任务(排队, 执行中, 等待重试), 任务 id -> 任务
+    private final Map<String, TemplateJob> owned = new ConcurrentHashMap<>();
+
+    //启动完成之后才认领其他实例的任务
+    private volatile boolean ready;
+
+    @Autowired
+    public TemplateJobServiceImpl(CouponTemplateDao templateDao,
+                                  IAsyncService asyncService,
+                                  StringRedisTemplate redisTemplate,
+                                  Environment environment,
+                                  MeterRegistry meterRegistry) {
+        this.templateDao = templateDao;
+        this.asyncService = asyncService;
+        this.redisTemplate = redisTemplate;
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+
+        this.submitScript = newScript("lua/submit_template_job.lua", Long.class);
+        this.finishScript = newScript("lua/finish_template_job.lua", Long.class);
+        this.claimScript = newScript("lua/claim_template_jobs.lua", List.class);
+        this.heartbeatScript = newScript("lua/heartbeat_template_jobs.lua", List.class);
+    }
+
+    @PostConstruct
+    public void init() {
+
+        for (TemplateJobType type : TemplateJobType.values()) {
+            String prefix = "coupon.template-job." + type.getConfigKey();
+            JobQueue queue = new JobQueue(
+                    environment.getProperty(prefix + ".concurrency",
+                            Integer.class, type.getConcurrency()),
+                    environment.getProperty(prefix + ".queue-capacity",
+                            Integer.class, type.getQueueCapacity()),
+                    type, meterRegistry
+            );
+            queues.put(type, queue);
+        }
+
+        //同时执行的任务数由每种任务类型的并发上限控制, 线程池不需要再限制
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocTemplateJob_%d")
+                        .setDaemon(true)
+                        .build());
+        retryTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ImoocTemplateJobRetry_%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * <h2>启动完成之后认领没有实例持有的任务</h2>
+     * 认领的任务不受容量限制, 已经计算在容量中
+     * */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recover() {
+        ready = true;
+        claimStaleJobs();
+    }
+
+    /**
+     * <h2>给持有的任务发送心跳, 认领心跳过期的任务</h2>
+     * */
+    @Scheduled(fixedDelayString = "${coupon.template-job.heartbeat-millis:10000}")
+    public void heartbeat() {
+
+        if (!ready) {
+            return;
+        }
+        try {
+            sendHeartbeats(System.currentTimeMillis());
+            claimStaleJobs();
+        } catch (RuntimeException ex) {
+            log.error("Template Job Heartbeat Error: {}", ex.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+
+        //正在执行和排队的任务还在 Redis 中, 心跳置为 0, 其他实例马上可以认领
+        retryTimer.shutdownNow();
+        executor.shutdownNow();
+        try {
+            sendHeartbeats(0L);
+        } catch (RuntimeException ex) {
+            log.error("Release Template Jobs Error: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * <h2>提交一个给模板生成优惠券码的任务</h2>
+     * 检查共享的容量和保存到 Redis 在一个脚本中完成, 保存之后才进入本地队列
+     * 被拒绝或者保存失败时任务不会执行
+     * */
+    @Override
+    public void submit(TemplateJobType type, List<Integer> templateIds)
+            throws CouponException {
+
+        JobQueue queue = queues.get(type);
+        TemplateJob job = new TemplateJob(UUID.randomUUID().toString(),
+                type.name(), templateIds, 0, System.currentTimeMillis(),
+                UUID.randomUUID().toString());
+        Long saved = redisTemplate.execute(
+                submitScript,
+                jobKeys(),
+                type.name(),
+                String.valueOf(queue.capacity),
+                job.getId(),
+                JSON.toJSONString(job),
+                String.valueOf(job.getEnqueueTime()),
+                job.getOwner()
+        );
+        if (!Long.valueOf(1).equals(saved)) {
+            queue.rejected.increment();
+            log.warn("Reject Template Job: {}, {}", type, templateIds);
+            throw new CouponException("Template Job Queue Is Full: " + type);
+        }
+
+        queue.submitted.increment();
+        owned.put(job.getId(), job);
+        enqueue(type, job);
+    }
+
+    @Override
+    public Map<String, Object> stats() {
+
+        Map<String, Object> types = new LinkedHashMap<>();
+        queues.forEach((type, queue) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("queued", (long) queue.queued.value());
+            item.put("running", (long) queue.runningGauge.value());
+            item.put("concurrency", queue.concurrency);
+            item.put("queueCapacity", queue.capacity);
+            item.put("submitted", (long) queue.submitted.count());
+            item.put("rejected", (long) queue.rejected.count());
+            item.put("succeeded", (long) queue.succeeded.count());
+            item.put("retried", (long) queue.retried.count());
+            item.put("failed", (long) queue.failed.count());
+            //最大值是 Timer 最近一个统计周期内的值
+            item.put("avgWaitMillis", (long) queue.waitTimer.mean(TimeUnit.MILLISECONDS));
+            item.put("maxWaitMillis", (long) queue.waitTimer.max(TimeUnit.MILLISECONDS));
+            item.put("avgRunMillis", (long) queue.runTimer.mean(TimeUnit.MILLISECONDS));
+            item.put("maxRunMillis", (long) queue.runTimer.max(TimeUnit.MILLISECONDS));
+            types.put(type.name(), item);
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ownedJobs", owned.size());
+        result.put("types", types);
+        return result;
+    }
+
+    //进入队列, 有空闲的并发名额时开始执行
+    private void enqueue(TemplateJobType type, TemplateJob job) {
+
+        JobQueue queue = queues.get(type);
+        synchronized (queue) {
+            queue.pending.addLast(job);
+        }
+        dispatch(type);
+    }
+
+    //在并发上限之内从队列中取出任务执行
+    private void dispatch(TemplateJobType type) {
+
+        JobQueue queue = queues.get(type);
+        synchronized (queue) {
+            while (queue.running < queue.concurrency && !queue.pending.isEmpty()) {
+                TemplateJob job = queue.pending.pollFirst();
+                queue.running++;
+                executor.execute(() -> run(type, job));
+            }
+        }
+    }
+
+    //执行一个任务: 已经可用或者已经过期的模板跳过
+    //任务在排队时已经被其他实例(或者自己重新)认领的不再执行
+    private void run(TemplateJobType type, TemplateJob job) {
+
+        JobQueue queue = queues.get(type);
+        if (owned.get(job.getId()) != job) {
+            synchronized (queue) {
+                queue.running--;
+            }
+            dispatch(type);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        queue.waitTimer.record(start - job.getEnqueueTime(), TimeUnit.MILLISECONDS);
+
+        try {
+            List<CouponTemplate> templates = templateDao.findAllById(job.getTemplateIds())
+                    .stream()
+                    .filter(t -> !t.getAvailable() && !t.getExpired())
+                    .collect(Collectors.toList());
+            asyncService.constructCouponByTemplates(
+                    templates, job.getId(), job.getOwner());
+
+            finish(type, job);
+            queue.succeeded.increment();
+        } catch (TemplateJobLostException ex) {
+            //新的持有者继续执行, 当前实例不重试也不结束任务
+            owned.remove(job.getId(), job);
+            log.warn("Abort Template Job: {}, {}", job.getId(), ex.getMessage());
+        } catch (RuntimeException ex) {
+            retryOrGiveUp(type, job, ex);
+        } finally {
+            queue.runTimer.record(System.currentTimeMillis() - start,
+                    TimeUnit.MILLISECONDS);
+            synchronized (queue) {
+                queue.running--;
+            }
+            dispatch(type);
+        }
+    }
+
+    private void retryOrGiveUp(TemplateJobType type, TemplateJob job,
+                               RuntimeException ex) {
+
+        JobQueue queue = queues.get(type);
+        job.setAttempts(job.getAttempts() + 1);
+        try {
+            if (job.getAttempts() >= maxAttempts) {
+                queue.failed.increment();
+                log.error("Template Job Failed: {}, {}, {}",
+                        job.getId(), job.getTemplateIds(), ex.getMessage());
+                finish(type, job);
+                return;
+            }
+
+            queue.retried.increment();
+            long delay = retryDelayMillis * job.getAttempts();
+            log.warn("Retry Template Job In {}ms: {}, {}, {}",
+                    delay, job.getId(), job.getAttempts(), ex.getMessage());
+            persist(job);
+            retryTimer.schedule(() -> {
+                //等待重试期间任务可能已经被其他实例认领
+                if (owned.get(job.getId()) != job) {
+                    return;
+                }
+                job.setEnqueueTime(System.currentTimeMillis());
+                enqueue(type, job);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException persistEx) {
+            //Redis 不可用, 任务保留在 Redis 中的旧状态; 本地不再持有, 不再发送心跳,
+            //心跳过期之后由任意实例(包括自己)认领继续
+            owned.remove(job.getId(), job);
+            log.error("Update Template Job Error: {}, {}",
+                    job.getId(), persistEx.getMessage());
+        }
+    }
+
+    private void persist(TemplateJob job) {
+        redisTemplate.opsForHash().put(Constant.RedisPrefix.COUPON_TEMPLATE_JOBS,
+                job.getId(), JSON.toJSONString(job));
+    }
+
+    //先从本地移除, 之后的心跳不会再更新这个任务
+    //任务已经被其他实例认领时由新的持有者结束
+    private void finish(TemplateJobType type, TemplateJob job) {
+        owned.remove(job.getId(), job);
+        Long finished = redisTemplate.execute(finishScript, jobKeys(),
+                type.name(), job.getId(), job.getOwner());
+        if (Long.valueOf(-1).equals(finished)) {
+            log.warn("Template Job Is Claimed By Another Instance: {}", job.getId());
+        }
+    }
+
+    //只更新持有者仍然是自己的任务的心跳, 已经被其他实例认领的任务从本地移除
+    //正在执行的任务在下一次检查持有者时停止
+    @SuppressWarnings("unchecked")
+    private void sendHeartbeats(long time) {
+
+        Map<String, TemplateJob> jobs = new HashMap<>(owned);
+        if (jobs.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(jobs.size() * 2 + 1);
+        args.add(String.valueOf(time));
+        jobs.forEach((id, job) -> {
+            args.add(id);
+            args.add(job.getOwner());
+        });
+
+        List<String> lost = redisTemplate.execute(heartbeatScript,
+                Arrays.asList(Constant.RedisPrefix.COUPON_TEMPLATE_JOB_HEARTBEATS,
+                        Constant.RedisPrefix.COUPON_TEMPLATE_JOB_OWNERS),
+                args.toArray());
+        if (null == lost) {
+            return;
+        }
+        lost.forEach(id -> {
+            if (owned.remove(id, jobs.get(id))) {
+                log.warn("Lost Template Job: {}", id);
+            }
+        });
+    }
+
+    //认领心跳过期的任务, 进入本地队列
+    @SuppressWarnings("unchecked")
+    private void claimStaleJobs() {
+
+        long now = System.currentTimeMillis();
+        String owner = UUID.randomUUID().toString();
+        List<String> ids = redisTemplate.execute(
+                claimScript,
+                Arrays.asList(Constant.RedisPrefix.COUPON_TEMPLATE_JOB_HEARTBEATS,
+                        Constant.RedisPrefix.COUPON_TEMPLATE_JOB_OWNERS),
+                String.valueOf(now - staleMillis),
+                String.valueOf(now),
+                String.valueOf(claimBatch),
+                owner
+        );
+        if (null == ids || ids.isEmpty()) {
+            return;
+        }
+
+        List<Object> values = redisTemplate.opsForHash().multiGet(
+                Constant.RedisPrefix.COUPON_TEMPLATE_JOBS, new ArrayList<>(ids));
+        for (int i = 0; i != ids.size(); ++i) {
+            if (null == values.get(i)) {
+                //任务已经结束, 心跳是结束之前发出的
+                redisTemplate.opsForZSet().remove(
+                        Constant.RedisPrefix.COUPON_TEMPLATE_JOB_HEARTBEATS, ids.get(i));
+                redisTemplate.opsForHash().delete(
+                        Constant.RedisPrefix.COUPON_TEMPLATE_JOB_OWNERS, ids.get(i));
+                continue;
+            }
+            TemplateJob job = JSON.parseObject(values.get(i).toString(), TemplateJob.class);
+            job.setOwner(owner);
+            //自己的心跳之前没有发出去时任务还在本地, 旧的持有者 token 已经失效,
+            //替换之后旧的任务在下一次检查持有者时停止
+            owned.put(job.getId(), job);
+            job.setEnqueueTime(now);
+            enqueue(TemplateJobType.valueOf(job.getType()), job);
+            log.info("Claim Template Job: {}, {}", job.getId(), job.getTemplateIds());
+        }
+    }
+
+    private static List<String> jobKeys() {
+        return Arrays.asList(Constant.RedisPrefix.COUPON_TEMPLATE_JOBS,
+                Constant.RedisPrefix.COUPON_TEMPLATE_JOB_HEARTBEATS,
+                Constant.RedisPrefix.COUPON_TEMPLATE_JOB_COUNTS,
+                Constant.RedisPrefix.COUPON_TEMPLATE_JOB_OWNERS);
+    }
+
+    private static <T> DefaultRedisScript<T> newScript(String path, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new ResourceScriptSource(new ClassPathResource(path)));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    //一种任务类型的队列和统计信息, pending 和 running 在对象锁内修改
+    private static class JobQueue {
+
+        private final int concurrency;
+
+        private final int capacity;
+
+        private final Deque<TemplateJob> pending = new ArrayDeque<>();
+
+        private int running;
+
+        //排队数和执行数, 在对象锁内读取
+        private final Gauge queued;
+        private final Gauge runningGauge;
+
+        private final Counter submitted;
+        private final Counter rejected;
+        private final Counter succeeded;
+        private final Counter retried;
+        private final Counter failed;
+
+        //从进入队列到开始执行的时间
+        private final Timer waitTimer;
+
+        //执行的时间
+        private final Timer runTimer;
+
+        private JobQueue(int concurrency, int capacity,
+                         TemplateJobType type, MeterRegistry meterRegistry) {
+            this.concurrency = concurrency;
+            this.capacity = capacity;
+
+            Tags tags = Tags.of("type", type.name());
+            this.queued = Gauge.builder("coupon.template.job.queued", this, q -> {
+                synchronized (q) {
+                    return q.pending.size();
+                }
+            }).tags(tags).register(meterRegistry);
+            this.runningGauge = Gauge.builder("coupon.template.job.running", this, q -> {
+                synchronized (q) {
+                    return q.running;
+                }
+            }).tags(tags).register(meterRegistry);
+            Gauge.builder("coupon.template.job.capacity", this, q -> q.capacity)
+                    .tags(tags).register(meterRegistry);
+
+            this.submitted = meterRegistry.counter("coupon.template.job.submitted", tags);
+            this.rejected = meterRegistry.counter("coupon.template.job.rejected", tags);
+            this.succeeded = meterRegistry.counter("coupon.template.job.succeeded", tags);
+            this.retried = meterRegistry.counter("coupon.template.job.retried", tags);
+            this.failed = meterRegistry.counter("coupon.template.job.failed", tags);
+            this.waitTimer = Timer.builder("coupon.template.job.wait")
+                    .tags(tags).register(meterRegistry);
+            this.runTimer = Timer.builder("coupon.template.job.run")
+                    .tags(tags).register(meterRegistry);
+        }
+    }
+}
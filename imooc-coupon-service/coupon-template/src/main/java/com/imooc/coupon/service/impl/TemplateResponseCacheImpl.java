@@ -0,0 +1,126 @@
+package com.imooc.coupon.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.imooc.coupon.service.ITemplateBaseService;
+import com.imooc.coupon.service.ITemplateResponseCache;
+import com.imooc.coupon.vo.CommonResponse;
+import com.imooc.coupon.vo.CouponTemplateSDK;
+import com.imooc.coupon.vo.SerializedResponse;
+import com.imooc.coupon.vo.TemplateCatalog;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+//模板 SDK 接口的响应缓存实现
+//1. 所有可用模板只缓存当前版本的一份
+//2. 按 ids 查询的结果以 排好序的 ids 为 key, 有容量上限, 版本变化之后重新序列化
+//3. 有模板不存在时不缓存, 之后可能会创建
+@Slf4j
+@Service
+public class TemplateResponseCacheImpl implements ITemplateResponseCache {
+
+    private final ITemplateBaseService templateBaseService;
+
+    //和 HttpMessageConverter 使用同一个 ObjectMapper, 输出和之前一致
+    private final ObjectMapper objectMapper;
+
+    //所有可用模板的响应
+    private final AtomicReference<SerializedResponse> usableTemplates =
+            new AtomicReference<>();
+
+    //排好序的 ids -> 响应
+    private final Cache<String, SerializedResponse> id2Templates;
+
+    @Autowired
+    public TemplateResponseCacheImpl(
+            ITemplateBaseService templateBaseService,
+            ObjectMapper objectMapper,
+            @Value("${coupon.sdk-response-cache.max-infos:1000}") long maxInfos) {
+        this.templateBaseService = templateBaseService;
+        this.objectMapper = objectMapper;
+        this.id2Templates = CacheBuilder.newBuilder().maximumSize(maxInfos).build();
+    }
+
+    @Override
+    public SerializedResponse findAllUsableTemplate() {
+
+        //版本和模板列表是同一个快照
+        TemplateCatalog catalog = templateBaseService.findTemplateCatalog();
+        SerializedResponse cached = usableTemplates.get();
+        if (null != cached && cached.getVersion().equals(catalog.getVersion())) {
+            return cached;
+        }
+
+        SerializedResponse response = serialize(catalog.getVersion(),
+                "all-" + catalog.getVersion(), catalog.getTemplates());
+        usableTemplates.set(response);
+        log.info("Serialize All Usable Template: {}, {} bytes",
+                catalog.getVersion(), response.getPlain().length);
+        return response;
+    }
+
+    @Override
+    public SerializedResponse findIds2TemplateSDK(Collection<Integer> ids) {
+
+        List<Integer> sortedIds = ids.stream().distinct().sorted()
+                .collect(Collectors.toList());
+        String key = sortedIds.toString();
+        //只取一次快照, 版本号和可用的模板一致
+        TemplateCatalog catalog = templateBaseService.findTemplateCatalog();
+        Long version = catalog.getVersion();
+
+        SerializedResponse cached = id2Templates.getIfPresent(key);
+        if (null != cached && cached.getVersion().equals(version)) {
+            return cached;
+        }
+
+        Map<Integer, CouponTemplateSDK> id2Template =
+                templateBaseService.findIds2TemplateSDK(catalog, sortedIds);
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes());
+        SerializedResponse response = serialize(version,
+                "infos-" + version + "-" + Long.toHexString(crc.getValue()),
+                id2Template);
+        if (id2Template.size() == sortedIds.size()) {
+            id2Templates.put(key, response);
+        }
+        return response;
+    }
+
+    //序列化为 CommonResponse 的 json, 同时准备好 gzip 的版本
+    private SerializedResponse serialize(Long version, String tag, Object data) {
+
+        try {
+            byte[] plain = objectMapper.writeValueAsBytes(
+                    new CommonResponse<>(0, "", data));
+            return new SerializedResponse(version, "\"" + tag + "\"",
+                    plain, gzip(plain));
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] gzip(byte[] plain) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(plain);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,26 @@
+package com.imooc.coupon.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * <h1>优惠券码推送到 Redis 的进度</h1>
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CouponCodeProgress {
+
+    //优惠券模板主键
+    private Integer templateId;
+
+    //需要推送的优惠券码个数
+    private Integer total;
+
+    //已经推送的优惠券码个数
+    private Integer pushed;
+
+    //RUNNING / DONE / FAILED, 没有记录时为 NONE
+    private String status;
+}
@@ -0,0 +1,23 @@
+package com.imooc.coupon.vo;
+
+//序列化好的 CommonResponse, 直接写入响应
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class SerializedResponse {
+
+    //对应的可用模板目录版本
+    private Long version;
+
+    //ETag, 带双引号
+    private String etag;
+
+    //json 字节
+    private byte[] plain;
+
+    //gzip 压缩之后的 json 字节
+    private byte[] gzipped;
+}
@@ -0,0 +1,28 @@
+package com.imooc.coupon.vo;
+
+//批量创建优惠券模板时每个模板的结果
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateBuildResult {
+
+    //在请求列表中的下标
+    private Integer index;
+
+    //优惠券名称
+    private String name;
+
+    //创建成功时的模板主键
+    private Integer id;
+
+    //CREATED, INVALID, DUPLICATE_NAME
+    private String status;
+
+    //失败原因
+    private String message;
+}
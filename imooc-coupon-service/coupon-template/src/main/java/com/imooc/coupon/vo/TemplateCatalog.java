@@ -0,0 +1,23 @@
+package com.imooc.coupon.vo;
+
+//可用模板目录的快照, 版本号和模板来自同一次构建, 构建之后不再修改
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class TemplateCatalog {
+
+    //可用模板目录版本
+    private final Long version;
+
+    //模板 id -> 可用模板
+    private final Map<Integer, CouponTemplateSDK> id2Template;
+
+    //所有可用模板
+    private final List<CouponTemplateSDK> templates;
+}
@@ -0,0 +1,35 @@
+package com.imooc.coupon.vo;
+
+//模板后台任务, 以 json 保存在 Redis 中, 重启之后继续执行
+
+import com.alibaba.fastjson.annotation.JSONField;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateJob {
+
+    //任务 id
+    private String id;
+
+    //任务类型 TemplateJobType
+    private String type;
+
+    //要生成优惠券码的模板
+    private List<Integer> templateIds;
+
+    //已经执行失败的次数
+    private Integer attempts;
+
+    //进入队列的时间
+    private Long enqueueTime;
+
+    //当前实例持有任务的 token(提交或者认领时生成), 只在本地使用, 共享的持有者在 Redis 中
+    @JSONField(serialize = false, deserialize = false)
+    private String owner;
+}
@@ -5,6 +5,7 @@ package com.imooc.coupon.vo;
 import com.imooc.coupon.constant.CouponCategory;
 import com.imooc.coupon.constant.DistributeTarget;
 import com.imooc.coupon.constant.ProductLine;
+import com.imooc.coupon.generator.CodePermutation;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -50,7 +51,8 @@ public class TemplateRequest {
         boolean enumValid = null != CouponCategory.of(category)
                 && null != ProductLine.of(productLine)
                 && null != DistributeTarget.of(target);
-        boolean numValid = count > 0 && userId > 0;
+        //优惠券码的后八位最多有 CodePermutation.DOMAIN 种
+        boolean numValid = count > 0 && count <= CodePermutation.DOMAIN && userId > 0;
 
         return stringValid && enumValid && numValid && rule.validate();
     }
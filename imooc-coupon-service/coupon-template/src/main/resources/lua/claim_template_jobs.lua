@@ -0,0 +1,18 @@
+-- 认领心跳已经过期的模板后台任务(持有的实例宕机或者被替换), 认领的同时更新心跳和持有者
+-- 多个实例同时认领时, 一个任务只会被一个实例认领; 之前的持有者即使还在执行, 也会在下一次
+-- 检查持有者时发现任务已经被认领, 放弃执行
+-- KEYS[1]: 心跳 zset imooc_coupon_template_job_heartbeats_{imooc_coupon_template_jobs}
+-- KEYS[2]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- ARGV[1]: 心跳早于这个时间的任务可以认领(毫秒)
+-- ARGV[2]: 当前时间(毫秒)
+-- ARGV[3]: 一次最多认领的个数
+-- ARGV[4]: 认领的实例持有任务的 token
+
+local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1],
+        'LIMIT', 0, tonumber(ARGV[3]))
+for _, id in ipairs(ids) do
+    redis.call('ZADD', KEYS[1], ARGV[2], id)
+    redis.call('HSET', KEYS[2], id, ARGV[4])
+end
+
+return ids
@@ -0,0 +1,24 @@
+-- 结束给一个模板推送优惠券码, 任务已经被其他实例认领时不做任何修改
+-- DONE: 进度置为 DONE, 之后调用方把模板标记为可用; 新的持有者看到 DONE 不会重新推送
+-- FAILED: 删除已经推送的一部分优惠券码, 模板不可用时 Redis 中不留下残缺的列表
+-- 两种状态的进度都保留一天, 重试时会重新写入进度
+-- KEYS[1]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- KEYS[2]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[3]: 推送进度 hash imooc_coupon_template_progress_<templateId>
+-- ARGV[1]: 任务 id
+-- ARGV[2]: 持有任务的 token
+-- ARGV[3]: DONE 或者 FAILED
+-- 返回 1 成功, 0 任务已经被其他实例认领
+
+if redis.call('HGET', KEYS[1], ARGV[1]) ~= ARGV[2] then
+    return 0
+end
+
+if ARGV[3] == 'FAILED' then
+    redis.call('DEL', KEYS[2])
+    redis.call('HSET', KEYS[3], 'pushed', '0')
+end
+redis.call('HSET', KEYS[3], 'status', ARGV[3])
+redis.call('EXPIRE', KEYS[3], 86400)
+
+return 1
@@ -0,0 +1,25 @@
+-- 结束一个模板后台任务(成功或者放弃), 删除任务、心跳和持有者, 这种类型的任务个数减一
+-- 任务已经被其他实例认领时不做任何修改, 由新的持有者结束
+-- 任务已经不存在时不修改任务个数
+-- KEYS[1]: 任务 hash imooc_coupon_template_jobs
+-- KEYS[2]: 心跳 zset imooc_coupon_template_job_heartbeats_{imooc_coupon_template_jobs}
+-- KEYS[3]: 任务个数 hash imooc_coupon_template_job_counts_{imooc_coupon_template_jobs}
+-- KEYS[4]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- ARGV[1]: 任务类型
+-- ARGV[2]: 任务 id
+-- ARGV[3]: 持有任务的 token
+-- 返回 1 结束成功, 0 任务已经不存在, -1 任务已经被其他实例认领
+
+local owner = redis.call('HGET', KEYS[4], ARGV[2])
+if owner and owner ~= ARGV[3] then
+    return -1
+end
+
+redis.call('HDEL', KEYS[4], ARGV[2])
+redis.call('ZREM', KEYS[2], ARGV[2])
+if redis.call('HDEL', KEYS[1], ARGV[2]) == 0 then
+    return 0
+end
+
+redis.call('HINCRBY', KEYS[3], ARGV[1], -1)
+return 1
@@ -0,0 +1,17 @@
+-- 给实例持有的模板后台任务发送心跳, 只更新持有者仍然是自己的任务
+-- KEYS[1]: 心跳 zset imooc_coupon_template_job_heartbeats_{imooc_coupon_template_jobs}
+-- KEYS[2]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- ARGV[1]: 心跳时间(毫秒), 实例退出时是 0, 其他实例马上可以认领
+-- ARGV[2...]: 任务 id, 持有任务的 token, 成对出现
+-- 返回已经被其他实例认领(或者已经结束)的任务 id
+
+local lost = {}
+for i = 2, #ARGV, 2 do
+    if redis.call('HGET', KEYS[2], ARGV[i]) == ARGV[i + 1] then
+        redis.call('ZADD', KEYS[1], ARGV[1], ARGV[i])
+    else
+        table.insert(lost, ARGV[i])
+    end
+end
+
+return lost
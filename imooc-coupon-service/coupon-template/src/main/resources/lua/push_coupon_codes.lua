@@ -0,0 +1,21 @@
+-- 推送一批优惠券码并更新进度, 任务已经被其他实例认领时不推送
+-- KEYS[1]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- KEYS[2]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[3]: 推送进度 hash imooc_coupon_template_progress_<templateId>
+-- ARGV[1]: 任务 id
+-- ARGV[2]: 持有任务的 token
+-- ARGV[3]: 推送这一批之后的个数
+-- ARGV[4...]: 优惠券码
+-- 返回 1 推送成功, 0 任务已经被其他实例认领
+
+if redis.call('HGET', KEYS[1], ARGV[1]) ~= ARGV[2] then
+    return 0
+end
+
+-- 一条 RPUSH 最多 1000 个, 不超过 unpack 的参数个数限制
+for i = 4, #ARGV, 1000 do
+    redis.call('RPUSH', KEYS[2], unpack(ARGV, i, math.min(i + 999, #ARGV)))
+end
+redis.call('HSET', KEYS[3], 'pushed', ARGV[3])
+
+return 1
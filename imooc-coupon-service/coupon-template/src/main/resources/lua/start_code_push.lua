@@ -0,0 +1,24 @@
+-- 开始给一个模板推送优惠券码: 确认任务仍然由调用方持有, 清掉上一次推送了一部分的优惠券码, 进度置为 RUNNING
+-- 上一个持有者已经推送完成(进度是 DONE)时不再清理和推送, 列表中的优惠券码可能已经被领取
+-- 任务持有者和优惠券码列表不在同一个 slot, 这几个推送脚本不支持 Redis Cluster
+-- KEYS[1]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- KEYS[2]: 优惠券码列表 imooc_coupon_template_code_<templateId>
+-- KEYS[3]: 推送进度 hash imooc_coupon_template_progress_<templateId>
+-- ARGV[1]: 任务 id
+-- ARGV[2]: 持有任务的 token
+-- ARGV[3]: 优惠券码总数
+-- 返回 OK 可以推送, DONE 已经推送完成, LOST 任务已经被其他实例认领
+
+if redis.call('HGET', KEYS[1], ARGV[1]) ~= ARGV[2] then
+    return 'LOST'
+end
+if redis.call('HGET', KEYS[3], 'status') == 'DONE' then
+    return 'DONE'
+end
+
+redis.call('DEL', KEYS[2])
+redis.call('HMSET', KEYS[3], 'total', ARGV[3], 'pushed', '0', 'status', 'RUNNING')
+-- 上一次失败时设置的过期时间, 推送过程中进度不能过期
+redis.call('PERSIST', KEYS[3])
+
+return 'OK'
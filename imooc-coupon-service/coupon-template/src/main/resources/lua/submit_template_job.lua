@@ -0,0 +1,24 @@
+-- 提交一个模板后台任务, 这种类型没有完成的任务个数没有超过容量时保存任务并记录心跳
+-- 检查容量和保存任务是原子的, 多个实例同时提交也不会超过容量
+-- KEYS[1]: 任务 hash imooc_coupon_template_jobs
+-- KEYS[2]: 心跳 zset imooc_coupon_template_job_heartbeats_{imooc_coupon_template_jobs}
+-- KEYS[3]: 任务个数 hash imooc_coupon_template_job_counts_{imooc_coupon_template_jobs}
+-- KEYS[4]: 任务持有者 hash imooc_coupon_template_job_owners_{imooc_coupon_template_jobs}
+-- ARGV[1]: 任务类型
+-- ARGV[2]: 这种类型的容量
+-- ARGV[3]: 任务 id
+-- ARGV[4]: 任务 json
+-- ARGV[5]: 当前时间(毫秒)
+-- ARGV[6]: 提交的实例持有任务的 token
+
+local count = tonumber(redis.call('HGET', KEYS[3], ARGV[1]) or '0')
+if count >= tonumber(ARGV[2]) then
+    return 0
+end
+
+redis.call('HINCRBY', KEYS[3], ARGV[1], 1)
+redis.call('HSET', KEYS[1], ARGV[3], ARGV[4])
+redis.call('ZADD', KEYS[2], ARGV[5], ARGV[3])
+redis.call('HSET', KEYS[4], ARGV[3], ARGV[6])
+
+return 1
@@ -0,0 +1,50 @@
+-- 用当前实例从 db 读到的可用模板 ids 更新共享的目录版本
+-- ids 和共享的一致时返回当前版本, 否则版本号加一并记录这次变化
+-- 两个 key 在 Redis Cluster 中位于同一个 slot(变化列表以目录 key 作为 hash tag)
+-- KEYS[1]: 目录 hash imooc_coupon_template_catalog, field: version 版本号, ids 可用模板 ids
+-- KEYS[2]: 变化列表 imooc_coupon_template_catalog_changes_{imooc_coupon_template_catalog}
+--          每一项是 <变化之前的版本号>;<加入的 ids>;<删除的 ids>, 最新的在队头
+-- ARGV[1]: 排好序的可用模板 ids, 逗号分隔
+-- ARGV[2]: 目录不存在时的初始版本号
+-- ARGV[3]: 保留最近多少个变化
+
+local version = redis.call('HGET', KEYS[1], 'version')
+if not version then
+    redis.call('HMSET', KEYS[1], 'version', ARGV[2], 'ids', ARGV[1])
+    redis.call('DEL', KEYS[2])
+    return tonumber(ARGV[2])
+end
+
+local ids = redis.call('HGET', KEYS[1], 'ids') or ''
+if ids == ARGV[1] then
+    return tonumber(version)
+end
+
+local function toSet(str)
+    local set = {}
+    for id in string.gmatch(str, '[^,]+') do
+        set[id] = true
+    end
+    return set
+end
+
+local old, new = toSet(ids), toSet(ARGV[1])
+local added, removed = {}, {}
+for id in pairs(new) do
+    if not old[id] then
+        table.insert(added, id)
+    end
+end
+for id in pairs(old) do
+    if not new[id] then
+        table.insert(removed, id)
+    end
+end
+
+local current = redis.call('HINCRBY', KEYS[1], 'version', 1)
+redis.call('HSET', KEYS[1], 'ids', ARGV[1])
+redis.call('LPUSH', KEYS[2], version .. ';' .. table.concat(added, ',')
+        .. ';' .. table.concat(removed, ','))
+redis.call('LTRIM', KEYS[2], 0, tonumber(ARGV[3]) - 1)
+
+return current
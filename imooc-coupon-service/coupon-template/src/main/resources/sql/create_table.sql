@@ -15,11 +15,20 @@ CREATE TABLE IF NOT EXISTS `imooc_coupon_data`.`coupon_template` (
   `template_key` varchar(128) NOT NULL DEFAULT '' COMMENT '优惠券模板的编码',
   `target` int(11) NOT NULL DEFAULT '0' COMMENT '目标用户',
   `rule` varchar(1024) NOT NULL DEFAULT '' COMMENT '优惠券规则: TemplateRule 的 json 表示',
+  `deadline` bigint(20) NOT NULL DEFAULT '0' COMMENT '失效时间(毫秒): rule.expiration.deadline',
   PRIMARY KEY (`id`),
   KEY `idx_category` (`category`),
+  KEY `idx_expired_deadline` (`expired`, `deadline`),
   KEY `idx_user_id` (`user_id`),
   UNIQUE KEY `name` (`name`)
 ) ENGINE=InnoDB AUTO_INCREMENT=10 DEFAULT CHARSET=utf8 COMMENT='优惠券模板表';
 
+-- 已经存在的表增加 deadline 列并回填
+-- ALTER TABLE `imooc_coupon_data`.`coupon_template`
+--   ADD COLUMN `deadline` bigint(20) NOT NULL DEFAULT '0' COMMENT '失效时间(毫秒): rule.expiration.deadline',
+--   ADD KEY `idx_expired_deadline` (`expired`, `deadline`);
+-- UPDATE `imooc_coupon_data`.`coupon_template`
+--   SET `deadline` = JSON_EXTRACT(`rule`, '$.expiration.deadline') WHERE `deadline` = 0;
+
 -- 清空表数据
 -- truncate coupon_template;
@@ -0,0 +1,32 @@
+package com.imooc.coupon.controller;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 模板 SDK 响应内容协商的测试用例
+ */
+public class CouponTemplateControllerTest {
+
+    @Test
+    public void testAcceptsGzip() {
+
+        Assert.assertFalse(CouponTemplateController.acceptsGzip(null));
+        Assert.assertFalse(CouponTemplateController.acceptsGzip("identity"));
+        Assert.assertTrue(CouponTemplateController.acceptsGzip("gzip, deflate"));
+        Assert.assertTrue(CouponTemplateController.acceptsGzip("deflate, GZIP;q=0.5"));
+        Assert.assertTrue(CouponTemplateController.acceptsGzip("x-gzip"));
+    }
+
+    @Test
+    public void testRejectsGzipWithZeroQuality() {
+
+        Assert.assertFalse(CouponTemplateController.acceptsGzip("gzip;q=0"));
+        Assert.assertFalse(CouponTemplateController.acceptsGzip("gzip; q=0.000, deflate"));
+        //单独列出的 gzip 优先于 *
+        Assert.assertFalse(CouponTemplateController.acceptsGzip("*, gzip;q=0"));
+        Assert.assertTrue(CouponTemplateController.acceptsGzip("*;q=0, gzip"));
+        Assert.assertTrue(CouponTemplateController.acceptsGzip("*"));
+        Assert.assertFalse(CouponTemplateController.acceptsGzip("gzip;q=abc"));
+    }
+}
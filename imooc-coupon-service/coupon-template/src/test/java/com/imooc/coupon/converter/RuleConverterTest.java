@@ -0,0 +1,47 @@
+package com.imooc.coupon.converter;
+
+import com.imooc.coupon.vo.TemplateRule;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 优惠券规则属性转换器缓存的测试用例
+ */
+public class RuleConverterTest {
+
+    //FAKE 一个规则字符串
+    private String fakeRule = "{\"discount\":{\"base\":199,\"quota\":20}," +
+            "\"expiration\":{\"deadline\":1893427200000,\"gap\":1,\"period\":1}," +
+            "\"limitation\":1,\"usage\":{\"city\":\"桐城市\"," +
+            "\"goodsType\":\"[1,3]\",\"province\":\"安徽省\"}," +
+            "\"weight\":\"[\\\"1001201908060001\\\"]\"}";
+
+    private RuleConverter converter = new RuleConverter();
+
+    @Test
+    public void testEachEntityGetsOwnCopy() {
+
+        TemplateRule first = converter.convertToEntityAttribute(fakeRule);
+        TemplateRule second = converter.convertToEntityAttribute(fakeRule);
+
+        //每次拿到的是不同的对象, 解析好的集合是共享的
+        Assert.assertNotSame(first, second);
+        Assert.assertNotSame(first.getUsage(), second.getUsage());
+        Assert.assertSame(first.shareKeys(), second.shareKeys());
+        Assert.assertSame(first.getUsage().goodsTypes(), second.getUsage().goodsTypes());
+
+        //修改一个模板的规则不影响缓存和其他模板
+        first.getDiscount().setQuota(50);
+        first.getUsage().setGoodsType("[2]");
+        first.setWeight("[]");
+
+        TemplateRule third = converter.convertToEntityAttribute(fakeRule);
+        Assert.assertEquals(Integer.valueOf(20), second.getDiscount().getQuota());
+        Assert.assertEquals(Integer.valueOf(20), third.getDiscount().getQuota());
+        Assert.assertEquals(2, third.getUsage().goodsTypes().size());
+        Assert.assertEquals(1, third.shareKeys().size());
+        Assert.assertTrue(first.shareKeys().isEmpty());
+        Assert.assertEquals(third.getUsage().goodsTypeMask(),
+                second.getUsage().goodsTypeMask());
+    }
+}
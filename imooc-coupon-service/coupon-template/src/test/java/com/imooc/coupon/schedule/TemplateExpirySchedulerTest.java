@@ -0,0 +1,96 @@
+package com.imooc.coupon.schedule;
+
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.service.ITemplateBaseService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+/**
+ * 按失效时间下线优惠券模板的测试用例
+ */
+public class TemplateExpirySchedulerTest {
+
+    //FAKE 一个模板 id
+    private Integer fakeTemplateId = 10;
+
+    private CouponTemplateDao couponTemplateDao;
+
+    private ITemplateBaseService templateBaseService;
+
+    private TemplateExpiryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+
+        couponTemplateDao = Mockito.mock(CouponTemplateDao.class);
+        templateBaseService = Mockito.mock(ITemplateBaseService.class);
+
+        scheduler = new TemplateExpiryScheduler(couponTemplateDao, templateBaseService);
+        ReflectionTestUtils.setField(scheduler, "enabled", true);
+        ReflectionTestUtils.setField(scheduler, "retryMillis", 50L);
+        scheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testExpireAtDeadline() {
+
+        Mockito.when(couponTemplateDao.expireByIds(Mockito.anyCollection()))
+                .thenReturn(1);
+
+        scheduler.schedule(fakeTemplateId, System.currentTimeMillis() - 1);
+
+        Mockito.verify(templateBaseService, Mockito.timeout(2000))
+                .refreshTemplateCatalog();
+        Mockito.verify(couponTemplateDao).expireByIds(
+                Collections.singletonList(fakeTemplateId));
+        Assert.assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testRequeueWhenExpireFails() {
+
+        //第一次下线失败, 这一批模板重新加入队列, 重试成功之后才重建目录
+        Mockito.when(couponTemplateDao.expireByIds(Mockito.anyCollection()))
+                .thenThrow(new IllegalStateException("DB Is Down"))
+                .thenReturn(1);
+
+        scheduler.schedule(fakeTemplateId, System.currentTimeMillis() - 1);
+
+        Mockito.verify(templateBaseService, Mockito.timeout(2000))
+                .refreshTemplateCatalog();
+        Mockito.verify(couponTemplateDao, Mockito.times(2)).expireByIds(
+                Collections.singletonList(fakeTemplateId));
+        Assert.assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testRequeueWhenRefreshFails() {
+
+        //下线成功但是重建目录失败, 重试时再下线一次(expired 为 0)并重建目录
+        Mockito.when(couponTemplateDao.expireByIds(Mockito.anyCollection()))
+                .thenReturn(1)
+                .thenReturn(0);
+        Mockito.doThrow(new IllegalStateException("Catalog Error"))
+                .doNothing()
+                .when(templateBaseService).refreshTemplateCatalog();
+
+        scheduler.schedule(fakeTemplateId, System.currentTimeMillis() - 1);
+
+        Mockito.verify(templateBaseService, Mockito.timeout(2000).times(2))
+                .refreshTemplateCatalog();
+        Mockito.verify(couponTemplateDao, Mockito.times(2)).expireByIds(
+                Collections.singletonList(fakeTemplateId));
+        Assert.assertEquals(0, scheduler.size());
+    }
+}
@@ -0,0 +1,106 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.ProductLine;
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.entity.CouponTemplate;
+import com.imooc.coupon.service.impl.AsyncServiceImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Answers;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 推送优惠券码失败时清理的测试用例
+ * Redis 脚本由 execute 的 fake 代替: 开始推送成功, 推送一批和结束推送都抛出异常
+ */
+public class AsyncServiceTest {
+
+    //FAKE 一个模板 id
+    private Integer fakeTemplateId = 10;
+
+    private AsyncServiceImpl asyncService;
+
+    private Object startPushScript;
+
+    private Object pushScript;
+
+    private Object endPushScript;
+
+    //结束推送时的状态
+    private List<String> endStatuses = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+
+        StringRedisTemplate redisTemplate = Mockito.mock(StringRedisTemplate.class,
+                invocation -> {
+                    if ("execute".equals(invocation.getMethod().getName())) {
+                        return executeScript(invocation.getArguments());
+                    }
+                    return Answers.RETURNS_DEFAULTS.answer(invocation);
+                });
+
+        asyncService = new AsyncServiceImpl(Mockito.mock(CouponTemplateDao.class),
+                redisTemplate, Mockito.mock(ITemplateBaseService.class));
+        ReflectionTestUtils.setField(asyncService, "chunkSize", 10);
+        ReflectionTestUtils.setField(asyncService, "codeSecret", "imooc-coupon-test-secret");
+        startPushScript = ReflectionTestUtils.getField(asyncService, "startPushScript");
+        pushScript = ReflectionTestUtils.getField(asyncService, "pushScript");
+        endPushScript = ReflectionTestUtils.getField(asyncService, "endPushScript");
+    }
+
+    @Test
+    public void testCleanupErrorIsSuppressed() {
+
+        try {
+            ReflectionTestUtils.invokeMethod(asyncService, "constructCouponByTemplate",
+                    fakeTemplate(), "job-1", "owner-1");
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            //抛出的是推送失败的原因, 清理失败附加在上面
+            Assert.assertEquals("Redis Is Down", ex.getMessage());
+            Assert.assertEquals(1, ex.getSuppressed().length);
+            Assert.assertEquals("Cleanup Failed", ex.getSuppressed()[0].getMessage());
+        }
+        Assert.assertEquals(1, endStatuses.size());
+        Assert.assertEquals("FAILED", endStatuses.get(0));
+    }
+
+    //args: script, keys, 之后是展开的 ARGV
+    private Object executeScript(Object[] args) {
+
+        if (args[0] == startPushScript) {
+            return "STARTED";
+        }
+        if (args[0] == pushScript) {
+            throw new IllegalStateException("Redis Is Down");
+        }
+        if (args[0] == endPushScript) {
+            endStatuses.add(args[4].toString());
+            throw new IllegalStateException("Cleanup Failed");
+        }
+        return null;
+    }
+
+    //fake 一个需要推送 3 批优惠券码的模板
+    private CouponTemplate fakeTemplate() {
+
+        CouponTemplate template = new CouponTemplate();
+        template.setId(fakeTemplateId);
+        template.setCount(25);
+        template.setProductLine(ProductLine.DAMAO);
+        template.setCategory(CouponCategory.MANJIAN);
+        template.setCreateTime(new Date());
+        template.setAvailable(false);
+        template.setExpired(false);
+        return template;
+    }
+}
@@ -0,0 +1,167 @@
+package com.imooc.coupon.service;
+
+import com.alibaba.fastjson.JSON;
+import com.imooc.coupon.constant.CouponCategory;
+import com.imooc.coupon.constant.DistributeTarget;
+import com.imooc.coupon.constant.GoodsType;
+import com.imooc.coupon.constant.PeriodType;
+import com.imooc.coupon.constant.ProductLine;
+import com.imooc.coupon.constant.TemplateJobType;
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.entity.CouponTemplate;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.schedule.TemplateExpiryScheduler;
+import com.imooc.coupon.service.impl.BuildTemplateServiceImpl;
+import com.imooc.coupon.vo.TemplateBuildResult;
+import com.imooc.coupon.vo.TemplateRequest;
+import com.imooc.coupon.vo.TemplateRule;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量创建优惠券模板的测试用例
+ */
+public class BuildTemplateServiceTest {
+
+    //FAKE 保存之后的第一个模板 id
+    private Integer fakeTemplateId = 100;
+
+    private IAsyncService asyncService;
+
+    private CouponTemplateDao couponTemplateDao;
+
+    private TemplateExpiryScheduler expiryScheduler;
+
+    private ITemplateJobService templateJobService;
+
+    private BuildTemplateServiceImpl buildTemplateService;
+
+    //saveAll 保存的模板
+    private List<CouponTemplate> saved = new ArrayList<>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        asyncService = Mockito.mock(IAsyncService.class);
+        couponTemplateDao = Mockito.mock(CouponTemplateDao.class);
+        expiryScheduler = Mockito.mock(TemplateExpiryScheduler.class);
+        templateJobService = Mockito.mock(ITemplateJobService.class);
+
+        //按传入的顺序分配主键并返回
+        Mockito.when(couponTemplateDao.saveAll(Mockito.anyList())).thenAnswer(invocation -> {
+            for (CouponTemplate template : (List<CouponTemplate>) invocation.getArgument(0)) {
+                template.setId(fakeTemplateId + saved.size());
+                saved.add(template);
+            }
+            return new ArrayList<>(saved);
+        });
+
+        buildTemplateService = new BuildTemplateServiceImpl(asyncService,
+                couponTemplateDao, expiryScheduler, templateJobService);
+        ReflectionTestUtils.setField(buildTemplateService, "maxBatchSize", 500);
+    }
+
+    @Test
+    public void testResultsAlignWithRequests() throws CouponException {
+
+        //数据库中已经有小写的同名模板
+        CouponTemplate exist = new CouponTemplate();
+        exist.setName("模板-b");
+        Mockito.when(couponTemplateDao.findAllByNameIn(Mockito.anyCollection()))
+                .thenReturn(Collections.singletonList(exist));
+
+        //缺少 count, validate 抛出空指针
+        TemplateRequest missingCount = fakeTemplateRequest("模板-NPE");
+        missingCount.setCount(null);
+
+        List<TemplateBuildResult> results = buildTemplateService.buildTemplates(Arrays.asList(
+                fakeTemplateRequest("模板-A"),
+                missingCount,
+                fakeTemplateRequest("模板-a"),
+                fakeTemplateRequest("模板-B"),
+                fakeTemplateRequest("模板-C")
+        ));
+
+        Assert.assertEquals(5, results.size());
+        assertResult(results.get(0), 0, "CREATED", fakeTemplateId);
+        assertResult(results.get(1), 1, "INVALID", null);
+        assertResult(results.get(2), 2, "DUPLICATE_NAME", null);
+        Assert.assertEquals("Same Name In Request", results.get(2).getMessage());
+        assertResult(results.get(3), 3, "DUPLICATE_NAME", null);
+        Assert.assertEquals("Exist Same Name Template", results.get(3).getMessage());
+        assertResult(results.get(4), 4, "CREATED", fakeTemplateId + 1);
+        Assert.assertEquals("模板-C", results.get(4).getName());
+
+        //数据库只查询一次, 请求内重复和不合法的名称不参与查询
+        Mockito.verify(couponTemplateDao).findAllByNameIn(
+                Arrays.asList("模板-A", "模板-B", "模板-C"));
+        Assert.assertEquals(2, saved.size());
+        Mockito.verify(templateJobService).submit(TemplateJobType.BATCH_BUILD,
+                Arrays.asList(fakeTemplateId, fakeTemplateId + 1));
+        Mockito.verify(expiryScheduler).schedule(
+                Mockito.eq(fakeTemplateId), Mockito.anyLong());
+        Mockito.verify(expiryScheduler).schedule(
+                Mockito.eq(fakeTemplateId + 1), Mockito.anyLong());
+        Mockito.verify(couponTemplateDao, Mockito.never()).deleteAll(Mockito.anyList());
+    }
+
+    @Test
+    public void testDeleteAllWhenJobRejected() throws CouponException {
+
+        Mockito.doThrow(new CouponException("Template Job Queue Is Full: BATCH_BUILD"))
+                .when(templateJobService).submit(Mockito.any(), Mockito.anyList());
+
+        try {
+            buildTemplateService.buildTemplates(Arrays.asList(
+                    fakeTemplateRequest("模板-A"), fakeTemplateRequest("模板-B")));
+            Assert.fail();
+        } catch (CouponException ex) {
+            Assert.assertTrue(ex.getMessage().startsWith("Template Job Is Rejected"));
+        }
+
+        //刚保存的模板全部删除, 不再安排下线
+        Mockito.verify(couponTemplateDao).deleteAll(saved);
+        Assert.assertEquals(2, saved.size());
+        Mockito.verifyZeroInteractions(expiryScheduler);
+    }
+
+    @Test(expected = CouponException.class)
+    public void testTooManyRequests() throws CouponException {
+
+        ReflectionTestUtils.setField(buildTemplateService, "maxBatchSize", 1);
+        buildTemplateService.buildTemplates(Arrays.asList(
+                fakeTemplateRequest("模板-A"), fakeTemplateRequest("模板-B")));
+    }
+
+    private void assertResult(TemplateBuildResult result, int index,
+                              String status, Integer id) {
+        Assert.assertEquals(Integer.valueOf(index), result.getIndex());
+        Assert.assertEquals(status, result.getStatus());
+        Assert.assertEquals(id, result.getId());
+    }
+
+    //fake TemplateRequest
+    private TemplateRequest fakeTemplateRequest(String name) {
+
+        TemplateRule rule = new TemplateRule(
+                new TemplateRule.Expiration(PeriodType.SHIFT.getCode(), 1,
+                        System.currentTimeMillis() + 86400000L),
+                new TemplateRule.Discount(5, 1), 1,
+                new TemplateRule.Usage("安徽省", "桐城市", JSON.toJSONString(
+                        Collections.singletonList(GoodsType.WENYU.getCode()))),
+                JSON.toJSONString(Collections.emptyList()));
+
+        return new TemplateRequest(name, "http://www.imooc.com", "这是一张优惠券模板",
+                CouponCategory.MANJIAN.getCode(), ProductLine.DAMAO.getCode(),
+                10000, 10001L, DistributeTarget.SINGLE.getCode(), rule);
+    }
+}
@@ -0,0 +1,200 @@
+package com.imooc.coupon.service;
+
+import com.imooc.coupon.constant.TemplateJobType;
+import com.imooc.coupon.dao.CouponTemplateDao;
+import com.imooc.coupon.exception.CouponException;
+import com.imooc.coupon.service.impl.TemplateJobServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Answers;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 模板后台任务容量和重试的测试用例
+ * Redis 脚本由一个内存中的计数代替: 提交时没有完成的任务数达到容量就拒绝, 结束时减一
+ */
+public class TemplateJobServiceTest {
+
+    //FAKE 一个模板 id
+    private Integer fakeTemplateId = 10;
+
+    private TemplateJobType type = TemplateJobType.BATCH_BUILD;
+
+    private IAsyncService asyncService;
+
+    private MeterRegistry meterRegistry;
+
+    private TemplateJobServiceImpl templateJobService;
+
+    //所有实例上没有完成的任务数
+    private AtomicInteger unfinished = new AtomicInteger();
+
+    private Object submitScript;
+
+    private Object finishScript;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+
+        HashOperations<String, Object, Object> hashOperations =
+                Mockito.mock(HashOperations.class);
+        StringRedisTemplate redisTemplate = Mockito.mock(StringRedisTemplate.class,
+                invocation -> {
+                    if ("opsForHash".equals(invocation.getMethod().getName())) {
+                        return hashOperations;
+                    }
+                    if ("execute".equals(invocation.getMethod().getName())) {
+                        return executeScript(invocation.getArguments());
+                    }
+                    return Answers.RETURNS_DEFAULTS.answer(invocation);
+                });
+
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("coupon.template-job.batch-build.concurrency", "1")
+                .withProperty("coupon.template-job.batch-build.queue-capacity", "1");
+
+        asyncService = Mockito.mock(IAsyncService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        templateJobService = new TemplateJobServiceImpl(
+                Mockito.mock(CouponTemplateDao.class), asyncService,
+                redisTemplate, environment, meterRegistry);
+        ReflectionTestUtils.setField(templateJobService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(templateJobService, "retryDelayMillis", 10L);
+        submitScript = ReflectionTestUtils.getField(templateJobService, "submitScript");
+        finishScript = ReflectionTestUtils.getField(templateJobService, "finishScript");
+        templateJobService.init();
+    }
+
+    @After
+    public void tearDown() {
+        templateJobService.shutdown();
+    }
+
+    @Test
+    public void testRejectAtCapacity() throws Exception {
+
+        //第一个任务一直执行, 占用唯一的容量
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(asyncService).constructCouponByTemplates(
+                Mockito.anyList(), Mockito.anyString(), Mockito.anyString());
+
+        templateJobService.submit(type, Collections.singletonList(fakeTemplateId));
+        try {
+            templateJobService.submit(type, Collections.singletonList(fakeTemplateId));
+            Assert.fail();
+        } catch (CouponException ex) {
+            Assert.assertTrue(ex.getMessage().contains(type.name()));
+        }
+        Assert.assertEquals(1L, stat("rejected"));
+        Assert.assertEquals(1.0, meterRegistry.get("coupon.template.job.rejected")
+                .tag("type", type.name()).counter().count(), 0);
+
+        //第一个任务完成之后释放容量, 可以再提交
+        release.countDown();
+        awaitStat("succeeded", 1L);
+        templateJobService.submit(type, Collections.singletonList(fakeTemplateId));
+        awaitStat("succeeded", 2L);
+
+        Assert.assertEquals(2L, stat("submitted"));
+        Mockito.verify(asyncService, Mockito.times(2)).constructCouponByTemplates(
+                Mockito.anyList(), Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testRetryUpToMaxAttempts() throws Exception {
+
+        Mockito.doThrow(new IllegalStateException("Redis Is Down"))
+                .when(asyncService).constructCouponByTemplates(
+                        Mockito.anyList(), Mockito.anyString(), Mockito.anyString());
+
+        templateJobService.submit(type, Collections.singletonList(fakeTemplateId));
+
+        //执行 3 次之后放弃, 任务结束并释放容量
+        awaitStat("failed", 1L);
+        Mockito.verify(asyncService, Mockito.times(3)).constructCouponByTemplates(
+                Mockito.anyList(), Mockito.anyString(), Mockito.anyString());
+        Assert.assertEquals(2L, stat("retried"));
+        Assert.assertEquals(0L, stat("succeeded"));
+        awaitFinished();
+        Assert.assertEquals(0, templateJobService.stats().get("ownedJobs"));
+    }
+
+    @Test
+    public void testRetryThenSucceed() throws Exception {
+
+        Mockito.doThrow(new IllegalStateException("Redis Is Down"))
+                .doNothing()
+                .when(asyncService).constructCouponByTemplates(
+                        Mockito.anyList(), Mockito.anyString(), Mockito.anyString());
+
+        templateJobService.submit(type, Collections.singletonList(fakeTemplateId));
+
+        awaitStat("succeeded", 1L);
+        Assert.assertEquals(1L, stat("retried"));
+        Assert.assertEquals(0L, stat("failed"));
+        Assert.assertEquals(0, unfinished.get());
+    }
+
+    //代替提交和结束任务的脚本, 其他脚本返回 null
+    //args: script, keys, 之后是展开的 ARGV
+    private Object executeScript(Object[] args) {
+
+        if (args[0] == submitScript) {
+            int capacity = Integer.parseInt(args[3].toString());
+            if (unfinished.incrementAndGet() > capacity) {
+                unfinished.decrementAndGet();
+                return 0L;
+            }
+            return 1L;
+        }
+        if (args[0] == finishScript) {
+            unfinished.decrementAndGet();
+            return 1L;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long stat(String name) {
+        Map<String, Object> types =
+                (Map<String, Object>) templateJobService.stats().get("types");
+        return (Long) ((Map<String, Object>) types.get(type.name())).get(name);
+    }
+
+    //任务在后台线程执行, 等到计数达到预期
+    private void awaitStat(String name, long expected) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stat(name) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, stat(name));
+    }
+
+    //放弃的任务在 failed 计数之后才结束
+    private void awaitFinished() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (unfinished.get() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, unfinished.get());
+    }
+}